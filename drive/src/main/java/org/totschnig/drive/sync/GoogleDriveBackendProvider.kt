@@ -40,6 +40,8 @@ class GoogleDriveBackendProvider internal constructor(
     }
     override val sharedPreferencesName = "google_drive"
 
+    override val changeSetFetchParallelism = 4
+
     override val accountRes: File
         get() = accountFolder
 
@@ -99,7 +101,7 @@ class GoogleDriveBackendProvider internal constructor(
             ?: throw IOException("Could not read $uri")).use {
             saveInputStream(
                 fileName,
-                if (maybeEncrypt) maybeEncrypt(it) else it,
+                maybeEncrypt(it, maybeEncrypt),
                 getMimeType(fileName),
                 collection
             )
@@ -113,7 +115,8 @@ class GoogleDriveBackendProvider internal constructor(
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean
     ) {
         val base = if (toAccountDir) accountFolder else baseFolder
         val driveFolder = if (folder == null) base else {
@@ -123,7 +126,7 @@ class GoogleDriveBackendProvider internal constructor(
                 null
             )
         }
-        saveFileContents(driveFolder, fileName, fileContents, mimeType, maybeEncrypt)
+        saveFileContents(driveFolder, fileName, fileContents, mimeType, maybeEncrypt, compress)
     }
 
     @Throws(IOException::class)
@@ -132,9 +135,10 @@ class GoogleDriveBackendProvider internal constructor(
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean = false
     ) {
-        toInputStream(fileContents, maybeEncrypt).use {
+        toInputStream(fileContents, maybeEncrypt, compress).use {
             saveInputStream(fileName, it, mimeType, driveFolder)
         }
     }
@@ -237,6 +241,11 @@ class GoogleDriveBackendProvider internal constructor(
 
     override fun nameForResource(resource: File): String? = resource.name
 
+    override fun deleteResource(resource: File): Boolean {
+        driveServiceHelper.delete(resource.id)
+        return true
+    }
+
     override fun isCollection(resource: File) = driveServiceHelper.isFolder(resource)
 
     @get:Throws(IOException::class)
@@ -14,6 +14,8 @@ import com.dropbox.core.oauth.DbxCredential
 import com.dropbox.core.v2.DbxClientV2
 import com.dropbox.core.v2.files.FolderMetadata
 import com.dropbox.core.v2.files.GetMetadataErrorException
+import com.dropbox.core.v2.files.ListFolderContinueErrorException
+import com.dropbox.core.v2.files.ListFolderResult
 import com.dropbox.core.v2.files.Metadata
 import com.dropbox.core.v2.files.WriteMode
 import org.acra.util.StreamReader
@@ -173,6 +175,11 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
         }
     }
 
+    override fun deleteResource(resource: Metadata) = tryWithWrappedException {
+        mDbxClient.files().deleteV2(resource.pathLower)
+        true
+    }
+
     private val lockFilePath: String
         get() = getResourcePath(LOCK_FILE)
 
@@ -188,9 +195,37 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
 
 
     override fun childrenForCollection(folder: Metadata?): List<Metadata> =
+        listChildrenWithVersion(folder).second
+
+    /**
+     * the cursor of a listing serves as its version
+     */
+    override fun listChildrenWithVersion(folder: Metadata?): Pair<String, List<Metadata>> =
         tryWithWrappedException {
-            mDbxClient.files().listFolder(folder?.pathLower ?: accountPath).entries
+            val entries = mutableListOf<Metadata>()
+            var result: ListFolderResult = mDbxClient.files().listFolder(folder?.pathLower ?: accountPath)
+            entries.addAll(result.entries)
+            while (result.hasMore) {
+                result = mDbxClient.files().listFolderContinue(result.cursor)
+                entries.addAll(result.entries)
+            }
+            result.cursor to entries
+        }
+
+    override fun listingVersion(folder: Metadata?): String = tryWithWrappedException {
+        mDbxClient.files().listFolderGetLatestCursor(folder?.pathLower ?: accountPath).cursor
+    }
+
+    /**
+     * a folder is unchanged, if continuing from the cursor of its listing does not yield any entries
+     */
+    override fun isListingUnchanged(folder: Metadata?, version: String) = tryWithWrappedException {
+        try {
+            mDbxClient.files().listFolderContinue(version).entries.isEmpty()
+        } catch (e: ListFolderContinueErrorException) {
+            false
         }
+    }
 
     override fun nameForResource(resource: Metadata): String = resource.name
 
@@ -238,7 +273,8 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean
     ) {
         val base = if (toAccountDir) accountPath else basePath
         val path = if (folder == null) {
@@ -248,7 +284,7 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
                 requireFolder(it)
             }
         }
-        saveInputStream("$path/$fileName", toInputStream(fileContents, maybeEncrypt))
+        saveInputStream("$path/$fileName", toInputStream(fileContents, maybeEncrypt, compress))
     }
 
     @Throws(IOException::class)
@@ -284,6 +320,8 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
 
     override val sharedPreferencesName = "dropbox"
 
+    override val changeSetFetchParallelism = 4
+
     private fun reAuthenticationIntent() = Intent(context, DropboxSetup::class.java).apply {
         action = ACTION_RE_AUTHENTICATE
         putExtra(DatabaseConstants.KEY_SYNC_ACCOUNT_NAME, accountName)
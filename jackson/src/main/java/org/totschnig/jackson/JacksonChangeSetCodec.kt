@@ -0,0 +1,205 @@
+package org.totschnig.jackson
+
+import androidx.annotation.Keep
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.core.StreamReadFeature
+import com.fasterxml.jackson.core.StreamWriteFeature
+import org.totschnig.myexpenses.sync.json.CategoryInfo
+import org.totschnig.myexpenses.sync.json.ChangeSetCodec
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import java.io.Reader
+import java.io.Writer
+
+/**
+ * Streaming codec for change files on top of jackson-core. Reads and writes the same JSON as the
+ * Gson adapters generated for [TransactionChange] and [CategoryInfo]: properties are named after
+ * their accessors, and null values are omitted.
+ */
+@Keep
+class JacksonChangeSetCodec : ChangeSetCodec {
+    private val factory: JsonFactory = JsonFactory.builder()
+        .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+        .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+        .build()
+
+    override fun read(reader: Reader): MutableList<TransactionChange>? =
+        factory.createParser(reader).use { parser ->
+            when (parser.nextToken()) {
+                null, JsonToken.VALUE_NULL -> null
+                else -> readChanges(parser)
+            }
+        }
+
+    override fun write(writer: Writer, changes: List<TransactionChange>) {
+        factory.createGenerator(writer).use { generator ->
+            writeChanges(generator, changes)
+        }
+    }
+
+    private fun readChanges(parser: JsonParser): MutableList<TransactionChange> {
+        parser.expect(JsonToken.START_ARRAY)
+        val result = ArrayList<TransactionChange>()
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            result.add(readChange(parser))
+        }
+        return result
+    }
+
+    private fun readChange(parser: JsonParser): TransactionChange {
+        parser.expect(JsonToken.START_OBJECT)
+        val builder = TransactionChange.builder()
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            if (parser.nextToken() == JsonToken.VALUE_NULL) continue
+            when (name) {
+                "appInstance" -> builder.setAppInstance(parser.text)
+                "type" -> builder.setType(TransactionChange.Type.valueOf(parser.text))
+                "uuid" -> builder.setUuid(parser.text)
+                "timeStamp" -> builder.setTimeStamp(parser.longValue)
+                "parentUuid" -> builder.setParentUuid(parser.text)
+                "comment" -> builder.setComment(parser.text)
+                "date" -> builder.setDate(parser.longValue)
+                "valueDate" -> builder.setValueDate(parser.longValue)
+                "amount" -> builder.setAmount(parser.longValue)
+                "originalAmount" -> builder.setOriginalAmount(parser.longValue)
+                "originalCurrency" -> builder.setOriginalCurrency(parser.text)
+                "equivalentAmount" -> builder.setEquivalentAmount(parser.longValue)
+                "equivalentCurrency" -> builder.setEquivalentCurrency(parser.text)
+                "label" -> builder.setLabel(parser.text)
+                "payeeName" -> builder.setPayeeName(parser.text)
+                "transferAccount" -> builder.setTransferAccount(parser.text)
+                "methodLabel" -> builder.setMethodLabel(parser.text)
+                "crStatus" -> builder.setCrStatus(parser.text)
+                "referenceNumber" -> builder.setReferenceNumber(parser.text)
+                "pictureUri" -> builder.setPictureUri(parser.text)
+                "tags" -> builder.setTags(readStrings(parser))
+                "attachments" -> builder.setAttachments(readStrings(parser))
+                "splitParts" -> builder.setSplitParts(readChanges(parser))
+                "categoryInfo" -> builder.setCategoryInfo(readCategoryInfos(parser))
+                else -> parser.skipChildren()
+            }
+        }
+        parser.expect(JsonToken.END_OBJECT)
+        return builder.build()
+    }
+
+    private fun readStrings(parser: JsonParser): List<String> {
+        parser.expect(JsonToken.START_ARRAY)
+        val result = ArrayList<String>()
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            result.add(parser.text)
+        }
+        return result
+    }
+
+    private fun readCategoryInfos(parser: JsonParser): List<CategoryInfo> {
+        parser.expect(JsonToken.START_ARRAY)
+        val result = ArrayList<CategoryInfo>()
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            parser.expect(JsonToken.START_OBJECT)
+            var uuid: String? = null
+            var label: String? = null
+            var icon: String? = null
+            var color: Int? = null
+            var type: Int? = null
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val name = parser.currentName
+                if (parser.nextToken() == JsonToken.VALUE_NULL) continue
+                when (name) {
+                    "uuid" -> uuid = parser.text
+                    "label" -> label = parser.text
+                    "icon" -> icon = parser.text
+                    "color" -> color = parser.intValue
+                    "type" -> type = parser.intValue
+                    else -> parser.skipChildren()
+                }
+            }
+            result.add(
+                CategoryInfo(
+                    uuid ?: throw JsonParseException(parser, "category without uuid"),
+                    label ?: throw JsonParseException(parser, "category without label"),
+                    icon,
+                    color,
+                    type
+                )
+            )
+        }
+        return result
+    }
+
+    private fun JsonParser.expect(token: JsonToken) {
+        if (currentToken() != token) {
+            throw JsonParseException(this, "Expected $token, found ${currentToken()}")
+        }
+    }
+
+    private fun writeChanges(generator: JsonGenerator, changes: List<TransactionChange>) {
+        generator.writeStartArray()
+        changes.forEach { writeChange(generator, it) }
+        generator.writeEndArray()
+    }
+
+    private fun writeChange(generator: JsonGenerator, change: TransactionChange) {
+        with(generator) {
+            writeStartObject()
+            writeStringIfNotNull("appInstance", change.appInstance())
+            writeStringField("type", change.type().name)
+            writeStringField("uuid", change.uuid())
+            writeNumberField("timeStamp", change.timeStamp())
+            writeStringIfNotNull("parentUuid", change.parentUuid())
+            writeStringIfNotNull("comment", change.comment())
+            writeNumberIfNotNull("date", change.date())
+            writeNumberIfNotNull("valueDate", change.valueDate())
+            writeNumberIfNotNull("amount", change.amount())
+            writeNumberIfNotNull("originalAmount", change.originalAmount())
+            writeStringIfNotNull("originalCurrency", change.originalCurrency())
+            writeNumberIfNotNull("equivalentAmount", change.equivalentAmount())
+            writeStringIfNotNull("equivalentCurrency", change.equivalentCurrency())
+            writeStringIfNotNull("label", change.label())
+            writeStringIfNotNull("payeeName", change.payeeName())
+            writeStringIfNotNull("transferAccount", change.transferAccount())
+            writeStringIfNotNull("methodLabel", change.methodLabel())
+            writeStringIfNotNull("crStatus", change.crStatus())
+            writeStringIfNotNull("referenceNumber", change.referenceNumber())
+            writeStringIfNotNull("pictureUri", change.pictureUri())
+            change.tags()?.let { writeStrings("tags", it) }
+            change.attachments()?.let { writeStrings("attachments", it) }
+            change.splitParts()?.let {
+                writeFieldName("splitParts")
+                writeChanges(this, it)
+            }
+            change.categoryInfo()?.let { categories ->
+                writeArrayFieldStart("categoryInfo")
+                categories.forEach {
+                    writeStartObject()
+                    writeStringField("uuid", it.uuid)
+                    writeStringField("label", it.label)
+                    writeStringIfNotNull("icon", it.icon)
+                    it.color?.let { color -> writeNumberField("color", color) }
+                    it.type?.let { type -> writeNumberField("type", type) }
+                    writeEndObject()
+                }
+                writeEndArray()
+            }
+            writeEndObject()
+        }
+    }
+
+    private fun JsonGenerator.writeStringIfNotNull(name: String, value: String?) {
+        if (value != null) writeStringField(name, value)
+    }
+
+    private fun JsonGenerator.writeNumberIfNotNull(name: String, value: Long?) {
+        if (value != null) writeNumberField(name, value)
+    }
+
+    private fun JsonGenerator.writeStrings(name: String, values: List<String>) {
+        writeArrayFieldStart(name)
+        values.forEach { writeString(it) }
+        writeEndArray()
+    }
+}
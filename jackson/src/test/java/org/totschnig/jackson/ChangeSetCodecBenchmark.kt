@@ -0,0 +1,84 @@
+package org.totschnig.jackson
+
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.GsonBuilder
+import org.junit.Before
+import org.junit.Test
+import org.totschnig.myexpenses.sync.json.AdapterFactory
+import org.totschnig.myexpenses.sync.json.CategoryInfo
+import org.totschnig.myexpenses.sync.json.ChangeSetCodec
+import org.totschnig.myexpenses.sync.json.GsonChangeSetCodec
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import org.totschnig.shared_test.Benchmark
+import java.io.StringReader
+import java.io.StringWriter
+import java.io.Writer
+import java.lang.management.ManagementFactory
+
+/**
+ * Compares throughput and allocations of the Gson and the Jackson codec on a large change set,
+ * the content of both codecs is verified by [JacksonChangeSetCodecTest].
+ */
+class ChangeSetCodecBenchmark {
+    private val changeCount = 20_000
+    private val warmup = 3
+    private val iterations = 5
+
+    private val changes = List(changeCount) {
+        TransactionChange.builder()
+            .setType(TransactionChange.Type.created)
+            .setUuid("uuid-$it")
+            .setTimeStamp(1700000000L + it)
+            .setDate(1700000000L + it)
+            .setAmount(-it.toLong())
+            .setComment("Comment $it")
+            .setPayeeName("Payee ${it % 100}")
+            .setTags(listOf("Holiday"))
+            .setCategoryInfo(listOf(CategoryInfo("food", "Food", null, null, 1)))
+            .build()
+    }
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private fun allocatedBytes() = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().id)
+
+    private object NullWriter : Writer() {
+        override fun write(cbuf: CharArray, off: Int, len: Int) {}
+        override fun flush() {}
+        override fun close() {}
+    }
+
+    @Before
+    fun assumeEnabled() {
+        Benchmark.assumeEnabled()
+    }
+
+    private fun measure(label: String, block: () -> Unit): String {
+        val allocatedBefore = allocatedBytes()
+        val millis = Benchmark.measureMillis(warmup, iterations, block)
+        //warmup runs allocate as much as measured ones
+        val bytesPerChange = (allocatedBytes() - allocatedBefore) / (warmup + iterations) / changeCount
+        return "$label: %.0f ns/change, %d bytes allocated/change".format(
+            millis * 1_000_000 / changeCount, bytesPerChange
+        )
+    }
+
+    @Test
+    fun compareCodecs() {
+        val codecs = mapOf<String, ChangeSetCodec>(
+            "Gson" to GsonChangeSetCodec(
+                GsonBuilder().registerTypeAdapterFactory(AdapterFactory.create()).create()
+            ),
+            "Jackson" to JacksonChangeSetCodec()
+        )
+        val json = StringWriter().also { codecs.getValue("Gson").write(it, changes) }.toString()
+        val results = codecs.flatMap { (name, codec) ->
+            assertThat(codec.read(StringReader(json))).isEqualTo(changes)
+            listOf(
+                measure("$name write") { codec.write(NullWriter, changes) },
+                measure("$name read") { codec.read(StringReader(json)) }
+            )
+        }
+        Benchmark.report("ChangeSetCodecBenchmark", listOf("$changeCount changes") + results)
+    }
+}
@@ -0,0 +1,39 @@
+package org.totschnig.jackson
+
+import android.content.Context
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
+import org.junit.Test
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.totschnig.myexpenses.feature.Feature
+import org.totschnig.myexpenses.feature.FeatureManager
+import org.totschnig.myexpenses.sync.json.ChangeSetCodecResolver
+import org.totschnig.myexpenses.sync.json.GsonChangeSetCodec
+
+class ChangeSetCodecResolverTest {
+    private var installed = false
+    private val featureManager = object : FeatureManager() {
+        override fun isFeatureInstalled(feature: Feature, context: Context) =
+            feature == Feature.JACKSON && installed
+    }
+    private val context: Context = mock {
+        on { classLoader } doReturn ChangeSetCodecResolverTest::class.java.classLoader
+    }
+    private val resolver = ChangeSetCodecResolver(context, { featureManager }, Gson())
+
+    @Test
+    fun jacksonIsPickedUpOnceInstalled() {
+        assertThat(resolver.get()).isInstanceOf(GsonChangeSetCodec::class.java)
+        installed = true
+        assertThat(resolver.get()).isInstanceOf(JacksonChangeSetCodec::class.java)
+    }
+
+    @Test
+    fun loadedCodecIsKept() {
+        installed = true
+        val codec = resolver.get()
+        installed = false
+        assertThat(resolver.get()).isSameInstanceAs(codec)
+    }
+}
@@ -0,0 +1,136 @@
+package org.totschnig.jackson
+
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonParser
+import org.junit.Test
+import org.totschnig.myexpenses.sync.json.AdapterFactory
+import org.totschnig.myexpenses.sync.json.CategoryInfo
+import org.totschnig.myexpenses.sync.json.ChangeSetCodec
+import org.totschnig.myexpenses.sync.json.GsonChangeSetCodec
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import java.io.StringReader
+import java.io.StringWriter
+
+class JacksonChangeSetCodecTest {
+    private val gsonCodec = GsonChangeSetCodec(
+        GsonBuilder().registerTypeAdapterFactory(AdapterFactory.create()).create()
+    )
+    private val jacksonCodec = JacksonChangeSetCodec()
+
+    private fun ChangeSetCodec.encode(changes: List<TransactionChange>) =
+        StringWriter().also { write(it, changes) }.toString()
+
+    private fun ChangeSetCodec.decode(json: String) = read(StringReader(json))
+
+    private val changes = listOf(
+        TransactionChange.builder()
+            .setAppInstance("device")
+            .setType(TransactionChange.Type.created)
+            .setUuid("parent")
+            .setTimeStamp(1700000000L)
+            .setComment("Quotes \" and backslash \\, <html> & 'unicode' äöü €\n")
+            .setDate(1699999999L)
+            .setValueDate(1699999998L)
+            .setAmount(-12345678901234L)
+            .setOriginalAmount(-100L)
+            .setOriginalCurrency("USD")
+            .setEquivalentAmount(-90L)
+            .setEquivalentCurrency("EUR")
+            .setPayeeName("Bakery")
+            .setMethodLabel("CHEQUE")
+            .setCrStatus("CLEARED")
+            .setReferenceNumber("42")
+            .setTags(listOf("Holiday", "Work"))
+            .setAttachments(emptyList())
+            .setCategoryInfo(
+                listOf(
+                    CategoryInfo("food", "Food", "utensils", -16777216, 1),
+                    CategoryInfo("bakery", "Bakery", null, null)
+                )
+            )
+            .setSplitParts(
+                listOf(
+                    TransactionChange.builder()
+                        .setType(TransactionChange.Type.created)
+                        .setUuid("part1")
+                        .setParentUuid("parent")
+                        .setTimeStamp(1700000000L)
+                        .setAmount(-6000L)
+                        .setAttachments(listOf("attachment"))
+                        .build(),
+                    TransactionChange.builder()
+                        .setType(TransactionChange.Type.created)
+                        .setUuid("part2")
+                        .setParentUuid("parent")
+                        .setTimeStamp(1700000000L)
+                        .setAmount(-4000L)
+                        .setTransferAccount("account")
+                        .build()
+                )
+            )
+            .build(),
+        TransactionChange.builder()
+            .setType(TransactionChange.Type.updated)
+            .setUuid("updated")
+            .setTimeStamp(1700000001L)
+            .setLabel("Label")
+            .setPictureUri("file:///picture.jpg")
+            .build(),
+        TransactionChange.builder()
+            .setType(TransactionChange.Type.deleted)
+            .setUuid("deleted")
+            .setTimeStamp(1700000002L)
+            .build(),
+        TransactionChange.builder()
+            .setType(TransactionChange.Type.link)
+            .setUuid("link")
+            .setReferenceNumber("peer")
+            .setTimeStamp(1700000003L)
+            .build()
+    )
+
+    @Test
+    fun readsGsonOutput() {
+        assertThat(jacksonCodec.decode(gsonCodec.encode(changes))).isEqualTo(changes)
+    }
+
+    @Test
+    fun gsonReadsJacksonOutput() {
+        assertThat(gsonCodec.decode(jacksonCodec.encode(changes))).isEqualTo(changes)
+    }
+
+    @Test
+    fun writesSameJsonAsGson() {
+        assertThat(JsonParser.parseString(jacksonCodec.encode(changes)))
+            .isEqualTo(JsonParser.parseString(gsonCodec.encode(changes)))
+    }
+
+    @Test
+    fun ignoresUnknownPropertiesAndNulls() {
+        assertThat(
+            jacksonCodec.decode(
+                """[{"type":"deleted","uuid":"deleted","timeStamp":1700000002,"comment":null,"future":{"nested":[1,2]}}]"""
+            )
+        ).containsExactly(changes[2])
+    }
+
+    @Test
+    fun emptyContentReadsAsNull() {
+        assertThat(jacksonCodec.decode("")).isNull()
+        assertThat(gsonCodec.decode("")).isNull()
+    }
+
+    @Test
+    fun doesNotCloseWriter() {
+        var closed = false
+        val writer = object : StringWriter() {
+            override fun close() {
+                closed = true
+            }
+        }
+        jacksonCodec.write(writer, changes)
+        assertThat(closed).isFalse()
+        assertThat(writer.toString()).endsWith("]")
+    }
+}
@@ -54,7 +54,9 @@ import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.INVALID_CALENDAR_ID
 import org.totschnig.myexpenses.provider.PlannerUtils
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.notifyTransactionsChanged
 import org.totschnig.myexpenses.service.AutoBackupWorker.Companion.enqueueOrCancel
+import org.totschnig.myexpenses.service.CalendarBucketsWorker
 import org.totschnig.myexpenses.service.PlanExecutor
 import org.totschnig.myexpenses.sync.SyncAdapter
 import org.totschnig.myexpenses.ui.ContextHelper
@@ -157,6 +159,8 @@ open class MyApplication : Application(), SharedPreferences.OnSharedPreferenceCh
     }
 
     override fun onStart(owner: LifecycleOwner) {
+        //time zone might have changed while we were not running
+        enqueueCalendarBucketsRefresh()
         if (prefHandler.getBoolean(PrefKey.UI_WEB, false)) {
             if (isConnectedWifi(this)) {
                 controlWebUi(START_ACTION)
@@ -318,6 +322,10 @@ open class MyApplication : Application(), SharedPreferences.OnSharedPreferenceCh
             plannerUtils.onPlannerCalendarIdChanged(
                 sharedPreferences.getString(key, INVALID_CALENDAR_ID)!!
             )
+        } else if (key == prefHandler.getKey(PrefKey.GROUP_WEEK_STARTS) ||
+            key == prefHandler.getKey(PrefKey.GROUP_MONTH_STARTS)
+        ) {
+            enqueueCalendarBucketsRefresh()
         }
     }
 
@@ -336,6 +344,14 @@ open class MyApplication : Application(), SharedPreferences.OnSharedPreferenceCh
         }
     }
 
+    private fun enqueueCalendarBucketsRefresh() {
+        try {
+            CalendarBucketsWorker.enqueue(this)
+        } catch (e: Exception) {
+            report(e)
+        }
+    }
+
     protected open fun enableStrictMode() {
         val threadPolicyBuilder = StrictMode.ThreadPolicy.Builder()
             .detectAll()
@@ -358,7 +374,7 @@ open class MyApplication : Application(), SharedPreferences.OnSharedPreferenceCh
             DataBaseAccount.AGGREGATE_HOME_CURRENCY_CODE
         )
         DatabaseConstants.buildProjection(this, newValue)
-        contentResolver.notifyChange(TransactionProvider.TRANSACTIONS_URI, null, false)
+        contentResolver.notifyTransactionsChanged()
     }
 
     companion object {
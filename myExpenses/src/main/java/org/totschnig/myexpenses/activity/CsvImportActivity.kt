@@ -6,7 +6,6 @@ import android.view.Menu
 import android.widget.AdapterView
 import androidx.activity.viewModels
 import com.evernote.android.state.State
-import org.apache.commons.csv.CSVRecord
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.db2.Repository
 import org.totschnig.myexpenses.dialog.ConfirmationDialogFragment
@@ -117,8 +116,18 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
         showProgress()
         csvImportViewModel.parseFile(uri, delimiter, encoding).observe(this) { result ->
             hideProgress()
-            result.onSuccess {
+            result.onSuccess { recordCount ->
                 binding.viewPager.currentItem = 1
+                if (recordCount > CsvImportViewModel.PREVIEW_SIZE) {
+                    showSnackBar(
+                        getString(
+                            R.string.csv_import_preview_truncated,
+                            CsvImportViewModel.PREVIEW_SIZE,
+                            recordCount,
+                            getString(R.string.csv_import_discard_matching)
+                        )
+                    )
+                }
             }.onFailure {
                 showSnackBar(
                     when (it) {
@@ -133,11 +142,16 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
         }
     }
 
-    fun importData(dataSet: List<CSVRecord>, columnToFieldMap: IntArray, discardedRows: Int) {
+    /**
+     * @param discardedRows positions of the rows in the preview that should not be imported
+     * @param discardMatching if rows after the preview identical to a discarded one are skipped too
+     */
+    fun importData(discardedRows: Set<Int>, discardMatching: Boolean, columnToFieldMap: IntArray) {
         accountId.takeIf { it != AdapterView.INVALID_ROW_ID }?.also { accountId ->
             showProgress()
             csvImportViewModel.importData(
-                dataSet,
+                discardedRows,
+                discardMatching,
                 columnToFieldMap,
                 dateFormat,
                 parseFragment!!.autoFillCategories,
@@ -145,14 +159,14 @@ class CsvImportActivity : TabbedActivity(), ConfirmationDialogListener {
                 parseFragment!!.uri!!
             ).observe(this) { result ->
                 hideProgress()
-                result.onSuccess { resultList ->
+                result.onSuccess { (discardedCount, resultList) ->
                     if (!mUsageRecorded) {
                         recordUsage(ContribFeature.CSV_IMPORT)
                         mUsageRecorded = true
                     }
                     val msg = StringBuilder()
-                    if (discardedRows > 0) {
-                        msg.append(" ${getString(R.string.csv_import_records_discarded, discardedRows)}")
+                    if (discardedCount > 0) {
+                        msg.append(" ${getString(R.string.csv_import_records_discarded, discardedCount)}")
                     }
                     msg.append(resultList.joinToString(" ") {
                         "${getString(R.string.import_transactions_success, it.successCount, it.label)}."
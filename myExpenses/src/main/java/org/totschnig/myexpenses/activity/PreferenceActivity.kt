@@ -35,6 +35,7 @@ import org.totschnig.myexpenses.injector
 import org.totschnig.myexpenses.model.ContribFeature
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.notifyTransactionsChanged
 import org.totschnig.myexpenses.service.AutoBackupWorker
 import org.totschnig.myexpenses.sync.GenericAccountService
 import org.totschnig.myexpenses.util.PermissionHelper
@@ -264,7 +265,7 @@ class PreferenceActivity : ProtectedFragmentActivity(), ContribIFace {
             }
 
             getKey(PrefKey.UNMAPPED_TRANSACTION_AS_TRANSFER) -> {
-                contentResolver.notifyChange(TransactionProvider.TRANSACTIONS_URI, null, false)
+                contentResolver.notifyTransactionsChanged()
                 contentResolver.notifyChange(TransactionProvider.ACCOUNTS_URI, null, false)
             }
         }
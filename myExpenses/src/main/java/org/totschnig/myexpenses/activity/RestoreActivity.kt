@@ -1,6 +1,8 @@
 package org.totschnig.myexpenses.activity
 
+import android.app.ProgressDialog
 import android.os.Bundle
+import android.text.format.Formatter
 import androidx.activity.viewModels
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
@@ -31,6 +33,21 @@ abstract class RestoreActivity: ProtectedFragmentActivity() {
                 }
             }
         }
+        lifecycleScope.launch {
+            repeatOnLifecycle(Lifecycle.State.STARTED) {
+                restoreViewModel.restoreProgress.collect { progress ->
+                    progress?.let { (bytesRead, size) ->
+                        progressDialogFragment?.setTitle(
+                            getString(R.string.pref_restore_title) + " (" +
+                                    Formatter.formatShortFileSize(this@RestoreActivity, bytesRead) +
+                                    (size?.let {
+                                        " / " + Formatter.formatShortFileSize(this@RestoreActivity, it)
+                                    } ?: "") + ")"
+                        )
+                    }
+                }
+            }
+        }
         lifecycleScope.launch {
             repeatOnLifecycle(Lifecycle.State.STARTED) {
                 restoreViewModel.result.collect { result ->
@@ -83,7 +100,12 @@ abstract class RestoreActivity: ProtectedFragmentActivity() {
             supportFragmentManager
                 .beginTransaction()
                 .add(
-                    ProgressDialogFragment.newInstance(getString(R.string.pref_restore_title), true),
+                    ProgressDialogFragment.newInstance(
+                        getString(R.string.pref_restore_title),
+                        null,
+                        ProgressDialog.STYLE_SPINNER,
+                        true
+                    ),
                     PROGRESS_TAG
                 ).commitNow()
             restoreViewModel.startRestore(args)
@@ -16,20 +16,26 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.totschnig.myexpenses.BuildConfig
 import org.totschnig.myexpenses.model.CurrencyContext
+import org.totschnig.myexpenses.model.SortDirection
 import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_KEY
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.provider.withLimit
 import org.totschnig.myexpenses.util.locale.HomeCurrencyProvider
+import org.totschnig.myexpenses.viewmodel.data.CursorMapper
 import org.totschnig.myexpenses.viewmodel.data.PageAccount
+import org.totschnig.myexpenses.viewmodel.data.StringPool
 import org.totschnig.myexpenses.viewmodel.data.Transaction2
 import timber.log.Timber
 import java.time.Duration
 import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
 
 open class TransactionPagingSource(
     val context: Context,
@@ -61,7 +67,7 @@ open class TransactionPagingSource(
             }
         }
         contentResolver.registerContentObserver(
-            TransactionProvider.TRANSACTIONS_URI,
+            account.accountScopeUri,
             true,
             observer
         )
@@ -85,13 +91,47 @@ open class TransactionPagingSource(
 
     }
 
+    /**
+     * sort value and id of the rows at the borders of the pages loaded so far, keyed by position,
+     * so that adjacent pages can be loaded by seeking from them instead of skipping with OFFSET
+     */
+    private val seekAnchors = ConcurrentHashMap<Int, SeekAnchor>()
+
+    private val stringPool = StringPool()
+
+    private val sortBy = when (account.sortBy) {
+        KEY_AMOUNT -> "abs($KEY_AMOUNT)"
+        else -> account.sortBy
+    }
+
+    private fun orderBy(reverse: Boolean): String {
+        val direction = if ((account.sortDirection == SortDirection.DESC) != reverse) "DESC" else "ASC"
+        return "$sortBy $direction, $KEY_ROWID $direction"
+    }
+
+    /**
+     * rows that come after [anchor] in sort order (or before it, if [reverse] is true).
+     * Values are inlined, since bound arguments would be compared as text with abs(amount)
+     */
+    private fun seekSelection(anchor: SeekAnchor, reverse: Boolean): String {
+        val operator = if ((account.sortDirection == SortDirection.DESC) != reverse) "<" else ">"
+        return "($sortBy $operator ${anchor.sortValue} OR ($sortBy = ${anchor.sortValue} AND $KEY_ROWID $operator ${anchor.id}))"
+    }
+
     @SuppressLint("InlinedApi")
     override suspend fun load(params: LoadParams<Int>): LoadResult<Int, Transaction2> {
         val position = params.key ?: 0
         //if the previous page was loaded from an offset between 0 and loadsize,
         //we must take care to load only the missing items before the offset
         val loadSize = if (position < 0) params.loadSize + position else params.loadSize
-        Timber.i("Requesting data for account %d at position %d", account.id, position)
+        val start = position.coerceAtLeast(0)
+        //appending continues after the last row of the previous page,
+        //prepending goes backwards from the first row of the following page
+        val appendAnchor = if (params is LoadParams.Append) seekAnchors[start - 1] else null
+        val prependAnchor =
+            if (params is LoadParams.Prepend) seekAnchors[start + loadSize] else null
+        val reverse = prependAnchor != null
+        Timber.i("Requesting data for account %d at position %d (seek: %b)", account.id, position, appendAnchor != null || reverse)
         var selection = "$KEY_PARENTID is null"
         var selectionArgs: Array<String>? = null
         if (!whereFilter.value.isEmpty) {
@@ -102,33 +142,34 @@ open class TransactionPagingSource(
                 selectionArgs = whereFilter.value.getSelectionArgsIfNotEmpty(false)
             }
         }
-        val startTime = if (BuildConfig.DEBUG) Instant.now() else null
-        val sortBy = when(account.sortBy) {
-            KEY_AMOUNT -> "abs($KEY_AMOUNT)"
-            else -> account.sortBy
+        (appendAnchor ?: prependAnchor)?.let {
+            selection += " AND ${seekSelection(it, reverse)}"
         }
-        val data = withContext(Dispatchers.IO) {
+        val startTime = if (BuildConfig.DEBUG) Instant.now() else null
+        val (data, sortValues) = withContext(Dispatchers.IO) {
             contentResolver.query(
-                uri.withLimit(loadSize, position.coerceAtLeast(0)),
-                projection,
+                if (appendAnchor != null || prependAnchor != null) uri.withLimit(loadSize)
+                else uri.withLimit(loadSize, start),
+                projection + "$sortBy AS $KEY_SORT_KEY",
                 selection,
                 selectionArgs,
-                "$sortBy ${account.sortDirection}", null
+                orderBy(reverse), null
             )?.use { cursor ->
                 if (BuildConfig.DEBUG) {
                     val endTime = Instant.now()
                     val duration = Duration.between(startTime, endTime)
                     Timber.i("Cursor delivered %d rows after %s", cursor.count, duration)
                 }
-                withContext(Dispatchers.Main) {
-                    cursor.asSequence.map {
-                        Transaction2.fromCursor(
-                            it,
-                            account.currencyUnit
-                        )
-                    }.toList()
-                }
-            } ?: emptyList()
+                val mapper = CursorMapper(cursor, account.currencyUnit, stringPool)
+                val sortKey = cursor.getColumnIndexOrThrow(KEY_SORT_KEY)
+                cursor.asSequence.map {
+                    mapper.map() to it.getLong(sortKey)
+                }.toList()
+            }?.let { if (reverse) it.asReversed() else it }?.unzip() ?: (emptyList<Transaction2>() to emptyList())
+        }
+        if (data.isNotEmpty()) {
+            seekAnchors[start] = SeekAnchor(sortValues.first(), data.first().id)
+            seekAnchors[start + data.size - 1] = SeekAnchor(sortValues.last(), data.last().id)
         }
         onLoadFinished()
         val prevKey = if (position > 0) (position - params.loadSize) else null
@@ -138,9 +179,11 @@ open class TransactionPagingSource(
             data = data,
             prevKey = prevKey,
             nextKey = nextKey,
-            itemsBefore = position.coerceAtLeast(0)
+            itemsBefore = start
         )
     }
 
     open fun onLoadFinished() {}
-}
\ No newline at end of file
+}
+
+private data class SeekAnchor(val sortValue: Long, val id: Long)
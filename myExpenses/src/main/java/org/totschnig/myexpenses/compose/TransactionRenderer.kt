@@ -351,7 +351,7 @@ class NewTransactionRenderer(
                 .padding(horizontal = 5.dp)
                 .weight(1f)
         ) {
-            if (!transaction.isTransfer && transaction.accountLabel != null) {
+            if (!transaction.isTransfer && !transaction.accountLabel.isNullOrEmpty()) {
                 Row(modifier = Modifier.height(IntrinsicSize.Min)) {
                     transaction.AccountColor()
                     Text(text = transaction.accountLabel)
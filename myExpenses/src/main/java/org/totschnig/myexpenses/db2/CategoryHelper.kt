@@ -11,7 +11,8 @@ object CategoryHelper {
     /**
      * inserts the category to the database if needed
      * @param categoryToId a map which caches the relation between the category name and the database
-     * id, both the root and the child category are placed in this map
+     * id, both the root and the child category are placed in this map, under the key returned by
+     * [pathKey]
      * @return the number of new elements added to the database
      */
     @Synchronized
@@ -41,6 +42,23 @@ object CategoryHelper {
 
     private fun parse(name: String) = name.split(":".toRegex())
 
+    private fun escapeSeparator(label: String) = label.replace(":", ESCAPED_SEPARATOR)
+
+    /**
+     * The key under which a category is cached in categoryToId: the unescaped labels of its path,
+     * with the separator escaped inside labels. This allows to prefill the cache with paths built
+     * from labels stored in the database.
+     */
+    fun pathKey(labels: List<String>) = labels.joinToString(":") { escapeSeparator(it) }
+
+    /**
+     * @return the key for [name] as passed to [insert]
+     */
+    fun pathKey(name: String, stripQifCategoryClass: Boolean = false) = pathKey(
+        parse(if (stripQifCategoryClass) stripCategoryClass(name) else name)
+            .map { unicodeEscaper.translate(it) }
+    )
+
     private fun insertCategory(
         repository: Repository,
         name: List<String>,
@@ -50,11 +68,12 @@ object CategoryHelper {
         var parentId: Long? = null
         var path = ""
         name.forEach {
+            val label = unicodeEscaper.translate(it)
             if (path.isNotEmpty()) path += ":"
-            path += it
+            path += escapeSeparator(label)
             var id = categoryToId[path]
             if (id == null) {
-                id = maybeWriteCategory(repository, it, parentId, typeFlags)
+                id = maybeWriteCategory(repository, label, parentId, typeFlags)
                 if (id != -1L) categoryToId[path] = id
             }
             if (id == -1L) {
@@ -67,16 +86,15 @@ object CategoryHelper {
 
     private fun maybeWriteCategory(
         repository: Repository,
-        name: String,
+        label: String,
         parentId: Long?,
         typeFlags: Byte = FLAG_NEUTRAL
     ): Long {
-        val unescaped = unicodeEscaper.translate(name)
-        var id = repository.findCategory(unescaped, parentId)
+        var id = repository.findCategory(label, parentId)
         if (id == -1L) {
             id = repository.saveCategory(
                 Category(
-                    label = unescaped,
+                    label = label,
                     parentId = parentId,
                     typeFlags = typeFlags
                 )
@@ -86,4 +104,5 @@ object CategoryHelper {
         return id
     }
 
+    private const val ESCAPED_SEPARATOR = "\\u003a"
 }
\ No newline at end of file
@@ -39,7 +39,6 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.ui.MyTextWatcher
 import org.totschnig.myexpenses.util.TextUtils.withAmountColor
-import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.ui.configurePopupAnchor
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.formatMoney
@@ -177,14 +176,11 @@ abstract class MainDelegate<T : ITransaction>(
         viewBinding.Payee.setAdapter(payeeAdapter)
         payeeAdapter.filterQueryProvider = FilterQueryProvider { constraint: CharSequence? ->
             if (constraint != null) {
-                val (selection, selectArgs) =
-                    " AND ${Party.SELECTION}" to Party.selectionArgs(
-                        Utils.escapeSqlLikeExpression(Utils.normalize(constraint.toString()))
-                    )
+                val (selection, selectArgs) = Party.selection(constraint.toString())
                 context.contentResolver.query(
                     TransactionProvider.PAYEES_URI,
                     arrayOf(KEY_ROWID, KEY_PAYEE_NAME),
-                    "$KEY_PARENTID IS NULL $selection",
+                    "$KEY_PARENTID IS NULL AND $selection",
                     selectArgs,
                     null
                 )
@@ -22,6 +22,7 @@ import org.totschnig.myexpenses.provider.DATABASE_VERSION
 import org.totschnig.myexpenses.provider.DatabaseVersionPeekHelper
 import org.totschnig.myexpenses.provider.TransactionDatabase
 import org.totschnig.myexpenses.provider.doRepairRequerySchema
+import org.totschnig.myexpenses.provider.useWriteAheadLogging
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import timber.log.Timber
 import java.io.File
@@ -30,6 +31,10 @@ import javax.inject.Singleton
 
 interface SqlCryptProvider {
     fun provideEncryptedDatabase(context: Context): SupportSQLiteOpenHelper.Factory
+    /**
+     * Writes a consistent plaintext copy of [encrypted] to [backupDb], through a connection of its
+     * own, while the live database stays open
+     */
     fun decrypt(context: Context, encrypted: File, backupDb: File)
     fun encrypt(context: Context, backupFile: File, currentDb: File)
 }
@@ -90,7 +95,7 @@ open class DataModule(private val shouldInsertDefaultTransferCategory: Boolean =
                     TransactionDatabase(appContext, prefHandler, shouldInsertDefaultTransferCategory)
                 ).build()
         ).also {
-            it.setWriteAheadLoggingEnabled(false)
+            it.setWriteAheadLoggingEnabled(useWriteAheadLogging(encryptDatabase))
         }
     }
 
@@ -0,0 +1,152 @@
+package org.totschnig.myexpenses.dialog
+
+import android.app.Dialog
+import android.content.Intent
+import android.os.Bundle
+import android.text.format.Formatter
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.livedata.observeAsState
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.platform.ComposeView
+import androidx.compose.ui.platform.LocalContext
+import androidx.compose.ui.platform.ViewCompositionStrategy
+import androidx.compose.ui.res.dimensionResource
+import androidx.compose.ui.res.stringResource
+import androidx.compose.ui.text.font.FontWeight
+import androidx.compose.ui.unit.dp
+import androidx.lifecycle.ViewModelProvider
+import org.totschnig.myexpenses.R
+import org.totschnig.myexpenses.compose.AppTheme
+import org.totschnig.myexpenses.injector
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME
+import org.totschnig.myexpenses.sync.json.SyncRunStats
+import org.totschnig.myexpenses.viewmodel.SyncStatsViewModel
+import java.text.DateFormat
+import java.util.Date
+
+/**
+ * Lists the recorded sync runs of a backend, which are loaded from the database, and allows to
+ * share them as JSON
+ */
+class SyncStatsDialogFragment : BaseDialogFragment() {
+
+    private lateinit var viewModel: SyncStatsViewModel
+
+    private val stats by lazy {
+        viewModel.syncStats(requireArguments().getString(KEY_SYNC_ACCOUNT_NAME)!!)
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        viewModel = ViewModelProvider(this)[SyncStatsViewModel::class.java]
+        injector.inject(viewModel)
+    }
+
+    override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
+        return initBuilder().also {
+            dialogView = ComposeView(requireContext()).apply {
+                setViewCompositionStrategy(ViewCompositionStrategy.DisposeOnViewTreeLifecycleDestroyed)
+                setContent {
+                    AppTheme {
+                        stats.observeAsState().value?.let { entries ->
+                            SyncStats(entries)
+                        }
+                    }
+                }
+            }
+            it.setView(dialogView)
+            it.setTitle(R.string.menu_sync_stats)
+            it.setPositiveButton(R.string.button_label_share_file) { _, _ -> share() }
+            it.setNegativeButton(android.R.string.cancel, null)
+        }.create()
+    }
+
+    private fun share() {
+        startActivity(
+            Intent.createChooser(
+                Intent(Intent.ACTION_SEND).apply {
+                    type = "application/json"
+                    putExtra(Intent.EXTRA_SUBJECT, getString(R.string.menu_sync_stats))
+                    putExtra(
+                        Intent.EXTRA_TEXT,
+                        stats.value.orEmpty().joinToString(",", "[", "]") { it.first.toJson() }
+                    )
+                },
+                getString(R.string.button_label_share_file)
+            )
+        )
+    }
+
+    @Composable
+    private fun SyncStats(entries: List<Pair<SyncRunStats, String>>) {
+        if (entries.isEmpty()) {
+            Text(
+                modifier = Modifier.padding(
+                    horizontal = dimensionResource(id = R.dimen.padding_dialog_side),
+                    vertical = dimensionResource(id = R.dimen.padding_dialog_content_top)
+                ),
+                text = stringResource(R.string.sync_stats_empty)
+            )
+            return
+        }
+        LazyColumn(
+            modifier = Modifier.padding(
+                horizontal = dimensionResource(id = R.dimen.padding_dialog_side),
+                vertical = dimensionResource(id = R.dimen.padding_dialog_content_top)
+            )
+        ) {
+            items(entries) { (stats, label) ->
+                SyncRun(stats, label)
+            }
+        }
+    }
+
+    @Composable
+    private fun SyncRun(stats: SyncRunStats, label: String) {
+        val context = LocalContext.current
+        Column(modifier = Modifier.padding(bottom = 8.dp)) {
+            Text(
+                fontWeight = FontWeight.Bold,
+                text = "$label (${
+                    DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT)
+                        .format(Date(stats.started))
+                })${if (stats.completed) "" else " ⚠"}"
+            )
+            Text(
+                text = stringResource(
+                    R.string.sync_stats_summary,
+                    stats.durationMillis,
+                    Formatter.formatShortFileSize(context, stats.bytesRead),
+                    Formatter.formatShortFileSize(context, stats.bytesWritten),
+                    stats.changeFilesRead,
+                    stats.changeFilesWritten,
+                    stats.operations
+                )
+            )
+            Text(text = stats.phaseMillis.filterValues { it > 0 }.entries
+                .joinToString { "${it.key} ${it.value} ms" })
+            if (stats.backoffMillis.isNotEmpty()) {
+                Text(
+                    text = stringResource(
+                        R.string.sync_stats_backoff,
+                        stats.backoffMillis.joinToString { "${it / 1000} s" }
+                    )
+                )
+            }
+        }
+    }
+
+    companion object {
+        fun newInstance(syncAccountName: String) =
+            SyncStatsDialogFragment().apply {
+                arguments = Bundle().apply {
+                    putString(KEY_SYNC_ACCOUNT_NAME, syncAccountName)
+                }
+            }
+    }
+}
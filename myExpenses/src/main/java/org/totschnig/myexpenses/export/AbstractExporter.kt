@@ -8,19 +8,16 @@ import androidx.documentfile.provider.DocumentFile
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.db2.localizedLabelSqlColumn
 import org.totschnig.myexpenses.model.*
-import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import org.totschnig.myexpenses.provider.TRANSFER_ACCOUNT_LABEL
 import org.totschnig.myexpenses.provider.TransactionProvider
-import org.totschnig.myexpenses.provider.TransactionProvider.TRANSACTIONS_ATTACHMENTS_URI
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.fileName
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.provider.getLongOrNull
 import org.totschnig.myexpenses.provider.getString
 import org.totschnig.myexpenses.provider.getStringOrNull
-import org.totschnig.myexpenses.provider.useAndMap
 import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.epoch2ZonedDateTime
@@ -28,6 +25,7 @@ import org.totschnig.myexpenses.util.joinArrays
 import timber.log.Timber
 import java.io.IOException
 import java.io.OutputStreamWriter
+import java.io.Writer
 import java.time.format.DateTimeFormatter
 
 abstract class AbstractExporter
@@ -74,6 +72,32 @@ abstract class AbstractExporter
         outputStream: Lazy<Result<DocumentFile>>,
         append: Boolean
     ): Result<DocumentFile> {
+        var output: DocumentFile? = null
+        var writer: Writer? = null
+        return try {
+            export(context, lazy {
+                val file = outputStream.value.getOrThrow()
+                output = file
+                OutputStreamWriter(
+                    context.contentResolver.openOutputStream(file.uri, if (append) "wa" else "w")
+                        ?: throw IOException("openOutputStream returned null"),
+                    encoding
+                ).also { writer = it }
+            }).map { output!! }
+        } finally {
+            writer?.close()
+        }
+    }
+
+    /**
+     * Writes the account to [out], which is only opened if there are transactions to export.
+     * The caller owns the writer, so that several accounts can be written to the same stream.
+     */
+    @Throws(IOException::class)
+    open fun export(
+        context: Context,
+        out: Lazy<Writer>
+    ): Result<Unit> {
         Timber.i("now starting export")
         context.contentResolver.query(
             TransactionProvider.CATEGORIES_URI,
@@ -128,40 +152,23 @@ abstract class AbstractExporter
             }
         }
 
-        fun Cursor.toDTO(isPart: Boolean = false): TransactionDTO {
+        fun Cursor.toDTO(details: ExportDetails, isPart: Boolean = false): TransactionDTO {
             val rowId = getLong(getColumnIndexOrThrow(KEY_ROWID))
             val catId = getLongOrNull(KEY_CATID)
             val isSplit = SPLIT_CATID == catId
-            val splitCursor = if (isSplit) context.contentResolver.query(
-                Transaction.CONTENT_URI,
-                projection,
-                "$KEY_PARENTID = ?",
-                arrayOf(rowId.toString()),
-                null
-            ) else null
-            val readCat =
-                splitCursor?.takeIf { useCategoryOfFirstPartForParent && it.moveToFirst() } ?: this
-
-            //noinspection Recycle
-            val tagList = context.contentResolver.query(
-                TransactionProvider.TRANSACTIONS_TAGS_URI,
-                arrayOf(KEY_LABEL),
-                "$KEY_TRANSACTIONID = ?",
-                arrayOf(rowId.toString()),
-                null
-            )?.useAndMap { it.getString(0) }?.takeIf { it.isNotEmpty() }
-
-            //noinspection Recycle
-            val attachmentList = context.contentResolver.query(
-                TRANSACTIONS_ATTACHMENTS_URI,
-                arrayOf(KEY_URI),
-                "$KEY_TRANSACTIONID = ?", arrayOf(rowId.toString()),
-                null
-            )?.useAndMap {
-                val uri = Uri.parse(it.getString(0))
+            val splitCursor = details.splitParts
+            val partPositions = if (isSplit) details.splitPartPositions(rowId) ?: emptyList() else null
+            val readCat = splitCursor?.takeIf {
+                useCategoryOfFirstPartForParent && !partPositions.isNullOrEmpty()
+            }?.apply { moveToPosition(partPositions!!.first()) } ?: this
+
+            val tagList = details.tags(rowId)
+
+            val attachmentList = details.attachments(rowId)?.map {
+                val uri = Uri.parse(it)
                 //We should only see file uri from unit test
                 if (uri.scheme == "file") uri.toFile().name else uri.fileName(context)
-            }?.takeIf { it.isNotEmpty() }?.filterNotNull()
+            }?.filterNotNull()
 
             val transactionDTO = TransactionDTO(
                 getString(KEY_UUID),
@@ -181,16 +188,13 @@ abstract class AbstractExporter
                     ?.takeIf { it.isNotEmpty() },
                 attachmentList,
                 tagList,
-                splitCursor?.let { splits ->
-                    splits.moveToPosition(-1)
-                    splits.ingestCategoryPaths()
-                    splits.moveToPosition(-1)
-                    splits.asSequence.map {
-                        it.toDTO(isPart = true)
-                    }.toList()
+                partPositions?.let { positions ->
+                    positions.map {
+                        splitCursor!!.moveToPosition(it)
+                        splitCursor.toDTO(details, isPart = true)
+                    }
                 }
             )
-            splitCursor?.close()
             return transactionDTO
         }
 
@@ -199,28 +203,30 @@ abstract class AbstractExporter
         )?.use { cursor ->
 
             if (cursor.count == 0) {
-                Result.failure(Exception(context.getString(R.string.no_exportable_expenses)))
+                Result.failure(NothingToExportException(context.getString(R.string.no_exportable_expenses)))
             } else {
                 cursor.ingestCategoryPaths()
 
-                val output = outputStream.value.getOrThrow()
-                (context.contentResolver.openOutputStream(output.uri, if (append) "wa" else "w")
-                    ?: throw IOException("openOutputStream returned null")).use { outputStream ->
-                    OutputStreamWriter(outputStream, encoding).use { out ->
-                        cursor.moveToFirst()
-                        header(context)?.let { out.write(it) }
-                        while (cursor.position < cursor.count) {
-                            out.write(cursor.toDTO().marshall(categoryPaths))
-
-                            recordDelimiter(cursor.position == cursor.count - 1)?.let { out.write(it) }
+                ExportDetails(context, account.id, projection).use { details ->
+                    details.splitParts?.let {
+                        it.moveToPosition(-1)
+                        it.ingestCategoryPaths()
+                    }
 
-                            cursor.moveToNext()
-                        }
+                    val writer = out.value
+                    cursor.moveToFirst()
+                    header(context)?.let { writer.write(it) }
+                    while (cursor.position < cursor.count) {
+                        writer.write(cursor.toDTO(details).marshall(categoryPaths))
 
-                        footer()?.let { out.write(it) }
+                        recordDelimiter(cursor.position == cursor.count - 1)?.let { writer.write(it) }
 
-                        Result.success(output)
+                        cursor.moveToNext()
                     }
+
+                    footer()?.let { writer.write(it) }
+
+                    Result.success(Unit)
                 }
             }
         } ?: Result.failure(Exception("Cursor is null"))
@@ -234,4 +240,10 @@ abstract class AbstractExporter
         const val ENCODING_UTF_8 = "UTF-8"
         const val ENCODING_LATIN_1 = "ISO-8859-1"
     }
-}
\ No newline at end of file
+}
+
+/**
+ * reported by [AbstractExporter.export] if the account has no transactions to export, in which case
+ * no file is written
+ */
+class NothingToExportException(message: String) : Exception(message)
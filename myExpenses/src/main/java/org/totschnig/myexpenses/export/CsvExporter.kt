@@ -1,7 +1,6 @@
 package org.totschnig.myexpenses.export
 
 import android.content.Context
-import androidx.documentfile.provider.DocumentFile
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.model.CurrencyContext
 import org.totschnig.myexpenses.model.ExportFormat
@@ -11,6 +10,7 @@ import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.provider.BaseTransactionProvider
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import java.io.Writer
 import java.time.format.DateTimeFormatter
 
 /**
@@ -48,9 +48,8 @@ class CsvExporter(
 
     override fun export(
         context: Context,
-        outputStream: Lazy<Result<DocumentFile>>,
-        append: Boolean
-    ): Result<DocumentFile> {
+        out: Lazy<Writer>
+    ): Result<Unit> {
         numberOfCategoryColumns = context.contentResolver.query(
             BaseTransactionProvider.CATEGORY_TREE_URI,
             arrayOf("max(${DatabaseConstants.KEY_LEVEL})"),
@@ -59,7 +58,7 @@ class CsvExporter(
             it.moveToFirst()
             it.getInt(0)
         } ?: numberOfCategoryColumns
-        return super.export(context, outputStream, append)
+        return super.export(context, out)
     }
 
     override val format = ExportFormat.CSV
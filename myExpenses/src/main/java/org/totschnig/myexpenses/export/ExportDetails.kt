@@ -0,0 +1,91 @@
+package org.totschnig.myexpenses.export
+
+import android.content.Context
+import android.database.Cursor
+import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ATTACHMENT_ID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.asSequence
+import java.io.Closeable
+
+/**
+ * Tags, attachments and split parts of the transactions of an account, each loaded with a single
+ * query sorted like the per transaction queries the exporters used to run, so that exporting needs
+ * a constant number of queries per account.
+ *
+ * Details are looked up by transaction id, since the exported rows are sorted by date, which is not
+ * an order the detail queries could be merged in without changing the output.
+ * @param accountId if negative (aggregate account), details of all accounts are loaded
+ * @param projection columns of the split parts, [KEY_PARENTID] is added
+ */
+class ExportDetails(
+    context: Context,
+    accountId: Long,
+    projection: Array<String>
+) : Closeable {
+
+    private val accountSelection = if (accountId > 0)
+        "IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ?)" else null
+    private val accountSelectionArgs = if (accountId > 0) arrayOf(accountId.toString()) else null
+
+    private fun Cursor.groupByFirstColumn(): Map<Long, List<String>> =
+        use { cursor ->
+            cursor.asSequence
+                .groupBy({ it.getLong(0) }, { it.getString(1) })
+        }
+
+    private val tags: Map<Long, List<String>> = context.contentResolver.query(
+        TransactionProvider.TRANSACTIONS_TAGS_URI,
+        arrayOf(KEY_TRANSACTIONID, KEY_LABEL),
+        accountSelection?.let { "$KEY_TRANSACTIONID $it" },
+        accountSelectionArgs,
+        "$KEY_TRANSACTIONID, $KEY_TAGID"
+    )?.groupByFirstColumn() ?: emptyMap()
+
+    private val attachments: Map<Long, List<String>> = context.contentResolver.query(
+        TransactionProvider.TRANSACTIONS_ATTACHMENTS_URI,
+        arrayOf(KEY_TRANSACTIONID, KEY_URI),
+        accountSelection?.let { "$KEY_TRANSACTIONID $it" },
+        accountSelectionArgs,
+        "$KEY_TRANSACTIONID, $KEY_ATTACHMENT_ID"
+    )?.groupByFirstColumn() ?: emptyMap()
+
+    /**
+     * all split parts, sorted by parent, and within a parent like [Transaction.CONTENT_URI] sorts
+     * by default
+     */
+    val splitParts: Cursor? = context.contentResolver.query(
+        Transaction.CONTENT_URI,
+        projection + KEY_PARENTID,
+        "$KEY_PARENTID ${accountSelection ?: "IS NOT NULL"}",
+        accountSelectionArgs,
+        "$KEY_PARENTID, $KEY_DATE DESC, $KEY_ROWID"
+    )
+
+    private val partPositions: Map<Long, List<Int>> = splitParts?.let { cursor ->
+        val parentIdColumn = cursor.getColumnIndexOrThrow(KEY_PARENTID)
+        cursor.asSequence.groupBy({ it.getLong(parentIdColumn) }, { it.position })
+    } ?: emptyMap()
+
+    fun tags(transactionId: Long) = tags[transactionId]
+
+    fun attachments(transactionId: Long) = attachments[transactionId]
+
+    /**
+     * @return the positions of the parts of [transactionId] in [splitParts]
+     */
+    fun splitPartPositions(transactionId: Long) = partPositions[transactionId]
+
+    override fun close() {
+        splitParts?.close()
+    }
+}
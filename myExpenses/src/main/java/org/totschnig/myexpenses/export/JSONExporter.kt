@@ -33,8 +33,7 @@ class JSONExporter(
     dateFormat: String,
     decimalSeparator: Char,
     encoding: String,
-    private val preamble: String = "",
-    private val appendix: String = ""
+    private val preamble: String = ""
 ) :
     AbstractExporter(
         account, currencyContext, filter, notYetExportedP, dateFormat,
@@ -63,7 +62,7 @@ class JSONExporter(
 
     override fun recordDelimiter(isLastLine: Boolean) = if (isLastLine) null else ","
 
-    override fun footer(): String = "]}$appendix"
+    override fun footer(): String = "]}"
 
     private fun convert(dto: TransactionDTO) : Transaction = with(dto) {
         Transaction(
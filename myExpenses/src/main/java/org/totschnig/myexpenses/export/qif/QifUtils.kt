@@ -200,6 +200,58 @@ object QifUtils {
         .map { it.copy(transactions = transformUnknownTransfers(it, it.transactions, accounts)) }
         .map { it.copy(transactions = reduceTransfers(it, it.transactions, accounts)) }
 
+    /**
+     * Splits transfers between the [importedAccounts], keyed by the memo of the account they
+     * have been read for, into groups in which every transfer has its counterpart, and the
+     * remaining ones, whose counterpart has not been read yet. A complete group can be passed to
+     * [reduceTransfers] on its own, with the same outcome as reducing it together with the
+     * rest of the file.
+     */
+    fun completeTransferGroups(
+        transfers: Map<String, List<ImportTransaction>>,
+        importedAccounts: Set<String>
+    ): Pair<List<List<ImportAccount>>, Map<String, List<ImportTransaction>>> {
+        val accounts = transfers.keys.associateWith { ImportAccount(memo = it) }
+        val entries = transfers.flatMap { (memo, transactions) -> transactions.map { memo to it } }
+        val entriesByAccount = entries.indices.groupBy { entries[it].first }
+        val group = IntArray(entries.size) { it }
+        fun root(index: Int): Int {
+            var i = index
+            while (group[i] != i) {
+                group[i] = group[group[i]]
+                i = group[i]
+            }
+            return i
+        }
+        val complete = BooleanArray(entries.size) { true }
+        entries.forEachIndexed { index, (memo, transaction) ->
+            val fromAccount = accounts.getValue(memo)
+            (sequenceOf(transaction) + (transaction.splits?.asSequence() ?: emptySequence()))
+                .filter { it.isTransfer && it.toAccount != memo && it.toAccount in importedAccounts }
+                .forEach { leg ->
+                    val counterparts = accounts[leg.toAccount]?.let { toAccount ->
+                        entriesByAccount.getValue(toAccount.memo).filter {
+                            val toTransaction = entries[it].second
+                            twoSidesOfTheSameTransfer(fromAccount, leg, toAccount, toTransaction) ||
+                                    toTransaction.splits?.any { split ->
+                                        twoSidesOfTheSameTransfer(fromAccount, leg, toAccount, split)
+                                    } == true
+                        }
+                    }.orEmpty()
+                    if (counterparts.isEmpty()) complete[index] = false
+                    counterparts.forEach { group[root(it)] = root(index) }
+                }
+        }
+        fun List<Int>.byAccount() = groupBy({ entries[it].first }, { entries[it].second })
+        val (completeGroups, incompleteGroups) = entries.indices.groupBy { root(it) }.values
+            .partition { members -> members.all { complete[it] } }
+        return completeGroups.map { members ->
+            members.byAccount().map { (memo, transactions) ->
+                ImportAccount(memo = memo, transactions = transactions)
+            }
+        } to incompleteGroups.flatten().sorted().byAccount()
+    }
+
     /**
      * We remove one side of the transfer (either the one that is not part of a split or the one
      * that is an expense.
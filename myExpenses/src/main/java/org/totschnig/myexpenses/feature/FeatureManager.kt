@@ -77,6 +77,7 @@ sealed class Feature(@StringRes val labelResId: Int, val moduleName: String) {
         }
     }
     data object FINTS: Feature(R.string.title_fints, "fints")
+    data object JACKSON: Feature(R.string.title_jackson, "jackson")
 }
 
 enum class Script {
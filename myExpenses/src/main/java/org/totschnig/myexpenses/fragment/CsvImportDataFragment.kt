@@ -54,6 +54,7 @@ class CsvImportDataFragment : Fragment() {
     private var selectedRows: SparseBooleanArrayParcelable = SparseBooleanArrayParcelable()
     private lateinit var cellParams: LinearLayout.LayoutParams
     private var headerLine = -1
+    private var discardMatching = false
     private var nrOfColumns: Int = 0
     private val allFields: List<Pair<Int, String?>> = listOf(
         R.string.discard to null,
@@ -136,6 +137,7 @@ class CsvImportDataFragment : Fragment() {
                 selectedRows = it
             }
             headerLine = savedInstanceState.getInt(KEY_HEADER_LINE_POSITION)
+            discardMatching = savedInstanceState.getBoolean(KEY_DISCARD_MATCHING)
 
         }
         return binding.root
@@ -356,6 +358,7 @@ class CsvImportDataFragment : Fragment() {
         super.onSaveInstanceState(outState)
         outState.putParcelable(KEY_SELECTED_ROWS, selectedRows)
         outState.putInt(KEY_HEADER_LINE_POSITION, headerLine)
+        outState.putBoolean(KEY_DISCARD_MATCHING, discardMatching)
         outState.putIntArray(
             KEY_MAPPING,
             (0 until nrOfColumns).map { (binding.headerLine.getChildAt(it + 1) as Spinner).selectedItemPosition }
@@ -368,8 +371,18 @@ class CsvImportDataFragment : Fragment() {
         inflater.inflate(R.menu.csv_import, menu)
     }
 
+    @Deprecated("Deprecated in Java")
+    override fun onPrepareOptionsMenu(menu: Menu) {
+        menu.findItem(R.id.DISCARD_MATCHING_COMMAND)?.isChecked = discardMatching
+    }
+
     @Deprecated("Deprecated in Java")
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
+        if (item.itemId == R.id.DISCARD_MATCHING_COMMAND) {
+            discardMatching = !discardMatching
+            item.isChecked = discardMatching
+            return true
+        }
         if (item.itemId == R.id.IMPORT_COMMAND) {
             val columnToFieldMap = IntArray(nrOfColumns)
             val header = headerLine.takeIf { it > -1 }?.let { dataSet[it] }
@@ -397,11 +410,10 @@ class CsvImportDataFragment : Fragment() {
                     PrefKey.CSV_IMPORT_HEADER_TO_FIELD_MAP,
                     header2FieldMap.toString()
                 )
-                val selectedData = dataSet.filterIndexed { index, _ -> selectedRows[index] }
                 (activity as? CsvImportActivity)?.importData(
-                    selectedData,
-                    columnToFieldMap,
-                    dataSet.size - selectedData.size
+                    dataSet.indices.filterNot { selectedRows[it] }.toSet(),
+                    discardMatching,
+                    columnToFieldMap
                 )
             }
         }
@@ -458,6 +470,7 @@ class CsvImportDataFragment : Fragment() {
     companion object {
         const val KEY_SELECTED_ROWS = "SELECTED_ROWS"
         const val KEY_HEADER_LINE_POSITION = "HEADER_LINE_POSITION"
+        const val KEY_DISCARD_MATCHING = "DISCARD_MATCHING"
         const val KEY_MAPPING = "MAPPING"
         fun newInstance() = CsvImportDataFragment()
     }
@@ -52,6 +52,7 @@ import org.totschnig.myexpenses.provider.DataBaseAccount
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
+import org.totschnig.myexpenses.provider.calendarBucketFilter
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.ui.ExactStackedBarHighlighter
 import org.totschnig.myexpenses.util.ICurrencyFormatter
@@ -231,8 +232,8 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
     private fun buildGroupingClause(x: Int): String? = when (grouping) {
         Grouping.DAY -> DatabaseConstants.DAY_START_JULIAN + " = " + x
         Grouping.WEEK -> DatabaseConstants.getWeekStartJulian() + " = " + julianDayFromWeekNumber(x.toFloat())
-        Grouping.MONTH -> DatabaseConstants.getYearOfMonthStart() + " = " + x / MONTH_GROUPING_YEAR_X + " AND " + DatabaseConstants.getMonth() + " = " + x % MONTH_GROUPING_YEAR_X
-        Grouping.YEAR -> DatabaseConstants.YEAR + " = " + x
+        Grouping.MONTH -> calendarBucketFilter(grouping, x / MONTH_GROUPING_YEAR_X, x % MONTH_GROUPING_YEAR_X)
+        Grouping.YEAR -> calendarBucketFilter(grouping, x, 0)
         else -> null
     }
 
@@ -36,6 +36,7 @@ import org.totschnig.myexpenses.dialog.AccountMetaDataDialogFragment
 import org.totschnig.myexpenses.dialog.ConfirmationDialogFragment
 import org.totschnig.myexpenses.dialog.DialogUtils
 import org.totschnig.myexpenses.dialog.MessageDialogFragment
+import org.totschnig.myexpenses.dialog.SyncStatsDialogFragment
 import org.totschnig.myexpenses.feature.Feature
 import org.totschnig.myexpenses.model.ContribFeature
 import org.totschnig.myexpenses.model2.Account
@@ -162,6 +163,7 @@ class SyncBackendList : Fragment(), OnGroupExpandListener,
             ) {
                 menu.add(Menu.NONE, R.id.RECONFIGURE_COMMAND, 0, R.string.menu_reconfigure)
             }
+            menu.add(Menu.NONE, R.id.SYNC_STATS_COMMAND, 0, R.string.menu_sync_stats)
         }
         super.onCreateContextMenu(menu, v, menuInfo)
     }
@@ -261,6 +263,11 @@ class SyncBackendList : Fragment(), OnGroupExpandListener,
                 manageSyncBackends.reconfigure(syncBackendAdapter.getSyncAccountName(packedPosition))
                 return true
             }
+            R.id.SYNC_STATS_COMMAND -> {
+                SyncStatsDialogFragment.newInstance(syncBackendAdapter.getSyncAccountName(packedPosition))
+                    .show(parentFragmentManager, "SYNC_STATS")
+                return true
+            }
         }
         return super.onContextItemSelected(item)
     }
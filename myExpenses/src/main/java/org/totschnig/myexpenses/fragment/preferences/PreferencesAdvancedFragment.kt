@@ -22,6 +22,7 @@ import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.util.AppDirHelper
 import org.totschnig.myexpenses.util.distrib.DistributionHelper
+import org.totschnig.myexpenses.util.safeMessage
 import org.totschnig.myexpenses.viewmodel.CategoryViewModel
 import timber.log.Timber
 import java.io.File
@@ -115,6 +116,31 @@ class PreferencesAdvancedFragment : BasePreferenceFragment(),
             true
         }
 
+        matches(preference, PrefKey.DEBUG_QUERY_METRICS) -> {
+            viewModel.queryMetrics().observe(this) { report ->
+                MessageDialogFragment.newInstance(
+                    "Query metrics",
+                    report,
+                    MessageDialogFragment.okButton(),
+                    null,
+                    null
+                )
+                    .show(parentFragmentManager, "QUERY_METRICS")
+            }
+            true
+        }
+
+        matches(preference, PrefKey.DEBUG_QUERY_METRICS_EXPORT) -> {
+            viewModel.exportQueryMetrics().observe(this) { result ->
+                result.onSuccess {
+                    preferenceActivity.showSnackBar(it)
+                }.onFailure {
+                    preferenceActivity.showSnackBar(it.safeMessage)
+                }
+            }
+            true
+        }
+
         matches(preference, PrefKey.DEBUG_LOG_SHARE) -> {
             viewModel.logData().observe(this) {
                 SimpleListDialog.build().choiceMode(CustomListDialog.MULTI_CHOICE)
@@ -7,6 +7,7 @@ import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.model.ContribFeature
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.sync.BackendService
+import org.totschnig.myexpenses.sync.json.AccountMetaData
 
 @Keep
 class PreferencesSyncFragment : BasePreferenceFragment() {
@@ -24,5 +25,28 @@ class PreferencesSyncFragment : BasePreferenceFragment() {
             storeInDatabaseChangeListener
         requirePreference<Preference>(PrefKey.SYNC_WIFI_ONLY).onPreferenceChangeListener =
             storeInDatabaseChangeListener
+        requirePreference<Preference>(PrefKey.SYNC_PRUNE_CHANGE_LOG).apply {
+            summary = getString(
+                R.string.pref_sync_prune_change_log_summary,
+                AccountMetaData.MIN_APP_VERSION_NAME_PRUNED_CHANGE_LOG
+            )
+            onPreferenceChangeListener = storeInDatabaseChangeListener
+        }
+        requirePreference<Preference>(PrefKey.SYNC_COMPRESS_CHANGES).apply {
+            summary = getString(
+                R.string.pref_sync_compress_changes_summary,
+                AccountMetaData.MIN_APP_VERSION_NAME_COMPRESSED
+            )
+            onPreferenceChangeListener = storeInDatabaseChangeListener
+        }
+        requirePreference<Preference>(PrefKey.SYNC_CONTENT_ADDRESSED_ATTACHMENTS).apply {
+            summary = getString(
+                R.string.pref_sync_content_addressed_attachments_summary,
+                AccountMetaData.MIN_APP_VERSION_NAME_CONTENT_ADDRESSED_ATTACHMENTS
+            )
+            onPreferenceChangeListener = storeInDatabaseChangeListener
+        }
+        requirePreference<Preference>(PrefKey.SYNC_PARALLEL_ACCOUNTS).onPreferenceChangeListener =
+            storeInDatabaseChangeListener
     }
 }
\ No newline at end of file
@@ -15,7 +15,7 @@ import java.math.BigDecimal
 
 class CSVParser(
     private val context: Context,
-    private val data: List<CSVRecord>,
+    private val data: Iterable<CSVRecord>,
     private val columnToFieldMap: IntArray,
     private val dateFormat: QifDateFormat,
     private val currency: CurrencyUnit,
@@ -31,6 +31,7 @@ class CSVParser(
     val categories: MutableSet<CategoryInfo> = mutableSetOf()
     val payees: MutableSet<String> = mutableSetOf()
     val tags: MutableSet<String> = mutableSetOf()
+    val accountLabels: MutableSet<String> = linkedSetOf()
 
     private fun requireAccount(label: String) =
         accountBuilders.find { it.memo == label } ?: ImportAccount.Builder().memo(label).type(type)
@@ -42,6 +43,23 @@ class CSVParser(
         if (record.size() > index) record[index].trim() else ""
 
     fun parse() {
+        val defaultAccount = ImportAccount.Builder()
+        transactions().forEach { (account, transaction) ->
+            (account?.let { requireAccount(it) } ?: defaultAccount).addTransaction(transaction)
+        }
+        if (columnToFieldMap.indexOf(R.string.account) == -1) {
+            accountBuilders.add(defaultAccount)
+        }
+    }
+
+    /**
+     * Lazily parses [data] record by record, and yields each transaction once it is complete, i.e.
+     * after the parts of a split have been attached, together with the label of its account (null
+     * if no column is mapped to the account). Besides the transaction being parsed, only the
+     * distinct payees, categories, tags and account labels are kept, so that memory use does not
+     * depend on the number of records.
+     */
+    fun transactions(): Sequence<Pair<String?, ImportTransaction.Builder>> = sequence {
         val columnIndexAccount = columnToFieldMap.indexOf(R.string.account)
         val columnIndexAmount = columnToFieldMap.indexOf(R.string.amount)
         val columnIndexExpense = columnToFieldMap.indexOf(R.string.expense)
@@ -57,11 +75,11 @@ class CSVParser(
         val columnIndexStatus = columnToFieldMap.indexOf(R.string.status)
         val columnIndexNumber = columnToFieldMap.indexOf(R.string.reference_number)
         val columnIndexSplit = columnToFieldMap.indexOf(R.string.split_transaction)
-        val defaultAccount = ImportAccount.Builder()
 
         var isSplitParent = false
         var isSplitPart = false
         var splitParent: ImportTransaction.Builder? = null
+        var pending: Pair<String?, ImportTransaction.Builder>? = null
         for (record in data) {
             val transaction = ImportTransaction.Builder()
             if (columnIndexSplit != -1) {
@@ -163,20 +181,16 @@ class CSVParser(
                     }
                 }
             }
-            if (isSplitParent) {
-                splitParent = transaction
-            }
             if (isSplitPart) {
                 splitParent?.addSplit(transaction)
             } else {
-                (if (columnIndexAccount != -1) {
-                    requireAccount(saveGetFromRecord(record, columnIndexAccount))
-                } else defaultAccount)
-                    .addTransaction(transaction)
+                pending?.let { yield(it) }
+                splitParent = if (isSplitParent) transaction else null
+                pending = (if (columnIndexAccount != -1) {
+                    saveGetFromRecord(record, columnIndexAccount).also { accountLabels.add(it) }
+                } else null) to transaction
             }
         }
-        if (columnIndexAccount == -1) {
-            accountBuilders.add(defaultAccount)
-        }
+        pending?.let { yield(it) }
     }
 }
\ No newline at end of file
@@ -6,6 +6,9 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IBAN
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SHORT_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES_FTS
+import org.totschnig.myexpenses.provider.ftsMatchSelection
+import org.totschnig.myexpenses.provider.ftsPrefixQuery
 import org.totschnig.myexpenses.util.Utils
 
 data class Party(
@@ -34,6 +37,18 @@ data class Party(
             "*[ (.;,]$search*"
         )
 
+        /**
+         * selection for payee autocomplete: the words of [search] must be the prefixes of
+         * consecutive words in the payee's name, in the same order, like with [SELECTION]. Uses
+         * [TABLE_PAYEES_FTS], and falls back to [SELECTION] if [search] has no words to look up.
+         */
+        fun selection(search: String): Pair<String, Array<String>> =
+            ftsPrefixQuery(search)?.let {
+                ftsMatchSelection(TABLE_PAYEES_FTS, KEY_PAYEE_NAME) to arrayOf(it)
+            } ?: (SELECTION to selectionArgs(
+                Utils.escapeSqlLikeExpression(Utils.normalize(search))
+            ))
+
         fun create(
             name: String,
             shortName: String? = null,
@@ -95,6 +95,10 @@ enum class PrefKey(internal val resId: Int, internal val _key: String?) {
     DEBUG_LOGGING(R.string.pref_debug_logging_key),
     SYNC_NOTIFICATION(R.string.pref_sync_notification_key),
     SYNC_WIFI_ONLY(R.string.pref_sync_wifi_only_key),
+    SYNC_PRUNE_CHANGE_LOG(R.string.pref_sync_prune_change_log_key),
+    SYNC_COMPRESS_CHANGES(R.string.pref_sync_compress_changes_key),
+    SYNC_CONTENT_ADDRESSED_ATTACHMENTS(R.string.pref_sync_content_addressed_attachments_key),
+    SYNC_PARALLEL_ACCOUNTS(R.string.pref_sync_parallel_accounts_key),
     DEBUG_ADS(R.string.pref_debug_show_ads_key),
     PROTECTION_DEVICE_LOCK_SCREEN(R.string.pref_protection_device_lock_screen_key),
     HISTORY_SHOW_BALANCE("history_show_balance"),
@@ -150,9 +154,13 @@ enum class PrefKey(internal val resId: Int, internal val _key: String?) {
     PURGE_BACKUP(R.string.pref_purge_backup_key),
     PURGE_BACKUP_KEEP(R.string.pref_purge_backup_keep_key),
     PURGE_BACKUP_REQUIRE_CONFIRMATION(R.string.pref_purge_backup_require_confirmation_key),
+    BACKUP_INCREMENTAL_ATTACHMENTS(R.string.pref_backup_incremental_attachments_key),
     DEBUG_LOG_SHARE(R.string.pref_debug_logging_share_key),
     EXCHANGE_RATES_CLEAR_CACHE(R.string.pref_exchange_rates_clear_cache_key),
     DEBUG_REPAIR_987(R.string.pref_debug_repair_987_key),
+    DEBUG_QUERY_METRICS(R.string.pref_debug_query_metrics_key),
+    DEBUG_QUERY_METRICS_EXPORT(R.string.pref_debug_query_metrics_export_key),
+    DEBUG_QUERY_METRICS_EXACT(R.string.pref_debug_query_metrics_exact_key),
     WEBUI_PASSWORD(R.string.pref_web_ui_password_key),
     CSV_EXPORT(R.string.pref_csv_export_key),
     CSV_EXPORT_SPLIT_CATEGORIES(R.string.pref_csv_export_split_categories_key),
@@ -11,6 +11,7 @@ import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.sync.GenericAccountService
 import org.totschnig.myexpenses.sync.SyncAdapter
 import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.util.BackupAttachmentStore
 import org.totschnig.myexpenses.util.ZipUtils
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.localizedThrowable
@@ -21,6 +22,7 @@ import java.util.Locale
 
 const val BACKUP_DB_FILE_NAME = "BACKUP"
 const val BACKUP_PREF_FILE_NAME = "BACKUP_PREF"
+const val BACKUP_MANIFEST_FILE_NAME = "BACKUP_ATTACHMENTS"
 
 @Synchronized
 fun doBackup(
@@ -35,8 +37,14 @@ fun doBackup(
                 ?: throw localizedThrowable(context, R.string.io_error_backupdir_null)
         val cacheDir = AppDirHelper.newWorkingDirectory(context, "backup").getOrThrow()
         backup(cacheDir, context, prefHandler).getOrThrow()
+        // backups that are encrypted or uploaded to a sync backend have to be self-contained
+        val attachmentStore = if (
+            prefHandler.getBoolean(PrefKey.BACKUP_INCREMENTAL_ATTACHMENTS, false) &&
+            TextUtils.isEmpty(password) &&
+            (withSync == null || withSync == AccountPreference.SYNCHRONIZATION_NONE)
+        ) BackupAttachmentStore.get(context, appDir, create = true) else null
         try {
-            ZipUtils.zipBackup(context, cacheDir, backupFile, password)
+            ZipUtils.zipBackup(context, cacheDir, backupFile, password, attachmentStore)
             sync(context.contentResolver, withSync, backupFile)
             backupFile to listOldBackups(appDir, prefHandler)
         } catch (e: Exception) {
@@ -66,6 +74,28 @@ fun listOldBackups(appDir: DocumentFile, prefHandler: PrefHandler): List<Documen
     } else emptyList()
 }
 
+/**
+ * Deletes [backups], and then the attachment chunks that only incremental backups among them
+ * referred to
+ */
+@Synchronized
+fun deleteBackups(context: Context, backups: List<DocumentFile>): List<Boolean> =
+    backups.map { it.delete() }.also { result ->
+        if (result.any { it }) {
+            purgeAttachmentStore(context)
+        }
+    }
+
+private fun purgeAttachmentStore(context: Context) {
+    AppDirHelper.getAppDir(context).mapCatching { appDir ->
+        BackupAttachmentStore.get(context, appDir, create = false)?.purge(
+            appDir.listFiles().mapNotNullTo(HashSet()) { it.name }
+        )
+    }.onFailure {
+        CrashHandler.report(it)
+    }
+}
+
 private fun sync(contentResolver: ContentResolver, backend: String?, backupFile: DocumentFile) {
     backend?.takeIf { it != AccountPreference.SYNCHRONIZATION_NONE }?.let {
         var backupFileName = backupFile.name
@@ -27,9 +27,13 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BANK_NAME
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BIC
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BLZ
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_COUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTENT_HASH
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTEXT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CRITERION
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
@@ -42,9 +46,11 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IBAN
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ICON
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LOCAL_DAY
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_ICON
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH_BUCKET
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_CURRENCY
@@ -53,11 +59,15 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SEALED
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SHORT_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SIGN
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_STATS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGLIST
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID
@@ -65,14 +75,17 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UNCONVERTED_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USER_ID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_START_DAY
 import org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_AGGREGATES
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_ATTRIBUTES
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ATTACHMENTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ATTRIBUTES
@@ -81,9 +94,12 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_DEBTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES_FTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TAGS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_TAGS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTION_ATTACHMENTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTION_ATTRIBUTES
@@ -96,7 +112,7 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_WITH_ACCOUNT
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import timber.log.Timber
 
-const val DATABASE_VERSION = 158
+const val DATABASE_VERSION = 166
 
 private const val RAISE_UPDATE_SEALED_DEBT = "SELECT RAISE (FAIL, 'attempt to update sealed debt');"
 private const val RAISE_INCONSISTENT_CATEGORY_HIERARCHY =
@@ -263,10 +279,39 @@ const val ATTACHMENTS_CREATE = """
 CREATE TABLE $TABLE_ATTACHMENTS (
     $KEY_ROWID integer primary key autoincrement,
     $KEY_URI text not null unique,
-    $KEY_UUID text not null unique
+    $KEY_UUID text not null unique,
+    $KEY_CONTENT_HASH text
 );
 """
 
+/**
+ * lets sync find an attachment with the same content, instead of transferring it again
+ */
+const val ATTACHMENTS_CONTENT_HASH_INDEX =
+    "CREATE INDEX attachments_content_hash_index ON $TABLE_ATTACHMENTS($KEY_CONTENT_HASH)"
+
+const val SYNC_STATS_CREATE = """
+CREATE TABLE $TABLE_SYNC_STATS (
+    $KEY_ROWID integer primary key autoincrement,
+    $KEY_SYNC_ACCOUNT_NAME text not null,
+    $KEY_UUID text,
+    $KEY_DATE integer not null,
+    $KEY_SYNC_STATS text not null
+);
+"""
+
+const val SYNC_STATS_HISTORY_SIZE = 200
+
+/**
+ * keeps the history of sync stats bounded
+ */
+const val SYNC_STATS_TRIM_TRIGGER_CREATE = """
+CREATE TRIGGER sync_stats_trim AFTER INSERT ON $TABLE_SYNC_STATS
+BEGIN
+DELETE FROM $TABLE_SYNC_STATS WHERE $KEY_ROWID <= new.$KEY_ROWID - $SYNC_STATS_HISTORY_SIZE;
+END
+"""
+
 const val TRANSACTIONS_ATTACHMENTS_CREATE = """
 CREATE TABLE $TABLE_TRANSACTION_ATTACHMENTS (
     $KEY_TRANSACTIONID integer references $TABLE_TRANSACTIONS($KEY_ROWID) ON DELETE CASCADE,
@@ -349,6 +394,245 @@ const val SPLIT_PART_CR_STATUS_TRIGGER_CREATE =
  AFTER UPDATE OF $KEY_CR_STATUS ON $TABLE_TRANSACTIONS
  BEGIN UPDATE $TABLE_TRANSACTIONS SET $KEY_CR_STATUS = new.$KEY_CR_STATUS WHERE $KEY_PARENTID = new.$KEY_ROWID; END"""
 
+const val ACCOUNT_AGGREGATES_CREATE = """
+CREATE TABLE $TABLE_ACCOUNT_AGGREGATES (
+    $KEY_ACCOUNTID integer references $TABLE_ACCOUNTS($KEY_ROWID) ON DELETE CASCADE,
+    $KEY_TYPE integer not null,
+    $KEY_SIGN integer not null,
+    $KEY_AMOUNT integer not null default 0,
+    $KEY_EQUIVALENT_AMOUNT real not null default 0,
+    $KEY_UNCONVERTED_AMOUNT integer not null default 0,
+    $KEY_CLEARED_TOTAL integer not null default 0,
+    $KEY_RECONCILED_TOTAL integer not null default 0,
+    $KEY_CLEARED_COUNT integer not null default 0,
+    $KEY_COUNT integer not null default 0,
+    primary key ($KEY_ACCOUNTID, $KEY_TYPE, $KEY_SIGN)
+);
+"""
+
+const val TRANSACTIONS_DATE_INDEX =
+    "CREATE INDEX transactions_date_index on $TABLE_TRANSACTIONS($KEY_DATE)"
+
+const val TRANSACTIONS_PARENT_ID_INDEX =
+    "CREATE INDEX transactions_parent_id_index on $TABLE_TRANSACTIONS($KEY_PARENTID) WHERE $KEY_PARENTID IS NOT NULL"
+
+/**
+ * support seek pagination of the transaction list, which orders by (date, _id) or (abs(amount), _id)
+ */
+const val TRANSACTIONS_ACCOUNT_DATE_INDEX =
+    "CREATE INDEX transactions_account_date_index on $TABLE_TRANSACTIONS($KEY_ACCOUNTID,$KEY_DATE)"
+
+const val TRANSACTIONS_ACCOUNT_AMOUNT_INDEX =
+    "CREATE INDEX transactions_account_amount_index on $TABLE_TRANSACTIONS($KEY_ACCOUNTID,abs($KEY_AMOUNT))"
+
+/**
+ * supersede [TRANSACTIONS_ACCOUNT_DATE_INDEX] and [TRANSACTIONS_ACCOUNT_AMOUNT_INDEX]: the list only
+ * shows parents, with parent_id in the index the seek range does not need to visit split parts
+ */
+const val TRANSACTIONS_ACCOUNT_PARENT_DATE_INDEX =
+    "CREATE INDEX transactions_account_parent_date_index on $TABLE_TRANSACTIONS($KEY_ACCOUNTID,$KEY_PARENTID,$KEY_DATE)"
+
+const val TRANSACTIONS_ACCOUNT_PARENT_AMOUNT_INDEX =
+    "CREATE INDEX transactions_account_parent_amount_index on $TABLE_TRANSACTIONS($KEY_ACCOUNTID,$KEY_PARENTID,abs($KEY_AMOUNT))"
+
+/**
+ * lookups of transfer peers and the foreign key check when a transaction is deleted
+ */
+const val TRANSACTIONS_TRANSFER_PEER_INDEX =
+    "CREATE INDEX transactions_transfer_peer_index on $TABLE_TRANSACTIONS($KEY_TRANSFER_PEER) WHERE $KEY_TRANSFER_PEER IS NOT NULL"
+
+/**
+ * sums per debt, computed for each debt in the debt overview
+ */
+const val TRANSACTIONS_DEBT_ID_INDEX =
+    "CREATE INDEX transactions_debt_id_index on $TABLE_TRANSACTIONS($KEY_DEBT_ID) WHERE $KEY_DEBT_ID IS NOT NULL"
+
+private const val ACCOUNT_AGGREGATES_DELETE_EMPTY =
+    "DELETE FROM $TABLE_ACCOUNT_AGGREGATES WHERE $KEY_COUNT = 0;"
+
+private fun accountAggregatesBucketMatches(row: String) = """
+$TABLE_ACCOUNT_AGGREGATES.$KEY_ACCOUNTID = $row.$KEY_ACCOUNTID
+    AND $TABLE_ACCOUNT_AGGREGATES.$KEY_TYPE = ${accountAggregatesBucketType(row)}
+    AND $TABLE_ACCOUNT_AGGREGATES.$KEY_SIGN = ${accountAggregatesBucketSign(row)}"""
+
+private fun accountAggregatesAdd(row: String) = """
+INSERT OR IGNORE INTO $TABLE_ACCOUNT_AGGREGATES ($KEY_ACCOUNTID, $KEY_TYPE, $KEY_SIGN)
+    SELECT $row.$KEY_ACCOUNTID, ${accountAggregatesBucketType(row)}, ${accountAggregatesBucketSign(row)}
+    WHERE ${accountAggregatesCondition(row)};
+${accountAggregatesApply(row, "+")}"""
+
+private fun accountAggregatesRemove(row: String) = """
+${accountAggregatesApply(row, "-")}
+$ACCOUNT_AGGREGATES_DELETE_EMPTY"""
+
+private fun accountAggregatesApply(row: String, operator: String) = """
+UPDATE $TABLE_ACCOUNT_AGGREGATES SET ${
+    accountAggregatesValueColumns.zip(accountAggregatesContribution(row))
+        .joinToString { (column, contribution) -> "$column = $column $operator ($contribution)" }
+}
+    WHERE ${accountAggregatesBucketMatches(row)} AND ${accountAggregatesCondition(row)};"""
+
+/**
+ * split parts of the transaction that is the subject of the trigger which fall into the
+ * bucket that is being updated
+ */
+private const val ACCOUNT_AGGREGATES_SPLIT_PARTS = "FROM $TABLE_TRANSACTIONS part WHERE part.$KEY_PARENTID = old.$KEY_ROWID"
+
+private val accountAggregatesSplitPartsInBucket =
+    "$ACCOUNT_AGGREGATES_SPLIT_PARTS AND ${accountAggregatesCondition("part")} AND ${accountAggregatesBucketMatches("part")}"
+
+private val ACCOUNT_AGGREGATES_INSERT_TRIGGER_CREATE = """CREATE TRIGGER account_aggregates_insert
+ AFTER INSERT ON $TABLE_TRANSACTIONS
+ BEGIN ${accountAggregatesAdd("new")} END"""
+
+private val ACCOUNT_AGGREGATES_UPDATE_TRIGGER_CREATE = """CREATE TRIGGER account_aggregates_update
+ AFTER UPDATE OF $KEY_ACCOUNTID, $KEY_AMOUNT, $KEY_CATID, $KEY_PARENTID, $KEY_STATUS, $KEY_CR_STATUS, $KEY_EQUIVALENT_AMOUNT ON $TABLE_TRANSACTIONS
+ BEGIN ${accountAggregatesRemove("old")} ${accountAggregatesAdd("new")} END"""
+
+/**
+ * the contribution of a split part is derived from the ratio between equivalent amount and
+ * amount of its parent, hence if this ratio changes, the buckets of the parts need to be adjusted
+ */
+private val ACCOUNT_AGGREGATES_SPLIT_UPDATE_TRIGGER_CREATE: String
+    get() {
+        fun equivalent(parent: String) =
+            "(1.0 * $parent.$KEY_EQUIVALENT_AMOUNT / $parent.$KEY_AMOUNT) * part.$KEY_AMOUNT"
+        return """CREATE TRIGGER account_aggregates_split_update
+ AFTER UPDATE OF $KEY_AMOUNT, $KEY_EQUIVALENT_AMOUNT ON $TABLE_TRANSACTIONS
+ WHEN new.$KEY_CATID IS ${DatabaseConstants.SPLIT_CATID} AND (new.$KEY_AMOUNT IS NOT old.$KEY_AMOUNT OR new.$KEY_EQUIVALENT_AMOUNT IS NOT old.$KEY_EQUIVALENT_AMOUNT)
+ BEGIN UPDATE $TABLE_ACCOUNT_AGGREGATES SET
+  $KEY_EQUIVALENT_AMOUNT = $KEY_EQUIVALENT_AMOUNT + (SELECT total(coalesce(${equivalent("new")}, 0) - coalesce(${equivalent("old")}, 0)) $accountAggregatesSplitPartsInBucket),
+  $KEY_UNCONVERTED_AMOUNT = $KEY_UNCONVERTED_AMOUNT + (SELECT sum(CASE WHEN ${equivalent("new")} IS NULL THEN part.$KEY_AMOUNT ELSE 0 END - CASE WHEN ${equivalent("old")} IS NULL THEN part.$KEY_AMOUNT ELSE 0 END) $accountAggregatesSplitPartsInBucket)
+  WHERE EXISTS (SELECT 1 $accountAggregatesSplitPartsInBucket);
+ END"""
+    }
+
+private val ACCOUNT_AGGREGATES_DELETE_TRIGGER_CREATE = """CREATE TRIGGER account_aggregates_delete
+ AFTER DELETE ON $TABLE_TRANSACTIONS
+ WHEN old.$KEY_PARENTID IS NULL OR EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID = old.$KEY_PARENTID)
+ BEGIN ${accountAggregatesRemove("old")} END"""
+
+/**
+ * Split parts are deleted by cascade after their parent is gone, so that their contribution
+ * can no longer be calculated. We remove them before the parent is deleted, and
+ * [ACCOUNT_AGGREGATES_DELETE_TRIGGER_CREATE] skips them.
+ */
+private val ACCOUNT_AGGREGATES_SPLIT_DELETE_TRIGGER_CREATE = """CREATE TRIGGER account_aggregates_split_delete
+ BEFORE DELETE ON $TABLE_TRANSACTIONS
+ WHEN old.$KEY_CATID IS ${DatabaseConstants.SPLIT_CATID}
+ BEGIN UPDATE $TABLE_ACCOUNT_AGGREGATES SET ${
+    accountAggregatesValueColumns.zip(accountAggregatesContribution("part"))
+        .joinToString { (column, contribution) ->
+            "$column = $column - (SELECT ${if (column == KEY_EQUIVALENT_AMOUNT) "total" else "sum"}($contribution) $accountAggregatesSplitPartsInBucket)"
+        }
+}
+  WHERE EXISTS (SELECT 1 $accountAggregatesSplitPartsInBucket);
+ $ACCOUNT_AGGREGATES_DELETE_EMPTY
+ END"""
+
+private val ACCOUNT_AGGREGATES_CATEGORY_TYPE_TRIGGER_CREATE: String
+    get() {
+        val affectedAccounts = "SELECT $KEY_ACCOUNTID FROM $TABLE_TRANSACTIONS WHERE $KEY_CATID = new.$KEY_ROWID"
+        return """CREATE TRIGGER account_aggregates_category_type
+ AFTER UPDATE OF $KEY_TYPE ON $TABLE_CATEGORIES
+ WHEN new.$KEY_TYPE IS NOT old.$KEY_TYPE
+ BEGIN DELETE FROM $TABLE_ACCOUNT_AGGREGATES WHERE $KEY_ACCOUNTID IN ($affectedAccounts);
+ INSERT INTO $TABLE_ACCOUNT_AGGREGATES ${accountAggregatesColumnList()} ${accountAggregatesSelect(affectedAccounts)};
+ END"""
+    }
+
+fun accountAggregatesColumnList() =
+    (listOf(KEY_ACCOUNTID, KEY_TYPE, KEY_SIGN) + accountAggregatesValueColumns)
+        .joinToString(prefix = "(", postfix = ")")
+
+/**
+ * recalculates [TABLE_ACCOUNT_AGGREGATES]
+ * @param accountSelection if not null, only the aggregates of the matching accounts are rebuilt
+ */
+fun SupportSQLiteDatabase.rebuildAccountAggregates(accountSelection: String? = null) {
+    execSQL("DELETE FROM $TABLE_ACCOUNT_AGGREGATES${accountSelection?.let { " WHERE $KEY_ACCOUNTID IN ($it)" } ?: ""}")
+    execSQL("INSERT INTO $TABLE_ACCOUNT_AGGREGATES ${accountAggregatesColumnList()} ${accountAggregatesSelect(accountSelection)}")
+}
+
+/**
+ * FTS4 instead of FTS5, since FTS5 is not part of the SQLite shipped with Android, and the
+ * database file moves between SQLite builds (encryption, backup restore)
+ */
+const val TRANSACTIONS_FTS_CREATE =
+    "CREATE VIRTUAL TABLE $TABLE_TRANSACTIONS_FTS USING fts4($KEY_COMMENT, $KEY_REFERENCE_NUMBER, $KEY_PAYEE_NAME, $KEY_TAGLIST, tokenize=unicode61)"
+
+const val PAYEES_FTS_CREATE =
+    "CREATE VIRTUAL TABLE $TABLE_PAYEES_FTS USING fts4($KEY_PAYEE_NAME, tokenize=unicode61)"
+
+private fun transactionsFtsInsert(selection: String) = """
+INSERT INTO $TABLE_TRANSACTIONS_FTS (docid, $KEY_COMMENT, $KEY_REFERENCE_NUMBER, $KEY_PAYEE_NAME, $KEY_TAGLIST)
+    SELECT $TABLE_TRANSACTIONS.$KEY_ROWID, $TABLE_TRANSACTIONS.$KEY_COMMENT, $TABLE_TRANSACTIONS.$KEY_REFERENCE_NUMBER,
+    (SELECT $KEY_PAYEE_NAME FROM $TABLE_PAYEES WHERE $TABLE_PAYEES.$KEY_ROWID = $TABLE_TRANSACTIONS.$KEY_PAYEEID),
+    (SELECT group_concat($KEY_LABEL, ' ') FROM $TABLE_TAGS JOIN $TABLE_TRANSACTIONS_TAGS ON $KEY_TAGID = $TABLE_TAGS.$KEY_ROWID WHERE $KEY_TRANSACTIONID = $TABLE_TRANSACTIONS.$KEY_ROWID)
+    FROM $TABLE_TRANSACTIONS WHERE $selection;"""
+
+private fun transactionsFtsRefresh(selection: String) = """
+DELETE FROM $TABLE_TRANSACTIONS_FTS WHERE docid IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $selection);
+${transactionsFtsInsert(selection)}"""
+
+private fun transactionsFtsRefreshTransaction(transactionId: String) =
+    transactionsFtsRefresh("$TABLE_TRANSACTIONS.$KEY_ROWID = $transactionId")
+
+private val TRANSACTIONS_FTS_INSERT_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_insert
+ AFTER INSERT ON $TABLE_TRANSACTIONS
+ BEGIN ${transactionsFtsInsert("$TABLE_TRANSACTIONS.$KEY_ROWID = new.$KEY_ROWID")} END"""
+
+private val TRANSACTIONS_FTS_UPDATE_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_update
+ AFTER UPDATE OF $KEY_COMMENT, $KEY_REFERENCE_NUMBER, $KEY_PAYEEID ON $TABLE_TRANSACTIONS
+ BEGIN ${transactionsFtsRefreshTransaction("new.$KEY_ROWID")} END"""
+
+private const val TRANSACTIONS_FTS_DELETE_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_delete
+ AFTER DELETE ON $TABLE_TRANSACTIONS
+ BEGIN DELETE FROM $TABLE_TRANSACTIONS_FTS WHERE docid = old.$KEY_ROWID; END"""
+
+private val TRANSACTIONS_FTS_TAG_INSERT_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_tag_insert
+ AFTER INSERT ON $TABLE_TRANSACTIONS_TAGS
+ BEGIN ${transactionsFtsRefreshTransaction("new.$KEY_TRANSACTIONID")} END"""
+
+private val TRANSACTIONS_FTS_TAG_DELETE_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_tag_delete
+ AFTER DELETE ON $TABLE_TRANSACTIONS_TAGS
+ BEGIN ${transactionsFtsRefreshTransaction("old.$KEY_TRANSACTIONID")} END"""
+
+private val TRANSACTIONS_FTS_TAG_LABEL_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_tag_label
+ AFTER UPDATE OF $KEY_LABEL ON $TABLE_TAGS
+ BEGIN ${transactionsFtsRefresh("$TABLE_TRANSACTIONS.$KEY_ROWID IN (SELECT $KEY_TRANSACTIONID FROM $TABLE_TRANSACTIONS_TAGS WHERE $KEY_TAGID = new.$KEY_ROWID)")} END"""
+
+private val TRANSACTIONS_FTS_PAYEE_NAME_TRIGGER_CREATE = """CREATE TRIGGER transactions_fts_payee_name
+ AFTER UPDATE OF $KEY_PAYEE_NAME ON $TABLE_PAYEES
+ BEGIN ${transactionsFtsRefresh("$TABLE_TRANSACTIONS.$KEY_PAYEEID = new.$KEY_ROWID")} END"""
+
+private const val PAYEES_FTS_INSERT =
+    "INSERT INTO $TABLE_PAYEES_FTS (docid, $KEY_PAYEE_NAME) VALUES (new.$KEY_ROWID, new.$KEY_PAYEE_NAME);"
+
+private const val PAYEES_FTS_DELETE = "DELETE FROM $TABLE_PAYEES_FTS WHERE docid = old.$KEY_ROWID;"
+
+private const val PAYEES_FTS_INSERT_TRIGGER_CREATE = """CREATE TRIGGER payee_fts_insert
+ AFTER INSERT ON $TABLE_PAYEES
+ BEGIN $PAYEES_FTS_INSERT END"""
+
+private const val PAYEES_FTS_UPDATE_TRIGGER_CREATE = """CREATE TRIGGER payee_fts_update
+ AFTER UPDATE OF $KEY_PAYEE_NAME ON $TABLE_PAYEES
+ BEGIN $PAYEES_FTS_DELETE $PAYEES_FTS_INSERT END"""
+
+private const val PAYEES_FTS_DELETE_TRIGGER_CREATE = """CREATE TRIGGER payee_fts_delete
+ AFTER DELETE ON $TABLE_PAYEES
+ BEGIN $PAYEES_FTS_DELETE END"""
+
+/**
+ * recreates the content of [TABLE_TRANSACTIONS_FTS] and [TABLE_PAYEES_FTS]
+ */
+fun SupportSQLiteDatabase.rebuildFtsIndexes() {
+    execSQL("DELETE FROM $TABLE_TRANSACTIONS_FTS")
+    execSQL(transactionsFtsInsert("1"))
+    execSQL("DELETE FROM $TABLE_PAYEES_FTS")
+    execSQL("INSERT INTO $TABLE_PAYEES_FTS (docid, $KEY_PAYEE_NAME) SELECT $KEY_ROWID, $KEY_PAYEE_NAME FROM $TABLE_PAYEES")
+}
+
 private const val DEFAULT_TRANSFER_CATEGORY_UUID = "9d84b522-4c8c-40bd-a8f8-18c8788ee59e"
 
 abstract class BaseTransactionDatabase(
@@ -776,6 +1060,58 @@ abstract class BaseTransactionDatabase(
         }
     }
 
+    fun SupportSQLiteDatabase.upgradeTo159() {
+        execSQL(ACCOUNT_AGGREGATES_CREATE)
+        execSQL(TRANSACTIONS_DATE_INDEX)
+        execSQL(TRANSACTIONS_PARENT_ID_INDEX)
+        createOrRefreshAccountAggregateTriggers(this)
+        rebuildAccountAggregates()
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo160() {
+        createTransactionSortIndexes(this)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo161() {
+        execSQL(PAYEES_FTS_CREATE)
+        createOrRefreshFtsTriggers(this)
+        rebuildFtsIndexes()
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo162() {
+        execSQL("ALTER TABLE $TABLE_TRANSACTIONS ADD COLUMN $KEY_LOCAL_DAY integer")
+        execSQL("ALTER TABLE $TABLE_TRANSACTIONS ADD COLUMN $KEY_WEEK_START_DAY integer")
+        execSQL("ALTER TABLE $TABLE_TRANSACTIONS ADD COLUMN $KEY_MONTH_BUCKET integer")
+        val parameters = CalendarBucketParameters.current(prefHandler)
+        repairWithSealedAccountsAndDebts(this) {
+            updateCalendarBuckets(parameters)
+        }
+        storeCalendarBucketParameters(parameters)
+        createCalendarBucketIndexes(this)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo163() {
+        execSQL("DROP INDEX IF EXISTS transactions_account_date_index")
+        execSQL("DROP INDEX IF EXISTS transactions_account_amount_index")
+        createTransactionListIndexes(this)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo164() {
+        execSQL("ALTER TABLE $TABLE_ATTACHMENTS ADD COLUMN $KEY_CONTENT_HASH text")
+        execSQL(ATTACHMENTS_CONTENT_HASH_INDEX)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo165() {
+        execSQL(SYNC_STATS_CREATE)
+        execSQL(SYNC_STATS_TRIM_TRIGGER_CREATE)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo166() {
+        execSQL(TRANSACTIONS_FTS_CREATE)
+        createOrRefreshFtsTriggers(this)
+        rebuildFtsIndexes()
+    }
+
     override fun onCreate(db: SupportSQLiteDatabase) {
         prefHandler.putInt(PrefKey.FIRST_INSTALL_DB_SCHEMA_VERSION, DATABASE_VERSION)
     }
@@ -836,6 +1172,48 @@ abstract class BaseTransactionDatabase(
         }
     }
 
+    fun createOrRefreshAccountAggregateTriggers(db: SupportSQLiteDatabase) {
+        with(db) {
+            execSQL("DROP TRIGGER IF EXISTS account_aggregates_insert")
+            execSQL("DROP TRIGGER IF EXISTS account_aggregates_update")
+            execSQL("DROP TRIGGER IF EXISTS account_aggregates_split_update")
+            execSQL("DROP TRIGGER IF EXISTS account_aggregates_delete")
+            execSQL("DROP TRIGGER IF EXISTS account_aggregates_split_delete")
+            execSQL("DROP TRIGGER IF EXISTS account_aggregates_category_type")
+            execSQL(ACCOUNT_AGGREGATES_INSERT_TRIGGER_CREATE)
+            execSQL(ACCOUNT_AGGREGATES_UPDATE_TRIGGER_CREATE)
+            execSQL(ACCOUNT_AGGREGATES_SPLIT_UPDATE_TRIGGER_CREATE)
+            execSQL(ACCOUNT_AGGREGATES_DELETE_TRIGGER_CREATE)
+            execSQL(ACCOUNT_AGGREGATES_SPLIT_DELETE_TRIGGER_CREATE)
+            execSQL(ACCOUNT_AGGREGATES_CATEGORY_TYPE_TRIGGER_CREATE)
+        }
+    }
+
+    fun createOrRefreshFtsTriggers(db: SupportSQLiteDatabase) {
+        with(db) {
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_insert")
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_update")
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_delete")
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_tag_insert")
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_tag_delete")
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_tag_label")
+            execSQL("DROP TRIGGER IF EXISTS transactions_fts_payee_name")
+            execSQL("DROP TRIGGER IF EXISTS payee_fts_insert")
+            execSQL("DROP TRIGGER IF EXISTS payee_fts_update")
+            execSQL("DROP TRIGGER IF EXISTS payee_fts_delete")
+            execSQL(TRANSACTIONS_FTS_INSERT_TRIGGER_CREATE)
+            execSQL(TRANSACTIONS_FTS_UPDATE_TRIGGER_CREATE)
+            execSQL(TRANSACTIONS_FTS_DELETE_TRIGGER_CREATE)
+            execSQL(TRANSACTIONS_FTS_TAG_INSERT_TRIGGER_CREATE)
+            execSQL(TRANSACTIONS_FTS_TAG_DELETE_TRIGGER_CREATE)
+            execSQL(TRANSACTIONS_FTS_TAG_LABEL_TRIGGER_CREATE)
+            execSQL(TRANSACTIONS_FTS_PAYEE_NAME_TRIGGER_CREATE)
+            execSQL(PAYEES_FTS_INSERT_TRIGGER_CREATE)
+            execSQL(PAYEES_FTS_UPDATE_TRIGGER_CREATE)
+            execSQL(PAYEES_FTS_DELETE_TRIGGER_CREATE)
+        }
+    }
+
     fun repairWithSealedAccounts(db: SupportSQLiteDatabase, run: Runnable) {
         db.execSQL("update accounts set sealed = -1 where sealed = 1")
         run.run()
@@ -857,6 +1235,39 @@ abstract class BaseTransactionDatabase(
         }
     }
 
+    /**
+     * indexes on expressions are only supported from SQLite 3.9 on, which ships with Android N.
+     * Robolectric's legacy SQLite is older, hence we ask the library instead of the SDK level
+     */
+    private fun supportsIndexesOnExpressions(db: SupportSQLiteDatabase) =
+        db.query("SELECT sqlite_version()").use {
+            it.moveToFirst()
+            val (major, minor) = it.getString(0).split('.').map(String::toInt)
+            major > 3 || (major == 3 && minor >= 9)
+        }
+
+    fun createTransactionSortIndexes(db: SupportSQLiteDatabase) {
+        db.execSQL(TRANSACTIONS_ACCOUNT_DATE_INDEX)
+        if (supportsIndexesOnExpressions(db)) {
+            db.execSQL(TRANSACTIONS_ACCOUNT_AMOUNT_INDEX)
+        }
+    }
+
+    fun createTransactionListIndexes(db: SupportSQLiteDatabase) {
+        db.execSQL(TRANSACTIONS_ACCOUNT_PARENT_DATE_INDEX)
+        if (supportsIndexesOnExpressions(db)) {
+            db.execSQL(TRANSACTIONS_ACCOUNT_PARENT_AMOUNT_INDEX)
+        }
+        db.execSQL(TRANSACTIONS_TRANSFER_PEER_INDEX)
+        db.execSQL(TRANSACTIONS_DEBT_ID_INDEX)
+    }
+
+    fun createCalendarBucketIndexes(db: SupportSQLiteDatabase) {
+        db.execSQL(TRANSACTIONS_LOCAL_DAY_INDEX)
+        db.execSQL(TRANSACTIONS_WEEK_START_DAY_INDEX)
+        db.execSQL(TRANSACTIONS_MONTH_BUCKET_INDEX)
+    }
+
     fun createOrRefreshCategoryMainCategoryUniqueLabel(db: SupportSQLiteDatabase) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && "robolectric" != Build.FINGERPRINT) {
             db.execSQL("DROP INDEX if exists categories_label")
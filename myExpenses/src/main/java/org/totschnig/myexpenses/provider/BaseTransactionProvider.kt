@@ -7,9 +7,11 @@ import android.content.Intent
 import android.database.Cursor
 import android.database.CursorWrapper
 import android.database.sqlite.SQLiteConstraintException
+import android.database.sqlite.SQLiteException
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
+import androidx.annotation.VisibleForTesting
 import androidx.core.database.getIntOrNull
 import androidx.core.database.getLongOrNull
 import androidx.core.database.getStringOrNull
@@ -60,12 +62,12 @@ import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.io.FileCopyUtils
 import org.totschnig.myexpenses.util.locale.HomeCurrencyProvider
+import org.totschnig.myexpenses.util.safeMessage
 import org.totschnig.myexpenses.viewmodel.data.Category
 import timber.log.Timber
 import java.io.File
 import java.io.IOException
 import java.time.Duration
-import java.time.Instant
 import java.util.UUID
 import javax.inject.Inject
 import javax.inject.Named
@@ -131,7 +133,17 @@ abstract class BaseTransactionProvider : ContentProvider() {
             (applicationContext as? MyApplication)?.wrapContext(this) ?: this
         }
 
-    private var shouldLog = false
+    @VisibleForTesting
+    internal var shouldLog = false
+
+    /**
+     * if queries are stepped through before they are returned, so that their duration covers
+     * the execution and not only the preparation of the statement
+     */
+    @VisibleForTesting
+    internal var exactQueryMetrics = false
+
+    val queryMetrics = QueryMetrics()
 
     var bulkInProgress = false
 
@@ -143,6 +155,221 @@ abstract class BaseTransactionProvider : ContentProvider() {
     }
 
     fun notifyChange(uri: Uri, syncToNetwork: Boolean) {
+        notifyChangeUnscoped(uri, syncToNetwork)
+        //changes to transactions that can not be attributed to accounts concern all account scopes
+        if (uri.path == TransactionProvider.TRANSACTIONS_URI.path) {
+            notifyChangeUnscoped(TransactionProvider.ACCOUNT_SCOPE_URI, false)
+        }
+    }
+
+    /**
+     * true if notifications for a write through [uri] are collected until the bulk operation ends.
+     * Affected accounts are then not looked up, all account scopes are notified once instead.
+     */
+    fun notificationsDeferred(uri: Uri) = bulkInProgress || !callerIsNotInBulkOperation(uri)
+
+    /**
+     * notifies [TransactionProvider.TRANSACTIONS_URI] and the scopes of the accounts
+     * whose transactions have changed
+     * @param accountIds if null, all account scopes are notified
+     */
+    fun notifyTransactionChange(accountIds: Set<Long>?, syncToNetwork: Boolean) {
+        if (accountIds == null) {
+            notifyChange(TransactionProvider.TRANSACTIONS_URI, syncToNetwork)
+            return
+        }
+        notifyChangeUnscoped(TransactionProvider.TRANSACTIONS_URI, syncToNetwork)
+        notifyAccountScopes(accountIds)
+    }
+
+    /**
+     * notifies [uri] (a descendant of [TransactionProvider.TRANSACTIONS_URI], like
+     * [TransactionProvider.TRANSACTIONS_TAGS_URI]) and the scopes of the accounts whose
+     * transactions it concerns
+     * @param accountIds if null, all account scopes are notified
+     */
+    fun notifyTransactionChange(uri: Uri, accountIds: Set<Long>?, syncToNetwork: Boolean) {
+        notifyChangeUnscoped(uri, syncToNetwork)
+        if (accountIds == null) {
+            notifyChangeUnscoped(TransactionProvider.ACCOUNT_SCOPE_URI, false)
+        } else {
+            notifyAccountScopes(accountIds)
+        }
+    }
+
+    private fun notifyAccountScopes(accountIds: Set<Long>) {
+        if (accountIds.isEmpty()) return
+        if (bulkInProgress) {
+            notifyChangeUnscoped(TransactionProvider.ACCOUNT_SCOPE_URI, false)
+            return
+        }
+        helper.readableDatabase.query(
+            "SELECT $KEY_ROWID, $KEY_CURRENCY FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID IN (${accountIds.joinToString()})"
+        ).useAndMap { accountScopeUri(it.getLong(0), it.getString(1)) }.forEach {
+            notifyChangeUnscoped(it, false)
+        }
+    }
+
+    /**
+     * ids of the accounts of the transactions matching [selection] and of their transfer peers
+     */
+    fun affectedAccounts(
+        db: SupportSQLiteDatabase,
+        selection: String?,
+        selectionArgs: Array<String>?
+    ): MutableSet<Long> = db.query(
+        SupportSQLiteQueryBuilder.builder(TABLE_TRANSACTIONS)
+            .columns(arrayOf(KEY_ACCOUNTID, KEY_TRANSFER_ACCOUNT))
+            .selection(selection, selectionArgs)
+            .create()
+    ).use { cursor ->
+        mutableSetOf<Long>().apply {
+            while (cursor.moveToNext()) {
+                add(cursor.getLong(0))
+                cursor.getLongOrNull(1)?.let { add(it) }
+            }
+        }
+    }
+
+    /**
+     * ids of the accounts affected by a change to the transaction with [transactionId]
+     * and its split parts
+     */
+    fun affectedAccounts(db: SupportSQLiteDatabase, transactionId: String) =
+        affectedAccounts(db, "$KEY_ROWID = ? OR $KEY_PARENTID = ?", arrayOf(transactionId, transactionId))
+
+    /**
+     * ids of the accounts affected by an update of the transactions matching [selection] with
+     * [values], null if notifications are deferred for [uri]. If [selection] restricts the update
+     * to one account, and the update does not move transactions to another account (which the
+     * [ACCOUNT_REMAP_TRANSFER_TRIGGER_CREATE] trigger propagates to transfer peers), the account is
+     * taken from the selection arguments, without a query.
+     */
+    fun accountsForUpdate(
+        db: SupportSQLiteDatabase,
+        uri: Uri,
+        selection: String?,
+        selectionArgs: Array<String>?,
+        values: ContentValues?
+    ): MutableSet<Long>? = if (notificationsDeferred(uri)) null else {
+        val accountId = if (values?.containsKey(KEY_ACCOUNTID) == true) null else
+            accountFromSelection(selection, selectionArgs)
+        accountId?.let { mutableSetOf(it) } ?: affectedAccounts(db, selection, selectionArgs)
+    }
+
+    /**
+     * ids of the accounts affected by unsplitting the transaction identified by [values], null if
+     * notifications are deferred for [uri]
+     */
+    fun accountsForUnsplit(db: SupportSQLiteDatabase, uri: Uri, values: ContentValues) =
+        if (notificationsDeferred(uri)) null else values.getAsString(KEY_UUID)?.let {
+            affectedAccounts(
+                db,
+                "$KEY_UUID = ? OR $KEY_PARENTID IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_UUID = ?)",
+                arrayOf(it, it)
+            )
+        } ?: affectedAccounts(db, values.getAsString(KEY_ROWID))
+
+    private fun accountFromSelection(selection: String?, selectionArgs: Array<String>?): Long? =
+        selection?.trim()?.let { ACCOUNT_SELECTION.matchEntire(it) }
+            ?.takeIf { match -> !match.groupValues[1].contains(" OR ", ignoreCase = true) }
+            ?.let { selectionArgs?.firstOrNull()?.toLongOrNull() }
+
+    /**
+     * ids of the accounts of the transactions whose rows in [TABLE_TRANSACTIONS_TAGS] match [selection]
+     */
+    fun taggedTransactionsAccounts(
+        db: SupportSQLiteDatabase,
+        selection: String?,
+        selectionArgs: Array<String>?
+    ) = affectedAccounts(
+        db,
+        "$KEY_ROWID IN (SELECT $KEY_TRANSACTIONID FROM $TABLE_TRANSACTIONS_TAGS${
+            selection?.takeIf { it.isNotEmpty() }?.let { " WHERE $it" } ?: ""
+        })",
+        selectionArgs
+    )
+
+    fun accountsFromValues(values: ContentValues): MutableSet<Long> =
+        listOfNotNull(values.getAsLong(KEY_ACCOUNTID), values.getAsLong(KEY_TRANSFER_ACCOUNT))
+            .toMutableSet()
+
+    /**
+     * the calendar bucket columns are derived from [KEY_DATE] whenever it is written
+     */
+    fun putCalendarBuckets(values: ContentValues?) {
+        values?.getAsLong(KEY_DATE)?.let {
+            CalendarBucketParameters.current(prefHandler).putBuckets(values, it)
+        }
+    }
+
+    /**
+     * key of the parameters the calendar bucket columns of the open database have been computed
+     * with, null if not yet checked
+     */
+    @Volatile
+    private var calendarBucketsKey: String? = null
+
+    private val calendarBucketsLock = Any()
+
+    /**
+     * recomputes the calendar bucket columns of all transactions, if time zone, week start or
+     * month start have changed since they were last computed, otherwise only fills in missing values
+     * @return number of updated transactions
+     */
+    private fun updateCalendarBuckets(parameters: CalendarBucketParameters): Int {
+        val db = helper.writableDatabase
+        val selection = if (db.loadCalendarBucketParameters() == parameters.key) "$KEY_LOCAL_DAY IS NULL" else null
+        val count = if (selection == null || db.query(
+                "SELECT EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS WHERE $selection)"
+            ).use { it.moveToFirst() && it.getInt(0) == 1 }
+        ) {
+            var updated = 0
+            //bucket columns are not synced, and not covered by the sealed account trigger,
+            //but the sealed debt trigger does not have a column list
+            safeUpdateWithSealed(db) {
+                //we might be called from a batch that has paused the change log itself
+                val paused = db.query("SELECT EXISTS (SELECT 1 FROM $TABLE_SYNC_STATE)")
+                    .use { it.moveToFirst() && it.getInt(0) == 1 }
+                if (!paused) TransactionProvider.pauseChangeTrigger(db)
+                updated = db.updateCalendarBuckets(parameters, selection)
+                if (!paused) TransactionProvider.resumeChangeTrigger(db)
+                db.storeCalendarBucketParameters(parameters)
+            }
+            updated
+        } else 0
+        calendarBucketsKey = parameters.key
+        return count
+    }
+
+    fun refreshCalendarBuckets() = Bundle(1).apply {
+        val count = synchronized(calendarBucketsLock) {
+            updateCalendarBuckets(CalendarBucketParameters.current(prefHandler))
+        }
+        putInt(KEY_RESULT, count)
+        if (count > 0) {
+            notifyChange(TransactionProvider.TRANSACTIONS_URI, false)
+        }
+    }
+
+    /**
+     * Called before queries, which might read the calendar bucket columns. If time zone, week start
+     * or month start have changed since they were computed, e.g. while the app was not running,
+     * they are recomputed synchronously, instead of waiting for
+     * [org.totschnig.myexpenses.service.CalendarBucketsWorker]. Once checked, this only compares
+     * the current parameters with [calendarBucketsKey].
+     */
+    fun ensureCalendarBuckets() {
+        val parameters = CalendarBucketParameters.current(prefHandler)
+        if (calendarBucketsKey == parameters.key) return
+        synchronized(calendarBucketsLock) {
+            if (calendarBucketsKey != parameters.key) {
+                updateCalendarBuckets(parameters)
+            }
+        }
+    }
+
+    private fun notifyChangeUnscoped(uri: Uri, syncToNetwork: Boolean) {
         if (!bulkInProgress && callerIsNotInBulkOperation(uri)) {
             notifyChangeDo(uri, syncToNetwork)
         } else {
@@ -218,6 +445,12 @@ abstract class BaseTransactionProvider : ContentProvider() {
         } ELSE $KEY_AMOUNT END"
 
     companion object {
+        /**
+         * a selection that is restricted to one account by its first argument, the remainder must
+         * not contain OR, which could widen the selection again
+         */
+        private val ACCOUNT_SELECTION = Regex("\\(?$KEY_ACCOUNTID = \\?\\)?((?: AND .*)?)")
+
         val CATEGORY_TREE_URI: Uri
             get() = TransactionProvider.CATEGORIES_URI.buildUpon()
                 .appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_HIERARCHICAL)
@@ -294,6 +527,18 @@ abstract class BaseTransactionProvider : ContentProvider() {
                 .appendPath(URI_SEGMENT_GROUPS)
                 .appendPath(grouping.name)
 
+        /**
+         * @param accountId for aggregate accounts, the scope covers all accounts of the currency,
+         * or all accounts for the home aggregate
+         */
+        fun accountScopeUri(accountId: Long, currency: String): Uri = when {
+            DataBaseAccount.isHomeAggregate(accountId) -> TransactionProvider.ACCOUNT_SCOPE_URI
+            DataBaseAccount.isAggregate(accountId) -> TransactionProvider.ACCOUNT_SCOPE_URI
+                .buildUpon().appendPath(currency).build()
+            else -> TransactionProvider.ACCOUNT_SCOPE_URI
+                .buildUpon().appendPath(currency).appendPath(accountId.toString()).build()
+        }
+
         protected const val TRANSACTIONS = 1
         protected const val TRANSACTION_ID = 2
         protected const val CATEGORIES = 3
@@ -363,6 +608,7 @@ abstract class BaseTransactionProvider : ContentProvider() {
         protected const val TRANSACTION_ATTACHMENTS = 72
         protected const val ATTACHMENTS = 73
         protected const val TRANSACTION_ID_ATTACHMENT_ID = 74
+        protected const val SYNC_STATS = 75
     }
 
     val homeCurrency: String
@@ -609,9 +855,9 @@ abstract class BaseTransactionProvider : ContentProvider() {
     fun backup(context: Context, backupDir: File): Result<Unit> {
         val currentDb = File(helper.readableDatabase.path!!)
         return (if (prefHandler.encryptDatabase) {
-            _helper?.close()
-            _helper = null
             decrypt(currentDb, backupDir)
+        } else if (supportsVacuumInto) {
+            runCatching { snapshotDatabase(currentDb, getBackupDbFile(backupDir)) }
         } else {
             helper.readableDatabase.beginTransaction()
             try {
@@ -658,12 +904,15 @@ abstract class BaseTransactionProvider : ContentProvider() {
         val currentDb = File(dataDir, provideDatabaseName(encrypt))
         _helper?.close()
         _helper = null
+        calendarBucketsKey = null
+        deleteJournalFiles(currentDb)
         val result: Boolean = try {
             if (encrypt) {
                 DataModule.cryptProvider.encrypt(context!!, backupFile, currentDb)
                 true
             } else {
-                FileCopyUtils.copy(backupFile, currentDb)
+                //a backup extracted into the databases directory is moved instead of copied
+                backupFile.renameTo(currentDb) || FileCopyUtils.copy(backupFile, currentDb)
             }
         } finally {
             prefHandler.putBoolean(PrefKey.ENCRYPT_DATABASE, encrypt)
@@ -812,10 +1061,54 @@ abstract class BaseTransactionProvider : ContentProvider() {
         )
     }
 
-    private fun decrypt(currentDb: File, backupDir: File): Result<Unit> {
-        val backupDb = getBackupDbFile(backupDir)
-        DataModule.cryptProvider.decrypt(context!!, currentDb, backupDb)
-        return ResultUnit
+    /**
+     * recalculates the content of [TABLE_ACCOUNT_AGGREGATES] for the account passed in as
+     * [KEY_ACCOUNTID] or for all accounts
+     * @return number of rows in [TABLE_ACCOUNT_AGGREGATES] after the rebuild
+     */
+    fun rebuildAccountAggregates(extras: Bundle?) = Bundle(1).apply {
+        val accountId = extras?.getLong(KEY_ACCOUNTID)?.takeIf { it > 0 }
+        val db = helper.writableDatabase
+        db.beginTransaction()
+        try {
+            db.rebuildAccountAggregates(accountId?.toString())
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        putLong(KEY_RESULT, db.query(
+            "SELECT count(*) FROM $TABLE_ACCOUNT_AGGREGATES${accountId?.let { " WHERE $KEY_ACCOUNTID = $it" } ?: ""}"
+        ).use {
+            it.moveToFirst()
+            it.getLong(0)
+        })
+        notifyAccountChange()
+    }
+
+    /**
+     * compares [TABLE_ACCOUNT_AGGREGATES] with the sums calculated from the transactions table
+     * @return ids of accounts whose aggregates are out of sync
+     */
+    fun verifyAccountAggregates() = Bundle(1).apply {
+        val bucketJoin = "stored.$KEY_ACCOUNTID = expected.$KEY_ACCOUNTID AND stored.$KEY_TYPE = expected.$KEY_TYPE AND stored.$KEY_SIGN = expected.$KEY_SIGN"
+        val differs = accountAggregatesValueColumns.joinToString(" OR ") {
+            if (it == KEY_EQUIVALENT_AMOUNT) "abs(stored.$it - expected.$it) >= 0.5"
+            else "stored.$it != expected.$it"
+        }
+        putLongArray(
+            KEY_RESULT, helper.readableDatabase.query(
+                """WITH expected AS (${accountAggregatesSelect()})
+SELECT expected.$KEY_ACCOUNTID FROM expected LEFT JOIN $TABLE_ACCOUNT_AGGREGATES stored ON $bucketJoin
+    WHERE stored.$KEY_ACCOUNTID IS NULL OR $differs
+UNION
+SELECT stored.$KEY_ACCOUNTID FROM $TABLE_ACCOUNT_AGGREGATES stored
+    WHERE NOT EXISTS (SELECT 1 FROM expected WHERE $bucketJoin)"""
+            ).useAndMap { it.getLong(0) }.toLongArray()
+        )
+    }
+
+    private fun decrypt(currentDb: File, backupDir: File): Result<Unit> = runCatching {
+        DataModule.cryptProvider.decrypt(context!!, currentDb, getBackupDbFile(backupDir))
     }
 
     private fun backupDb(currentDb: File, backupDir: File): Result<Unit> {
@@ -905,9 +1198,7 @@ abstract class BaseTransactionProvider : ContentProvider() {
                         limit(limit)
                     }
                 }.create()
-        return measure(block = {
-            db.query(query)
-        }) {
+        return measure(uri, db, query.sql, selectionArgs, block = { db.query(query) }) {
             "$uri - ${query.sql} - (${selectionArgs?.joinToString()})"
         }
     }
@@ -988,18 +1279,92 @@ abstract class BaseTransactionProvider : ContentProvider() {
         sql: String,
         selection: String?,
         selectionArgs: Array<String>?
-    ): Cursor = measure(block = { query(sql, selectionArgs ?: emptyArray()) }) {
+    ): Cursor = measure(uri, this, sql, selectionArgs, block = {
+        query(sql, selectionArgs ?: emptyArray())
+    }) {
         "$uri - $selection - $sql - (${selectionArgs?.joinToString()})"
     }
 
-    private fun measure(block: () -> Cursor, lazyMessage: () -> String): Cursor = if (shouldLog) {
-        val startTime = Instant.now()
+    private fun measure(
+        uri: Uri,
+        db: SupportSQLiteDatabase,
+        sql: String,
+        selectionArgs: Array<String>?,
+        block: () -> Cursor,
+        lazyMessage: () -> String
+    ): Cursor {
+        val startTime = System.nanoTime()
         val result = block()
-        val endTime = Instant.now()
-        val duration = Duration.between(startTime, endTime)
-        log("${lazyMessage()}\n$duration - ${result.count}")
-        result
-    } else block()
+        if (!exactQueryMetrics && !shouldLog) {
+            //counting the rows makes SQLite step through the whole result before the caller needs
+            //it, hence it is left to the caller. The time the caller spends moving the cursor, which
+            //is when SQLite executes the statement, is added to the duration, and the rows the
+            //caller has read are recorded once the cursor is closed
+            return object : CursorWrapper(result) {
+                private var duration = System.nanoTime() - startTime
+                private var rowsRead = 0
+                private var recorded = false
+
+                private inline fun <T> timed(block: () -> T): T {
+                    val start = System.nanoTime()
+                    return block().also { duration += System.nanoTime() - start }
+                }
+
+                private fun track(moved: Boolean) = moved.also {
+                    if (it) rowsRead = maxOf(rowsRead, position + 1)
+                }
+
+                override fun getCount() = timed { super.getCount() }
+                override fun move(offset: Int) = track(timed { super.move(offset) })
+                override fun moveToPosition(position: Int) =
+                    track(timed { super.moveToPosition(position) })
+                override fun moveToFirst() = track(timed { super.moveToFirst() })
+                override fun moveToLast() = track(timed { super.moveToLast() })
+                override fun moveToNext() = track(timed { super.moveToNext() })
+                override fun moveToPrevious() = track(timed { super.moveToPrevious() })
+
+                override fun close() {
+                    if (!recorded) {
+                        recorded = true
+                        if (queryMetrics.record(uri, duration, rowsRead)) {
+                            queryMetrics.recordSlowQuery(
+                                uri, sql, selectionArgs, duration, rowsRead, emptyList()
+                            )
+                        }
+                    }
+                    super.close()
+                }
+            }
+        }
+        val count = result.count
+        val duration = System.nanoTime() - startTime
+        if (queryMetrics.record(uri, duration, count)) {
+            //the query plan costs another statement on the calling thread, hence it is only
+            //determined when debug logging is enabled
+            queryMetrics.recordSlowQuery(
+                uri, sql, selectionArgs, duration, count,
+                if (shouldLog) explain(db, sql, selectionArgs) else emptyList()
+            )
+        }
+        if (shouldLog) {
+            log("${lazyMessage()}\n${Duration.ofNanos(duration)} - $count")
+        }
+        return result
+    }
+
+    private fun explain(
+        db: SupportSQLiteDatabase,
+        sql: String,
+        selectionArgs: Array<String>?
+    ): List<String> = try {
+        db.query("EXPLAIN QUERY PLAN $sql", selectionArgs ?: emptyArray()).use { cursor ->
+            buildList {
+                while (cursor.moveToNext()) add(cursor.getString(3))
+            }
+        }
+    } catch (e: SQLiteException) {
+        listOf(e.safeMessage)
+    }
 
     fun report(e: String) {
         CrashHandler.report(Exception(e), TAG)
@@ -1008,6 +1373,7 @@ abstract class BaseTransactionProvider : ContentProvider() {
     override fun onCreate(): Boolean {
         MyApplication.instance.appComponent.inject(this)
         shouldLog = prefHandler.getBoolean(PrefKey.DEBUG_LOGGING, BuildConfig.DEBUG)
+        exactQueryMetrics = prefHandler.getBoolean(PrefKey.DEBUG_QUERY_METRICS_EXACT, false)
         return true
     }
 
@@ -1051,6 +1417,18 @@ abstract class BaseTransactionProvider : ContentProvider() {
         selection: String?,
         selectionArgs: Array<String>?
     ): Cursor {
+        val (sql, finalArgs) = transactionGroupsSql(uri, selection, selectionArgs)
+        return db.measureAndLogQuery(uri, sql, selection, finalArgs)
+    }
+
+    /**
+     * @return the statement and its arguments with which [transactionGroupsQuery] serves [uri]
+     */
+    fun transactionGroupsSql(
+        uri: Uri,
+        selection: String?,
+        selectionArgs: Array<String>?
+    ): Pair<String, Array<String>> {
 
         val (accountSelector, accountQuery) = uri.getQueryParameter(KEY_ACCOUNTID)?.let {
             it to "$KEY_ACCOUNTID = ?"
@@ -1078,17 +1456,21 @@ abstract class BaseTransactionProvider : ContentProvider() {
             Grouping.MONTH -> getYearOfMonthStart()
             else -> YEAR
         }
+        // year and second group are derived from a single bucket column, grouping and ordering by
+        // the column itself lets SQLite walk its index instead of sorting in a temp b-tree.
+        // Years are summed up from days, so that only the days need to be sorted
         val groupBy = when (group) {
             Grouping.NONE -> null
-            Grouping.YEAR -> KEY_YEAR
-            else -> "$KEY_YEAR,$KEY_SECOND_GROUP"
+            Grouping.YEAR, Grouping.DAY -> KEY_LOCAL_DAY
+            Grouping.WEEK -> KEY_WEEK_START_DAY
+            Grouping.MONTH -> KEY_MONTH_BUCKET
         }
 
         val orderBy = uri.getQueryParameter(QUERY_PARAMETER_SORT_DIRECTION)?.let { direction ->
             when (group) {
                 Grouping.NONE -> null
                 Grouping.YEAR -> "$KEY_YEAR $direction"
-                else -> "$KEY_YEAR $direction,$KEY_SECOND_GROUP $direction"
+                else -> "$groupBy $direction"
             }
         }
         val secondDef = when (group) {
@@ -1143,19 +1525,36 @@ abstract class BaseTransactionProvider : ContentProvider() {
             selectionArgs?.let { addAll(it) }
         }.toTypedArray()
 
-        val sql = buildTransactionGroupCte(
+        val cte = buildTransactionGroupCte(
             listOfNotNull(accountQuery, selection).joinToString(" AND "),
             forHome,
             typeWithFallBack
-        ) + " " +
+        )
+        val sql = if (group == Grouping.YEAR) {
+            val days = SupportSQLiteQueryBuilder.builder(CTE_TRANSACTION_GROUPS)
+                .columns(projection)
+                .groupBy(groupBy)
+                .create()
+                .sql
+            val sums = listOfNotNull(
+                KEY_SUM_EXPENSES,
+                KEY_SUM_INCOME,
+                if (includeTransfers) null else KEY_SUM_TRANSFERS
+            ).map { "$aggregateFunction($it) AS $it" }
+            "$cte " + SupportSQLiteQueryBuilder.builder("($days)")
+                .columns((listOf(KEY_YEAR, KEY_SECOND_GROUP) + sums).toTypedArray())
+                .groupBy(KEY_YEAR)
+                .orderBy(orderBy)
+                .create()
+                .sql
+        } else "$cte " +
                 SupportSQLiteQueryBuilder.builder(CTE_TRANSACTION_GROUPS)
                     .columns(projection)
-                    .selection(null, finalArgs)
                     .groupBy(groupBy)
                     .orderBy(orderBy)
                     .create()
                     .sql
-        return db.measureAndLogQuery(uri, sql, selection, finalArgs)
+        return sql to finalArgs
     }
 
     fun insertAttribute(db: SupportSQLiteDatabase, values: ContentValues) {
@@ -0,0 +1,144 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.preference.PrefHandler
+import org.totschnig.myexpenses.provider.DatabaseConstants.JULIAN_DAY_OFFSET
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_KEY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LOCAL_DAY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH_BUCKET
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_START_DAY
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SETTINGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import java.time.DayOfWeek
+import java.time.Instant
+import java.time.LocalDate
+import java.time.ZoneId
+import java.time.temporal.TemporalAdjusters
+import java.util.Calendar
+import java.util.Locale
+import java.util.TimeZone
+
+/**
+ * julian day number of 1970-01-01, SQLite's julianday yields these values for noon
+ */
+const val JULIAN_DAY_OF_EPOCH = 2440588L
+
+private const val SETTINGS_KEY_CALENDAR_BUCKETS = "calendar_buckets"
+
+const val TRANSACTIONS_LOCAL_DAY_INDEX =
+    "CREATE INDEX transactions_local_day_index on $TABLE_TRANSACTIONS($KEY_LOCAL_DAY)"
+
+const val TRANSACTIONS_WEEK_START_DAY_INDEX =
+    "CREATE INDEX transactions_week_start_day_index on $TABLE_TRANSACTIONS($KEY_WEEK_START_DAY)"
+
+const val TRANSACTIONS_MONTH_BUCKET_INDEX =
+    "CREATE INDEX transactions_month_bucket_index on $TABLE_TRANSACTIONS($KEY_MONTH_BUCKET)"
+
+/**
+ * Everything the values of [KEY_LOCAL_DAY], [KEY_WEEK_START_DAY] and [KEY_MONTH_BUCKET] depend on.
+ * @param weekStart as in [Calendar.SUNDAY]..[Calendar.SATURDAY]
+ * @param monthStart day of month, 1..31
+ */
+data class CalendarBucketParameters(val timeZone: String, val weekStart: Int, val monthStart: Int) {
+
+    val key: String
+        get() = "$timeZone;$weekStart;$monthStart"
+
+    private val dayOfWeek: DayOfWeek
+        get() = DayOfWeek.of((weekStart + 5) % 7 + 1)
+
+    /**
+     * Sqlite starts with Sunday = 0, modifier moves to the day before the next week start
+     */
+    private val nextWeekEndSqlite: Int
+        get() = if (weekStart == Calendar.SUNDAY) 6 else weekStart - 2
+
+    val localDayExpression: String
+        get() = "CAST(julianday($KEY_DATE,'unixepoch','localtime',$JULIAN_DAY_OFFSET) AS integer)"
+
+    val weekStartDayExpression: String
+        get() = "CAST(julianday($KEY_DATE,'unixepoch','localtime',$JULIAN_DAY_OFFSET,'weekday $nextWeekEndSqlite','-6 day') AS integer)"
+
+    val monthBucketExpression: String
+        get() = "CAST(strftime('%Y',$KEY_DATE,'unixepoch','localtime','-${monthStart - 1} day') AS integer) * 12 + " +
+                "CAST(strftime('%m',$KEY_DATE,'unixepoch','localtime','-${monthStart - 1} day') AS integer) - 1"
+
+    /**
+     * computes the same values as the SQL expressions, used when transactions are written
+     * through the provider
+     */
+    fun putBuckets(values: ContentValues, date: Long) {
+        val localDate = Instant.ofEpochSecond(date).atZone(ZoneId.of(timeZone)).toLocalDate()
+        values.put(KEY_LOCAL_DAY, localDate.julianDay)
+        values.put(
+            KEY_WEEK_START_DAY,
+            localDate.with(TemporalAdjusters.previousOrSame(dayOfWeek)).julianDay
+        )
+        with(localDate.minusDays(monthStart - 1L)) {
+            values.put(KEY_MONTH_BUCKET, year * 12 + monthValue - 1)
+        }
+    }
+
+    companion object {
+        fun current(prefHandler: PrefHandler) = CalendarBucketParameters(
+            TimeZone.getDefault().id,
+            prefHandler.weekStartWithFallback(Locale.getDefault()),
+            prefHandler.monthStart
+        )
+    }
+}
+
+val LocalDate.julianDay
+    get() = toEpochDay() + JULIAN_DAY_OF_EPOCH
+
+/**
+ * @param selection restricts the update to a subset of transactions, all are updated if null
+ * @return number of updated transactions
+ * Callers need to take care of sealed debts and of pausing the change log
+ */
+fun SupportSQLiteDatabase.updateCalendarBuckets(
+    parameters: CalendarBucketParameters,
+    selection: String? = null
+) = compileStatement(
+    "UPDATE $TABLE_TRANSACTIONS SET $KEY_LOCAL_DAY = ${parameters.localDayExpression}, " +
+            "$KEY_WEEK_START_DAY = ${parameters.weekStartDayExpression}, " +
+            "$KEY_MONTH_BUCKET = ${parameters.monthBucketExpression}" +
+            (selection?.let { " WHERE $it" } ?: "")
+).use { it.executeUpdateDelete() }
+
+fun SupportSQLiteDatabase.loadCalendarBucketParameters(): String? = query(
+    "SELECT $KEY_VALUE FROM $TABLE_SETTINGS WHERE $KEY_KEY = ?",
+    arrayOf(SETTINGS_KEY_CALENDAR_BUCKETS)
+).use {
+    if (it.moveToFirst()) it.getString(0) else null
+}
+
+fun SupportSQLiteDatabase.storeCalendarBucketParameters(parameters: CalendarBucketParameters) {
+    insert(TABLE_SETTINGS, SQLiteDatabase.CONFLICT_REPLACE, ContentValues(2).apply {
+        put(KEY_KEY, SETTINGS_KEY_CALENDAR_BUCKETS)
+        put(KEY_VALUE, parameters.key)
+    })
+}
+
+/**
+ * Selection for the group identified by [year] and [second] as returned by the transaction groups
+ * query, expressed as ranges over the indexed bucket columns
+ */
+fun calendarBucketFilter(grouping: Grouping, year: Int, second: Int): String? {
+    val firstOfYear = LocalDate.of(year, 1, 1).julianDay
+    val lastOfYear = LocalDate.of(year, 12, 31).julianDay
+    return when (grouping) {
+        Grouping.YEAR -> "$KEY_LOCAL_DAY BETWEEN $firstOfYear AND $lastOfYear"
+        Grouping.DAY -> "$KEY_LOCAL_DAY = ${firstOfYear + second - 1}"
+        Grouping.WEEK -> "$KEY_WEEK_START_DAY BETWEEN ${firstOfYear + 7 * (second - 1)} AND ${
+            minOf(firstOfYear + 7 * second - 1, lastOfYear)
+        }"
+        Grouping.MONTH -> "$KEY_MONTH_BUCKET = ${year * 12 + second}"
+        Grouping.NONE -> null
+    }
+}
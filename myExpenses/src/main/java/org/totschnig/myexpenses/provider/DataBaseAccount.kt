@@ -4,6 +4,7 @@ import android.net.Uri
 import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.model.SortDirection
 import org.totschnig.myexpenses.model2.IAccount
+import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.accountScopeUri
 import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.groupingUriBuilder
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
@@ -42,6 +43,13 @@ abstract class DataBaseAccount : IAccount {
     ) =
         uriBuilderForTransactionList(id, currency, mergeTransfers, shortenComment, extended)
 
+    /**
+     * observers registered on this uri (with descendants) are notified about changes to the
+     * transactions of this account
+     */
+    val accountScopeUri: Uri
+        get() = accountScopeUri(id, currency)
+
     val extendedProjectionForTransactionList: Array<String>
         get() = when {
             !isAggregate -> getProjectionExtended()
@@ -48,7 +48,7 @@ public class DatabaseConstants {
   private static String WEEK_MAX;
 
   //in sqlite julian days are calculated from noon, in order to make sure that the returned julian day matches the day we need, we set the time to noon.
-  private static final String JULIAN_DAY_OFFSET = "'start of day','+12 hours'";
+  static final String JULIAN_DAY_OFFSET = "'start of day','+12 hours'";
 
   private static String[] PROJECTION_BASE, PROJECTION_EXTENDED, PROJECTION_EXTENDED_AGGREGATE, PROJECTION_EXTENDED_HOME;
 
@@ -78,19 +78,20 @@ public class DatabaseConstants {
       //weekStartsOn Monday or Saturday
       nextWeekEndSqlite = weekStartsOn - 2;
     }
-    YEAR_OF_WEEK_START = "CAST(strftime('%Y',date,'unixepoch','localtime','weekday " + nextWeekEndSqlite + "', '-6 day') AS integer)";
-    YEAR_OF_MONTH_START = "CAST(strftime('%Y',date,'unixepoch','localtime','-" + monthDelta + " day') AS integer)";
-    WEEK_START = "date(date,'unixepoch','localtime','weekday " + nextWeekEndSqlite + "', '-6 day')";
+    //the bucket columns are computed with the week and month start from preferences, see CalendarBuckets.kt
+    YEAR_OF_WEEK_START = "CAST(strftime('%Y'," + KEY_WEEK_START_DAY + ") AS integer)";
+    YEAR_OF_MONTH_START = KEY_MONTH_BUCKET + " / 12";
+    WEEK_START = "date(" + KEY_WEEK_START_DAY + ")";
     THIS_YEAR_OF_WEEK_START = "CAST(strftime('%Y','now','localtime','weekday " + nextWeekEndSqlite + "', '-6 day') AS integer)";
-    WEEK = "CAST((strftime('%j',date,'unixepoch','localtime','weekday " + nextWeekEndSqlite + "', '-6 day') - 1) / 7 + 1 AS integer)"; //calculated for the beginning of the week
-    MONTH = "CAST(strftime('%m',date,'unixepoch','localtime','-" + monthDelta + " day') AS integer) - 1"; //convert to 0 based
+    WEEK = "CAST((strftime('%j'," + KEY_WEEK_START_DAY + ") - 1) / 7 + 1 AS integer)"; //calculated for the beginning of the week
+    MONTH = KEY_MONTH_BUCKET + " % 12"; //0 based
     THIS_WEEK = "CAST((strftime('%j','now','localtime','weekday " + nextWeekEndSqlite + "', '-6 day') - 1) / 7 + 1 AS integer)";
     THIS_MONTH = "CAST(strftime('%m','now','localtime','-" + monthDelta + " day') AS integer) - 1";
     THIS_YEAR_OF_MONTH_START =  "CAST(strftime('%Y','now','localtime','-" + monthDelta + " day') AS integer)";
     COUNT_FROM_WEEK_START_ZERO = "date('%d-01-01','weekday " + nextWeekStartsSqlite + "', '" +
         "-7 day" +
         "' ,'+%d day')";
-    WEEK_START_JULIAN = "julianday(date,'unixepoch','localtime'," + JULIAN_DAY_OFFSET + ",'weekday " + nextWeekEndSqlite + "', '-6 day')";
+    WEEK_START_JULIAN = KEY_WEEK_START_DAY;
     WEEK_MAX= "CAST((strftime('%%j','%d-12-31','weekday " + nextWeekEndSqlite + "', '-6 day') - 1) / 7 + 1 AS integer)";
     buildProjection(context, homeCurrency);
     isLocalized = true;
@@ -164,13 +165,28 @@ public class DatabaseConstants {
     }
   }
 
+  /**
+   * julian day number of the transaction's date in local time. Together with {@link #KEY_WEEK_START_DAY}
+   * and {@link #KEY_MONTH_BUCKET} stored and indexed in the transactions table, so that grouping
+   * does not need to evaluate date functions for every row
+   */
+  public static final String KEY_LOCAL_DAY = "local_day";
+  /**
+   * julian day number of the first day of the week, depends on week start preference
+   */
+  public static final String KEY_WEEK_START_DAY = "week_start_day";
+  /**
+   * 12 * year + zero based month, depends on month start preference
+   */
+  public static final String KEY_MONTH_BUCKET = "month_bucket";
+
   //if we do not cast the result to integer, we would need to do the conversion in Java
-  public static final String YEAR = "CAST(strftime('%Y',date,'unixepoch','localtime') AS integer)";
-  public static final String MONTH_PLAIN= "CAST(strftime('%m',date,'unixepoch','localtime') AS integer) - 1"; //convert to 0 based
+  public static final String YEAR = "CAST(strftime('%Y'," + KEY_LOCAL_DAY + ") AS integer)";
+  public static final String MONTH_PLAIN= "CAST(strftime('%m'," + KEY_LOCAL_DAY + ") AS integer) - 1"; //convert to 0 based
   public static final String THIS_DAY = "CAST(strftime('%j','now','localtime') AS integer)";
-  public static final String DAY = "CAST(strftime('%j',date,'unixepoch','localtime') AS integer)";
+  public static final String DAY = "CAST(strftime('%j'," + KEY_LOCAL_DAY + ") AS integer)";
   public static final String THIS_YEAR = "CAST(strftime('%Y','now','localtime') AS integer)";
-  public static final String DAY_START_JULIAN = "julianday(date,'unixepoch','localtime'," + JULIAN_DAY_OFFSET + ")";
+  public static final String DAY_START_JULIAN = KEY_LOCAL_DAY;
   public static final String KEY_DATE = "date";
   public static final String KEY_VALUE_DATE = "value_date";
   public static final String KEY_AMOUNT = "amount";
@@ -259,10 +275,12 @@ public class DatabaseConstants {
   public static final String KEY_PREDEFINED_METHOD_NAME = "predefined";
   public static final String KEY_UUID = "uuid";
   public static final String KEY_URI = "uri";
+  public static final String KEY_CONTENT_HASH = "content_hash";
 
   public static final String KEY_URI_LIST = "uri_list";
   public static final String KEY_ATTACHMENT_COUNT= "attachment_count";
   public static final String KEY_SYNC_ACCOUNT_NAME = "sync_account_name";
+  public static final String KEY_SYNC_STATS = "stats";
   public static final String KEY_TRANSFER_AMOUNT = "transfer_amount";
   public static final String KEY_LABEL_NORMALIZED = "label_normalized";
   public static final String KEY_LAST_USED = "last_used";
@@ -285,6 +303,13 @@ public class DatabaseConstants {
   public static final String KEY_ORIGINAL_AMOUNT = "original_amount";
   public static final String KEY_ORIGINAL_CURRENCY = "original_currency";
   public static final String KEY_EQUIVALENT_AMOUNT = "equivalent_amount";
+  /**
+   * sum of amounts in {@link #TABLE_ACCOUNT_AGGREGATES} for which no equivalent amount is stored,
+   * and which are converted with the account's exchange rate at query time
+   */
+  public static final String KEY_UNCONVERTED_AMOUNT = "unconverted_amount";
+  public static final String KEY_SIGN = "sign";
+  public static final String KEY_CLEARED_COUNT = "cleared_count";
   public static final String KEY_TRANSFER_PEER_PARENT = "transfer_peer_parent";
   public static final String KEY_BUDGETID = "budget_id";
   public static final String KEY_START = "start";
@@ -413,6 +438,7 @@ public class DatabaseConstants {
   public static final String TABLE_PLAN_INSTANCE_STATUS = "planinstance_transaction";
   static final String TABLE_CHANGES = "changes";
   static final String TABLE_SETTINGS = "settings";
+  static final String TABLE_SYNC_STATS = "sync_stats";
   static final String TABLE_ACCOUNT_EXCHANGE_RATES = "account_exchangerates";
   public static final String TABLE_TAGS = "tags";
   public static final String TABLE_TRANSACTIONS_TAGS = "transactions_tags";
@@ -440,6 +466,24 @@ public class DatabaseConstants {
 
   public static final String TABLE_ACCOUNT_ATTRIBUTES = "account_attributes";
 
+  /**
+   * per account sums of transactions, bucketed by category type and sign of the amount,
+   * maintained by triggers on {@link #TABLE_TRANSACTIONS}
+   */
+  public static final String TABLE_ACCOUNT_AGGREGATES = "account_aggregates";
+
+  /**
+   * FTS4 index over comment, reference number, payee name and tags of transactions, the docid
+   * is the {@link #KEY_ROWID} of the transaction, maintained by triggers
+   */
+  public static final String TABLE_TRANSACTIONS_FTS = "transactions_fts";
+
+  /**
+   * FTS4 index over payee names, the docid is the {@link #KEY_ROWID} of the payee, maintained by
+   * triggers
+   */
+  public static final String TABLE_PAYEES_FTS = "payee_fts";
+
   public static final String CAT_AS_LABEL = DbConstantsKt.fullCatCase(null) + " AS " + KEY_LABEL;
 
   public static final String TRANSFER_ACCOUNT_UUID = "(SELECT " + KEY_UUID + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = " + KEY_TRANSFER_ACCOUNT + ") AS " + KEY_TRANSFER_ACCOUNT;
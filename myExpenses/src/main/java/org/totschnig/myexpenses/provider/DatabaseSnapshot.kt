@@ -0,0 +1,49 @@
+package org.totschnig.myexpenses.provider
+
+import android.database.sqlite.SQLiteDatabase
+import android.os.Build
+import java.io.File
+import java.io.IOException
+
+/**
+ * VACUUM INTO needs SQLite 3.27, which the framework ships from Android 11 on.
+ */
+val supportsVacuumInto = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+
+/**
+ * Backups that are taken on a connection of their own ([snapshotDatabase] and
+ * SqlCryptProvider.decrypt) hold one read transaction for the whole copy. In rollback journal mode,
+ * that lock makes writers fail, so the database is switched to WAL mode where they are used. The
+ * helper switches the journal mode when it opens the database, and switches back if WAL is off,
+ * e.g. after a downgrade. Backups by file copy, which need all content in the database file, are
+ * only taken where WAL stays off, and [deleteJournalFiles] removes -wal and -shm before a restore.
+ */
+fun useWriteAheadLogging(encryptDatabase: Boolean) = encryptDatabase || supportsVacuumInto
+
+/**
+ * Writes a consistent and compacted copy of the database at [source] to [target] with VACUUM INTO.
+ * The copy is taken through a read only connection of its own in a single read transaction, so
+ * that the live database stays open. Since the live database is in WAL mode (see
+ * [useWriteAheadLogging]), writers commit while the snapshot is taken.
+ * The copy is switched to rollback journal mode, so that it can be opened read only without its
+ * -shm file, when it is restored or inspected.
+ */
+fun snapshotDatabase(source: File, target: File) {
+    if (target.exists() && !target.delete())
+        throw IOException("File $target exists and cannot be deleted.")
+    SQLiteDatabase.openDatabase(source.path, null, SQLiteDatabase.OPEN_READONLY).use {
+        it.execSQL("VACUUM INTO ?", arrayOf(target.path))
+    }
+    SQLiteDatabase.openDatabase(target.path, null, SQLiteDatabase.OPEN_READWRITE).use {
+        it.rawQuery("PRAGMA journal_mode = DELETE", null).use { cursor -> cursor.moveToFirst() }
+    }
+}
+
+/**
+ * Removes journal files a restored database must not be combined with
+ */
+fun deleteJournalFiles(db: File) {
+    listOf("-wal", "-shm", "-journal").forEach {
+        File(db.path + it).delete()
+    }
+}
@@ -15,6 +15,7 @@ import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_AGG
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_ALLOCATED_ONLY
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_TRANSACTION_ID_LIST
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.util.Utils
 
 private fun requireIdParameter(parameter: String) {
     require(parameter.isDigitsOnly())
@@ -410,6 +411,90 @@ fun categoryPathFromLeave(rowId: String): String {
 const val TRANSFER_ACCOUNT_LABEL =
     "CASE WHEN $KEY_TRANSFER_ACCOUNT THEN (SELECT $KEY_LABEL FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID = $KEY_TRANSFER_ACCOUNT) END AS $KEY_TRANSFER_ACCOUNT_LABEL"
 
+/**
+ * equivalent amount of a transaction, for split parts calculated pro rata from the equivalent
+ * amount of the parent, null if no equivalent amount is stored
+ * @param row the table (or new/old in a trigger) the transaction is read from
+ */
+fun equivalentAmountExpression(row: String) = """
+CASE
+    WHEN $row.$KEY_PARENTID
+    THEN (SELECT 1.0 * parent.$KEY_EQUIVALENT_AMOUNT / parent.$KEY_AMOUNT FROM $TABLE_TRANSACTIONS parent
+        WHERE parent.$KEY_ROWID = $row.$KEY_PARENTID
+      ) * $row.$KEY_AMOUNT
+    ELSE $row.$KEY_EQUIVALENT_AMOUNT
+END
+"""
+
+/**
+ * transactions that are included into [TABLE_ACCOUNT_AGGREGATES]: no split parents, not void
+ * and not uncommitted
+ */
+fun accountAggregatesCondition(row: String) =
+    "$row.$KEY_CATID IS NOT $SPLIT_CATID AND $row.$KEY_CR_STATUS != '${CrStatus.VOID.name}' AND $row.$KEY_STATUS != $STATUS_UNCOMMITTED"
+
+/**
+ * unmapped transactions are stored with type -1, since type is part of the primary key
+ */
+fun accountAggregatesBucketType(row: String) =
+    "coalesce((SELECT $KEY_TYPE FROM $TABLE_CATEGORIES WHERE $KEY_ROWID = $row.$KEY_CATID), -1)"
+
+fun accountAggregatesBucketSign(row: String) =
+    "($row.$KEY_AMOUNT > 0) - ($row.$KEY_AMOUNT < 0)"
+
+val accountAggregatesValueColumns = listOf(
+    KEY_AMOUNT,
+    KEY_EQUIVALENT_AMOUNT,
+    KEY_UNCONVERTED_AMOUNT,
+    KEY_CLEARED_TOTAL,
+    KEY_RECONCILED_TOTAL,
+    KEY_CLEARED_COUNT,
+    KEY_COUNT
+)
+
+/**
+ * the contribution of a single transaction to each of [accountAggregatesValueColumns]
+ */
+fun accountAggregatesContribution(row: String): List<String> {
+    val equivalentAmount = equivalentAmountExpression(row)
+    return listOf(
+        "$row.$KEY_AMOUNT",
+        "coalesce($equivalentAmount, 0)",
+        "CASE WHEN $equivalentAmount IS NULL THEN $row.$KEY_AMOUNT ELSE 0 END",
+        "CASE WHEN $row.$KEY_CR_STATUS IN ('${CrStatus.RECONCILED.name}', '${CrStatus.CLEARED.name}') THEN $row.$KEY_AMOUNT ELSE 0 END",
+        "CASE WHEN $row.$KEY_CR_STATUS = '${CrStatus.RECONCILED.name}' THEN $row.$KEY_AMOUNT ELSE 0 END",
+        "$row.$KEY_CR_STATUS = '${CrStatus.CLEARED.name}'",
+        "1"
+    )
+}
+
+/**
+ * calculates the content of [TABLE_ACCOUNT_AGGREGATES] from the transactions table
+ * @param accountSelection if not null restricts the calculation to matching accounts
+ */
+fun accountAggregatesSelect(accountSelection: String? = null): String {
+    val sums = accountAggregatesValueColumns.zip(accountAggregatesContribution(TABLE_TRANSACTIONS))
+        .joinToString(",\n    ") { (column, contribution) ->
+            "${if (column == KEY_EQUIVALENT_AMOUNT) "total" else "sum"}($contribution) AS $column"
+        }
+    return """
+SELECT
+    $KEY_ACCOUNTID,
+    ${accountAggregatesBucketType(TABLE_TRANSACTIONS)} AS $KEY_TYPE,
+    ${accountAggregatesBucketSign(TABLE_TRANSACTIONS)} AS $KEY_SIGN,
+    $sums
+FROM $TABLE_TRANSACTIONS
+WHERE ${accountAggregatesCondition(TABLE_TRANSACTIONS)}
+    AND EXISTS (SELECT 1 FROM $TABLE_ACCOUNTS WHERE $TABLE_ACCOUNTS.$KEY_ROWID = $TABLE_TRANSACTIONS.$KEY_ACCOUNTID)
+    ${accountSelection?.let { "AND $KEY_ACCOUNTID IN ($it)" } ?: ""}
+GROUP BY 1, 2, 3
+"""
+}
+
+/**
+ * Sums are read from [TABLE_ACCOUNT_AGGREGATES], only the transactions in the future
+ * (which are needed for current balance and has_future) are aggregated on the fly.
+ */
 fun accountQueryCTE(
     homeCurrency: String,
     futureStartsNow: Boolean,
@@ -419,34 +504,51 @@ fun accountQueryCTE(
     val futureCriterion =
         if (futureStartsNow) "'now'" else "'now', 'localtime', 'start of day', '+1 day', 'utc'"
     val isExpense =
-        "$KEY_TYPE = $FLAG_EXPENSE OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_AMOUNT < 0)"
+        "$KEY_TYPE = $FLAG_EXPENSE OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_SIGN < 0)"
     val isIncome =
-        "$KEY_TYPE = $FLAG_INCOME OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_AMOUNT > 0)"
+        "$KEY_TYPE = $FLAG_INCOME OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_SIGN > 0)"
     val isTransfer = "$KEY_TYPE = $FLAG_TRANSFER"
+    val buckets = """(SELECT
+        $KEY_ACCOUNTID,
+        nullif($KEY_TYPE, -1) AS $KEY_TYPE,
+        $KEY_SIGN,
+        $KEY_AMOUNT,
+        $KEY_EQUIVALENT_AMOUNT,
+        $KEY_UNCONVERTED_AMOUNT,
+        $KEY_CLEARED_TOTAL,
+        $KEY_RECONCILED_TOTAL,
+        $KEY_CLEARED_COUNT,
+        (SELECT $KEY_CURRENCY FROM $TABLE_ACCOUNTS WHERE $TABLE_ACCOUNTS.$KEY_ROWID = $TABLE_ACCOUNT_AGGREGATES.$KEY_ACCOUNTID) AS $KEY_CURRENCY
+    FROM $TABLE_ACCOUNT_AGGREGATES) AS buckets"""
+    val futureOf = { column: String ->
+        "coalesce((SELECT $column FROM future WHERE future.$KEY_ACCOUNTID = amounts.$KEY_ACCOUNTID), 0)"
+    }
     return """
 WITH now as (
     SELECT
         cast(strftime('%s', $futureCriterion) as integer) AS now
+), future AS (
+    SELECT
+        $VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID,
+        sum($KEY_AMOUNT) AS $KEY_AMOUNT,
+        total(coalesce(
+            ${equivalentAmountExpression(VIEW_WITH_ACCOUNT)},
+            coalesce($KEY_EXCHANGE_RATE, 1) * $KEY_AMOUNT
+        )) AS $KEY_EQUIVALENT_AMOUNT
+    FROM ${exchangeRateJoin(VIEW_WITH_ACCOUNT, KEY_ACCOUNTID, homeCurrency)}
+    WHERE $WHERE_NOT_SPLIT AND $WHERE_NOT_VOID AND $KEY_DATE >= (select now from now)
+    GROUP BY $VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID
 ), amounts AS (
     SELECT
-        $KEY_AMOUNT,
+        buckets.$KEY_ACCOUNTID,
         $typeWithFallBack AS $KEY_TYPE,
-        $KEY_TRANSFER_PEER,
-        $KEY_CR_STATUS,
-        $KEY_DATE,
-        coalesce(
-            CASE
-                WHEN $KEY_PARENTID
-                THEN (SELECT 1.0 * $KEY_EQUIVALENT_AMOUNT / $KEY_AMOUNT FROM $TABLE_TRANSACTIONS
-                    WHERE $KEY_ROWID = $VIEW_WITH_ACCOUNT.$KEY_PARENTID
-                  ) * $KEY_AMOUNT
-                ELSE $KEY_EQUIVALENT_AMOUNT
-            END,
-            coalesce($KEY_EXCHANGE_RATE, 1) * amount
-        ) AS $KEY_EQUIVALENT_AMOUNT,
-        $VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID 
-    FROM ${exchangeRateJoin(VIEW_WITH_ACCOUNT, KEY_ACCOUNTID, homeCurrency)}
-    WHERE $WHERE_NOT_SPLIT AND $KEY_CR_STATUS != '${CrStatus.VOID.name}'
+        $KEY_SIGN,
+        $KEY_AMOUNT,
+        $KEY_EQUIVALENT_AMOUNT + coalesce($KEY_EXCHANGE_RATE, 1) * $KEY_UNCONVERTED_AMOUNT AS $KEY_EQUIVALENT_AMOUNT,
+        $KEY_CLEARED_TOTAL,
+        $KEY_RECONCILED_TOTAL,
+        $KEY_CLEARED_COUNT
+    FROM ${exchangeRateJoin(buckets, KEY_ACCOUNTID, homeCurrency, "buckets")}
 ), aggregates AS (
     SELECT
         $KEY_ACCOUNTID,
@@ -457,12 +559,12 @@ WITH now as (
         $aggregateFunction(CASE WHEN $isExpense THEN $KEY_AMOUNT ELSE 0 END) as $KEY_SUM_EXPENSES,
         $aggregateFunction(CASE WHEN $isExpense THEN $KEY_EQUIVALENT_AMOUNT ELSE 0 END) as equivalent_expense,
         $aggregateFunction(CASE WHEN $isTransfer THEN $KEY_AMOUNT ELSE 0  END) as $KEY_SUM_TRANSFERS,
-        $aggregateFunction(CASE WHEN $KEY_DATE < (select now from now) THEN $KEY_AMOUNT ELSE 0 END) as $KEY_CURRENT,
-        $aggregateFunction(CASE WHEN $KEY_DATE < (select now from now) THEN $KEY_EQUIVALENT_AMOUNT ELSE 0 END) as equivalent_current,
-        $aggregateFunction(CASE WHEN $KEY_CR_STATUS IN ( 'RECONCILED', 'CLEARED' ) THEN $KEY_AMOUNT ELSE 0 END) as $KEY_CLEARED_TOTAL,
-        $aggregateFunction(CASE WHEN $KEY_CR_STATUS = 'RECONCILED' THEN $KEY_AMOUNT ELSE 0 END) as $KEY_RECONCILED_TOTAL,
-        max(CASE WHEN $KEY_CR_STATUS = 'CLEARED' THEN 1 ELSE 0 END) as $KEY_HAS_CLEARED,
-        max($KEY_DATE) >= (select now from now) as $KEY_HAS_FUTURE
+        $aggregateFunction($KEY_AMOUNT) - ${futureOf(KEY_AMOUNT)} as $KEY_CURRENT,
+        $aggregateFunction($KEY_EQUIVALENT_AMOUNT) - ${futureOf(KEY_EQUIVALENT_AMOUNT)} as equivalent_current,
+        $aggregateFunction($KEY_CLEARED_TOTAL) as $KEY_CLEARED_TOTAL,
+        $aggregateFunction($KEY_RECONCILED_TOTAL) as $KEY_RECONCILED_TOTAL,
+        max($KEY_CLEARED_COUNT > 0) as $KEY_HAS_CLEARED,
+        exists(SELECT 1 FROM future WHERE future.$KEY_ACCOUNTID = amounts.$KEY_ACCOUNTID) as $KEY_HAS_FUTURE
    from amounts group by $KEY_ACCOUNTID
 )
 """
@@ -492,6 +594,29 @@ with data as
        exists(select 1 from data where $KEY_TAGID is not null) AS $KEY_MAPPED_TAGS
 """.trimIndent()
 
+private val FTS_TOKEN_SEPARATOR = Regex("[^\\p{L}\\p{N}]+")
+
+/**
+ * translates user input into an FTS phrase query that matches rows where the words of [search]
+ * are the prefixes of consecutive tokens in the same order, e.g. "Coff sh" -> "\"coff* sh*\"".
+ * Since the input is split at every character that is not a letter or digit (like the unicode61
+ * tokenizer does), neither FTS operators nor quotes reach the query.
+ * @return null if [search] does not contain any letter or digit, callers then have to fall back
+ * to a LIKE query
+ */
+fun ftsPrefixQuery(search: String): String? =
+    Utils.normalize(search).split(FTS_TOKEN_SEPARATOR)
+        .filter { it.isNotEmpty() }
+        .takeIf { it.isNotEmpty() }
+        ?.joinToString(" ", prefix = "\"", postfix = "\"") { "$it*" }
+
+/**
+ * selects rows whose [KEY_ROWID] is the docid of a row in the FTS [table] where [column] matches
+ * the query passed as selection argument
+ */
+fun ftsMatchSelection(table: String, column: String) =
+    "$KEY_ROWID IN (SELECT docid FROM $table WHERE $table.$column MATCH ?)"
+
 const val TAG_LIST_EXPRESSION = "group_concat($TABLE_TAGS.$KEY_LABEL,'') AS $KEY_TAGLIST"
 
 fun tagJoin(mainTable: String): String {
@@ -567,6 +692,8 @@ fun buildTransactionGroupCte(
         append("WITH $CTE_TRANSACTION_GROUPS AS (SELECT ")
         append(KEY_DATE)
         append(",")
+        append("$KEY_LOCAL_DAY,$KEY_WEEK_START_DAY,$KEY_MONTH_BUCKET")
+        append(",")
         append(KEY_TRANSFER_PEER)
         append(",")
         append("$typeWithFallBack AS $KEY_TYPE")
@@ -1,16 +1,60 @@
 package org.totschnig.myexpenses.provider
 
+import android.content.ContentResolver
+import android.database.ContentObserver
 import android.database.Cursor
 import android.database.sqlite.SQLiteException
+import android.net.Uri
 import android.os.Bundle
 import app.cash.copper.Query
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
 import kotlinx.coroutines.flow.transform
 import kotlinx.coroutines.withContext
 import timber.log.Timber
 
+/**
+ * Like copper's observeQuery, but re-runs the query only when [observedUri] (or one of its
+ * descendants) is notified, instead of the queried [uri]. Used with
+ * [TransactionProvider.ACCOUNT_SCOPE_URI] so that a change in one account does not re-query
+ * the data of all others.
+ */
+fun ContentResolver.observeQuery(
+    observedUri: Uri,
+    uri: Uri,
+    projection: Array<String>? = null,
+    selection: String? = null,
+    selectionArgs: Array<String>? = null,
+    sortOrder: String? = null
+): Flow<Query> = callbackFlow {
+    val query = object : Query() {
+        override fun run(): Cursor? =
+            query(uri, projection, selection, selectionArgs, sortOrder)
+    }
+    val observer = object : ContentObserver(null) {
+        override fun onChange(selfChange: Boolean) {
+            trySend(query)
+        }
+    }
+    registerContentObserver(observedUri, true, observer)
+    trySend(query)
+    awaitClose { unregisterContentObserver(observer) }
+}.conflate()
+
+/**
+ * For changes to transactions that are made or detected outside of [TransactionProvider]:
+ * besides [TransactionProvider.TRANSACTIONS_URI], notifies all account scopes, which the
+ * transaction lists and sums observe.
+ */
+fun ContentResolver.notifyTransactionsChanged(syncToNetwork: Boolean = false) {
+    notifyChange(TransactionProvider.TRANSACTIONS_URI, null, syncToNetwork)
+    notifyChange(TransactionProvider.ACCOUNT_SCOPE_URI, null, false)
+}
+
 fun <T> Flow<Query>.mapToListWithExtra(
     dispatcher: CoroutineDispatcher = Dispatchers.IO,
     mapper: (Cursor) -> T
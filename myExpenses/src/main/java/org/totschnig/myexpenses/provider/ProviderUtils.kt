@@ -57,7 +57,7 @@ object ProviderUtils {
                     if (!TextUtils.isEmpty(categoryLabel)) {
                         val categoryToId: MutableMap<String, Long> = mutableMapOf()
                         CategoryHelper.insert(repository, categoryLabel!!, categoryToId, false)
-                        catId = categoryToId[categoryLabel]
+                        catId = categoryToId[CategoryHelper.pathKey(categoryLabel)]
                         if (catId != null) {
                             categoryPath = categoryLabel
                         }
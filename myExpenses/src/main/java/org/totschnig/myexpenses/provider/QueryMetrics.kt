@@ -0,0 +1,182 @@
+package org.totschnig.myexpenses.provider
+
+import android.net.Uri
+import java.time.Duration
+import java.time.Instant
+import java.util.PriorityQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * In-memory statistics about the work done by [BaseTransactionProvider]: latency histograms and
+ * row counts per uri pattern, the slowest statements, and the duration of batch operations.
+ * Recording only takes a lock and updates a few counters, so it is always on. Unless debug logging
+ * or exact query metrics are enabled, the provider does not step through queries before returning
+ * them. Their durations then cover the preparation of the statement and the time the caller spends
+ * moving the cursor, and the rows the caller has read are recorded once the cursor is closed. The
+ * query plans of slow statements are only captured by the provider when debug logging is enabled.
+ */
+class QueryMetrics(private val slowQueryCapacity: Int = 20) {
+
+    class Histogram {
+        /**
+         * bucket i counts durations below 2^i milliseconds, the last bucket everything above
+         */
+        val buckets = LongArray(BUCKET_COUNT)
+        var count = 0L
+            private set
+        var totalNanos = 0L
+            private set
+        var maxNanos = 0L
+            private set
+        var rows = 0L
+            private set
+
+        fun record(nanos: Long, rowCount: Int) {
+            buckets[bucketIndex(nanos)]++
+            count++
+            totalNanos += nanos
+            maxNanos = maxOf(maxNanos, nanos)
+            rows += rowCount
+        }
+
+        override fun toString() = buildString {
+            append("n=$count avg=${formatNanos(if (count > 0) totalNanos / count else 0)} max=${formatNanos(maxNanos)} rows=$rows")
+            append(" |")
+            buckets.forEachIndexed { index, value ->
+                if (value > 0) {
+                    append(if (index == BUCKET_COUNT - 1) " ≥${1 shl (index - 1)}ms:" else " <${1 shl index}ms:")
+                    append(value)
+                }
+            }
+        }
+    }
+
+    data class SlowQuery(
+        val pattern: String,
+        val sql: String,
+        val args: String?,
+        val nanos: Long,
+        val rows: Int,
+        val timestamp: Instant,
+        val plan: List<String>
+    )
+
+    private val histograms = HashMap<String, Histogram>()
+    private val batches = HashMap<String, Histogram>()
+    private val slowQueries = PriorityQueue<SlowQuery>(compareBy { it.nanos })
+    private var bulkStart: Long? = null
+    private var since = Instant.now()
+
+    /**
+     * @return true if the query qualifies for the list of slowest queries, the caller should then
+     * determine the query plan and pass it on to [recordSlowQuery]
+     */
+    @Synchronized
+    fun record(uri: Uri, nanos: Long, rows: Int): Boolean {
+        histograms.getOrPut(uriPattern(uri)) { Histogram() }.record(nanos, rows)
+        return nanos >= SLOW_QUERY_THRESHOLD_NANOS &&
+                (slowQueries.size < slowQueryCapacity || nanos > slowQueries.peek()!!.nanos)
+    }
+
+    @Synchronized
+    fun recordSlowQuery(
+        uri: Uri,
+        sql: String,
+        selectionArgs: Array<String>?,
+        nanos: Long,
+        rows: Int,
+        plan: List<String>
+    ) {
+        slowQueries.add(
+            SlowQuery(uriPattern(uri), sql, selectionArgs?.joinToString(), nanos, rows, Instant.now(), plan)
+        )
+        while (slowQueries.size > slowQueryCapacity) {
+            slowQueries.poll()
+        }
+    }
+
+    /**
+     * @param kind e.g. applyBatch
+     * @param operations number of operations executed in the batch
+     */
+    @Synchronized
+    fun recordBatch(kind: String, operations: Int, nanos: Long) {
+        batches.getOrPut(kind) { Histogram() }.record(nanos, operations)
+    }
+
+    @Synchronized
+    fun bulkStarted() {
+        bulkStart = System.nanoTime()
+    }
+
+    @Synchronized
+    fun bulkEnded() {
+        bulkStart?.let {
+            recordBatch(KIND_BULK, 0, System.nanoTime() - it)
+        }
+        bulkStart = null
+    }
+
+    @Synchronized
+    fun reset() {
+        histograms.clear()
+        batches.clear()
+        slowQueries.clear()
+        since = Instant.now()
+    }
+
+    @Synchronized
+    fun report() = buildString {
+        appendLine("Query metrics since $since")
+        appendLine()
+        appendLine("== Queries by uri ==")
+        histograms.entries.sortedByDescending { it.value.totalNanos }.forEach { (pattern, histogram) ->
+            appendLine("$pattern: $histogram")
+        }
+        appendLine()
+        appendLine("== Batches (rows = operations) ==")
+        batches.forEach { (kind, histogram) ->
+            appendLine("$kind: $histogram")
+        }
+        appendLine()
+        appendLine("== Slowest queries ==")
+        slowQueries.sortedByDescending { it.nanos }.forEach {
+            appendLine("${formatNanos(it.nanos)} (${it.rows} rows) at ${it.timestamp} - ${it.pattern}")
+            appendLine(it.sql)
+            it.args?.let { args -> appendLine("($args)") }
+            if (it.plan.isEmpty()) {
+                appendLine("  (query plans are captured when debug logging is enabled)")
+            }
+            it.plan.forEach { line -> appendLine("  $line") }
+            appendLine()
+        }
+    }
+
+    companion object {
+        const val BUCKET_COUNT = 14
+        const val KIND_APPLY_BATCH = "applyBatch"
+        const val KIND_BULK = "bulk"
+        private val SLOW_QUERY_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(16)
+
+        fun bucketIndex(nanos: Long): Int {
+            val millis = TimeUnit.NANOSECONDS.toMillis(nanos)
+            return (64 - java.lang.Long.numberOfLeadingZeros(millis)).coerceAtMost(BUCKET_COUNT - 1)
+        }
+
+        /**
+         * identifies the kind of query independent of ids and parameter values, e.g.
+         * transactions/#?accountId&extended
+         */
+        fun uriPattern(uri: Uri) = buildString {
+            append(uri.pathSegments.joinToString("/") {
+                if (it.toLongOrNull() != null) "#" else it
+            })
+            uri.queryParameterNames.sorted().takeIf { it.isNotEmpty() }?.let {
+                append("?")
+                append(it.joinToString("&"))
+            }
+        }
+
+        private fun formatNanos(nanos: Long) = Duration.ofNanos(nanos).toString()
+    }
+}
@@ -21,18 +21,26 @@ import static org.totschnig.myexpenses.model2.PaymentMethodKt.PAYMENT_METHOD_EXP
 import static org.totschnig.myexpenses.model2.PaymentMethodKt.PAYMENT_METHOD_INCOME;
 import static org.totschnig.myexpenses.model2.PaymentMethodKt.PAYMENT_METHOD_NEUTRAL;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ACCOUNTS_SEALED_TRIGGER_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ACCOUNT_AGGREGATES_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ACCOUNT_ATTRIBUTES_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ACCOUNT_REMAP_TRANSFER_TRIGGER_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ATTACHMENTS_CONTENT_HASH_INDEX;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ATTACHMENTS_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ATTRIBUTES_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.BANK_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.CATEGORY_TYPE_UPDATE_TRIGGER_MAIN;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PARTY_HIERARCHY_TRIGGER;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEES_FTS_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEE_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEE_UNIQUE_INDEX;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.SPLIT_PART_CR_STATUS_TRIGGER_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.SYNC_STATS_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.SYNC_STATS_TRIM_TRIGGER_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_ATTACHMENTS_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_CAT_ID_INDEX;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_DATE_INDEX;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_FTS_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_PARENT_ID_INDEX;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_PAYEE_ID_INDEX;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_SEALED_DELETE_TRIGGER_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_SEALED_INSERT_TRIGGER_CREATE;
@@ -122,7 +130,10 @@ public class TransactionDatabase extends BaseTransactionDatabase {
           + KEY_ORIGINAL_AMOUNT + " integer, "
           + KEY_ORIGINAL_CURRENCY + " text, "
           + KEY_EQUIVALENT_AMOUNT + " integer,  "
-          + KEY_DEBT_ID + " integer references " + TABLE_DEBTS + "(" + KEY_ROWID + ") ON DELETE SET NULL);";
+          + KEY_DEBT_ID + " integer references " + TABLE_DEBTS + "(" + KEY_ROWID + ") ON DELETE SET NULL, "
+          + KEY_LOCAL_DAY + " integer, "
+          + KEY_WEEK_START_DAY + " integer, "
+          + KEY_MONTH_BUCKET + " integer);";
 
   public TransactionDatabase(@NonNull Context context, @NonNull PrefHandler prefHandler, boolean shouldInsertDefaultTransferCategory) {
     super(context, prefHandler);
@@ -597,6 +608,7 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     db.execSQL(DATABASE_CREATE);
     db.execSQL(SPLIT_PART_CR_STATUS_TRIGGER_CREATE);
     db.execSQL(ATTACHMENTS_CREATE);
+    db.execSQL(ATTACHMENTS_CONTENT_HASH_INDEX);
     db.execSQL(TRANSACTIONS_ATTACHMENTS_CREATE);
     db.execSQL(TRANSACTIONS_UUID_INDEX_CREATE);
     db.execSQL(PAYEE_CREATE);
@@ -636,6 +648,10 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     db.execSQL("CREATE INDEX templates_cat_id_index on " + TABLE_TEMPLATES + "(" + KEY_CATID + ")");
     db.execSQL(TRANSACTIONS_PAYEE_ID_INDEX);
     db.execSQL("CREATE INDEX templates_payee_id_index on " + TABLE_TEMPLATES + "(" + KEY_PAYEEID + ")");
+    db.execSQL(TRANSACTIONS_DATE_INDEX);
+    db.execSQL(TRANSACTIONS_PARENT_ID_INDEX);
+    createTransactionListIndexes(db);
+    createCalendarBucketIndexes(db);
 
     // Triggers
     createOrRefreshTransactionTriggers(db);
@@ -644,6 +660,8 @@ public class TransactionDatabase extends BaseTransactionDatabase {
     createCategoryTypeTriggers(db);
 
     db.execSQL(SETTINGS_CREATE);
+    db.execSQL(SYNC_STATS_CREATE);
+    db.execSQL(SYNC_STATS_TRIM_TRIGGER_CREATE);
     //TODO evaluate if we should get rid of the split transaction category id
     db.execSQL("CREATE TRIGGER protect_split_transaction" +
         "   BEFORE DELETE" +
@@ -669,6 +687,13 @@ public class TransactionDatabase extends BaseTransactionDatabase {
 
     db.execSQL(ACCOUNT_REMAP_TRANSFER_TRIGGER_CREATE);
 
+    db.execSQL(ACCOUNT_AGGREGATES_CREATE);
+    createOrRefreshAccountAggregateTriggers(db);
+
+    db.execSQL(TRANSACTIONS_FTS_CREATE);
+    db.execSQL(PAYEES_FTS_CREATE);
+    createOrRefreshFtsTriggers(db);
+
     createOrRefreshCategoryHierarchyTrigger(db);
 
     db.execSQL(PARTY_HIERARCHY_TRIGGER);
@@ -2200,6 +2225,39 @@ public class TransactionDatabase extends BaseTransactionDatabase {
         upgradeTo158(db);
       }
 
+      if (oldVersion < 159) {
+        upgradeTo159(db);
+      }
+
+      if (oldVersion < 160) {
+        upgradeTo160(db);
+      }
+
+      if (oldVersion < 161) {
+        upgradeTo161(db);
+      }
+
+      if (oldVersion < 162) {
+        upgradeTo162(db);
+        createOrRefreshViews(db);
+      }
+
+      if (oldVersion < 163) {
+        upgradeTo163(db);
+      }
+
+      if (oldVersion < 164) {
+        upgradeTo164(db);
+      }
+
+      if (oldVersion < 165) {
+        upgradeTo165(db);
+      }
+
+      if (oldVersion < 166) {
+        upgradeTo166(db);
+      }
+
       TransactionProvider.resumeChangeTrigger(db);
     } catch (SQLException e) {
       throw new SQLiteUpgradeFailedException(oldVersion, newVersion, e);
@@ -90,6 +90,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SETTINGS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TAGS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
@@ -172,6 +173,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class TransactionProvider extends BaseTransactionProvider {
 
@@ -193,6 +195,13 @@ public class TransactionProvider extends BaseTransactionProvider {
       Uri.parse("content://" + AUTHORITY + "/transactions");
   public static final Uri UNCOMMITTED_URI =
       Uri.parse("content://" + AUTHORITY + "/transactionsUncommitted");
+  /**
+   * only used for change notifications, not queried: changes to transactions are notified on
+   * account_scope/currency/account_id, so that observers can register for one account, for all
+   * accounts of one currency, or for all accounts
+   */
+  public static final Uri ACCOUNT_SCOPE_URI =
+      Uri.parse("content://" + AUTHORITY + "/account_scope");
   public static final Uri EXTENDED_URI =
           TRANSACTIONS_URI.buildUpon().appendQueryParameter(
                   TransactionProvider.QUERY_PARAMETER_EXTENDED, "1").build();
@@ -243,6 +252,11 @@ public class TransactionProvider extends BaseTransactionProvider {
 
   public static final Uri SETTINGS_URI = Uri.parse("content://" + AUTHORITY + "/settings");
 
+  /**
+   * bounded history of timings and counters recorded by the sync adapter
+   */
+  public static final Uri SYNC_STATS_URI = Uri.parse("content://" + AUTHORITY + "/sync_stats");
+
   public static final Uri AUTOFILL_URI = Uri.parse("content://" + AUTHORITY + "/autofill");
   /**
    * select info from DB without table, e.g. CategoryList#DATEINFO_CURSOR
@@ -362,6 +376,11 @@ public class TransactionProvider extends BaseTransactionProvider {
   public static final String METHOD_SETUP_CATEGORIES = "setup_categories";
   public static final String METHOD_RESET_EQUIVALENT_AMOUNTS = "reset_equivalent_amounts";
   public static final String METHOD_CHECK_CORRUPTED_DATA_987 = "checkCorruptedData";
+  public static final String METHOD_REBUILD_ACCOUNT_AGGREGATES = "rebuildAccountAggregates";
+  public static final String METHOD_VERIFY_ACCOUNT_AGGREGATES = "verifyAccountAggregates";
+  public static final String METHOD_REFRESH_CALENDAR_BUCKETS = "refreshCalendarBuckets";
+  public static final String METHOD_QUERY_METRICS = "queryMetrics";
+  public static final String METHOD_RESET_QUERY_METRICS = "resetQueryMetrics";
 
   public static final String METHOD_DELETE_ATTACHMENTS = "deleteAttachments";
 
@@ -383,6 +402,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     StringBuilder additionalWhere = new StringBuilder();
     SupportSQLiteDatabase db;
     db = getHelper().getReadableDatabase();
+    ensureCalendarBuckets();
 
     Cursor c;
 
@@ -749,6 +769,10 @@ public class TransactionProvider extends BaseTransactionProvider {
         qb = SupportSQLiteQueryBuilder.builder(TABLE_SETTINGS);
         break;
       }
+      case SYNC_STATS: {
+        qb = SupportSQLiteQueryBuilder.builder(TABLE_SYNC_STATS);
+        break;
+      }
       case AUTOFILL:
         qb = SupportSQLiteQueryBuilder.builder(VIEW_EXTENDED);
         selection = KEY_ROWID + "= (SELECT max(" + KEY_ROWID + ") FROM " + TABLE_TRANSACTIONS
@@ -906,6 +930,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     maybeSetDirty(uriMatch);
     switch (uriMatch) {
       case TRANSACTIONS, UNCOMMITTED -> {
+        putCalendarBuckets(values);
         id = MoreDbUtilsKt.insert(db, TABLE_TRANSACTIONS, values);
         newUri = TRANSACTIONS_URI + "/" + id;
       }
@@ -970,6 +995,10 @@ public class TransactionProvider extends BaseTransactionProvider {
         id = db.insert(TABLE_SETTINGS, CONFLICT_REPLACE, values);
         newUri = SETTINGS_URI + "/" + id;
       }
+      case SYNC_STATS -> {
+        id = MoreDbUtilsKt.insert(db, TABLE_SYNC_STATS, values);
+        newUri = SYNC_STATS_URI + "/" + id;
+      }
       case BUDGETS -> {
         long budget = values.getAsLong(KEY_BUDGET);
         values.remove(KEY_BUDGET);
@@ -996,7 +1025,9 @@ public class TransactionProvider extends BaseTransactionProvider {
       case TRANSACTIONS_TAGS -> {
         db.insert(TABLE_TRANSACTIONS_TAGS, CONFLICT_IGNORE, values);
         //the table does not have primary ids, we return the base uri
-        notifyChange(uri, callerIsNotSyncAdapter(uri));
+        notifyTransactionChange(uri, notificationsDeferred(uri) ? null :
+                taggedTransactionsAccounts(db, KEY_TRANSACTIONID + " = ?",
+                        new String[]{values.getAsString(KEY_TRANSACTIONID)}), callerIsNotSyncAdapter(uri));
         return TRANSACTIONS_TAGS_URI;
       }
       case TEMPLATES_TAGS -> {
@@ -1053,7 +1084,12 @@ public class TransactionProvider extends BaseTransactionProvider {
       }
       default -> throw unknownUri(uri);
     }
-    notifyChange(uri, uriMatch == TRANSACTIONS && callerIsNotSyncAdapter(uri));
+    if (uriMatch == TRANSACTIONS) {
+      notifyTransactionChange(notificationsDeferred(uri) ? null : accountsFromValues(values),
+              callerIsNotSyncAdapter(uri));
+    } else {
+      notifyChange(uri, false);
+    }
     //the accounts cursor contains aggregates about transactions
     //we need to notify it when transactions change
     if (uriMatch == TRANSACTIONS) {
@@ -1083,6 +1119,12 @@ public class TransactionProvider extends BaseTransactionProvider {
     String segment;
     int uriMatch = URI_MATCHER.match(uri);
     maybeSetDirty(uriMatch);
+    Set<Long> affectedAccounts = notificationsDeferred(uri) ? null : switch (uriMatch) {
+      case TRANSACTIONS -> affectedAccounts(db, where, whereArgs);
+      case TRANSACTION_ID -> affectedAccounts(db, uri.getPathSegments().get(1));
+      case TRANSACTIONS_TAGS -> taggedTransactionsAccounts(db, where, whereArgs);
+      default -> null;
+    };
     switch (uriMatch) {
       case TRANSACTIONS, UNCOMMITTED -> count = db.delete(TABLE_TRANSACTIONS, where, whereArgs);
       case TRANSACTION_ID -> {
@@ -1211,10 +1253,12 @@ public class TransactionProvider extends BaseTransactionProvider {
       default -> throw unknownUri(uri);
     }
     if (uriMatch == TRANSACTIONS || (uriMatch == TRANSACTION_ID && callerIsNotInBulkOperation(uri))) {
-      notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdapter(uri));
+      notifyTransactionChange(affectedAccounts, callerIsNotSyncAdapter(uri));
       notifyChange(ACCOUNTS_URI, false);
       notifyChange(DEBTS_URI, false);
       //notifyChange(UNCOMMITTED_URI, false);
+    } else if (uriMatch == TRANSACTIONS_TAGS) {
+      notifyTransactionChange(uri, affectedAccounts, false);
     } else {
       if (uriMatch == ACCOUNTS || uriMatch == ACCOUNT_ID) {
         notifyAccountChange();
@@ -1252,6 +1296,22 @@ public class TransactionProvider extends BaseTransactionProvider {
     maybeSetDirty(uriMatch);
     Cursor c;
     log("UPDATE Uri: %s, values: %s", uri, values);
+    Set<Long> affectedAccounts = switch (uriMatch) {
+      case TRANSACTIONS -> accountsForUpdate(db, uri, where, whereArgs, values);
+      case TRANSACTION_ID, TRANSACTION_UNDELETE, TRANSACTION_TOGGLE_CRSTATUS ->
+              notificationsDeferred(uri) ? null : affectedAccounts(db, uri.getPathSegments().get(1));
+      case TRANSACTION_MOVE -> {
+        if (notificationsDeferred(uri)) yield null;
+        Set<Long> accounts = affectedAccounts(db, uri.getPathSegments().get(1));
+        accounts.add(Long.parseLong(uri.getPathSegments().get(3)));
+        yield accounts;
+      }
+      case UNSPLIT -> accountsForUnsplit(db, uri, values);
+      default -> null;
+    };
+    if (uriMatch == TRANSACTIONS || uriMatch == UNCOMMITTED || uriMatch == TRANSACTION_ID || uriMatch == UNCOMMITTED_ID) {
+      putCalendarBuckets(values);
+    }
     switch (uriMatch) {
       case TRANSACTIONS, UNCOMMITTED ->
               count = MoreDbUtilsKt.update(db, TABLE_TRANSACTIONS, values, where, whereArgs);
@@ -1500,7 +1560,7 @@ public class TransactionProvider extends BaseTransactionProvider {
         count = MoreDbUtilsKt.update(db, TABLE_PLAN_INSTANCE_STATUS, values, where, whereArgs);
       }
 
-      //used during restore
+      //used during restore, and by sync for storing content hashes
       case ATTACHMENTS -> {
         count = MoreDbUtilsKt.update(db, TABLE_ATTACHMENTS, values, where, whereArgs);
       }
@@ -1508,8 +1568,12 @@ public class TransactionProvider extends BaseTransactionProvider {
     }
     if (uriMatch == TRANSACTIONS || uriMatch == TRANSACTION_ID || uriMatch == ACCOUNTS || uriMatch == ACCOUNT_ID ||
         uriMatch == CURRENCIES_CHANGE_FRACTION_DIGITS || uriMatch == TRANSACTION_UNDELETE ||
-        uriMatch == TRANSACTION_MOVE || uriMatch == TRANSACTION_TOGGLE_CRSTATUS || uriMatch == TRANSACTION_LINK_TRANSFER) {
-      notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdapter(uri));
+        uriMatch == TRANSACTION_MOVE || uriMatch == TRANSACTION_TOGGLE_CRSTATUS || uriMatch == TRANSACTION_LINK_TRANSFER ||
+        uriMatch == UNSPLIT) {
+      if (affectedAccounts != null && values != null) {
+        affectedAccounts.addAll(accountsFromValues(values));
+      }
+      notifyTransactionChange(affectedAccounts, callerIsNotSyncAdapter(uri));
       notifyChange(ACCOUNTS_URI, false);
       notifyChange(DEBTS_URI, false);
       //notifyChange(UNCOMMITTED_URI, false);
@@ -1562,6 +1626,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     if (!alreadyInBulk) {
       setBulkInProgress(true);
     }
+    final long startTime = System.nanoTime();
     db.beginTransaction();
     try {
       final int numOperations = operations.size();
@@ -1582,6 +1647,7 @@ public class TransactionProvider extends BaseTransactionProvider {
       return results;
     } finally {
       db.endTransaction();
+      getQueryMetrics().recordBatch(QueryMetrics.KIND_APPLY_BATCH, operations.size(), System.nanoTime() - startTime);
       if (!alreadyInBulk) {
         setBulkInProgress(false);
         notifyBulk();
@@ -1595,9 +1661,11 @@ public class TransactionProvider extends BaseTransactionProvider {
     switch (method) {
       case METHOD_BULK_START -> {
         setBulkInProgress(true);
+        getQueryMetrics().bulkStarted();
       }
       case METHOD_BULK_END -> {
         setBulkInProgress(false);
+        getQueryMetrics().bulkEnded();
         notifyBulk();
       }
       case METHOD_SORT_ACCOUNTS -> {
@@ -1633,6 +1701,23 @@ public class TransactionProvider extends BaseTransactionProvider {
       case METHOD_CHECK_CORRUPTED_DATA_987 -> {
         return checkCorruptedData987();
       }
+      case METHOD_REBUILD_ACCOUNT_AGGREGATES -> {
+        return rebuildAccountAggregates(extras);
+      }
+      case METHOD_VERIFY_ACCOUNT_AGGREGATES -> {
+        return verifyAccountAggregates();
+      }
+      case METHOD_REFRESH_CALENDAR_BUCKETS -> {
+        return refreshCalendarBuckets();
+      }
+      case METHOD_QUERY_METRICS -> {
+        Bundle result = new Bundle(1);
+        result.putString(KEY_RESULT, getQueryMetrics().report());
+        return result;
+      }
+      case METHOD_RESET_QUERY_METRICS -> {
+        getQueryMetrics().reset();
+      }
       case METHOD_DELETE_ATTACHMENTS ->  {
         Bundle result = new Bundle(1);
         result.putBoolean(KEY_RESULT, deleteAttachments(getHelper().getWritableDatabase(), extras.getLong(KEY_TRANSACTIONID), Arrays.asList(extras.getStringArray(KEY_URI_LIST))));
@@ -1707,6 +1792,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     URI_MATCHER.addURI(AUTHORITY, "transfer_account_transactions", MAPPED_TRANSFER_ACCOUNTS);
     URI_MATCHER.addURI(AUTHORITY, "changes", CHANGES);
     URI_MATCHER.addURI(AUTHORITY, "settings", SETTINGS);
+    URI_MATCHER.addURI(AUTHORITY, "sync_stats", SYNC_STATS);
     URI_MATCHER.addURI(AUTHORITY, "autofill/#", AUTOFILL);
     URI_MATCHER.addURI(AUTHORITY, "account_exchangerates/#/*/*", ACCOUNT_EXCHANGE_RATE);
     URI_MATCHER.addURI(AUTHORITY, "budgets", BUDGETS);
@@ -30,6 +30,10 @@ class CommentCriterion(override val searchString: String) : TextCriterion() {
 
     @IgnoredOnParcel
     override val column = DatabaseConstants.KEY_COMMENT
+
+    override val ftsColumn: String
+        get() = DatabaseConstants.KEY_COMMENT
+
     companion object {
 
         fun fromStringExtra(extra: String) = CommentCriterion(extra)
@@ -18,6 +18,9 @@
 package org.totschnig.myexpenses.provider.filter
 
 import android.content.Context
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS
+import org.totschnig.myexpenses.provider.ftsMatchSelection
+import org.totschnig.myexpenses.provider.ftsPrefixQuery
 import org.totschnig.myexpenses.util.Utils
 
 abstract class TextCriterion : Criterion<String>() {
@@ -29,6 +32,28 @@ abstract class TextCriterion : Criterion<String>() {
 
     override val operation = WhereFilter.Operation.LIKE
 
+    /**
+     * column of [TABLE_TRANSACTIONS_FTS] that indexes [column], null if the search can only be
+     * answered by scanning with LIKE
+     */
+    open val ftsColumn: String?
+        get() = null
+
+    private val ftsQuery: String?
+        get() = ftsColumn?.let { ftsPrefixQuery(searchString) }
+
+    /**
+     * If [searchString] contains words, rows are looked up in [TABLE_TRANSACTIONS_FTS], so the
+     * words have to start words of the text. The LIKE expression is kept, so that the exact search
+     * string (including punctuation) still has to be part of the text.
+     */
+    override fun getSelection(forExport: Boolean): String = ftsQuery?.let {
+        "${ftsMatchSelection(TABLE_TRANSACTIONS_FTS, ftsColumn!!)} AND ${super.getSelection(forExport)}"
+    } ?: super.getSelection(forExport)
+
+    override val selectionArgs: Array<String>
+        get() = ftsQuery?.let { arrayOf(it, *super.selectionArgs) } ?: super.selectionArgs
+
     override fun prettyPrint(context: Context): String {
         return searchString
     }
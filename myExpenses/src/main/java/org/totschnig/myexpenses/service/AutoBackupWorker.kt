@@ -11,6 +11,7 @@ import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.preference.TimePreference
 import org.totschnig.myexpenses.provider.doBackup
+import org.totschnig.myexpenses.provider.deleteBackups
 import org.totschnig.myexpenses.provider.listOldBackups
 import org.totschnig.myexpenses.util.AppDirHelper
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper
@@ -111,7 +112,7 @@ class AutoBackupWorker(context: Context, workerParameters: WorkerParameters) : B
                     notify(
                         buildMessage(
                             BackupViewModel.purgeResult2Message(wrappedContext,
-                                oldBackups.map { it.delete() }
+                                deleteBackups(applicationContext, oldBackups)
                             )
                         ).build()
                     )
@@ -149,7 +150,7 @@ class BackupPurgeWorker(context: Context, workerParameters: WorkerParameters) :
                 buildMessage(
                     BackupViewModel.purgeResult2Message(
                         applicationContext,
-                        listOldBackups(appDir, prefHandler).map { it.delete() })
+                        deleteBackups(applicationContext, listOldBackups(appDir, prefHandler)))
                 ).build()
             )
         }
@@ -0,0 +1,42 @@
+package org.totschnig.myexpenses.service
+
+import android.content.Context
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingWorkPolicy
+import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import timber.log.Timber
+
+/**
+ * Recomputes the calendar bucket columns of transactions after time zone, week start or month
+ * start have changed. The provider decides if there is anything to do, so it is cheap to enqueue.
+ */
+class CalendarBucketsWorker(context: Context, workerParameters: WorkerParameters) :
+    CoroutineWorker(context, workerParameters) {
+
+    companion object {
+        private const val WORK_NAME = "CalendarBucketsWorker"
+
+        fun enqueue(context: Context) {
+            WorkManager.getInstance(context).enqueueUniqueWork(
+                WORK_NAME,
+                ExistingWorkPolicy.REPLACE,
+                OneTimeWorkRequestBuilder<CalendarBucketsWorker>().build()
+            )
+        }
+    }
+
+    override suspend fun doWork(): Result {
+        val count = applicationContext.contentResolver.call(
+            TransactionProvider.DUAL_URI,
+            TransactionProvider.METHOD_REFRESH_CALENDAR_BUCKETS,
+            null,
+            null
+        )?.getInt(KEY_RESULT)
+        Timber.i("Refreshed calendar buckets of %d transactions", count)
+        return Result.success()
+    }
+}
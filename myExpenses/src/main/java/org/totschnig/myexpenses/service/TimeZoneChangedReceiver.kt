@@ -0,0 +1,19 @@
+package org.totschnig.myexpenses.service
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import timber.log.Timber
+
+class TimeZoneChangedReceiver : BroadcastReceiver() {
+    override fun onReceive(context: Context, intent: Intent) {
+        Timber.i(intent.action)
+        if (intent.action == Intent.ACTION_TIMEZONE_CHANGED) {
+            try {
+                CalendarBucketsWorker.enqueue(context)
+            } catch (e: Exception) {
+                Timber.e(e)
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import android.net.Uri
 import android.provider.Settings
 import android.text.TextUtils
 import android.util.Base64
+import androidx.core.database.getStringOrNull
 import com.google.gson.Gson
 import com.google.gson.GsonBuilder
 import com.google.gson.reflect.TypeToken
@@ -19,8 +20,15 @@ import org.totschnig.myexpenses.injector
 import org.totschnig.myexpenses.model.Model
 import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.myApplication
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ATTACHMENT_ID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTENT_HASH
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTION_ATTACHMENTS
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.fileName
@@ -29,8 +37,8 @@ import org.totschnig.myexpenses.provider.useAndMap
 import org.totschnig.myexpenses.sync.SyncBackendProvider.EncryptionException.Companion.encrypted
 import org.totschnig.myexpenses.sync.SyncBackendProvider.EncryptionException.Companion.notEncrypted
 import org.totschnig.myexpenses.sync.SyncBackendProvider.EncryptionException.Companion.wrongPassphrase
+import org.totschnig.myexpenses.sync.SyncStats.Phase
 import org.totschnig.myexpenses.sync.json.*
-import org.totschnig.myexpenses.sync.json.Utils.getChanges
 import org.totschnig.myexpenses.util.PictureDirHelper
 import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
@@ -39,11 +47,18 @@ import org.totschnig.myexpenses.util.io.FileCopyUtils
 import org.totschnig.myexpenses.util.io.MIME_TYPE_OCTET_STREAM
 import org.totschnig.myexpenses.util.io.getFileExtension
 import org.totschnig.myexpenses.util.io.getNameWithoutExtension
+import org.totschnig.myexpenses.util.io.hexDigest
+import org.totschnig.myexpenses.util.io.sha256
+import org.totschnig.myexpenses.util.io.sha256Digest
 import timber.log.Timber
 import java.io.*
+import java.security.DigestInputStream
 import java.security.GeneralSecurityException
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
 
 abstract class AbstractSyncBackendProvider<Res>(protected val context: Context) :
     SyncBackendProvider, ResourceStorage<Res> {
@@ -58,8 +73,43 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     private val gson: Gson = GsonBuilder()
         .registerTypeAdapterFactory(AdapterFactory.create())
         .create()
+    private val changeSetCodecResolver = ChangeSetCodecResolver(
+        context,
+        { context.injector.featureManager() },
+        gson
+    )
     private var appInstance: String? = null
+    private var dataFormatVersion = AccountMetaData.FORMAT_VERSION_PLAIN
+    private var minAppVersion = 0
+    private var compressChanges = false
+    private var contentAddressAttachments = false
+
+    /**
+     * features requested in [negotiateDataFormat], enabled by [upgradeDataFormat]
+     */
+    private var compressionRequested = false
+    private var contentAddressingRequested = false
+    private var attachmentManifest: MutableMap<String, AttachmentManifestEntry>? = null
     private var encryptionPassword: String? = null
+    override var syncStats: SyncStats? = null
+
+    /**
+     * listings of the current account's folders, keyed by folder name, together with the
+     * [listingVersion] they were listed at
+     */
+    private val listingCache = ConcurrentHashMap<String, Pair<String, List<Res>>>()
+
+    /**
+     * last sequence of the current account, once it has been confirmed during this sync
+     */
+    @Volatile
+    private var confirmedLastSequence: SequenceNumber? = null
+
+    /**
+     * set once the backend has reported a [listingVersion]
+     */
+    @Volatile
+    private var hasListingVersions = false
     val mimeTypeForData: String
         get() = if (isEncrypted) MIME_TYPE_OCTET_STREAM else MIME_TYPE_JSON
     protected val isEncrypted: Boolean
@@ -68,6 +118,8 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         get() = String.format("%s.%s", ACCOUNT_METADATA_FILENAME, extensionForData)
     private val categoriesFilename: String
         get() = String.format("%s.%s", CATEGORIES_FILENAME, extensionForData)
+    private val attachmentManifestFilename: String
+        get() = String.format("%s.%s", ATTACHMENT_MANIFEST_FILENAME, extensionForData)
     override val extensionForData: String
         get() = if (isEncrypted) "enc" else "json"
 
@@ -75,6 +127,15 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
 
     fun setAccountUuid(account: Account) {
         accountUuid = account.uuid
+        dataFormatVersion = AccountMetaData.FORMAT_VERSION_PLAIN
+        minAppVersion = 0
+        compressChanges = false
+        contentAddressAttachments = false
+        compressionRequested = false
+        contentAddressingRequested = false
+        attachmentManifest = null
+        listingCache.clear()
+        confirmedLastSequence = null
     }
 
     protected abstract val sharedPreferencesName: String
@@ -177,7 +238,7 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     protected fun maybeEncrypt(
         inputStream: InputStream,
         maybeEncrypt: Boolean = true
-    ): InputStream =
+    ): InputStream = meterUpload(
         if (maybeEncrypt && isEncrypted) try {
             EncryptionHelper.encrypt(
                 inputStream,
@@ -186,6 +247,26 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         } catch (e: GeneralSecurityException) {
             throw IOException(e)
         } else inputStream
+    )
+
+    /**
+     * Backends wrap the streams they upload from or write to, unless they get them from
+     * [toInputStream] or [maybeEncrypt], which are already metered.
+     */
+    protected fun meterUpload(inputStream: InputStream) =
+        syncStats?.meterUpload(inputStream) ?: inputStream
+
+    protected fun meterUpload(outputStream: OutputStream) =
+        syncStats?.meterUpload(outputStream) ?: outputStream
+
+    /**
+     * opens [resource] for reading, time and bytes are counted as download
+     */
+    @Throws(IOException::class)
+    private fun download(resource: Res): InputStream =
+        syncStats.time(Phase.DOWNLOAD) { getInputStream(resource) }.let {
+            syncStats?.meterDownload(it) ?: it
+        }
 
     @Throws(IOException::class)
     protected fun maybeDecrypt(
@@ -202,19 +283,60 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         }
     }
 
+    /**
+     * compression is applied before encryption, since encrypted data does not compress
+     */
+    @Throws(IOException::class)
+    protected fun toInputStream(fileContents: String, maybeEncrypt: Boolean, compress: Boolean = false) =
+        maybeEncrypt(
+            ByteArrayInputStream(fileContents.toByteArray().let { if (compress) gzip(it) else it }),
+            maybeEncrypt
+        )
+
+    @Throws(IOException::class)
+    protected fun maybeCompress(outputStream: OutputStream, compress: Boolean): OutputStream =
+        if (compress) GZIPOutputStream(outputStream) else outputStream
+
+    private fun gzip(bytes: ByteArray) = ByteArrayOutputStream().also { out ->
+        GZIPOutputStream(out).use { it.write(bytes) }
+    }.toByteArray()
+
+    /**
+     * Change files are self describing: compressed ones start with the gzip magic number, which
+     * can never start a JSON document.
+     */
+    @Throws(IOException::class)
+    private fun maybeDecompress(inputStream: InputStream): InputStream {
+        val buffered = BufferedInputStream(inputStream)
+        buffered.mark(2)
+        val magic = buffered.read() or (buffered.read() shl 8)
+        buffered.reset()
+        return if (magic == GZIPInputStream.GZIP_MAGIC) GZIPInputStream(buffered) else buffered
+    }
+
+    /**
+     * downloads, decrypts and parses a change file, without touching the database, so that it is
+     * safe to run for several files concurrently
+     */
+    @Throws(IOException::class)
+    private fun readChanges(resource: Res): MutableList<TransactionChange>? =
+        syncStats.time(Phase.PARSE) {
+            syncStats?.changeFileRead()
+            val decoded = maybeDecompress(maybeDecrypt(download(resource)))
+            BufferedReader(InputStreamReader(syncStats?.meterDecoding(decoded) ?: decoded)).use { reader ->
+                changeSetCodecResolver.get().read(reader)
+            }
+        }
+
     @Throws(IOException::class)
-    protected fun toInputStream(fileContents: String, maybeEncrypt: Boolean) =
-        maybeEncrypt(ByteArrayInputStream(fileContents.toByteArray()), maybeEncrypt)
+    private fun encodeChanges(changes: List<TransactionChange>) =
+        StringWriter().also { changeSetCodecResolver.get().write(it, changes) }.toString()
 
     @Throws(IOException::class)
-    protected fun getChangeSetFromInputStream(
+    private fun createChangeSet(
         sequenceNumber: SequenceNumber,
-        inputStream: InputStream
+        changes: MutableList<TransactionChange>?
     ): ChangeSet {
-        val changes: MutableList<TransactionChange>? =
-            BufferedReader(InputStreamReader(maybeDecrypt(inputStream))).use { reader ->
-                getChanges(gson, reader)
-            }
         if (changes.isNullOrEmpty()) {
             return ChangeSet.empty(sequenceNumber)
         }
@@ -245,11 +367,104 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     final override fun collectionForShard(shardNumber: Int) =
         if (shardNumber == 0) accountRes else getResInAccountDir(folderForShard(shardNumber))
 
+    override fun cachedChildrenForCollection(folder: Res?): Collection<Res> {
+        val key = folder?.let { nameForResource(it) } ?: accountUuid ?: ""
+        listingCache[key]?.let { (version, children) ->
+            if (isListingUnchanged(folder, version)) return children
+        }
+        val (version, children) = listChildrenWithVersion(folder)
+        return children.toList().also {
+            if (version == null) {
+                listingCache.remove(key)
+            } else {
+                hasListingVersions = true
+                listingCache[key] = version to it
+            }
+        }
+    }
+
+    private fun cachedListingVersion(shard: Int) =
+        if (shard > 0) listingCache[folderForShard(shard)]?.first else null
+
+    /**
+     * Whether the [listingVersion] of a shard folder has been seen to change when a change file was
+     * written to it: some WebDAV servers report an ETag for collections that stays the same when
+     * their members change. Null as long as no change file has been written to a versioned folder.
+     */
+    private var listingVersionsTrackMembers: Boolean?
+        get() = accountPrefKey(KEY_LISTING_VERSIONS_TRACK_MEMBERS).let {
+            if (sharedPreferences.contains(it)) sharedPreferences.getBoolean(it, false) else null
+        }
+        set(value) {
+            sharedPreferences.edit().apply {
+                val key = accountPrefKey(KEY_LISTING_VERSIONS_TRACK_MEMBERS)
+                if (value == null) remove(key) else putBoolean(key, value)
+            }.apply()
+        }
+
+    /**
+     * The last sequence is remembered across syncs together with the [listingVersion] of its shard
+     * folder, and is confirmed without listing as long as that folder is unchanged and no later
+     * shard exists. Sequences in the account folder are not remembered, since the lock file
+     * changes it on every sync. Remembered sequences are only trusted once the backend has shown
+     * that its listing versions follow the members of a folder, see [listingVersionsTrackMembers].
+     */
+    @Throws(IOException::class)
+    private fun rememberedLastSequence(): SequenceNumber? {
+        confirmedLastSequence?.let { return it }
+        if (listingVersionsTrackMembers != true) return null
+        val sequence = sharedPreferences.getString(accountPrefKey(KEY_LAST_SEQUENCE), null)
+            ?.let { SequenceNumber.parse(it) } ?: return null
+        val version = sharedPreferences.getString(accountPrefKey(KEY_LAST_SEQUENCE_VERSION), null)
+            ?: return null
+        return sequence.takeIf {
+            collectionForShard(it.shard + 1) == null && collectionForShard(it.shard)?.let { folder ->
+                isListingUnchanged(folder, version)
+            } == true
+        }?.also {
+            log().i("Confirmed remembered last sequence %s", it)
+            hasListingVersions = true
+            confirmedLastSequence = it
+        }
+    }
+
+    private fun rememberLastSequence(sequence: SequenceNumber?, version: String?) {
+        confirmedLastSequence = sequence
+        sharedPreferences.edit().apply {
+            if (sequence == null || version == null) {
+                remove(accountPrefKey(KEY_LAST_SEQUENCE))
+                remove(accountPrefKey(KEY_LAST_SEQUENCE_VERSION))
+            } else {
+                putString(accountPrefKey(KEY_LAST_SEQUENCE), sequence.toString())
+                putString(accountPrefKey(KEY_LAST_SEQUENCE_VERSION), version)
+            }
+        }.apply()
+    }
+
+    /**
+     * called when the lock file shows that another client writes to the account
+     */
+    private fun forgetLastSequence() {
+        listingCache.clear()
+        rememberLastSequence(null, null)
+    }
+
+    @Throws(IOException::class)
+    override fun getLastSequence(start: SequenceNumber): SequenceNumber {
+        rememberedLastSequence()?.takeIf { SequenceNumber.max(it, start) == it }?.let { return it }
+        return super.getLastSequence(start).also {
+            rememberLastSequence(it, cachedListingVersion(it.shard))
+        }
+    }
+
     @Throws(IOException::class)
     private fun mapLegacyPictureDuringRead(uri: String) = Model.generateUuid().also {
-        storeAttachmentToDatabase(uri, it, getInputStreamForLegacyPicture(uri))
+        storeAttachmentToDatabase(uri, it, maybeDecrypt(getInputStreamForLegacyPicture(uri)))
     }
 
+    /**
+     * @param inputStream the plain content, its hash is stored together with the attachment
+     */
     private fun storeAttachmentToDatabase(fileName: String, uuid:String, inputStream: InputStream) {
         val homeUri = PictureDirHelper.getOutputMediaUri(
             false,
@@ -259,9 +474,10 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         )
         val output = context.contentResolver
             .openOutputStream(homeUri) ?: throw IOException("Unable to write picture")
-        FileCopyUtils.copy(maybeDecrypt(inputStream), output)
-        inputStream.close()
-        output.close()
+        val digest = sha256Digest()
+        DigestInputStream(inputStream, digest).use { input ->
+            output.use { FileCopyUtils.copy(input, it) }
+        }
         context.contentResolver.insert(
             TransactionProvider.ATTACHMENTS_URI,
             ContentValues(2).apply {
@@ -269,8 +485,94 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
                 put(KEY_UUID, uuid)
             }
         )
+        storeContentHash(uuid, digest.hexDigest())
+    }
+
+    private fun storeContentHash(uuid: String, contentHash: String) {
+        context.contentResolver.update(
+            TransactionProvider.ATTACHMENTS_URI,
+            ContentValues(1).apply { put(KEY_CONTENT_HASH, contentHash) },
+            "$KEY_UUID = ?",
+            arrayOf(uuid)
+        )
+    }
+
+    /**
+     * the hash is computed on first use, and cached in the attachments table
+     */
+    @Throws(IOException::class)
+    private fun ensureContentHash(uuid: String, uri: Uri, cached: String?) = cached
+        ?: (context.contentResolver.openInputStream(uri)
+            ?: throw IOException("Unable to read attachment $uri")).use { sha256(it) }
+            .also { storeContentHash(uuid, it) }
+
+    /**
+     * an attachment already stored on this device with the same content, that can be copied
+     * instead of being downloaded
+     */
+    private fun openLocalAttachment(contentHash: String): InputStream? =
+        context.contentResolver.query(
+            TransactionProvider.ATTACHMENTS_URI,
+            arrayOf(KEY_URI),
+            "$KEY_CONTENT_HASH = ?",
+            arrayOf(contentHash),
+            null
+        )?.useAndMap { Uri.parse(it.getString(0)) }?.firstNotNullOfOrNull { uri ->
+            try {
+                context.contentResolver.openInputStream(uri)
+            } catch (e: IOException) {
+                null
+            } catch (e: SecurityException) {
+                null
+            }
+        }
+
+    /**
+     * Blobs are named after the hash of their content. On encrypted backends, the name is derived
+     * from hash and passphrase, so that it does not disclose the hash of the plain content.
+     */
+    private fun blobName(contentHash: String) =
+        encryptionPassword?.let { sha256("$contentHash:$it") } ?: contentHash
+
+    @Throws(IOException::class)
+    private fun readAttachmentManifest(): MutableMap<String, AttachmentManifestEntry> =
+        readFileContents(true, attachmentManifestFilename, true)?.let {
+            gson.fromJson<Map<String, AttachmentManifestEntry>>(
+                it,
+                object : TypeToken<Map<String, AttachmentManifestEntry>>() {}.type
+            )
+        }?.toMutableMap() ?: mutableMapOf()
+
+    /**
+     * The manifest is only written while holding the account lock, before the change files
+     * referencing its entries. It is reloaded when a change references an attachment missing from
+     * the cached copy.
+     */
+    @Throws(IOException::class)
+    private fun loadAttachmentManifest(reload: Boolean = false) =
+        attachmentManifest?.takeIf { !reload } ?: readAttachmentManifest().also {
+            attachmentManifest = it
+        }
+
+    @Throws(IOException::class)
+    private fun writeAttachmentManifest(manifest: Map<String, AttachmentManifestEntry>) {
+        syncStats.time(Phase.UPLOAD) {
+            saveFileContents(
+                true,
+                null,
+                attachmentManifestFilename,
+                gson.toJson(manifest),
+                mimeTypeForData,
+                true
+            )
+        }
     }
 
+    /**
+     * Attachments listed in the manifest are copied from an attachment with the same content, if
+     * there is one on this device, and downloaded otherwise. Attachments written before content
+     * addressing are looked up by their uuid.
+     */
     private fun ensureAttachmentsOnRead(changeSet: List<TransactionChange>) {
         val attachments = changeSet.flatMap { it.attachments() ?: emptyList() }.toSet()
 
@@ -283,29 +585,131 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
             attachments.toTypedArray(),
             null
         )?.useAndMap { it.getString(0) } ?: emptyList()
-        log().w("ensureAttachmentsOnRead: found %s", existing.joinToString())
-        (attachments - existing.toSet()).forEach { uuid ->
-            val (fileName, inputStream) = getAttachment(uuid)
-            storeAttachmentToDatabase(fileName, uuid, inputStream)
+        log().d("ensureAttachmentsOnRead: found %s", existing.joinToString())
+        val missing = attachments - existing.toSet()
+        if (missing.isEmpty()) return
+        val manifest = if (dataFormatVersion >= AccountMetaData.FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS)
+            loadAttachmentManifest(
+                reload = missing.any { attachmentManifest?.containsKey(it) != true }
+            ) else emptyMap()
+        val blobs by lazy {
+            syncStats.time(Phase.LIST) { childrenForCollection(requireCollection(ATTACHMENT_FOLDER_NAME)) }
+                .associateBy { nameForResource(it) }
+        }
+        missing.forEach { uuid ->
+            val entry = manifest[uuid]
+            if (entry == null) {
+                val (fileName, inputStream) = getAttachment(uuid)
+                storeAttachmentToDatabase(fileName, uuid, maybeDecrypt(inputStream))
+            } else {
+                val inputStream = openLocalAttachment(entry.hash) ?: maybeDecrypt(
+                    download(blobs[blobName(entry.hash)] ?: throw FileNotFoundException(entry.hash))
+                )
+                storeAttachmentToDatabase(entry.fileName, uuid, inputStream)
+            }
         }
-
     }
 
     @Throws(IOException::class)
     fun getInputStreamForLegacyPicture(relativeUri: String) =
         getInputStream(getResInAccountDir(relativeUri) ?: throw FileNotFoundException())
 
+    /**
+     * looks up an attachment stored under its uuid, as done before content addressing
+     */
     @Throws(IOException::class)
     fun getAttachment(uuid: String): Pair<String, InputStream> {
         val attachmentDir = requireCollection(ATTACHMENT_FOLDER_NAME)
         val attachment = childrenForCollection(attachmentDir).find { nameForResource(it)?.startsWith(uuid) == true } ?: throw FileNotFoundException()
-        return nameForResource(attachment)!!.substringAfter("${uuid}_") to getInputStream(attachment)
+        return nameForResource(attachment)!!.substringAfter("${uuid}_") to download(attachment)
+    }
+
+    /**
+     * Uploads the blob for an attachment unless the manifest already maps it to the same content
+     * or a blob with that content is already on the backend, e.g. because it is attached to another
+     * transaction.
+     *
+     * Blobs are never deleted: they are shared by all accounts on the backend, and the manifests of
+     * the other accounts, which would tell if a blob is still referenced, can not be read safely
+     * while only this account is locked. Blobs of deleted attachments and of accounts removed from
+     * the backend hence stay in the attachments folder.
+     * @param blobs names in the attachments folder, blobs uploaded are added
+     * @return true if the manifest was updated
+     */
+    @Throws(IOException::class)
+    private fun storeBlobIfNeeded(
+        manifest: MutableMap<String, AttachmentManifestEntry>,
+        blobs: MutableSet<String>,
+        attachmentDir: Res,
+        uuid: String,
+        uri: Uri,
+        contentHash: String,
+        fileName: String
+    ): Boolean {
+        if (manifest[uuid]?.hash == contentHash) return false
+        val blob = blobName(contentHash)
+        if (blobs.add(blob)) {
+            syncStats.time(Phase.UPLOAD) { saveUriToCollection(blob, uri, attachmentDir) }
+        } else {
+            log().i("Attachment %s: content already on backend", uuid)
+        }
+        manifest[uuid] = AttachmentManifestEntry(contentHash, fileName)
+        return true
+    }
+
+    private fun listBlobs(attachmentDir: Res) = syncStats.time(Phase.LIST) {
+        childrenForCollection(attachmentDir).mapNotNull { nameForResource(it) }.toMutableSet()
     }
 
     private fun storeAttachmentToBackendIfNeeded(uuid: String, uri: Uri, fileName: String) {
         val attachmentDir = requireCollection(ATTACHMENT_FOLDER_NAME)
-        if (childrenForCollection(attachmentDir).none { nameForResource(it)?.startsWith(uuid) == true }) {
-            saveUriToCollection("${uuid}_$fileName", uri, attachmentDir)
+        if (syncStats.time(Phase.LIST) { childrenForCollection(attachmentDir) }
+                .none { nameForResource(it)?.startsWith(uuid) == true }
+        ) {
+            syncStats.time(Phase.UPLOAD) { saveUriToCollection("${uuid}_$fileName", uri, attachmentDir) }
+        }
+    }
+
+    /**
+     * Adds attachments of the account that are stored under their uuid to the manifest, uploading
+     * their content from this device. The files stored under their uuid are left in place, they are
+     * used by devices that look up attachments missing from the manifest.
+     */
+    @Throws(IOException::class)
+    private fun migrateAttachments(account: Account) {
+        val attachmentDir = getCollection(ATTACHMENT_FOLDER_NAME, false) ?: return
+        val blobs = listBlobs(attachmentDir)
+        val legacy = blobs.mapNotNull { name ->
+            LEGACY_ATTACHMENT_PATTERN.matchEntire(name)?.let { it.groupValues[1] to it.groupValues[2] }
+        }.toMap()
+        if (legacy.isEmpty()) return
+        val manifest = loadAttachmentManifest(reload = true)
+        var manifestChanged = false
+        context.contentResolver.query(
+            TransactionProvider.ATTACHMENTS_URI,
+            arrayOf(KEY_UUID, KEY_URI, KEY_CONTENT_HASH),
+            "$KEY_ROWID IN (SELECT $KEY_ATTACHMENT_ID FROM $TABLE_TRANSACTION_ATTACHMENTS WHERE $KEY_TRANSACTIONID IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ?))",
+            arrayOf(account.id.toString()),
+            null
+        )?.use { cursor ->
+            cursor.asSequence.forEach {
+                val uuid = it.getString(0)
+                val fileName = legacy[uuid]
+                if (fileName != null && !manifest.containsKey(uuid)) {
+                    val uri = Uri.parse(it.getString(1))
+                    try {
+                        val contentHash = ensureContentHash(uuid, uri, it.getStringOrNull(2))
+                        if (storeBlobIfNeeded(manifest, blobs, attachmentDir, uuid, uri, contentHash, fileName)) {
+                            manifestChanged = true
+                        }
+                    } catch (e: FileNotFoundException) {
+                        log().w(e, "Attachment %s no longer available on this device", uuid)
+                    }
+                }
+            }
+        }
+        if (manifestChanged) {
+            writeAttachmentManifest(manifest)
         }
     }
 
@@ -327,25 +731,188 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         }
     }
 
-    private fun getChangeSetFromResource(shardNumber: Int, resource: Res): ChangeSet = getChangeSetFromInputStream(
-        SequenceNumber(shardNumber, getSequenceFromFileName(nameForResource(resource))),
-        getInputStream(resource)
-    )
+    /**
+     * number of change files [getChangeSetSince] downloads and parses concurrently. Backends that
+     * pay a network round trip per file should raise it.
+     */
+    protected open val changeSetFetchParallelism = 1
 
-    final override fun getChangeSetSince(sequenceNumber: SequenceNumber): ChangeSet? =
-        merge(
-            shardResolvingFilterStrategy(sequenceNumber).map {
-                getChangeSetFromResource(it.first, it.second)
-            }
+    /**
+     * a new snapshot is written once the change log has grown by this number of shards since the
+     * latest snapshot
+     */
+    protected open val snapshotShardInterval = 4
+
+    /**
+     * upper bound for the number of change files that are read for one snapshot, so that the
+     * first snapshot of a long history is built up over several syncs
+     */
+    protected open val maxChangeFilesPerSnapshot = 200
+
+    /**
+     * Change files are fetched in parallel, and handed to [consume] in sequence order on the
+     * calling thread. At most [limit] files are fetched.
+     */
+    @Throws(IOException::class)
+    private fun fetchChangesSince(
+        sequenceNumber: SequenceNumber,
+        limit: Int = Int.MAX_VALUE,
+        consume: (SequenceNumber, MutableList<TransactionChange>?) -> Unit
+    ) {
+        if (syncStats.time(Phase.LIST) { rememberedLastSequence() } == sequenceNumber) {
+            log().i("No changes after %s", sequenceNumber)
+            return
+        }
+        ensureNotPruned(sequenceNumber)
+        val resources = syncStats.time(Phase.LIST) { shardResolvingFilterStrategy(sequenceNumber) }
+        val lastSequence = resources.lastOrNull()?.let { (shardNumber, resource) ->
+            SequenceNumber(shardNumber, getSequenceFromFileName(nameForResource(resource)))
+        } ?: sequenceNumber
+        rememberLastSequence(lastSequence, cachedListingVersion(lastSequence.shard))
+        fetchOrdered(
+            resources.take(limit),
+            changeSetFetchParallelism,
+            fetch = { (shardNumber, resource) ->
+                SequenceNumber(
+                    shardNumber,
+                    getSequenceFromFileName(nameForResource(resource))
+                ) to readChanges(resource)
+            },
+            consume = { (sequence, changes) -> consume(sequence, changes) }
         )
+    }
+
+    /**
+     * A client that starts from scratch loads the latest snapshot, and only replays the changes
+     * written after it.
+     */
+    final override fun getChangeSetSince(sequenceNumber: SequenceNumber): ChangeSet? {
+        val changeSets = mutableListOf<ChangeSet>()
+        val start = if (sequenceNumber == SequenceNumber(0, 0)) {
+            latestSnapshot()?.let { (snapshotSequence, resource) ->
+                log().i("Starting from snapshot %s", snapshotSequence)
+                changeSets.add(
+                    createChangeSet(snapshotSequence, readChanges(resource))
+                )
+                snapshotSequence
+            } ?: sequenceNumber
+        } else sequenceNumber
+        fetchChangesSince(start) { sequence, changes ->
+            changeSets.add(createChangeSet(sequence, changes))
+        }
+        return merge(changeSets)
+    }
+
+    private fun latestSnapshot(): Pair<SequenceNumber, Res>? {
+        val pattern = Regex("${SNAPSHOT_PREFIX}_(\\d+)_(\\d+)\\.$extensionForData")
+        return syncStats.time(Phase.LIST) { childrenForCollection(null) }.mapNotNull { resource ->
+            nameForResource(resource)?.let { pattern.matchEntire(it) }?.let {
+                SequenceNumber(it.groupValues[1].toInt(), it.groupValues[2].toInt()) to resource
+            }
+        }.maxWithOrNull(compareBy({ it.first.shard }, { it.first.number }))
+    }
 
+    /**
+     * A client that last synced into a shard that has been pruned after a snapshot can no longer
+     * catch up by replaying changes. Snapshots are only looked up if the shard is older than the
+     * oldest shard in the cached listing of the account folder.
+     */
+    @Throws(IOException::class)
+    private fun ensureNotPruned(sequenceNumber: SequenceNumber) {
+        val oldestShard = syncStats.time(Phase.LIST) { cachedChildrenForCollection(null) }
+            .filter { isCollection(it) }
+            .mapNotNull { resource ->
+                nameForResource(resource)
+                    ?.takeIf { ResourceStorage.FILE_PATTERN.matcher(it).matches() }
+                    ?.substring(1)?.toInt()
+            }
+            .minOrNull() ?: return
+        if (maxOf(sequenceNumber.shard, 1) < oldestShard) {
+            latestSnapshot()?.first?.let {
+                throw SyncBackendProvider.ChangeLogPrunedException(it)
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun writeSnapshotIfDue(
+        lastSequenceNumber: SequenceNumber,
+        compact: (List<TransactionChange>) -> List<TransactionChange>
+    ): SequenceNumber? {
+        val latest = latestSnapshot()
+        if (lastSequenceNumber.shard - (latest?.first?.shard ?: 0) < snapshotShardInterval) return null
+        val changes = mutableListOf<TransactionChange>()
+        val start = latest?.first ?: SequenceNumber(0, 0)
+        var sequence = start
+        latest?.second?.let { resource ->
+            readChanges(resource)?.let { changes.addAll(it) }
+        }
+        fetchChangesSince(sequence, maxChangeFilesPerSnapshot) { fileSequence, fileChanges ->
+            sequence = SequenceNumber.max(sequence, fileSequence)
+            fileChanges?.let { changes.addAll(it) }
+        }
+        if (sequence == start) return null
+        val fileName = "${SNAPSHOT_PREFIX}_$sequence.$extensionForData"
+        log().i("Writing snapshot %s", fileName)
+        val fileContents = encodeChanges(compact(changes))
+        syncStats.time(Phase.UPLOAD) {
+            saveFileContents(
+                true,
+                null,
+                fileName,
+                fileContents,
+                mimeTypeForData,
+                true,
+                compressChanges
+            )
+        }
+        return sequence
+    }
+
+    @Throws(IOException::class)
+    override fun pruneChangeLog(account: Account, snapshot: SequenceNumber) {
+        //versions that do not restore from snapshots would keep syncing from the shards that are
+        //deleted, and miss the changes in them, so they have to refuse the account first
+        if (minAppVersion < AccountMetaData.MIN_APP_VERSION_PRUNED_CHANGE_LOG) {
+            minAppVersion = AccountMetaData.MIN_APP_VERSION_PRUNED_CHANGE_LOG
+            updateAccount(account)
+        }
+        (1 until snapshot.shard).forEach { shard ->
+            collectionForShard(shard)?.let { deleteResource(it) }
+        }
+        latestSnapshot()?.let { (latest, _) ->
+            val pattern = Regex("${SNAPSHOT_PREFIX}_\\d+_\\d+\\.$extensionForData")
+            childrenForCollection(null)
+                .filter { resource ->
+                    nameForResource(resource)?.let {
+                        pattern.matches(it) && it != "${SNAPSHOT_PREFIX}_$latest.$extensionForData"
+                    } == true
+                }
+                .forEach { deleteResource(it) }
+        }
+    }
+
+    /**
+     * used for pruning the change log, backends that do not support deleting return false
+     */
+    @Throws(IOException::class)
+    protected open fun deleteResource(resource: Res): Boolean = false
+
+    /**
+     * Accounts in [AccountMetaData.FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS] store attachments
+     * under the hash of their content, and the manifest is written before the change file.
+     */
     @Throws(IOException::class)
     private fun ensureAttachmentsOnWrite(changeSet: List<TransactionChange>) {
         val attachments = changeSet.flatMap { it.attachments() ?: emptyList() }.toSet()
         if (attachments.isNotEmpty()) {
+            val attachmentDir = requireCollection(ATTACHMENT_FOLDER_NAME)
+            val manifest = if (contentAddressAttachments) loadAttachmentManifest() else null
+            val blobs by lazy { listBlobs(attachmentDir) }
+            var manifestChanged = false
             context.contentResolver.query(
                 TransactionProvider.ATTACHMENTS_URI,
-                arrayOf(KEY_UUID, KEY_URI),
+                arrayOf(KEY_UUID, KEY_URI, KEY_CONTENT_HASH),
                 "$KEY_UUID ${WhereFilter.Operation.IN.getOp(attachments.size)}",
                 attachments.toTypedArray(),
                 null
@@ -353,9 +920,25 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
                 cursor.asSequence.forEach {
                     val uuid = it.getString(0)
                     val attachmentUri = Uri.parse(it.getString(1))
-                    storeAttachmentToBackendIfNeeded(uuid, attachmentUri, attachmentUri.fileName(context))
+                    if (manifest == null) {
+                        storeAttachmentToBackendIfNeeded(uuid, attachmentUri, attachmentUri.fileName(context))
+                    } else if (storeBlobIfNeeded(
+                            manifest,
+                            blobs,
+                            attachmentDir,
+                            uuid,
+                            attachmentUri,
+                            ensureContentHash(uuid, attachmentUri, it.getStringOrNull(2)),
+                            attachmentUri.fileName(context)
+                        )
+                    ) {
+                        manifestChanged = true
+                    }
                 }
             }
+            if (manifest != null && manifestChanged) {
+                writeAttachmentManifest(manifest)
+            }
         }
     }
 
@@ -365,24 +948,46 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         changeSet: List<TransactionChange>,
         context: Context
     ): SequenceNumber {
-        val nextSequence = getLastSequence(lastSequenceNumber).next()
+        val nextSequence = syncStats.time(Phase.LIST) { getLastSequence(lastSequenceNumber) }.next()
         val finalChangeSet = if (appInstance != null) {
             changeSet.map { it.toBuilder().setAppInstance(appInstance).build() }
         } else changeSet
 
+        //while it is unknown if listing versions follow the members of a folder, the version
+        //before the write is compared with the one after it
+        val versionBeforeWrite = if (nextSequence.shard > 0 && hasListingVersions &&
+            listingVersionsTrackMembers == null
+        ) syncStats.time(Phase.LIST) {
+            collectionForShard(nextSequence.shard)?.let { listingVersion(it) }
+        } else null
+
         val fileName = "_${nextSequence.number}.$extensionForData"
-        val fileContents = gson.toJson(finalChangeSet)
+        val fileContents = encodeChanges(finalChangeSet)
         ensureAttachmentsOnWrite(finalChangeSet)
-        log().i("Writing to %s", fileName)
-        log().i(fileContents)
-        saveFileContents(
-            true,
-            if (nextSequence.shard == 0) null else folderForShard(nextSequence.shard),
-            fileName,
-            fileContents,
-            mimeTypeForData,
-            true
-        )
+        log().i("Writing %d changes (%d chars) to %s", finalChangeSet.size, fileContents.length, fileName)
+        syncStats.time(Phase.UPLOAD) {
+            saveFileContents(
+                true,
+                if (nextSequence.shard == 0) null else folderForShard(nextSequence.shard),
+                fileName,
+                fileContents,
+                mimeTypeForData,
+                true,
+                compressChanges
+            )
+        }
+        syncStats?.changeFileWritten()
+        val versionAfterWrite = if (nextSequence.shard > 0 && hasListingVersions)
+            syncStats.time(Phase.LIST) {
+                collectionForShard(nextSequence.shard)?.let { listingVersion(it) }
+            } else null
+        if (versionBeforeWrite != null && versionAfterWrite != null) {
+            listingVersionsTrackMembers = versionBeforeWrite != versionAfterWrite
+            if (listingVersionsTrackMembers == false) {
+                log().w("Listing versions do not change with the members of a folder")
+            }
+        }
+        rememberLastSequence(nextSequence, versionAfterWrite)
         return nextSequence
     }
 
@@ -397,11 +1002,57 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         return gson.toJson(
             AccountMetaData.from(
                 account,
-                context.injector.homeCurrencyProvider().homeCurrencyString
+                context.injector.homeCurrencyProvider().homeCurrencyString,
+                dataFormatVersion.takeIf { it > AccountMetaData.FORMAT_VERSION_PLAIN },
+                minAppVersion.takeIf { it > 0 }
             )
         )
     }
 
+    @Throws(IOException::class, SyncBackendProvider.UnsupportedDataFormatException::class)
+    override fun negotiateDataFormat(
+        compress: Boolean,
+        contentAddressAttachments: Boolean
+    ): Boolean {
+        //without the metadata, we do not know if we can read the account, and must not risk
+        //erasing its format marker with a later update
+        val metaData = readAccountMetaData().getOrElse {
+            throw it as? IOException ?: IOException("Unable to read data format of account", it)
+        }
+        dataFormatVersion = metaData._formatVersion()
+        minAppVersion = metaData._minAppVersion()
+        if (dataFormatVersion > AccountMetaData.FORMAT_VERSION_SUPPORTED ||
+            minAppVersion > BuildConfig.VERSION_CODE
+        ) {
+            throw SyncBackendProvider.UnsupportedDataFormatException(dataFormatVersion)
+        }
+        compressChanges = compress && dataFormatVersion >= AccountMetaData.FORMAT_VERSION_COMPRESSED
+        this.contentAddressAttachments = contentAddressAttachments &&
+                dataFormatVersion >= AccountMetaData.FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS
+        compressionRequested = compress
+        contentAddressingRequested = contentAddressAttachments
+        return dataFormatVersion < requestedDataFormatVersion
+    }
+
+    private val requestedDataFormatVersion
+        get() = when {
+            contentAddressingRequested -> AccountMetaData.FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS
+            compressionRequested -> AccountMetaData.FORMAT_VERSION_COMPRESSED
+            else -> AccountMetaData.FORMAT_VERSION_PLAIN
+        }
+
+    @Throws(IOException::class)
+    override fun upgradeDataFormat(account: Account) {
+        if (contentAddressingRequested) {
+            migrateAttachments(account)
+        }
+        dataFormatVersion = maxOf(dataFormatVersion, requestedDataFormatVersion)
+        minAppVersion = maxOf(minAppVersion, AccountMetaData.minAppVersionForFormat(dataFormatVersion))
+        updateAccount(account)
+        compressChanges = compressionRequested
+        contentAddressAttachments = contentAddressingRequested
+    }
+
     protected fun getLastFileNamePart(fileName: String): String {
         return if (fileName.contains("/")) StringUtils.substringAfterLast(
             fileName,
@@ -409,6 +1060,10 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         ) else fileName
     }
 
+    /**
+     * @param compress if true, [fileContents] need to be gzip compressed before they are encrypted,
+     * see [toInputStream] and [maybeCompress]
+     */
     @Throws(IOException::class)
     protected abstract fun saveFileContents(
         toAccountDir: Boolean,
@@ -416,7 +1071,8 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean = false
     )
 
     protected abstract fun readFileContents(
@@ -440,7 +1096,7 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
 
     @Throws(IOException::class)
     override fun updateAccount(account: Account) {
-        writeAccount(account, true)
+        syncStats.time(Phase.UPLOAD) { writeAccount(account, true) }
     }
 
     final override fun storeBackup(uri: Uri, fileName: String) {
@@ -513,6 +1169,7 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
             log().i("tokens are equal, result: %b", result)
         } else {
             saveLockTokenToPreferences(lockToken, now, false)
+            forgetLastSequence()
             result = false
             log().i("tokens are not equal, result: %b", false)
         }
@@ -540,16 +1197,23 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     companion object {
         const val LOCK_FILE = ".lock.txt"
         const val KEY_LOCK_TOKEN = "lockToken"
+        private const val KEY_LAST_SEQUENCE = "lastSequence"
+        private const val KEY_LAST_SEQUENCE_VERSION = "lastSequenceVersion"
+        private const val KEY_LISTING_VERSIONS_TRACK_MEMBERS = "listingVersionsTrackMembers"
         const val BACKUP_FOLDER_NAME = "BACKUPS"
         const val ATTACHMENT_FOLDER_NAME = "ATTACHMENTS"
         const val MIME_TYPE_JSON = "application/json"
         private const val ACCOUNT_METADATA_FILENAME = "metadata"
         private const val CATEGORIES_FILENAME = "categories"
+        private const val ATTACHMENT_MANIFEST_FILENAME = "attachments"
+        private val LEGACY_ATTACHMENT_PATTERN =
+            Regex("([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})_(.+)")
         private const val KEY_OWNED_BY_US = "ownedByUs"
         private const val KEY_TIMESTAMP = "timestamp"
         private val LOCK_TIMEOUT_MILLIS =
             TimeUnit.MINUTES.toMillis(SyncAdapter.LOCK_TIMEOUT_MINUTES.toLong())
         const val ENCRYPTION_TOKEN_FILE_NAME = "ENCRYPTION_TOKEN"
+        const val SNAPSHOT_PREFIX = "snapshot"
     }
 
     init {
@@ -0,0 +1,44 @@
+package org.totschnig.myexpenses.sync
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Applies [fetch] to [items] on up to [parallelism] threads, and hands the results to [consume]
+ * on the calling thread, in the order of [items]. The pipeline fetches at most twice [parallelism]
+ * items ahead of [consume], so that results do not pile up when consuming is slower than
+ * fetching. An exception thrown by [fetch] is rethrown to the caller, and pending fetches are
+ * cancelled.
+ */
+fun <T, R> fetchOrdered(
+    items: List<T>,
+    parallelism: Int,
+    fetch: (T) -> R,
+    consume: (R) -> Unit
+) {
+    if (parallelism <= 1 || items.size <= 1) {
+        items.forEach { consume(fetch(it)) }
+        return
+    }
+    val executor = Executors.newFixedThreadPool(minOf(parallelism, items.size))
+    try {
+        val inFlight = ArrayDeque<Future<R>>()
+        val iterator = items.iterator()
+        while (iterator.hasNext() || inFlight.isNotEmpty()) {
+            while (iterator.hasNext() && inFlight.size < parallelism * 2) {
+                val item = iterator.next()
+                inFlight.addLast(executor.submit(Callable { fetch(item) }))
+            }
+            val result = try {
+                inFlight.removeFirst().get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+            consume(result)
+        }
+    } finally {
+        executor.shutdownNow()
+    }
+}
@@ -27,6 +27,33 @@ interface ResourceStorage<Res> {
      */
     fun childrenForCollection(folder: Res?): Collection<Res>
 
+    /**
+     * A token that changes whenever the members of [folder] change, e.g. an ETag or a cursor, so
+     * that an unchanged folder does not have to be listed again
+     * @param folder if null, the account folder
+     * @return null if the backend cannot tell
+     */
+    fun listingVersion(folder: Res?): String? = null
+
+    /**
+     * @param version as returned by [listingVersion] or [listChildrenWithVersion]
+     */
+    fun isListingUnchanged(folder: Res?, version: String): Boolean =
+        listingVersion(folder) == version
+
+    /**
+     * Lists [folder] together with its [listingVersion]. The version is retrieved first, so that
+     * a concurrent change leaves a stale version behind, never a stale listing.
+     */
+    fun listChildrenWithVersion(folder: Res?): Pair<String?, Collection<Res>> =
+        listingVersion(folder) to childrenForCollection(folder)
+
+    /**
+     * Lists [folder] like [childrenForCollection], but may answer from a cache, as long as
+     * [isListingUnchanged] confirms that the folder has not changed since
+     */
+    fun cachedChildrenForCollection(folder: Res?): Collection<Res> = childrenForCollection(folder)
+
     fun nameForResource(resource: Res): String?
 
     fun isCollection(resource: Res): Boolean
@@ -72,7 +99,7 @@ interface ResourceStorage<Res> {
                 val nextShardResource = collectionForShard(nextShard)
                 if (nextShardResource != null) {
                     log().i("Retrieving data for $nextShard (${nameForResource(nextShardResource)})")
-                    childrenForCollection(nextShardResource)
+                    cachedChildrenForCollection(nextShardResource)
                         .sortedBy { nameForResource(it)?.let { name -> getSequenceFromFileName(name) } }
                         .filter {
                             nameForResource(it)?.let { name ->
@@ -105,7 +132,7 @@ interface ResourceStorage<Res> {
                 )
             )
         }
-        val mainEntries = childrenForCollection(null)
+        val mainEntries = cachedChildrenForCollection(null)
         val lastShardOptional = mainEntries
             .filter { metadata ->
                 isCollection(metadata) && nameForResource(metadata)?.let {
@@ -120,7 +147,7 @@ interface ResourceStorage<Res> {
         val lastShardInt: Int
         val reference: Int
         if (lastShardOptional != null) {
-            lastShard = childrenForCollection(lastShardOptional)
+            lastShard = cachedChildrenForCollection(lastShardOptional)
             lastShardInt = getSequenceFromFileName(nameForResource(lastShardOptional))
             reference = if (lastShardInt == start.shard) start.number else 0
         } else {
@@ -98,7 +98,7 @@ class StorageAccessFrameworkBackendProvider internal constructor(context: Contex
         }
 
         input.use { `in` ->
-            (if (maybeEncrypt) maybeEncrypt(output) else output).use { `out` ->
+            meterUpload(output).let { if (maybeEncrypt) maybeEncrypt(it) else it }.use { `out` ->
                 FileCopyUtils.copy(`in`, `out`)
             }
         }
@@ -131,6 +131,8 @@ class StorageAccessFrameworkBackendProvider internal constructor(context: Contex
         if (accountDir.findFile(LOCK_FILE)?.delete() != true) throw IOException()
     }
 
+    override fun deleteResource(resource: DocumentFile) = resource.delete()
+
     @Throws(IOException::class)
     override fun saveFileContents(
         toAccountDir: Boolean,
@@ -138,11 +140,12 @@ class StorageAccessFrameworkBackendProvider internal constructor(context: Contex
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean
     ) {
         val base = if (toAccountDir) accountDir else baseDir
         val dir = if (folder == null) base else base.getFolder(folder)!!
-        saveFileContents(dir, fileName, fileContents, mimeType, maybeEncrypt)
+        saveFileContents(dir, fileName, fileContents, mimeType, maybeEncrypt, compress)
     }
 
     private fun saveFileContents(
@@ -150,18 +153,24 @@ class StorageAccessFrameworkBackendProvider internal constructor(context: Contex
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean
     ) {
         saveFileContents(
             folder.findFile(fileName) ?: folder.createFile(mimeType, fileName)
-            ?: throw IOException(), fileContents, maybeEncrypt
+            ?: throw IOException(), fileContents, maybeEncrypt, compress
         )
     }
 
     @Throws(IOException::class)
-    private fun saveFileContents(file: DocumentFile, fileContents: String, maybeEncrypt: Boolean) {
-        (contentResolver.openOutputStream(file.uri, "rwt") ?: throw IOException()).use { out ->
-            (if (maybeEncrypt) maybeEncrypt(out) else out).bufferedWriter().use {
+    private fun saveFileContents(
+        file: DocumentFile,
+        fileContents: String,
+        maybeEncrypt: Boolean,
+        compress: Boolean = false
+    ) {
+        meterUpload(contentResolver.openOutputStream(file.uri, "rwt") ?: throw IOException()).use { out ->
+            maybeCompress(if (maybeEncrypt) maybeEncrypt(out) else out, compress).bufferedWriter().use {
                 it.write(fileContents)
             }
         }
@@ -14,7 +14,11 @@ import android.os.Build
 import android.os.Bundle
 import android.os.RemoteException
 import android.util.SparseArray
+import androidx.annotation.VisibleForTesting
 import androidx.core.util.Pair
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import org.totschnig.myexpenses.BuildConfig
 import org.totschnig.myexpenses.R
@@ -30,8 +34,8 @@ import org.totschnig.myexpenses.service.SyncNotificationDismissHandler
 import org.totschnig.myexpenses.sync.GenericAccountService.Companion.deactivateSync
 import org.totschnig.myexpenses.sync.SequenceNumber.Companion.parse
 import org.totschnig.myexpenses.sync.SyncBackendProvider.*
+import org.totschnig.myexpenses.sync.SyncStats.Phase
 import org.totschnig.myexpenses.sync.json.AccountMetaData
-import org.totschnig.myexpenses.sync.json.CategoryInfo
 import org.totschnig.myexpenses.sync.json.TransactionChange
 import org.totschnig.myexpenses.util.NotificationBuilderWrapper
 import org.totschnig.myexpenses.util.TextUtils.concatResStrings
@@ -43,9 +47,13 @@ import timber.log.Timber
 import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 import javax.inject.Provider
+import kotlin.math.max
+import kotlin.math.min
 import kotlin.math.pow
 
 class SyncAdapter @JvmOverloads constructor(
@@ -56,6 +64,20 @@ class SyncAdapter @JvmOverloads constructor(
     private val notificationContent = SparseArray<MutableList<StringBuilder>?>()
     private var shouldNotify = true
 
+    /**
+     * serializes writes to the database while accounts are synced concurrently
+     */
+    private val dbWriteLock = Any()
+
+    /**
+     * runs [block] holding [dbWriteLock], the time spent waiting for it is timed as
+     * [Phase.DB_LOCK_WAIT], so that it does not inflate the phase timed inside [block]
+     */
+    private fun <T> withDbWriteLock(stats: SyncStats, block: () -> T): T =
+        stats.time(Phase.DB_LOCK_WAIT) {
+            synchronized(dbWriteLock, block)
+        }
+
     @Inject
     lateinit var prefHandler: PrefHandler
 
@@ -92,6 +114,7 @@ class SyncAdapter @JvmOverloads constructor(
             return
         }
         val uuidFromExtras = extras.getString(KEY_UUID)
+        val run = System.currentTimeMillis()
         val notificationId = account.hashCode()
         if (notificationContent[notificationId] == null) {
             notificationContent.put(notificationId, ArrayList())
@@ -132,7 +155,7 @@ class SyncAdapter @JvmOverloads constructor(
             runBlocking {
                 SyncBackendProviderFactory.get(context, account, false).onFailure { throwable ->
                     if (throwable is SyncParseException || throwable is EncryptionException) {
-                        syncResult.databaseError = true
+                        syncResult.reportDatabaseError()
                         (throwable as? SyncParseException)?.let { report(it) }
                         nonRecoverableError(
                             account,
@@ -176,14 +199,14 @@ class SyncAdapter @JvmOverloads constructor(
                             KEY_ROWID
                         ).also {
                             if (it == null) {
-                                syncResult.databaseError = true
+                                syncResult.reportDatabaseError()
                                 val exception = Exception("Cursor is null")
                                 notifyDatabaseError(exception, account)
                                 return@runBlocking
                             }
                         }
                     } catch (e: RemoteException) {
-                        syncResult.databaseError = true
+                        syncResult.reportDatabaseError()
                         notifyDatabaseError(e, account)
                         return@runBlocking
                     }?.use {
@@ -209,11 +232,11 @@ class SyncAdapter @JvmOverloads constructor(
                                         null
                                     )
                                 } catch (e: RemoteException) {
-                                    syncResult.databaseError = true
+                                    syncResult.reportDatabaseError()
                                     notifyDatabaseError(e, account)
                                     return@runBlocking
                                 } catch (e: SQLiteConstraintException) {
-                                    syncResult.databaseError = true
+                                    syncResult.reportDatabaseError()
                                     notifyDatabaseError(e, account)
                                     return@runBlocking
                                 }
@@ -222,263 +245,53 @@ class SyncAdapter @JvmOverloads constructor(
                     }
 
 
-                    try {
+                    val accountIds = try {
                         provider.query(
                             TransactionProvider.ACCOUNTS_URI, projection, selection, selectionArgs,
                             KEY_ROWID
                         )
                     } catch (e: RemoteException) {
-                        syncResult.databaseError = true
+                        syncResult.reportDatabaseError()
                         notifyDatabaseError(e, account)
                         return@runBlocking
                     }?.use { cursor ->
-                        if (cursor.moveToFirst()) {
-                            do {
-                                val accountId = cursor.getLong(0)
-                                val lastLocalSyncKey = KEY_LAST_SYNCED_LOCAL(accountId)
-                                val lastRemoteSyncKey = KEY_LAST_SYNCED_REMOTE(accountId)
-                                var lastSyncedLocal = getUserDataWithDefault(
-                                    accountManager, account,
-                                    lastLocalSyncKey, "0"
-                                ).toLong()
-                                var lastSyncedRemote = parse(
-                                    getUserDataWithDefault(
-                                        accountManager, account,
-                                        lastRemoteSyncKey, "0"
-                                    )
-                                )
-                                log().i("lastSyncedLocal: $lastSyncedLocal; lastSyncedRemote: $lastSyncedRemote")
-                                val instanceFromDb = repository.loadAccount(accountId)
-                                    ?: // might have been deleted by user in the meantime
-                                    continue
-                                syncDelegate.account = instanceFromDb
-                                if (uuidFromExtras != null && extras.getBoolean(KEY_RESET_REMOTE_ACCOUNT)) {
-                                    try {
-                                        backend.resetAccountData(uuidFromExtras)
-                                        appendToNotification(
-                                            context.getString(
-                                                R.string.sync_success_reset_account_data,
-                                                instanceFromDb.label
-                                            ), account, true
-                                        )
-                                    } catch (e: IOException) {
-                                        log().w(e)
-                                        if (handleAuthException(e, account)) {
-                                            return@runBlocking
-                                        }
-                                        syncResult.stats.numIoExceptions++
-                                        syncResult.delayUntil = getIoDelaySeconds(backend.suggestDelay(e))
-                                        notifyIoException(
-                                            R.string.sync_io_exception_reset_account_data,
-                                            account
-                                        )
-                                    }
-                                    break
-                                }
-                                appendToNotification(
-                                    context.getString(
-                                        R.string.synchronization_start,
-                                        instanceFromDb.label
-                                    ), account, true
-                                )
-                                try {
-                                    backend.withAccount(instanceFromDb)
-                                } catch (e: IOException) {
-                                    log().w(e)
-                                    if (handleAuthException(e, account)) {
-                                        return@runBlocking
-                                    }
-                                    syncResult.stats.numIoExceptions++
-                                    syncResult.delayUntil = getIoDelaySeconds(backend.suggestDelay(e))
-                                    notifyIoException(
-                                        R.string.sync_io_exception_setup_remote_account,
-                                        account
-                                    )
-                                    continue
-                                }
-                                try {
-                                    backend.lock()
-                                } catch (e: IOException) {
-                                    log().w(e)
-                                    if (handleAuthException(e, account)) {
-                                        return@runBlocking
-                                    }
-                                    notifyIoException(R.string.sync_io_exception_locking, account)
-                                    syncResult.stats.numIoExceptions++
-                                    syncResult.delayUntil = getIoLockDelaySeconds(backend.suggestDelay(e))
-                                    continue
-                                }
-                                var completedWithoutError = false
-                                var successRemote2Local = 0
-                                var successLocal2Remote = 0
-                                try {
-                                    val changeSetSince =
-                                        backend.getChangeSetSince(lastSyncedRemote)
-                                    var remoteChanges: List<TransactionChange> =
-                                        if (changeSetSince != null) {
-                                            lastSyncedRemote = changeSetSince.sequenceNumber
-                                            log().i("lastSyncedRemote: $lastSyncedRemote")
-                                            changeSetSince.changes
-                                        } else emptyList()
-                                    var localChanges: MutableList<TransactionChange> = mutableListOf()
-                                    var sequenceToTest = lastSyncedLocal
-                                    while (true) {
-                                        sequenceToTest++
-                                        val nextChanges =
-                                            getLocalChanges(provider, accountId, sequenceToTest)
-                                        lastSyncedLocal = if (nextChanges.isNotEmpty()) {
-                                            localChanges.addAll(nextChanges.filter { !it.isEmpty })
-                                            sequenceToTest
-                                        } else {
-                                            break
-                                        }
-                                    }
-                                    log().i("lastSyncedLocal: $lastSyncedLocal")
-                                    if (localChanges.isNotEmpty() || remoteChanges.isNotEmpty()) {
-                                        var localMetadataChange =
-                                            syncDelegate.findMetadataChange(localChanges)
-                                        var remoteMetadataChange =
-                                            syncDelegate.findMetadataChange(remoteChanges)
-                                        if (remoteMetadataChange != null) {
-                                            remoteChanges =
-                                                syncDelegate.removeMetadataChange(remoteChanges)
-                                        }
-                                        if (localMetadataChange != null && remoteMetadataChange != null) {
-                                            if (localMetadataChange.timeStamp() > remoteMetadataChange.timeStamp()) {
-                                                remoteMetadataChange = null
-                                            } else {
-                                                localMetadataChange = null
-                                                localChanges =
-                                                    syncDelegate.removeMetadataChange(localChanges)
-                                                        .toMutableList()
-                                            }
-                                        }
-                                        if (localMetadataChange != null) {
-                                            backend.updateAccount(instanceFromDb)
-                                        } else if (remoteMetadataChange != null) {
-                                            backend.readAccountMetaData().onSuccess {
-                                                if (updateAccountFromMetadata(
-                                                        provider,
-                                                        syncDelegate,
-                                                        it
-                                                    )
-                                                ) {
-                                                    successRemote2Local += 1
-                                                } else {
-                                                    appendToNotification(
-                                                        "Error while writing account metadata to database",
-                                                        account,
-                                                        false
-                                                    )
-                                                }
-                                            }
-                                        }
-                                        if (localChanges.size > 0) {
-                                            localChanges =
-                                                syncDelegate.collectSplits(localChanges).toMutableList()
-                                        }
-                                        val mergeResult: Pair<List<TransactionChange>, List<TransactionChange>> =
-                                            syncDelegate.mergeChangeSets(localChanges, remoteChanges)
-                                        localChanges = mergeResult.first.toMutableList()
-                                        remoteChanges = mergeResult.second
-                                        if (remoteChanges.isNotEmpty()) {
-                                            syncDelegate.writeRemoteChangesToDb(provider, remoteChanges)
-                                            accountManager.setUserData(
-                                                account,
-                                                lastRemoteSyncKey,
-                                                lastSyncedRemote.toString()
-                                            )
-                                            log().i("storing lastSyncedRemote: $lastSyncedRemote")
-                                            successRemote2Local += remoteChanges.size
-                                        }
-                                        if (localChanges.size > 0) {
-                                            lastSyncedRemote =
-                                                backend.writeChangeSet(
-                                                    lastSyncedRemote,
-                                                    localChanges,
-                                                    context
-                                                )
-                                            accountManager.setUserData(
-                                                account,
-                                                lastLocalSyncKey,
-                                                lastSyncedLocal.toString()
-                                            )
-                                            log().i("storing lastSyncedLocal: $lastSyncedLocal")
-                                            accountManager.setUserData(
-                                                account,
-                                                lastRemoteSyncKey,
-                                                lastSyncedRemote.toString()
-                                            )
-                                            log().i("storing lastSyncedRemote: $lastSyncedRemote")
-                                            successLocal2Remote = localChanges.size
-                                        }
-                                        if (!BuildConfig.DEBUG) {
-                                            // on debug build for auditing purposes, we keep changes in the table
-                                            provider.delete(
-                                                TransactionProvider.CHANGES_URI,
-                                                "$KEY_ACCOUNTID = ? AND $KEY_SYNC_SEQUENCE_LOCAL <= ?",
-                                                arrayOf(
-                                                    accountId.toString(),
-                                                    lastSyncedLocal.toString()
-                                                )
-                                            )
-                                        }
-                                    }
-                                    completedWithoutError = true
-                                } catch (e: IOException) {
-                                    log().w(e)
-                                    if (handleAuthException(e, account)) {
-                                        return@runBlocking
-                                    }
-                                    syncResult.stats.numIoExceptions++
-                                    syncResult.delayUntil = getIoDelaySeconds(backend.suggestDelay(e))
-                                    notifyIoException(R.string.sync_io_exception_syncing, account)
-                                } catch (e: RemoteException) {
-                                    syncResult.databaseError = true
-                                    notifyDatabaseError(e, account)
-                                } catch (e: OperationApplicationException) {
-                                    syncResult.databaseError = true
-                                    notifyDatabaseError(e, account)
-                                } catch (e: SQLiteException) {
-                                    syncResult.databaseError = true
-                                    nonRecoverableError(account, e.safeMessage)
-                                } catch (e: Exception) {
-                                    appendToNotification(
-                                        "ERROR (${e.javaClass.simpleName}): ${e.message} ",
-                                        account, true
-                                    )
-                                    report(e)
-                                } finally {
-                                    if (successLocal2Remote > 0 || successRemote2Local > 0) {
-                                        appendToNotification(
-                                            context.getString(
-                                                R.string.synchronization_end_success,
-                                                successRemote2Local,
-                                                successLocal2Remote
-                                            ), account, false
-                                        )
-                                    } else if (completedWithoutError) {
-                                        appendToNotification(
-                                            context.getString(R.string.synchronization_end_success_none),
-                                            account,
-                                            false
-                                        )
-                                    }
-                                    try {
-                                        backend.unlock()
-                                    } catch (e: IOException) {
-                                        log().w(e)
-                                        if (!handleAuthException(e, account)) {
-                                            notifyIoException(
-                                                R.string.sync_io_exception_unlocking,
-                                                account
-                                            )
-                                            syncResult.stats.numIoExceptions++
-                                            syncResult.delayUntil = getIoLockDelaySeconds(backend.suggestDelay(e))
-                                        }
-                                    }
-                                }
-                            } while (cursor.moveToNext())
+                        List(cursor.count) {
+                            cursor.moveToPosition(it)
+                            cursor.getLong(0)
+                        }
+                    } ?: emptyList()
+                    val workers = if (getBooleanSetting(provider, PrefKey.SYNC_PARALLEL_ACCOUNTS, false))
+                        min(ACCOUNT_SYNC_WORKERS, accountIds.size) else 1
+                    val sync: (Long, SyncBackendProvider, SyncDelegate) -> Boolean = { accountId, accountBackend, accountDelegate ->
+                        val stats = SyncStats(account.name, run)
+                        accountBackend.syncStats = stats
+                        accountDelegate.syncStats = stats
+                        try {
+                            syncAccount(
+                                accountId, account, extras, uuidFromExtras, accountManager,
+                                provider, syncResult, accountBackend, accountDelegate, stats,
+                                workers > 1
+                            )
+                        } catch (e: Exception) {
+                            // an exception escaping from one account must not cancel the workers
+                            // syncing the others
+                            appendToNotification(
+                                "ERROR (${e.javaClass.simpleName}): ${e.message} ",
+                                account, true
+                            )
+                            report(e)
+                            true
+                        } finally {
+                            accountBackend.syncStats = null
+                            accountDelegate.syncStats = null
+                            storeSyncStats(provider, stats)
+                        }
+                    }
+                    if (workers > 1) {
+                        syncAccountsConcurrently(account, accountIds, workers, backend, syncDelegate, sync)
+                    } else {
+                        for (accountId in accountIds) {
+                            if (!sync(accountId, backend, syncDelegate)) break
                         }
                     }
                 }
@@ -486,6 +299,379 @@ class SyncAdapter @JvmOverloads constructor(
         } catch (_: InterruptedException) { }
     }
 
+    /**
+     * Syncs the account with [accountId] through [backend]. Called concurrently for different
+     * accounts if [PrefKey.SYNC_PARALLEL_ACCOUNTS] is set, each worker with its own [backend] and
+     * [syncDelegate].
+     * @param stats collects timings and counters, which are stored in the sync stats history
+     * @param concurrent if other accounts are synced at the same time
+     * @return false if no further accounts should be synced in this run
+     */
+    private fun syncAccount(
+        accountId: Long,
+        account: Account,
+        extras: Bundle,
+        uuidFromExtras: String?,
+        accountManager: AccountManager,
+        provider: ContentProviderClient,
+        syncResult: SyncResult,
+        backend: SyncBackendProvider,
+        syncDelegate: SyncDelegate,
+        stats: SyncStats,
+        concurrent: Boolean
+    ): Boolean {
+        val lastLocalSyncKey = KEY_LAST_SYNCED_LOCAL(accountId)
+        val lastRemoteSyncKey = KEY_LAST_SYNCED_REMOTE(accountId)
+        var lastSyncedLocal = getUserDataWithDefault(
+            accountManager, account,
+            lastLocalSyncKey, "0"
+        ).toLong()
+        var lastSyncedRemote = parse(
+            getUserDataWithDefault(
+                accountManager, account,
+                lastRemoteSyncKey, "0"
+            )
+        )
+        log().i("lastSyncedLocal: $lastSyncedLocal; lastSyncedRemote: $lastSyncedRemote")
+        val instanceFromDb = try {
+            repository.loadAccount(accountId)
+        } catch (e: SQLiteException) {
+            syncResult.reportDatabaseError()
+            notifyDatabaseError(e, account)
+            return true
+        } ?: // might have been deleted by user in the meantime
+            return true
+        syncDelegate.account = instanceFromDb
+        stats.accountUuid = instanceFromDb.uuid
+        if (uuidFromExtras != null && extras.getBoolean(KEY_RESET_REMOTE_ACCOUNT)) {
+            try {
+                backend.resetAccountData(uuidFromExtras)
+                appendToNotification(
+                    context.getString(
+                        R.string.sync_success_reset_account_data,
+                        instanceFromDb.label
+                    ), account, true
+                )
+            } catch (e: IOException) {
+                log().w(e)
+                if (handleAuthException(e, account)) {
+                    return false
+                }
+                syncResult.reportIoException(getIoDelaySeconds(backend.suggestDelay(e)), stats, concurrent)
+                notifyIoException(
+                    R.string.sync_io_exception_reset_account_data,
+                    account
+                )
+            }
+            return false
+        }
+        val notificationLine = appendToNotification(
+            context.getString(
+                R.string.synchronization_start,
+                instanceFromDb.label
+            ), account, true
+        )
+        try {
+            backend.withAccount(instanceFromDb)
+        } catch (e: IOException) {
+            log().w(e)
+            if (handleAuthException(e, account)) {
+                return false
+            }
+            syncResult.reportIoException(getIoDelaySeconds(backend.suggestDelay(e)), stats, concurrent)
+            notifyIoException(
+                R.string.sync_io_exception_setup_remote_account,
+                account
+            )
+            return true
+        }
+        try {
+            stats.time(Phase.LOCK) { backend.lock() }
+        } catch (e: IOException) {
+            log().w(e)
+            if (handleAuthException(e, account)) {
+                return false
+            }
+            notifyIoException(R.string.sync_io_exception_locking, account)
+            syncResult.reportIoException(getIoLockDelaySeconds(backend.suggestDelay(e)), stats, concurrent)
+            return true
+        }
+        var successRemote2Local = 0
+        var successLocal2Remote = 0
+        try {
+            val upgradeDataFormat = backend.negotiateDataFormat(
+                getBooleanSetting(provider, PrefKey.SYNC_COMPRESS_CHANGES, false),
+                getBooleanSetting(provider, PrefKey.SYNC_CONTENT_ADDRESSED_ATTACHMENTS, false)
+            )
+            var restoreFromSnapshot = false
+            val changeSetSince = try {
+                backend.getChangeSetSince(lastSyncedRemote)
+            } catch (e: SyncBackendProvider.ChangeLogPrunedException) {
+                //the changes we missed are only available as part of the snapshot, which replaces
+                //the local transactions once the local changes are known
+                log().w(e)
+                appendToNotification(
+                    context.getString(
+                        R.string.sync_change_log_pruned,
+                        instanceFromDb.label
+                    ), account, true
+                )
+                restoreFromSnapshot = true
+                backend.getChangeSetSince(SequenceNumber(0, 0))
+            }
+            var remoteChanges: List<TransactionChange> =
+                if (changeSetSince != null) {
+                    lastSyncedRemote = changeSetSince.sequenceNumber
+                    log().i("lastSyncedRemote: $lastSyncedRemote")
+                    changeSetSince.changes
+                } else emptyList()
+            var localChanges: MutableList<TransactionChange> = mutableListOf()
+            var sequenceToTest = lastSyncedLocal
+            while (true) {
+                sequenceToTest++
+                val nextChanges = withDbWriteLock(stats) {
+                    stats.time(Phase.COLLECT_LOCAL) {
+                        getLocalChanges(provider, syncDelegate, accountId, sequenceToTest)
+                    }
+                }
+                lastSyncedLocal = if (nextChanges.isNotEmpty()) {
+                    localChanges.addAll(nextChanges.filter { !it.isEmpty })
+                    sequenceToTest
+                } else {
+                    break
+                }
+            }
+            log().i("lastSyncedLocal: $lastSyncedLocal")
+            if (restoreFromSnapshot) {
+                remoteChanges =
+                    syncDelegate.restoreFromSnapshot(provider, remoteChanges, localChanges)
+            }
+            if (localChanges.isNotEmpty() || remoteChanges.isNotEmpty()) {
+                var localMetadataChange =
+                    syncDelegate.findMetadataChange(localChanges)
+                var remoteMetadataChange =
+                    syncDelegate.findMetadataChange(remoteChanges)
+                if (remoteMetadataChange != null) {
+                    remoteChanges =
+                        syncDelegate.removeMetadataChange(remoteChanges)
+                }
+                if (localMetadataChange != null && remoteMetadataChange != null) {
+                    if (localMetadataChange.timeStamp() > remoteMetadataChange.timeStamp()) {
+                        remoteMetadataChange = null
+                    } else {
+                        localMetadataChange = null
+                        localChanges =
+                            syncDelegate.removeMetadataChange(localChanges)
+                                .toMutableList()
+                    }
+                }
+                if (localMetadataChange != null) {
+                    backend.updateAccount(instanceFromDb)
+                } else if (remoteMetadataChange != null) {
+                    backend.readAccountMetaData().onSuccess {
+                        if (withDbWriteLock(stats) {
+                                stats.time(Phase.APPLY_BATCH) {
+                                    updateAccountFromMetadata(provider, syncDelegate, it)
+                                }
+                            }
+                        ) {
+                            successRemote2Local += 1
+                        } else {
+                            appendToNotification(
+                                "Error while writing account metadata to database",
+                                account,
+                                false,
+                                notificationLine
+                            )
+                        }
+                    }
+                }
+                if (localChanges.size > 0) {
+                    localChanges = stats.time(Phase.COLLECT_LOCAL) {
+                        syncDelegate.collectSplits(localChanges).toMutableList()
+                    }
+                }
+                val mergeResult: Pair<List<TransactionChange>, List<TransactionChange>> =
+                    stats.time(Phase.MERGE) {
+                        syncDelegate.mergeChangeSets(localChanges, remoteChanges)
+                    }
+                localChanges = mergeResult.first.toMutableList()
+                remoteChanges = mergeResult.second
+                if (remoteChanges.isNotEmpty()) {
+                    withDbWriteLock(stats) {
+                        stats.time(Phase.APPLY_BATCH) {
+                            syncDelegate.writeRemoteChangesToDb(provider, remoteChanges)
+                        }
+                    }
+                    accountManager.setUserData(
+                        account,
+                        lastRemoteSyncKey,
+                        lastSyncedRemote.toString()
+                    )
+                    log().i("storing lastSyncedRemote: $lastSyncedRemote")
+                    successRemote2Local += remoteChanges.size
+                }
+                if (localChanges.size > 0) {
+                    lastSyncedRemote = stats.time(Phase.UPLOAD) {
+                        backend.writeChangeSet(
+                            lastSyncedRemote,
+                            localChanges,
+                            context
+                        )
+                    }
+                    accountManager.setUserData(
+                        account,
+                        lastLocalSyncKey,
+                        lastSyncedLocal.toString()
+                    )
+                    log().i("storing lastSyncedLocal: $lastSyncedLocal")
+                    accountManager.setUserData(
+                        account,
+                        lastRemoteSyncKey,
+                        lastSyncedRemote.toString()
+                    )
+                    log().i("storing lastSyncedRemote: $lastSyncedRemote")
+                    successLocal2Remote = localChanges.size
+                }
+                if (!BuildConfig.DEBUG) {
+                    // on debug build for auditing purposes, we keep changes in the table
+                    synchronized(dbWriteLock) {
+                        provider.delete(
+                            TransactionProvider.CHANGES_URI,
+                            "$KEY_ACCOUNTID = ? AND $KEY_SYNC_SEQUENCE_LOCAL <= ?",
+                            arrayOf(
+                                accountId.toString(),
+                                lastSyncedLocal.toString()
+                            )
+                        )
+                    }
+                }
+            }
+            if (upgradeDataFormat) {
+                // reload, since metadata might have been updated from remote
+                repository.loadAccount(accountId)?.let {
+                    backend.upgradeDataFormat(it)
+                }
+            }
+            try {
+                backend.writeSnapshotIfDue(
+                    lastSyncedRemote,
+                    syncDelegate::compact
+                )?.let {
+                    if (getBooleanSetting(provider, PrefKey.SYNC_PRUNE_CHANGE_LOG, false)) {
+                        repository.loadAccount(accountId)?.let { account ->
+                            backend.pruneChangeLog(account, it)
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                //a missing snapshot only slows down the initial sync of other devices
+                log().w(e)
+            }
+            stats.completed = true
+        } catch (e: IOException) {
+            log().w(e)
+            if (handleAuthException(e, account)) {
+                return false
+            }
+            syncResult.reportIoException(getIoDelaySeconds(backend.suggestDelay(e)), stats, concurrent)
+            notifyIoException(R.string.sync_io_exception_syncing, account)
+        } catch (e: UnsupportedDataFormatException) {
+            log().w(e)
+            appendToNotification(
+                context.getString(
+                    R.string.sync_backend_data_format_unsupported,
+                    instanceFromDb.label
+                ), account, true
+            )
+        } catch (e: RemoteException) {
+            syncResult.reportDatabaseError()
+            notifyDatabaseError(e, account)
+        } catch (e: OperationApplicationException) {
+            syncResult.reportDatabaseError()
+            notifyDatabaseError(e, account)
+        } catch (e: SQLiteException) {
+            syncResult.reportDatabaseError()
+            nonRecoverableError(account, e.safeMessage)
+        } catch (e: Exception) {
+            appendToNotification(
+                "ERROR (${e.javaClass.simpleName}): ${e.message} ",
+                account, true
+            )
+            report(e)
+        } finally {
+            if (successLocal2Remote > 0 || successRemote2Local > 0) {
+                appendToNotification(
+                    context.getString(
+                        R.string.synchronization_end_success,
+                        successRemote2Local,
+                        successLocal2Remote
+                    ), account, false, notificationLine
+                )
+            } else if (stats.completed) {
+                appendToNotification(
+                    context.getString(R.string.synchronization_end_success_none),
+                    account,
+                    false,
+                    notificationLine
+                )
+            }
+            try {
+                stats.time(Phase.LOCK) { backend.unlock() }
+            } catch (e: IOException) {
+                log().w(e)
+                if (!handleAuthException(e, account)) {
+                    notifyIoException(
+                        R.string.sync_io_exception_unlocking,
+                        account
+                    )
+                    syncResult.reportIoException(getIoLockDelaySeconds(backend.suggestDelay(e)), stats, concurrent)
+                }
+            }
+        }
+        return true
+    }
+
+    /**
+     * Syncs [accountIds] with [workers] coroutines pulling from a shared queue. The first worker
+     * uses [backend] and [syncDelegate], the others set up their own instances with
+     * [createBackend], since both keep state about the account they are working on.
+     */
+    @VisibleForTesting
+    internal suspend fun syncAccountsConcurrently(
+        account: Account,
+        accountIds: List<Long>,
+        workers: Int,
+        backend: SyncBackendProvider,
+        syncDelegate: SyncDelegate,
+        syncAccount: (Long, SyncBackendProvider, SyncDelegate) -> Boolean,
+        createBackend: suspend () -> Result<SyncBackendProvider> = {
+            SyncBackendProviderFactory.get(context, account, false)
+        }
+    ) {
+        val queue = ConcurrentLinkedQueue(accountIds)
+        val proceed = AtomicBoolean(true)
+        coroutineScope {
+            repeat(workers) { worker ->
+                launch(Dispatchers.IO) {
+                    val workerBackend = if (worker == 0) backend else
+                        createBackend().getOrElse {
+                            // remaining workers take over its share
+                            log().w(it, "Worker %d could not set up backend", worker)
+                            return@launch
+                        }
+                    val workerDelegate = if (worker == 0) syncDelegate else syncDelegateProvider.get()
+                    while (proceed.get()) {
+                        val accountId = queue.poll() ?: break
+                        if (!syncAccount(accountId, workerBackend, workerDelegate)) {
+                            proceed.set(false)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     @Throws(RemoteException::class, OperationApplicationException::class)
     private fun updateAccountFromMetadata(
         provider: ContentProviderClient,
@@ -602,16 +788,28 @@ class SyncAdapter @JvmOverloads constructor(
     private val manageSyncBackendsIntent: Intent
         get() = Intent(context, ManageSyncBackends::class.java)
 
-    private fun appendToNotification(content: String, account: Account, newLine: Boolean) {
+    /**
+     * @param line a line returned from a previous call, [content] is appended to it instead of
+     * the most recent line, which might belong to another account when accounts are synced concurrently
+     * @return the line [content] was appended to
+     */
+    @VisibleForTesting
+    internal fun appendToNotification(
+        content: String,
+        account: Account,
+        newLine: Boolean,
+        line: StringBuilder? = null
+    ): StringBuilder? {
         log().i(content)
-        if (shouldNotify) {
+        return if (shouldNotify) synchronized(notificationContent) {
             val contentBuilders = notificationContent[account.hashCode()]
-            val contentBuilder: StringBuilder
-            if (contentBuilders!!.isEmpty() || newLine) {
-                contentBuilder = StringBuilder()
-                contentBuilders.add(0, contentBuilder)
-            } else {
-                contentBuilder = contentBuilders[0]
+                ?: ArrayList<StringBuilder>().also { notificationContent.put(account.hashCode(), it) }
+            val contentBuilder = when {
+                line != null && contentBuilders.any { it === line } -> line
+                contentBuilders.isEmpty() || newLine -> StringBuilder().also {
+                    contentBuilders.add(0, it)
+                }
+                else -> contentBuilders[0]
             }
             if (contentBuilder.isNotEmpty()) {
                 contentBuilder.append(" ")
@@ -622,7 +820,8 @@ class SyncAdapter @JvmOverloads constructor(
                 concat(contentBuilders),
                 account, null
             )
-        }
+            contentBuilder
+        } else null
     }
 
     fun concat(contentBuilders: List<CharSequence>) =
@@ -633,6 +832,55 @@ class SyncAdapter @JvmOverloads constructor(
             sum.append(element)
         }
 
+    /**
+     * like [reportIoException], synchronized on the [SyncResult], since accounts might be synced
+     * concurrently
+     */
+    private fun SyncResult.reportDatabaseError() {
+        synchronized(this) {
+            databaseError = true
+        }
+    }
+
+    /**
+     * @param concurrent if accounts are synced concurrently, the order in which they fail is
+     * arbitrary, so instead of the delay requested last, the longest one is kept
+     */
+    @VisibleForTesting
+    internal fun SyncResult.reportIoException(
+        delayUntilSeconds: Long,
+        syncStats: SyncStats,
+        concurrent: Boolean
+    ) {
+        synchronized(this) {
+            stats.numIoExceptions++
+            delayUntil = if (concurrent) max(delayUntil, delayUntilSeconds) else delayUntilSeconds
+        }
+        syncStats.backoff(delayUntilSeconds)
+    }
+
+    /**
+     * accounts that were not found in the database are skipped
+     */
+    private fun storeSyncStats(provider: ContentProviderClient, syncStats: SyncStats) {
+        val stats = syncStats.finish() ?: return
+        log().i("Sync stats: %s", stats)
+        try {
+            synchronized(dbWriteLock) {
+                provider.insert(TransactionProvider.SYNC_STATS_URI, ContentValues(4).apply {
+                    put(KEY_SYNC_ACCOUNT_NAME, stats.syncAccountName)
+                    put(KEY_UUID, stats.accountUuid)
+                    put(KEY_DATE, stats.started / 1000)
+                    put(KEY_SYNC_STATS, stats.toJson())
+                })
+            }
+        } catch (e: RemoteException) {
+            report(e)
+        } catch (e: SQLiteException) {
+            report(e)
+        }
+    }
+
     private fun report(e: Throwable) {
         CrashHandler.report(e, TAG)
     }
@@ -708,13 +956,12 @@ class SyncAdapter @JvmOverloads constructor(
 
     @Throws(RemoteException::class)
     private fun getLocalChanges(
-        provider: ContentProviderClient, accountId: Long,
+        provider: ContentProviderClient, syncDelegate: SyncDelegate, accountId: Long,
         sequenceNumber: Long
     ): List<TransactionChange> {
-        val result: MutableList<TransactionChange> = mutableListOf()
         val changesUri = buildChangesUri(sequenceNumber, accountId)
         val hasLocalChanges = hasLocalChanges(provider, changesUri)
-        if (hasLocalChanges) {
+        return if (hasLocalChanges) {
             val currentSyncIncrease = ContentValues(1)
             val nextSequence = sequenceNumber + 1
             currentSyncIncrease.put(KEY_SYNC_SEQUENCE_LOCAL, nextSequence)
@@ -730,70 +977,8 @@ class SyncAdapter @JvmOverloads constructor(
                 arrayOf(accountId.toString(), nextSequence.toString())
             )
 
-            provider.query(changesUri, null, null, null, null)?.use { changesCursor ->
-                if (changesCursor.moveToFirst()) {
-                    do {
-                        var transactionChange = TransactionChange.create(changesCursor)
-                        if (transactionChange.type() == TransactionChange.Type.created || transactionChange.type() == TransactionChange.Type.updated) {
-                            //noinspection Recycle
-                            provider.query(
-                                TransactionProvider.TRANSACTIONS_TAGS_URI,
-                                null,
-                                String.format(
-                                    "%s = (SELECT %s FROM %s WHERE %s = ?)",
-                                    KEY_TRANSACTIONID,
-                                    KEY_ROWID,
-                                    TABLE_TRANSACTIONS,
-                                    KEY_UUID
-                                ),
-                                arrayOf(transactionChange.uuid()),
-                                null
-                            )?.useAndMap { it.getString(KEY_LABEL) }
-                                ?.takeIf { it.isNotEmpty() }
-                                ?.let { tags ->
-                                    transactionChange =
-                                        transactionChange.toBuilder().setTags(tags).build()
-                                }
-                            //noinspection Recycle
-                            provider.query(
-                                TransactionProvider.ATTACHMENTS_URI
-                                    .buildUpon()
-                                    .appendQueryParameter(KEY_UUID, transactionChange.uuid())
-                                    .build(),
-                                arrayOf(KEY_UUID),
-                                null,
-                                arrayOf(transactionChange.uuid()),
-                                null
-                            )?.useAndMap { it.getString(0) }
-                                ?.takeIf { it.isNotEmpty() }
-                                ?.let { attachments ->
-                                    transactionChange =
-                                        transactionChange.toBuilder().setAttachments(attachments).build()
-                                }
-                        }
-                        changesCursor.getLongOrNull(KEY_CATID)?.takeIf { it > 0 }?.let { catId ->
-                            provider.query(ContentUris.withAppendedId(BaseTransactionProvider.CATEGORY_TREE_URI, catId),
-                                null, null, null, null
-                            )?.use { cursor ->
-                                transactionChange = transactionChange.toBuilder().setCategoryInfo(
-                                    cursor.asSequence.map {
-                                        CategoryInfo(
-                                            it.getString(KEY_UUID),
-                                            it.getString(KEY_LABEL),
-                                            it.getStringOrNull(KEY_ICON),
-                                            it.getIntOrNull(KEY_COLOR),
-                                            if (it.getLongOrNull(KEY_PARENTID) == null)
-                                                it.getInt(KEY_TYPE) else null
-                                        ) }.toList().asReversed()
-                                ).build()
-                            }
-                        }
-                        result.add(transactionChange)
-                    } while (changesCursor.moveToNext())
-                }
-            }
-        }
-        return result
+            syncDelegate.collectLocalChanges(provider, changesUri)
+        } else emptyList()
     }
 
     private fun buildChangesUri(currentSync: Long, accountId: Long): Uri {
@@ -866,6 +1051,7 @@ class SyncAdapter @JvmOverloads constructor(
 
     companion object {
         const val BATCH_SIZE = 100
+        const val ACCOUNT_SYNC_WORKERS = 4
         const val KEY_RESET_REMOTE_ACCOUNT = "reset_remote_account"
         const val KEY_UPLOAD_AUTO_BACKUP_URI = "upload_auto_backup_uri"
         const val KEY_UPLOAD_AUTO_BACKUP_NAME = "upload_auto_backup_name"
@@ -15,6 +15,11 @@ import java.io.InputStream
 import java.security.GeneralSecurityException
 
 interface SyncBackendProvider {
+    /**
+     * set by the sync adapter while an account is synced, collects timings and transferred bytes
+     */
+    var syncStats: SyncStats?
+
     @Throws(IOException::class)
     fun withAccount(account: Account)
 
@@ -27,6 +32,10 @@ interface SyncBackendProvider {
     @Throws(IOException::class)
     fun unlock()
 
+    /**
+     * @throws ChangeLogPrunedException if changes after [sequenceNumber] are only available as part
+     * of a snapshot
+     */
     @Throws(IOException::class)
     fun getChangeSetSince(sequenceNumber: SequenceNumber): ChangeSet?
 
@@ -37,6 +46,53 @@ interface SyncBackendProvider {
         context: Context
     ): SequenceNumber
 
+    /**
+     * Writes a compacted snapshot of the change log, once the log up to [lastSequenceNumber] has
+     * grown by a number of shards since the previous snapshot. Each snapshot extends the previous
+     * one by a bounded number of change files, so that a long history is snapshotted over several
+     * syncs, without holding the lock for long. Clients that sync an account for the first time
+     * start from the latest snapshot instead of replaying every change.
+     * @return the sequence number covered by the new snapshot, null if none was written
+     */
+    @Throws(IOException::class)
+    fun writeSnapshotIfDue(
+        lastSequenceNumber: SequenceNumber,
+        compact: (List<TransactionChange>) -> List<TransactionChange>
+    ): SequenceNumber? = null
+
+    /**
+     * Deletes the shards and older snapshots that are covered by [snapshot]. Before, records in
+     * the account metadata the first version that restores from snapshots as the minimum required
+     * to sync the account. Like [upgradeDataFormat], should only be called once local and remote
+     * metadata agree, since the metadata is rewritten from [account].
+     */
+    @Throws(IOException::class)
+    fun pruneChangeLog(account: Account, snapshot: SequenceNumber) {}
+
+    /**
+     * Called after locking the account. Checks that the account's data format, as recorded in its
+     * metadata, is understood by this version, and that this version is not older than the version
+     * that upgraded the account. Enables compression of change files if [compress] is requested,
+     * and content addressed storage of attachments if [contentAddressAttachments] is requested,
+     * as far as the account's data format allows.
+     * @return true if one of them is requested, but the account still needs to be upgraded to the
+     * format that supports it with [upgradeDataFormat]
+     * @throws IOException if the metadata of the account cannot be read
+     */
+    @Throws(IOException::class, UnsupportedDataFormatException::class)
+    fun negotiateDataFormat(compress: Boolean, contentAddressAttachments: Boolean): Boolean = false
+
+    /**
+     * Records in the account metadata the format required by the features requested in
+     * [negotiateDataFormat], and the version code of the first release that reads this format as
+     * the minimum required to sync the account. If content addressing is requested, attachments of the account stored under their
+     * uuid are migrated first.
+     * Should only be called once local and remote metadata agree, since the metadata is rewritten
+     * from [account].
+     */
+    @Throws(IOException::class)
+    fun upgradeDataFormat(account: Account) {}
+
     val remoteAccountList: List<Result<AccountMetaData>>
         @Throws(IOException::class) get
 
@@ -76,8 +132,18 @@ interface SyncBackendProvider {
         constructor(message: String) : super(message)
     }
 
+    class UnsupportedDataFormatException(val formatVersion: Int) :
+        Exception("Unsupported data format version $formatVersion")
+
     class AuthException(cause: Throwable, val resolution: Intent?) : IOException(cause)
 
+    /**
+     * the changes after the requested sequence have been pruned, the client has to start over from
+     * [snapshot]
+     */
+    class ChangeLogPrunedException(val snapshot: SequenceNumber) :
+        IOException("Changes before snapshot $snapshot have been pruned")
+
     class EncryptionException private constructor(message: String) : Exception(message) {
         companion object {
             @JvmStatic
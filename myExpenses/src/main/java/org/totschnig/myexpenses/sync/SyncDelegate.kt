@@ -1,6 +1,8 @@
 package org.totschnig.myexpenses.sync
 
 import android.content.*
+import android.database.Cursor
+import android.net.Uri
 import android.os.RemoteException
 import androidx.annotation.VisibleForTesting
 import androidx.core.util.Pair
@@ -10,9 +12,17 @@ import org.totschnig.myexpenses.feature.Feature
 import org.totschnig.myexpenses.feature.FeatureManager
 import org.totschnig.myexpenses.model.*
 import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.BaseTransactionProvider
 import org.totschnig.myexpenses.provider.DatabaseConstants
-import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.asSequence
+import org.totschnig.myexpenses.provider.getInt
+import org.totschnig.myexpenses.provider.getIntOrNull
+import org.totschnig.myexpenses.provider.getLongOrNull
+import org.totschnig.myexpenses.provider.getString
+import org.totschnig.myexpenses.provider.getStringOrNull
+import org.totschnig.myexpenses.provider.useAndMap
 import org.totschnig.myexpenses.sync.json.CategoryInfo
 import org.totschnig.myexpenses.sync.json.TransactionChange
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
@@ -31,9 +41,22 @@ class SyncDelegate(
     private val methodToId: MutableMap<String, Long> = HashMap()
     private val tagToId: MutableMap<String, Long> = HashMap()
     private val accountUuidToId: MutableMap<String, Long> = HashMap()
+    private val categoryPathToInfo: MutableMap<Long, List<CategoryInfo>> = HashMap()
+    private val categoryInfoToId: MutableMap<kotlin.Pair<CategoryInfo, Long?>, Long> = HashMap()
+
+    /**
+     * ids of the transactions referenced by the batch of remote changes currently collected, keyed
+     * by account id and uuid. null outside of [writeRemoteChangesToDbPart], where [resolver] is used.
+     */
+    private var transactionIds: Map<kotlin.Pair<Long, String>, Long>? = null
 
     lateinit var account: Account
 
+    /**
+     * set by the sync adapter while an account is synced
+     */
+    var syncStats: SyncStats? = null
+
     @Throws(RemoteException::class, OperationApplicationException::class)
     fun writeRemoteChangesToDb(
         provider: ContentProviderClient,
@@ -42,12 +65,18 @@ class SyncDelegate(
         if (remoteChanges.isEmpty()) {
             return
         }
-        if (remoteChanges.size > SyncAdapter.BATCH_SIZE) {
-            for (part in ListUtils.partition(remoteChanges, SyncAdapter.BATCH_SIZE)) {
-                writeRemoteChangesToDbPart(provider, part)
+        //unsplit and link changes alter what a uuid resolves to, so the changes after them are
+        //resolved and applied in a batch of their own
+        val barriers = remoteChanges.indices.filter { remoteChanges[it].isBarrier }
+        ((listOf(-1) + barriers).zip(barriers + remoteChanges.lastIndex)).forEach { (from, to) ->
+            val chunk = remoteChanges.subList(from + 1, to + 1)
+            if (chunk.size > SyncAdapter.BATCH_SIZE) {
+                for (part in ListUtils.partition(chunk, SyncAdapter.BATCH_SIZE)) {
+                    writeRemoteChangesToDbPart(provider, part)
+                }
+            } else if (chunk.isNotEmpty()) {
+                writeRemoteChangesToDbPart(provider, chunk)
             }
-        } else {
-            writeRemoteChangesToDbPart(provider, remoteChanges)
         }
     }
 
@@ -58,9 +87,20 @@ class SyncDelegate(
     ) {
         val ops = ArrayList<ContentProviderOperation>()
         ops.add(TransactionProvider.pauseChangeTrigger())
-        remoteChanges.forEach { change: TransactionChange -> collectOperations(change, ops, -1) }
+        syncStats.time(SyncStats.Phase.MERGE) {
+            preResolve(remoteChanges)
+            try {
+                remoteChanges.forEach { change: TransactionChange -> collectOperations(change, ops, -1) }
+            } finally {
+                //once the batch is applied, the ids are outdated
+                transactionIds = null
+            }
+        }
         ops.add(TransactionProvider.resumeChangeTrigger())
-        val contentProviderResults = provider.applyBatch(ops)
+        val contentProviderResults = syncStats.time(SyncStats.Phase.APPLY_BATCH) {
+            provider.applyBatch(ops)
+        }
+        syncStats?.operationsApplied(ops.size)
         val opsSize = ops.size
         val resultsSize = contentProviderResults.size
         if (opsSize != resultsSize) {
@@ -71,6 +111,81 @@ class SyncDelegate(
         }
     }
 
+    /**
+     * Looks up transactions, payees, payment methods and transfer accounts referenced by
+     * [remoteChanges] with one query per [LOOKUP_CHUNK_SIZE] distinct values each, instead of one
+     * query per change. Payees and methods that do not exist yet are created later on demand.
+     */
+    private fun preResolve(remoteChanges: List<TransactionChange>) {
+        val changes = remoteChanges.flatMap { listOf(it) + (it.splitParts() ?: emptyList()) }
+        transactionIds = buildMap<kotlin.Pair<Long, String>, Long> {
+            lookup(
+                Transaction.CONTENT_URI,
+                arrayOf(KEY_ACCOUNTID, KEY_UUID, KEY_ROWID),
+                KEY_UUID,
+                changes.flatMap { listOfNotNull(it.uuid(), it.parentUuid()) }
+            ) {
+                put(it.getLong(0) to it.getString(1), it.getLong(2))
+            }
+        }
+        //findParty looks up trimmed names
+        val payeesByTrimmedName = changes.mapNotNull { it.payeeName() }
+            .filterNot { payeeToId.containsKey(it) }
+            .groupBy { it.trim() }
+        lookup(
+            TransactionProvider.PAYEES_URI,
+            arrayOf(KEY_PAYEE_NAME, KEY_ROWID),
+            KEY_PAYEE_NAME,
+            payeesByTrimmedName.keys,
+            "$KEY_IBAN IS NULL"
+        ) { cursor ->
+            payeesByTrimmedName[cursor.getString(0)]?.forEach {
+                payeeToId.putIfAbsent(it, cursor.getLong(1))
+            }
+        }
+        lookup(
+            TransactionProvider.METHODS_URI,
+            //unqualified label would be mapped to the localized label
+            arrayOf("$TABLE_METHODS.$KEY_LABEL", KEY_ROWID),
+            "$TABLE_METHODS.$KEY_LABEL",
+            changes.mapNotNull { it.methodLabel() }.filterNot { methodToId.containsKey(it) }
+        ) {
+            methodToId.putIfAbsent(it.getString(0), it.getLong(1))
+        }
+        lookup(
+            TransactionProvider.ACCOUNTS_URI,
+            arrayOf(KEY_UUID, KEY_ROWID),
+            KEY_UUID,
+            changes.mapNotNull { it.transferAccount() }.filterNot { accountUuidToId.containsKey(it) }
+        ) {
+            accountUuidToId.putIfAbsent(it.getString(0), it.getLong(1))
+        }
+    }
+
+    private fun lookup(
+        uri: Uri,
+        projection: Array<String>,
+        keyColumn: String,
+        keys: Collection<String>,
+        extraSelection: String? = null,
+        consume: (Cursor) -> Unit
+    ) {
+        keys.distinct().chunked(LOOKUP_CHUNK_SIZE).forEach { chunk ->
+            repository.contentResolver.query(
+                uri,
+                projection,
+                "$keyColumn IN (${chunk.joinToString { "?" }})" +
+                        (extraSelection?.let { " AND $it" } ?: ""),
+                chunk.toTypedArray(),
+                null
+            )?.use { cursor -> cursor.asSequence.forEach(consume) }
+        }
+    }
+
+    private fun resolve(accountId: Long, uuid: String) = transactionIds?.let {
+        it[accountId to uuid] ?: -1L
+    } ?: resolver(accountId, uuid)
+
     /**
      * @param changeList
      * @return the same list with split parts moved as parts to their parents. If there are multiple parents
@@ -143,6 +258,196 @@ class SyncDelegate(
         return Pair.create(firstResult, secondResult)
     }
 
+    /**
+     * When the change log this device had synced up to has been pruned, the account is restored
+     * from the [snapshot], which holds every transaction as a create. Creates of transactions that
+     * exist locally are turned into updates, so that they are not skipped as duplicates, and local
+     * transactions that are missing from the snapshot are deleted, unless they are touched by
+     * [localChanges] that still have to be uploaded.
+     */
+    @Throws(RemoteException::class)
+    fun restoreFromSnapshot(
+        provider: ContentProviderClient,
+        snapshot: List<TransactionChange>,
+        localChanges: List<TransactionChange>
+    ): List<TransactionChange> {
+        val localUuids = provider.query(
+            Transaction.CONTENT_URI,
+            arrayOf(KEY_UUID),
+            "$KEY_ACCOUNTID = ?",
+            arrayOf(account.id.toString()),
+            null
+        )?.useAndMap { it.getStringOrNull(0) }?.filterNotNull()?.toSet() ?: emptySet()
+
+        fun TransactionChange.asUpsert(): TransactionChange =
+            if (isCreate || splitParts() != null) toBuilder()
+                .apply { if (isCreate && localUuids.contains(uuid())) setType(TransactionChange.Type.updated) }
+                .setSplitParts(splitParts()?.map { it.asUpsert() })
+                .build()
+            else this
+
+        val snapshotUuids = snapshot.flatMap { change ->
+            listOf(change.uuid()) + (change.splitParts()?.map { it.uuid() } ?: emptyList())
+        }.toSet()
+        val pendingUuids = localChanges.flatMap { listOfNotNull(it.uuid(), it.parentUuid()) }.toSet()
+        return snapshot.map { it.asUpsert() } + (localUuids - snapshotUuids - pendingUuids).map {
+            TransactionChange.builder()
+                .setType(TransactionChange.Type.deleted)
+                .setUuid(it)
+                .setCurrentTimeStamp()
+                .build()
+        }
+    }
+
+    /**
+     * Reads the local changes of one sync sequence from [changesUri]. Tags and attachments of all
+     * changes are loaded with one query each per [LOOKUP_CHUNK_SIZE] transactions, and category paths
+     * are loaded once per category during a sync.
+     */
+    @Throws(RemoteException::class)
+    fun collectLocalChanges(
+        provider: ContentProviderClient,
+        changesUri: Uri
+    ): List<TransactionChange> {
+        val changes = provider.query(changesUri, null, null, null, null)?.useAndMap {
+            TransactionChange.create(it) to it.getLongOrNull(KEY_CATID)
+        } ?: return emptyList()
+        val uuids = changes.map { it.first }.filter { it.isCreateOrUpdate }.map { it.uuid() }.distinct()
+        val tags = lookupByTransactionUuid(
+            provider,
+            TransactionProvider.TRANSACTIONS_TAGS_URI,
+            "$TABLE_TRANSACTIONS_TAGS.$KEY_TRANSACTIONID",
+            KEY_LABEL,
+            uuids
+        )
+        val attachments = lookupByTransactionUuid(
+            provider,
+            TransactionProvider.TRANSACTIONS_ATTACHMENTS_URI,
+            "$TABLE_TRANSACTION_ATTACHMENTS.$KEY_TRANSACTIONID",
+            "$TABLE_ATTACHMENTS.$KEY_UUID",
+            uuids
+        )
+        return changes.map { (change, catId) ->
+            change.toBuilder().apply {
+                if (change.isCreateOrUpdate) {
+                    tags[change.uuid()]?.let { setTags(it) }
+                    attachments[change.uuid()]?.let { setAttachments(it) }
+                }
+                catId?.takeIf { it > 0 }?.let {
+                    setCategoryInfo(categoryPathToInfo.getOrPut(it) { loadCategoryPath(provider, it) })
+                }
+            }.build()
+        }
+    }
+
+    /**
+     * @return for each transaction uuid, the values of [valueColumn] in the rows of [uri] that
+     * reference the transaction through [transactionIdColumn]
+     */
+    private fun lookupByTransactionUuid(
+        provider: ContentProviderClient,
+        uri: Uri,
+        transactionIdColumn: String,
+        valueColumn: String,
+        uuids: List<String>
+    ): Map<String, List<String>> = buildMap<String, MutableList<String>> {
+        uuids.chunked(LOOKUP_CHUNK_SIZE).forEach { chunk ->
+            provider.query(
+                uri,
+                arrayOf(
+                    "(SELECT $KEY_UUID FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID = $transactionIdColumn)",
+                    valueColumn
+                ),
+                "$transactionIdColumn IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_UUID IN (${
+                    chunk.joinToString { "?" }
+                }))",
+                chunk.toTypedArray(),
+                null
+            )?.use { cursor ->
+                cursor.asSequence.forEach {
+                    getOrPut(it.getString(0)) { mutableListOf() }.add(it.getString(1))
+                }
+            }
+        }
+    }
+
+    private fun loadCategoryPath(provider: ContentProviderClient, catId: Long) = provider.query(
+        ContentUris.withAppendedId(BaseTransactionProvider.CATEGORY_TREE_URI, catId),
+        null, null, null, null
+    )?.use { cursor ->
+        cursor.asSequence.map {
+            CategoryInfo(
+                it.getString(KEY_UUID),
+                it.getString(KEY_LABEL),
+                it.getStringOrNull(KEY_ICON),
+                it.getIntOrNull(KEY_COLOR),
+                if (it.getLongOrNull(KEY_PARENTID) == null)
+                    it.getInt(KEY_TYPE) else null
+            )
+        }.toList().asReversed()
+    } ?: emptyList()
+
+    /**
+     * Reduces a change log to its net effect, as the content of a snapshot. Unsplit and link changes
+     * stay in place, since they change which transaction a uuid refers to, and the changes between
+     * them are compacted on their own: creates and updates of the same transaction are merged into
+     * one change, and split parts are grouped under their parent again. Changes of transactions that
+     * are deleted later are dropped together with the delete, unless an unsplit or link change refers
+     * to them. Metadata changes are dropped, since account metadata is stored separately.
+     */
+    fun compact(changes: List<TransactionChange>): List<TransactionChange> {
+        val flat = changes.flatMap { change ->
+            change.splitParts()?.let { parts ->
+                listOf(change.toBuilder().setSplitParts(null).build()) + parts
+            } ?: listOf(change)
+        }
+        val barrierUuids = flat.filter { it.isBarrier }
+            .flatMap { listOfNotNull(it.uuid(), it.referenceNumber()) }
+            .toSet()
+        val deletedUuids = findDeletedUuids(flat).toSet() - barrierUuids
+        val result = mutableListOf<TransactionChange>()
+        val segment = mutableListOf<TransactionChange>()
+        flat.filter {
+            it.type() != TransactionChange.Type.metadata &&
+                    !deletedUuids.contains(it.uuid()) &&
+                    it.parentUuid()?.let(deletedUuids::contains) != true
+        }.forEach {
+            if (it.isBarrier) {
+                result.addAll(compactSegment(segment))
+                segment.clear()
+                result.add(it)
+            } else {
+                segment.add(it)
+            }
+        }
+        result.addAll(compactSegment(segment))
+        return result
+    }
+
+    private val TransactionChange.isBarrier
+        get() = type() == TransactionChange.Type.unsplit || type() == TransactionChange.Type.link
+
+    /**
+     * Merges the creates and updates of a stretch of the change log without unsplit and link
+     * changes. Deletes that are left are kept after them.
+     */
+    private fun compactSegment(segment: List<TransactionChange>): List<TransactionChange> {
+        val deletedInSegment = findDeletedUuids(segment).toSet()
+        val merged = segment
+            .filter { it.isCreateOrUpdate && !deletedInSegment.contains(it.uuid()) }
+            .groupBy { it.uuid() }
+            .values
+            .map { changesForUuid ->
+                mergeUpdates(changesForUuid).let { mergedChange ->
+                    //timestamps from different devices might sort an update before the create
+                    if (changesForUuid.any { it.isCreate } && !mergedChange.isCreate)
+                        mergedChange.toBuilder().setType(TransactionChange.Type.created).build()
+                    else mergedChange
+                }
+            }
+        return collectSplits(merged.toMutableList()) + segment.filter { it.isDelete }
+    }
+
     private fun ensureList(
         map: HashMap<String, MutableList<TransactionChange>>,
         uuid: String
@@ -272,7 +577,7 @@ class SyncDelegate(
         val tagIds = change.tags()?.let { repository.extractTagIds(it, tagToId) }
         when (change.type()) {
             TransactionChange.Type.created -> {
-                val transactionId = resolver(account.id, change.uuid())
+                val transactionId = resolve(account.id, change.uuid())
                 if (transactionId > -1) {
                     if (parentOffset > -1) {
                         //if we find a split part that already exists, we need to assume that it has already been synced
@@ -310,7 +615,7 @@ class SyncDelegate(
 
             TransactionChange.Type.updated -> {
                 val values: ContentValues = toContentValues(change)
-                val transactionId = resolver(account.id, change.uuid())
+                val transactionId = resolve(account.id, change.uuid())
                 if (transactionId != -1L || parentOffset != -1) {
                     if (values.size() > 0 || parentOffset != -1) {
                         val builder = ContentProviderOperation.newUpdate(uri)
@@ -343,7 +648,7 @@ class SyncDelegate(
             }
 
             TransactionChange.Type.deleted -> {
-                val transactionId = resolver(account.id, change.uuid())
+                val transactionId = resolve(account.id, change.uuid())
                 if (transactionId != -1L) {
                     ops.add(
                         ContentProviderOperation.newDelete(
@@ -442,12 +747,16 @@ class SyncDelegate(
     private fun TransactionChange.extractCatId(): Long? {
         return label()?.let {
             CategoryHelper.insert(repository, it, categoryToId, false)
-            categoryToId[it] ?: throw IOException("Saving category $it failed")
+            categoryToId[CategoryHelper.pathKey(it)] ?: throw IOException("Saving category $it failed")
         } ?: categoryInfo()?.fold(null) { parentId: Long?, categoryInfo: CategoryInfo ->
-            repository.ensureCategory(
-                categoryInfo,
-                parentId
-            ).first
+            //ensureCategory also updates label, icon and color, so it is enough to call it once
+            //per category during a sync
+            categoryInfoToId.getOrPut(categoryInfo to parentId) {
+                repository.ensureCategory(
+                    categoryInfo,
+                    parentId
+                ).first
+            }
         }
     }
 
@@ -481,7 +790,7 @@ class SyncDelegate(
                 //we create a Transfer, the Transfer class will take care in buildSaveOperations
                 //of linking them together
                 findTransferAccount(transferAccount)?.takeIf { accountId ->
-                    resolver(
+                    resolve(
                         accountId,
                         change.uuid()
                     ) != -1L
@@ -506,7 +815,7 @@ class SyncDelegate(
         t.referenceNumber = change.referenceNumber()
         if (parentOffset == -1) {
             change.parentUuid()?.let {
-                val parentId = resolver(account.id, it)
+                val parentId = resolve(account.id, it)
                 if (parentId == -1L) {
                     return ArrayList() //if we fail to link a split part to a parent, we need to ignore it
                 }
@@ -556,4 +865,11 @@ class SyncDelegate(
         }
         return null
     }
+
+    companion object {
+        /**
+         * stays below SQLite's default limit of 999 host parameters
+         */
+        private const val LOOKUP_CHUNK_SIZE = 500
+    }
 }
\ No newline at end of file
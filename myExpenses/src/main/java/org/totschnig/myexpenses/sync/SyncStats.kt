@@ -0,0 +1,174 @@
+package org.totschnig.myexpenses.sync
+
+import org.totschnig.myexpenses.sync.json.SyncRunStats
+import java.io.FilterInputStream
+import java.io.FilterOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Collects timings, transferred bytes and operation counts while one account is synced. Phases are
+ * timed exclusively: time spent in a phase nested in another one, e.g. downloading a change file
+ * while it is parsed, is only attributed to the inner phase. Can be updated from the threads
+ * change files are fetched on.
+ * @param run start of the sync run, shared by all accounts synced in it
+ */
+class SyncStats(
+    private val syncAccountName: String,
+    private val run: Long
+) {
+    enum class Phase { LOCK, LIST, DOWNLOAD, DECRYPT, PARSE, COLLECT_LOCAL, MERGE, APPLY_BATCH, UPLOAD, DB_LOCK_WAIT }
+
+    private val started = System.currentTimeMillis()
+    private val startedNanos = System.nanoTime()
+    private val phaseNanos = AtomicLongArray(Phase.values().size)
+    private val bytesRead = AtomicLong()
+    private val bytesWritten = AtomicLong()
+    private val changeFilesRead = AtomicInteger()
+    private val changeFilesWritten = AtomicInteger()
+    private val operations = AtomicInteger()
+    private val backoffs = ConcurrentLinkedQueue<Long>()
+
+    /**
+     * set once the account has been loaded from the database
+     */
+    @Volatile
+    var accountUuid: String? = null
+
+    /**
+     * set once the account has been synced without error
+     */
+    @Volatile
+    var completed = false
+
+    /**
+     * per thread, the time spent in nested phases of each phase currently timed
+     */
+    private val nestedNanos = object : ThreadLocal<ArrayDeque<LongArray>>() {
+        override fun initialValue() = ArrayDeque<LongArray>()
+    }
+
+    fun <T> time(phase: Phase, block: () -> T): T {
+        val stack = nestedNanos.get()!!
+        val nested = LongArray(1)
+        stack.addLast(nested)
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            val elapsed = System.nanoTime() - start
+            stack.removeLast()
+            phaseNanos.addAndGet(phase.ordinal, elapsed - nested[0])
+            stack.lastOrNull()?.let { it[0] += elapsed }
+        }
+    }
+
+    fun changeFileRead() {
+        changeFilesRead.incrementAndGet()
+    }
+
+    fun changeFileWritten() {
+        changeFilesWritten.incrementAndGet()
+    }
+
+    fun operationsApplied(count: Int) {
+        operations.addAndGet(count)
+    }
+
+    /**
+     * @param delayUntilSeconds when the sync framework has been asked to retry
+     */
+    fun backoff(delayUntilSeconds: Long) {
+        backoffs.add(delayUntilSeconds * 1000 - System.currentTimeMillis())
+    }
+
+    /**
+     * bytes read from [inputStream] are counted as downloaded, time spent reading as [Phase.DOWNLOAD]
+     */
+    fun meterDownload(inputStream: InputStream): InputStream =
+        MeteredInputStream(inputStream, Phase.DOWNLOAD, bytesRead)
+
+    /**
+     * time spent reading from [inputStream], apart from downloading, is timed as [Phase.DECRYPT]
+     */
+    fun meterDecoding(inputStream: InputStream): InputStream =
+        MeteredInputStream(inputStream, Phase.DECRYPT, null)
+
+    /**
+     * bytes read from [inputStream] are counted as uploaded
+     */
+    fun meterUpload(inputStream: InputStream): InputStream =
+        MeteredInputStream(inputStream, null, bytesWritten)
+
+    /**
+     * bytes written to [outputStream] are counted as uploaded
+     */
+    fun meterUpload(outputStream: OutputStream): OutputStream =
+        object : FilterOutputStream(outputStream) {
+            override fun write(b: Int) {
+                out.write(b)
+                bytesWritten.incrementAndGet()
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                out.write(b, off, len)
+                bytesWritten.addAndGet(len.toLong())
+            }
+        }
+
+    /**
+     * @return null if no account has been loaded
+     */
+    fun finish(): SyncRunStats? {
+        val uuid = accountUuid ?: return null
+        return SyncRunStats(
+            run = run,
+            syncAccountName = syncAccountName,
+            accountUuid = uuid,
+            started = started,
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos),
+            completed = completed,
+            phaseMillis = Phase.values().associate {
+                it.name.lowercase() to TimeUnit.NANOSECONDS.toMillis(phaseNanos[it.ordinal])
+            },
+            bytesRead = bytesRead.get(),
+            bytesWritten = bytesWritten.get(),
+            changeFilesRead = changeFilesRead.get(),
+            changeFilesWritten = changeFilesWritten.get(),
+            operations = operations.get(),
+            backoffMillis = backoffs.toList()
+        )
+    }
+
+    private inner class MeteredInputStream(
+        inputStream: InputStream,
+        private val phase: Phase?,
+        private val counter: AtomicLong?
+    ) : FilterInputStream(inputStream) {
+
+        private fun <T> timed(block: () -> T) = if (phase == null) block() else time(phase, block)
+
+        override fun read() = timed { `in`.read() }.also {
+            if (it != -1) counter?.incrementAndGet()
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int) = timed { `in`.read(b, off, len) }.also {
+            if (it > 0) counter?.addAndGet(it.toLong())
+        }
+
+        override fun skip(n: Long) = timed { `in`.skip(n) }.also {
+            counter?.addAndGet(it)
+        }
+    }
+}
+
+/**
+ * Times [block] as [phase], if stats are collected
+ */
+fun <T> SyncStats?.time(phase: SyncStats.Phase, block: () -> T): T =
+    if (this == null) block() else time(phase, block)
@@ -19,6 +19,57 @@ import org.totschnig.myexpenses.preference.PrefKey;
 
 @AutoValue
 public abstract class  AccountMetaData implements Parcelable {
+  public static final int FORMAT_VERSION_PLAIN = 1;
+  /**
+   * change files might be gzip compressed before encryption
+   */
+  public static final int FORMAT_VERSION_COMPRESSED = 2;
+  /**
+   * attachments might be stored under the hash of their content, and mapped to their uuid by a
+   * manifest in the account folder. Requested independently of compression, change files in this
+   * format might be compressed nevertheless.
+   */
+  public static final int FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS = 3;
+  /**
+   * highest format version this version of the app can read
+   */
+  public static final int FORMAT_VERSION_SUPPORTED = FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS;
+  /**
+   * version code and name of the first release that reads {@link #FORMAT_VERSION_COMPRESSED}
+   */
+  public static final int MIN_APP_VERSION_COMPRESSED = 692;
+  public static final String MIN_APP_VERSION_NAME_COMPRESSED = "3.7.2";
+  /**
+   * version code and name of the first release that reads
+   * {@link #FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS}
+   */
+  public static final int MIN_APP_VERSION_CONTENT_ADDRESSED_ATTACHMENTS = 692;
+  public static final String MIN_APP_VERSION_NAME_CONTENT_ADDRESSED_ATTACHMENTS = "3.7.2";
+  /**
+   * version code and name of the first release that restores an account from a snapshot, once the
+   * changes it has not yet synced have been pruned from the change log. Pruning does not change
+   * the format of the files that remain, so it is recorded only as minimum app version.
+   */
+  public static final int MIN_APP_VERSION_PRUNED_CHANGE_LOG = 692;
+  public static final String MIN_APP_VERSION_NAME_PRUNED_CHANGE_LOG = "3.7.2";
+
+  /**
+   * @return version code of the first release that reads accounts in {@code formatVersion}, 0 for
+   * the original format
+   */
+  public static int minAppVersionForFormat(int formatVersion) {
+    switch (formatVersion) {
+      case FORMAT_VERSION_PLAIN:
+        return 0;
+      case FORMAT_VERSION_COMPRESSED:
+        return MIN_APP_VERSION_COMPRESSED;
+      case FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS:
+        return MIN_APP_VERSION_CONTENT_ADDRESSED_ATTACHMENTS;
+      default:
+        throw new IllegalArgumentException("Unknown format version " + formatVersion);
+    }
+  }
+
   public static TypeAdapter<AccountMetaData> typeAdapter(Gson gson) {
     return new AutoValue_AccountMetaData.GsonTypeAdapter(gson);
   }
@@ -53,6 +104,30 @@ public abstract class  AccountMetaData implements Parcelable {
   @Nullable
   abstract Long criterion();
 
+  /**
+   * null for accounts written in the original format, see {@link #FORMAT_VERSION_COMPRESSED}
+   */
+  @Nullable
+  public abstract Integer formatVersion();
+
+  public int _formatVersion() {
+    return formatVersion() == null ? FORMAT_VERSION_PLAIN : formatVersion();
+  }
+
+  /**
+   * version code of the first release that reads {@link #formatVersion()}, see
+   * {@link #minAppVersionForFormat(int)}, or {@link #MIN_APP_VERSION_PRUNED_CHANGE_LOG} once the
+   * change log has been pruned. Versions of the app older than this refuse to synchronize
+   * the account. Released versions that predate this
+   * field do not know about it, which is why the compression setting documents it.
+   */
+  @Nullable
+  public abstract Integer minAppVersion();
+
+  public int _minAppVersion() {
+    return minAppVersion() == null ? 0 : minAppVersion();
+  }
+
   public long _criterion() {
     return criterion() == null ? 0L : criterion();
   }
@@ -100,6 +175,10 @@ public abstract class  AccountMetaData implements Parcelable {
   }
 
   public static AccountMetaData from(org.totschnig.myexpenses.model2.Account account, String homeCurrency) {
+    return from(account, homeCurrency, null, null);
+  }
+
+  public static AccountMetaData from(org.totschnig.myexpenses.model2.Account account, String homeCurrency, @Nullable Integer formatVersion, @Nullable Integer minAppVersion) {
     final String accountCurrency = account.getCurrency();
     final Builder builder = builder()
         .setCurrency(accountCurrency)
@@ -110,7 +189,9 @@ public abstract class  AccountMetaData implements Parcelable {
         .setOpeningBalance(account.getOpeningBalance())
         .setType(account.getType().name())
         .setExcludeFromTotals(account.getExcludeFromTotals())
-        .setCriterion(account.getCriterion() != null ? account.getCriterion() : 0);
+        .setCriterion(account.getCriterion() != null ? account.getCriterion() : 0)
+        .setFormatVersion(formatVersion)
+        .setMinAppVersion(minAppVersion);
     if (homeCurrency != null && !homeCurrency.equals(accountCurrency)) {
       builder.setExchangeRate(account.getExchangeRate()).setExchangeRateOtherCurrency(homeCurrency);
     }
@@ -130,6 +211,8 @@ public abstract class  AccountMetaData implements Parcelable {
     public abstract Builder setExchangeRateOtherCurrency(String otherCurrency);
     public abstract Builder setExcludeFromTotals(Boolean excludeFromTotals);
     public abstract Builder setCriterion(Long criterion);
+    public abstract Builder setFormatVersion(Integer formatVersion);
+    public abstract Builder setMinAppVersion(Integer minAppVersion);
 
     public abstract AccountMetaData build();
   }
@@ -0,0 +1,12 @@
+package org.totschnig.myexpenses.sync.json
+
+import androidx.annotation.Keep
+
+/**
+ * Entry in the attachment manifest of an account, which maps the uuid of an attachment to the
+ * blob holding its content
+ * @param hash SHA-256 of the content, hex encoded
+ * @param fileName name of the attachment when it was uploaded, restored on download
+ */
+@Keep
+data class AttachmentManifestEntry(val hash: String, val fileName: String)
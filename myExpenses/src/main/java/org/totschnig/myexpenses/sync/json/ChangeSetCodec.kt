@@ -0,0 +1,63 @@
+package org.totschnig.myexpenses.sync.json
+
+import android.content.Context
+import com.google.gson.Gson
+import org.totschnig.myexpenses.feature.Feature
+import org.totschnig.myexpenses.feature.FeatureManager
+import java.io.IOException
+import java.io.Reader
+import java.io.Writer
+
+/**
+ * Reads and writes the JSON content of change files. Implementations must not close the passed
+ * in reader or writer.
+ */
+interface ChangeSetCodec {
+    /**
+     * @return null if the content is empty
+     */
+    @Throws(IOException::class)
+    fun read(reader: Reader): MutableList<TransactionChange>?
+
+    @Throws(IOException::class)
+    fun write(writer: Writer, changes: List<TransactionChange>)
+}
+
+class GsonChangeSetCodec(private val gson: Gson) : ChangeSetCodec {
+    override fun read(reader: Reader): MutableList<TransactionChange>? =
+        Utils.getChanges(gson, reader)
+
+    override fun write(writer: Writer, changes: List<TransactionChange>) {
+        gson.toJson(changes, writer)
+    }
+}
+
+/**
+ * Resolves the codec whenever a change file is read or written: the streaming codec from the
+ * jackson feature once [FeatureManager] reports it as installed, which might happen on demand
+ * while a backend is in use, otherwise Gson. Once loaded, the jackson codec is kept.
+ */
+class ChangeSetCodecResolver(
+    private val context: Context,
+    private val featureManager: () -> FeatureManager,
+    gson: Gson
+) {
+    private val fallback = GsonChangeSetCodec(gson)
+
+    @Volatile
+    private var jackson: ChangeSetCodec? = null
+
+    fun get(): ChangeSetCodec = jackson
+        ?: if (featureManager().isFeatureInstalled(Feature.JACKSON, context)) try {
+            //the class loader of the context is the one split installs are added to
+            (Class.forName(JACKSON_CODEC, true, context.classLoader)
+                .getConstructor()
+                .newInstance() as ChangeSetCodec).also { jackson = it }
+        } catch (e: ReflectiveOperationException) {
+            fallback
+        } else fallback
+
+    companion object {
+        private const val JACKSON_CODEC = "org.totschnig.jackson.JacksonChangeSetCodec"
+    }
+}
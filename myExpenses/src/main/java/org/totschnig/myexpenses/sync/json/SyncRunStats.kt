@@ -0,0 +1,37 @@
+package org.totschnig.myexpenses.sync.json
+
+import androidx.annotation.Keep
+import com.google.gson.Gson
+
+/**
+ * What happened while an account was synced, persisted as JSON in the sync stats history
+ * @param run start of the sync run the account was synced in, in milliseconds
+ * @param phaseMillis time spent in each [org.totschnig.myexpenses.sync.SyncStats.Phase], keyed
+ * by its lowercase name
+ * @param operations number of ContentProviderOperations applied to the database
+ * @param backoffMillis delay requested from the sync framework for each I/O error
+ */
+@Keep
+data class SyncRunStats(
+    val run: Long,
+    val syncAccountName: String,
+    val accountUuid: String,
+    val started: Long,
+    val durationMillis: Long,
+    val completed: Boolean,
+    val phaseMillis: Map<String, Long>,
+    val bytesRead: Long,
+    val bytesWritten: Long,
+    val changeFilesRead: Int,
+    val changeFilesWritten: Int,
+    val operations: Int,
+    val backoffMillis: List<Long>
+) {
+    fun toJson(): String = gson.toJson(this)
+
+    companion object {
+        private val gson = Gson()
+
+        fun fromJson(json: String): SyncRunStats = gson.fromJson(json, SyncRunStats::class.java)
+    }
+}
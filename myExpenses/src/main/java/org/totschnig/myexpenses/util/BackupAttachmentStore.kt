@@ -0,0 +1,227 @@
+package org.totschnig.myexpenses.util
+
+import android.content.ContentResolver
+import android.content.Context
+import android.net.Uri
+import android.provider.DocumentsContract
+import android.provider.DocumentsContract.Document
+import androidx.annotation.Keep
+import androidx.documentfile.provider.DocumentFile
+import com.google.gson.Gson
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.util.io.hexDigest
+import org.totschnig.myexpenses.util.io.sha256Digest
+import timber.log.Timber
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Lists the attachments of an incremental backup, keyed by the name they have in the
+ * [ZipUtils.PICTURES] folder of a regular backup, with the hashes of their chunks in order.
+ */
+@Keep
+data class BackupManifest(val attachments: Map<String, List<String>>) {
+    fun toJson(): String = gson.toJson(this)
+
+    companion object {
+        private val gson = Gson()
+
+        fun fromJson(json: String): BackupManifest = gson.fromJson(json, BackupManifest::class.java)
+    }
+}
+
+/**
+ * Content addressed store for the attachments of incremental backups, kept in a folder next to the
+ * backup files. Attachments are split into chunks of [CHUNK_SIZE] bytes, each stored once under
+ * its SHA-256, so that a backup only writes the chunks that no earlier backup has written, and
+ * images are stored as they are instead of being deflated into the zip.
+ *
+ * For each backup, a copy of its manifest is kept in [MANIFESTS], named after the backup file, so
+ * that [purge] knows which chunks are still needed, once old backups have been deleted.
+ */
+class BackupAttachmentStore private constructor(
+    private val context: Context,
+    private val directory: DocumentFile
+) {
+
+    /**
+     * the chunks in the store, listed once per instance, i.e. once per backup or restore
+     */
+    private val chunks: MutableMap<String, Uri> by lazy {
+        listFiles()
+            .filter { (name, _) -> !name.startsWith(TEMP_PREFIX) }
+            .associateTo(HashMap()) { (name, uri) -> name.substringBefore('.') to uri }
+    }
+
+    /**
+     * Lists names and uris of the files in the store. For a folder picked with the storage access
+     * framework, this is a single query, while [DocumentFile.listFiles] needs another query for
+     * the name and type of each file.
+     */
+    private fun listFiles(): List<Pair<String, Uri>> {
+        val uri = directory.uri
+        return if (uri.scheme == ContentResolver.SCHEME_FILE) {
+            File(uri.path!!).listFiles()?.filter { it.isFile }?.map { it.name to Uri.fromFile(it) }
+                ?: emptyList()
+        } else {
+            context.contentResolver.query(
+                DocumentsContract.buildChildDocumentsUriUsingTree(
+                    uri,
+                    DocumentsContract.getDocumentId(uri)
+                ),
+                arrayOf(
+                    Document.COLUMN_DOCUMENT_ID,
+                    Document.COLUMN_DISPLAY_NAME,
+                    Document.COLUMN_MIME_TYPE
+                ),
+                null,
+                null,
+                null
+            )?.useAndMap { cursor ->
+                cursor.getString(1)?.takeIf { cursor.getString(2) != Document.MIME_TYPE_DIR }
+                    ?.let { it to DocumentsContract.buildDocumentUriUsingTree(uri, cursor.getString(0)) }
+            }?.filterNotNull() ?: emptyList()
+        }
+    }
+
+    private fun delete(uri: Uri) = if (uri.scheme == ContentResolver.SCHEME_FILE)
+        File(uri.path!!).delete()
+    else try {
+        DocumentsContract.deleteDocument(context.contentResolver, uri)
+    } catch (e: FileNotFoundException) {
+        false
+    }
+
+    private val manifestDirectory: DocumentFile?
+        get() = directory.findFile(MANIFESTS)
+
+    /**
+     * Stores the chunks of [inputStream] that are not yet in the store
+     * @return the hashes of the chunks in order
+     */
+    @Throws(IOException::class)
+    fun put(inputStream: InputStream): List<String> {
+        val buffer = ByteArray(CHUNK_SIZE)
+        return buildList {
+            while (true) {
+                val length = inputStream.readFully(buffer)
+                if (length == 0) break
+                val hash = sha256Digest().apply { update(buffer, 0, length) }.hexDigest()
+                if (!chunks.containsKey(hash)) {
+                    chunks[hash] = writeChunk(hash, buffer, length)
+                }
+                add(hash)
+                if (length < buffer.size) break
+            }
+        }
+    }
+
+    private fun InputStream.readFully(buffer: ByteArray): Int {
+        var total = 0
+        while (total < buffer.size) {
+            val read = read(buffer, total, buffer.size - total)
+            if (read == -1) break
+            total += read
+        }
+        return total
+    }
+
+    /**
+     * Chunks are written under a temporary name first, so that an interrupted backup does not
+     * leave a truncated chunk under the name of its hash.
+     */
+    private fun writeChunk(hash: String, buffer: ByteArray, length: Int): Uri {
+        val temp = AppDirHelper.buildFile(
+            directory, "$TEMP_PREFIX$hash", MIME_TYPE, allowExisting = false
+        ) ?: throw IOException("Could not create chunk $hash in ${directory.uri}")
+        context.contentResolver.openOutputStream(temp.uri)?.use {
+            it.write(buffer, 0, length)
+        } ?: throw IOException("Could not open ${temp.uri}")
+        if (!temp.renameTo(hash)) {
+            temp.delete()
+            throw IOException("Could not rename chunk $hash")
+        }
+        return temp.uri
+    }
+
+    /**
+     * Concatenates the chunks with [hashes] into [target], verifying each of them
+     * @return false if a chunk is missing or damaged
+     */
+    fun assemble(hashes: List<String>, target: File): Boolean {
+        target.parentFile?.mkdirs()
+        val result = target.outputStream().use { out ->
+            hashes.all { hash ->
+                val chunk = chunks[hash] ?: return@all false
+                val digest = sha256Digest()
+                context.contentResolver.openInputStream(chunk)?.use { input ->
+                    val buffer = ByteArray(8192)
+                    while (true) {
+                        val read = input.read(buffer)
+                        if (read == -1) break
+                        digest.update(buffer, 0, read)
+                        out.write(buffer, 0, read)
+                    }
+                } ?: return@all false
+                (digest.hexDigest() == hash).also {
+                    if (!it) Timber.w("Chunk %s is damaged", hash)
+                }
+            }
+        }
+        if (!result) target.delete()
+        return result
+    }
+
+    fun writeManifest(backupName: String, manifest: BackupManifest) {
+        val dir = manifestDirectory ?: directory.createDirectory(MANIFESTS)
+        ?: throw IOException("Could not create $MANIFESTS in ${directory.uri}")
+        val file = AppDirHelper.buildFile(dir, "$backupName.json", "application/json", allowExisting = true)
+            ?: throw IOException("Could not create manifest for $backupName")
+        context.contentResolver.openOutputStream(file.uri, "wt")?.use {
+            it.write(manifest.toJson().toByteArray())
+        } ?: throw IOException("Could not open ${file.uri}")
+    }
+
+    /**
+     * Deletes the manifests of backups that are no longer in [backupNames], and all chunks that the
+     * remaining manifests do not refer to
+     * @return the number of chunks deleted
+     */
+    fun purge(backupNames: Set<String>): Int {
+        val referenced = HashSet<String>()
+        manifestDirectory?.listFiles()?.forEach { file ->
+            val backupName = file.name?.removeSuffix(".json")
+            if (backupName == null || backupName !in backupNames) {
+                file.delete()
+            } else {
+                context.contentResolver.openInputStream(file.uri)?.use {
+                    referenced.addAll(
+                        BackupManifest.fromJson(it.bufferedReader().readText()).attachments.values.flatten()
+                    )
+                }
+            }
+        }
+        var deleted = 0
+        listFiles().forEach { (name, uri) ->
+            if (name.startsWith(TEMP_PREFIX) || name.substringBefore('.') !in referenced) {
+                if (delete(uri)) deleted++
+            }
+        }
+        chunks.keys.retainAll(referenced)
+        return deleted
+    }
+
+    companion object {
+        const val DIRECTORY = "BackupAttachments"
+        const val MANIFESTS = "manifests"
+        const val CHUNK_SIZE = 1 shl 20
+        private const val TEMP_PREFIX = "tmp-"
+        private const val MIME_TYPE = "application/octet-stream"
+
+        fun get(context: Context, appDir: DocumentFile, create: Boolean) =
+            (appDir.findFile(DIRECTORY) ?: if (create) appDir.createDirectory(DIRECTORY) else null)
+                ?.let { BackupAttachmentStore(context, it) }
+    }
+}
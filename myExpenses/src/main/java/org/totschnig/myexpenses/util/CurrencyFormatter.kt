@@ -7,6 +7,7 @@ import org.totschnig.myexpenses.model.Money
 import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.notifyTransactionsChanged
 import java.math.BigDecimal
 import java.text.DecimalFormat
 import java.text.NumberFormat
@@ -71,7 +72,7 @@ open class CurrencyFormatter(
 
     private fun notifyUris(contentResolver: ContentResolver) {
         contentResolver.notifyChange(TransactionProvider.TEMPLATES_URI, null, false)
-        contentResolver.notifyChange(TransactionProvider.TRANSACTIONS_URI, null, false)
+        contentResolver.notifyTransactionsChanged()
         contentResolver.notifyChange(TransactionProvider.ACCOUNTS_URI, null, false)
         contentResolver.notifyChange(TransactionProvider.UNCOMMITTED_URI, null, false)
     }
@@ -1,9 +1,12 @@
 package org.totschnig.myexpenses.util
 
+import android.content.ContentResolver
 import android.content.Context
 import android.net.Uri
 import android.text.TextUtils
+import androidx.annotation.VisibleForTesting
 import androidx.documentfile.provider.DocumentFile
+import org.totschnig.myexpenses.provider.BACKUP_MANIFEST_FILE_NAME
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
 import org.totschnig.myexpenses.provider.TransactionProvider
@@ -13,6 +16,7 @@ import org.totschnig.myexpenses.provider.getBackupDbFile
 import org.totschnig.myexpenses.provider.getBackupPrefFile
 import org.totschnig.myexpenses.util.crypt.EncryptionHelper
 import timber.log.Timber
+import java.io.BufferedInputStream
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileNotFoundException
@@ -20,18 +24,36 @@ import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
 import java.security.GeneralSecurityException
+import java.util.zip.CRC32
 import java.util.zip.ZipEntry
 import java.util.zip.ZipInputStream
 import java.util.zip.ZipOutputStream
 
 object ZipUtils {
     const val PICTURES = "Pictures"
+
+    /**
+     * size of the buffers used for copying into and out of archives
+     */
+    const val BUFFER_SIZE = 256 * 1024
+
+    /**
+     * extensions of attachments that are compressed already, and are stored in the zip without
+     * deflating them again, see [addUriToZipStored]
+     */
+    private val COMPRESSED_EXTENSIONS = setOf("jpg", "jpeg", "png", "webp", "gif", "heic", "pdf")
+
+    /**
+     * @param attachmentStore if not null, attachments are not written into the zip, but into the
+     * store, and the zip only holds the manifest, see [BackupAttachmentStore]
+     */
     @Throws(IOException::class, GeneralSecurityException::class)
     fun zipBackup(
         context: Context,
         cacheDir: File?,
         destZipFile: DocumentFile,
-        password: String?
+        password: String?,
+        attachmentStore: BackupAttachmentStore? = null
     ) {
         val resolver = context.contentResolver
         val out = resolver.openOutputStream(destZipFile.uri)
@@ -42,6 +64,7 @@ object ZipUtils {
         )
         addFileToZip("", getBackupDbFile(cacheDir), zip)
         addFileToZip("", getBackupPrefFile(cacheDir), zip)
+        val manifest = HashMap<String, List<String>>()
         resolver
             .query(
                 TransactionProvider.ATTACHMENTS_URI,
@@ -55,12 +78,16 @@ object ZipUtils {
                     val uri = Uri.parse(cursor.getString(1))
                     val fileName = "${rowId}_${uri.fileName(context)}"
                     try {
-                        resolver.openInputStream(uri)?.use { inputStream ->
-                            addInputStreamToZip(
-                                "$PICTURES/$fileName",
-                                inputStream,
-                                zip
-                            )
+                        if (attachmentStore != null) {
+                            resolver.openInputStream(uri)?.use { inputStream ->
+                                manifest[fileName] = attachmentStore.put(inputStream)
+                            }
+                        } else if (fileName.substringAfterLast('.').lowercase() in COMPRESSED_EXTENSIONS) {
+                            addUriToZipStored("$PICTURES/$fileName", uri, resolver, zip)
+                        } else {
+                            resolver.openInputStream(uri)?.use { inputStream ->
+                                addInputStreamToZip("$PICTURES/$fileName", inputStream, zip)
+                            }
                         }
                     } catch (e: FileNotFoundException) {
                         //File has been removed
@@ -68,6 +95,15 @@ object ZipUtils {
                     }
                 }
             }
+        if (attachmentStore != null) {
+            val backupManifest = BackupManifest(manifest)
+            attachmentStore.writeManifest(destZipFile.name!!, backupManifest)
+            addInputStreamToZip(
+                BACKUP_MANIFEST_FILE_NAME,
+                backupManifest.toJson().byteInputStream(),
+                zip
+            )
+        }
         zip.flush()
         zip.close()
     }
@@ -91,47 +127,88 @@ object ZipUtils {
         path: String, inputStream: InputStream,
         zip: ZipOutputStream
     ) {
-        val buf = ByteArray(1024)
-        var len: Int
         zip.putNextEntry(ZipEntry(path))
-        while (inputStream.read(buf).also { len = it } > 0) {
-            zip.write(buf, 0, len)
-        }
+        inputStream.copyTo(zip, BUFFER_SIZE)
+    }
+
+    /**
+     * Adds the content of [uri] as a stored entry, i.e. without deflating it. The size and CRC of
+     * a stored entry precede its data, hence the content is read twice, first for computing them,
+     * then for copying it.
+     */
+    @VisibleForTesting
+    @Throws(IOException::class)
+    internal fun addUriToZipStored(
+        path: String, uri: Uri, resolver: ContentResolver,
+        zip: ZipOutputStream
+    ) {
+        val crc = CRC32()
+        var size = 0L
+        resolver.openInputStream(uri)?.use { inputStream ->
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (true) {
+                val read = inputStream.read(buffer)
+                if (read == -1) break
+                crc.update(buffer, 0, read)
+                size += read
+            }
+        } ?: return
+        zip.putNextEntry(ZipEntry(path).apply {
+            method = ZipEntry.STORED
+            this.size = size
+            compressedSize = size
+            this.crc = crc.value
+        })
+        resolver.openInputStream(uri)?.use { it.copyTo(zip, BUFFER_SIZE) }
+            ?: throw IOException("$uri could not be read again")
     }
 
+    /**
+     * Extracts the archive while it is read, decrypting it first if [password] is set
+     * @param destination where to write the entry with the given name, if not below [dirOut], e.g.
+     * the database, which is written next to its final location, so that restoring it is a rename
+     * @param onEntryExtracted called with the name and file of each entry once it is complete, so
+     * that it can be processed while the remaining entries are extracted
+     */
     @Throws(IOException::class, GeneralSecurityException::class)
-    fun unzip(fileIn: InputStream?, dirOut: File, password: String?) {
+    fun unzip(
+        fileIn: InputStream?,
+        dirOut: File,
+        password: String?,
+        destination: (String) -> File? = { null },
+        onEntryExtracted: (String, File) -> Unit = { _, _ -> }
+    ) {
+        // CipherInputStream reads its source in small pieces, hence it is buffered on both sides
         val zin = ZipInputStream(
-            if (TextUtils.isEmpty(password)) fileIn else EncryptionHelper.decrypt(
-                fileIn,
-                password
+            BufferedInputStream(
+                if (TextUtils.isEmpty(password)) fileIn else EncryptionHelper.decrypt(
+                    BufferedInputStream(fileIn, BUFFER_SIZE),
+                    password
+                ), BUFFER_SIZE
             )
         )
         while (true) {
             val ze = zin.nextEntry ?: break
             Timber.v("Unzipping %s", ze.name)
-            val newFile = File(dirOut, ze.name)
-            val canonicalPath = newFile.canonicalPath
-            if (!canonicalPath.startsWith(dirOut.canonicalPath)) {
-                throw SecurityException("Path Traversal Vulnerability")
+            val newFile = destination(ze.name) ?: File(dirOut, ze.name).also {
+                if (!it.canonicalPath.startsWith(dirOut.canonicalPath)) {
+                    throw SecurityException("Path Traversal Vulnerability")
+                }
             }
-            newFile.parentFile.mkdirs()
+            newFile.parentFile!!.mkdirs()
             if (ze.isDirectory) {
                 newFile.mkdir()
             } else {
-                val fout = FileOutputStream(newFile)
                 val startTime = System.currentTimeMillis()
-                val buffer = ByteArray(1024)
-                var count: Int
-                while (zin.read(buffer).also { count = it } != -1) {
-                    fout.write(buffer, 0, count)
+                FileOutputStream(newFile).use {
+                    zin.copyTo(it, BUFFER_SIZE)
                 }
                 val endTime = System.currentTimeMillis()
                 Timber.d("That took %d milliseconds", endTime - startTime)
                 zin.closeEntry()
-                fout.close()
+                onEntryExtracted(ze.name, newFile)
             }
         }
         zin.close()
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,29 @@
+package org.totschnig.myexpenses.util.io
+
+import java.io.IOException
+import java.io.InputStream
+import java.security.MessageDigest
+
+fun sha256Digest(): MessageDigest = MessageDigest.getInstance("SHA-256")
+
+/**
+ * completes the digest and returns it hex encoded
+ */
+fun MessageDigest.hexDigest(): String = digest().joinToString("") { "%02x".format(it) }
+
+/**
+ * SHA-256 of the content of [inputStream], hex encoded. Does not close the stream.
+ */
+@Throws(IOException::class)
+fun sha256(inputStream: InputStream): String {
+    val digest = sha256Digest()
+    val buffer = ByteArray(8192)
+    while (true) {
+        val read = inputStream.read(buffer)
+        if (read == -1) break
+        digest.update(buffer, 0, read)
+    }
+    return digest.hexDigest()
+}
+
+fun sha256(text: String): String = sha256Digest().apply { update(text.toByteArray()) }.hexDigest()
@@ -0,0 +1,41 @@
+package org.totschnig.myexpenses.util.io
+
+import java.io.FilterInputStream
+import java.io.InputStream
+
+/**
+ * Reports the number of bytes read from [inputStream] to [onProgress], whenever another [step]
+ * bytes have been read, and at the end of the stream
+ */
+class ProgressInputStream(
+    inputStream: InputStream,
+    private val step: Long = 1024 * 1024,
+    private val onProgress: (Long) -> Unit
+) : FilterInputStream(inputStream) {
+    private var bytesRead = 0L
+    private var reported = 0L
+
+    private fun count(read: Long) {
+        if (read == -1L) {
+            if (reported != bytesRead) {
+                reported = bytesRead
+                onProgress(bytesRead)
+            }
+        } else {
+            bytesRead += read
+            if (bytesRead - reported >= step) {
+                reported = bytesRead
+                onProgress(bytesRead)
+            }
+        }
+    }
+
+    override fun read(): Int = super.read().also { count(if (it == -1) -1 else 1) }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int =
+        super.read(b, off, len).also { count(it.toLong()) }
+
+    override fun skip(n: Long): Long = super.skip(n).also { count(it) }
+
+    override fun markSupported() = false
+}
@@ -13,6 +13,7 @@ import kotlinx.coroutines.launch
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.provider.deleteBackups
 import org.totschnig.myexpenses.provider.doBackup
 import org.totschnig.myexpenses.util.AppDirHelper
 import org.totschnig.myexpenses.util.crypt.EncryptionHelper
@@ -53,7 +54,7 @@ class BackupViewModel(application: Application) : ContentResolvingAndroidViewMod
                             prefHandler.getBoolean(PrefKey.PURGE_BACKUP_REQUIRE_CONFIRMATION, true)
                         val extraData = if (requireConfirmation || oldBackups.isEmpty())
                             Either.Left(oldBackups) else
-                            Either.Right(oldBackups.map { it.delete() })
+                            Either.Right(deleteBackups(getApplication<MyApplication>(), oldBackups))
                         Triple(
                             backupFile,
                             backupFile.displayName,
@@ -86,12 +87,9 @@ class BackupViewModel(application: Application) : ContentResolvingAndroidViewMod
                 backupState.postValue(
                     BackupState.Purged(
                         runCatching {
-                            @Suppress("DEPRECATION")
                             it.result.getOrThrow().third.fold(
                                 ifLeft = { list ->
-                                    list.sumBy {
-                                        if (it.delete()) 1 else 0
-                                    }
+                                    deleteBackups(getApplication<MyApplication>(), list).count { it }
                                 },
                                 ifRight = {
                                     throw IllegalStateException()
@@ -183,7 +183,7 @@ abstract class ContentResolvingAndroidViewModel(application: Application) :
                     DeleteState.DeleteProgress(success + failure, ids.size)
                 }
             }
-            contentResolver.notifyChange(TRANSACTIONS_URI, null, true)
+            contentResolver.notifyTransactionsChanged(syncToNetwork = true)
             contentResolver.notifyChange(ACCOUNTS_URI, null, false)
             contentResolver.notifyChange(DEBTS_URI, null, false)
             contentResolver.notifyChange(UNCOMMITTED_URI, null, false)
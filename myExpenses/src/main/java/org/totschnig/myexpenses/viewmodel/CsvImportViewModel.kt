@@ -5,19 +5,21 @@ import android.net.Uri
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.SavedStateHandle
 import androidx.lifecycle.liveData
-import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.StateFlow
 import org.apache.commons.csv.CSVFormat
 import org.apache.commons.csv.CSVRecord
 import org.totschnig.myexpenses.R
-import org.totschnig.myexpenses.db2.extractTagIds
 import org.totschnig.myexpenses.db2.loadAccount
 import org.totschnig.myexpenses.export.qif.QifDateFormat
+import org.totschnig.myexpenses.export.qif.QifUtils.completeTransferGroups
+import org.totschnig.myexpenses.export.qif.QifUtils.reduceTransfers
 import org.totschnig.myexpenses.io.CSVParser
+import org.totschnig.myexpenses.io.ImportAccount
+import org.totschnig.myexpenses.io.ImportTransaction
 import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
 import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.provider.TransactionProvider
-import org.totschnig.myexpenses.util.ResultUnit
 import java.io.InputStreamReader
 
 data class AccountConfiguration(val id: Long, val currency: String, val type: AccountType)
@@ -27,6 +29,9 @@ class CsvImportViewModel(application: Application, val savedStateHandle: SavedSt
 
     override val format = "CSV"
 
+    /**
+     * the first [PREVIEW_SIZE] records of the file, on which the user maps columns to fields
+     */
     val dataFlow: StateFlow<List<CSVRecord>> = savedStateHandle.getStateFlow("data", emptyList())
 
     private var data: List<CSVRecord>
@@ -35,43 +40,112 @@ class CsvImportViewModel(application: Application, val savedStateHandle: SavedSt
             savedStateHandle["data"] = value
         }
 
+    private fun openRecords(uri: Uri): org.apache.commons.csv.CSVParser {
+        val delimiter: Char = savedStateHandle[KEY_DELIMITER] ?: ','
+        val encoding: String = savedStateHandle[KEY_ENCODING] ?: Charsets.UTF_8.name()
+        val inputStream = contentResolver.openInputStream(uri)
+            ?: throw Exception("OpenInputStream returned null")
+        return CSVFormat.DEFAULT.withDelimiter(delimiter)
+            .parse(InputStreamReader(inputStream, encoding))
+    }
+
+    /**
+     * @param discardedRows positions of the records in the preview that the user deselected
+     * @param discardMatching if records after the preview are discarded, when they are identical
+     * to one of the deselected ones, e.g. header lines repeated throughout the file
+     * @return the number of records discarded, together with the result of [block]
+     */
+    private inline fun <T> withRecords(
+        uri: Uri,
+        discardedRows: Set<Int>,
+        discardMatching: Boolean,
+        block: (Iterable<CSVRecord>) -> T
+    ): Pair<Int, T> {
+        val discardedValues = if (discardMatching) data
+            .filterIndexed { index, _ -> index in discardedRows }
+            .mapTo(HashSet()) { it.toList() } else emptySet()
+        var discarded = 0
+        return openRecords(uri).use { records ->
+            val result = block(
+                records.asSequence()
+                    .filterIndexed { index, record ->
+                        val discard = index in discardedRows ||
+                                (index >= PREVIEW_SIZE && discardedValues.isNotEmpty() &&
+                                        record.toList() in discardedValues)
+                        if (discard) discarded++
+                        !discard
+                    }
+                    .asIterable()
+            )
+            discarded to result
+        }
+    }
 
-    fun parseFile(uri: Uri, delimiter: Char, encoding: String): LiveData<Result<Unit>> =
+    /**
+     * Reads through the file, but only keeps the first [PREVIEW_SIZE] records
+     * @return the total number of records
+     */
+    fun parseFile(uri: Uri, delimiter: Char, encoding: String): LiveData<Result<Int>> =
         liveData(context = coroutineContext()) {
-            contentResolver.openInputStream(uri)?.use {
-                try {
-                    contentResolver.openInputStream(uri)?.use {
-                        data = CSVFormat.DEFAULT.withDelimiter(delimiter)
-                            .parse(InputStreamReader(it, encoding)).records
-                        emit(ResultUnit)
-                    } ?: throw java.lang.Exception("OpenInputStream returned null")
-                } catch (e: Exception) {
-                    emit(Result.failure(e))
+            emit(runCatching {
+                savedStateHandle[KEY_DELIMITER] = delimiter
+                savedStateHandle[KEY_ENCODING] = encoding
+                openRecords(uri).use { records ->
+                    val preview = ArrayList<CSVRecord>(PREVIEW_SIZE)
+                    var count = 0
+                    for (record in records) {
+                        if (count < PREVIEW_SIZE) preview.add(record)
+                        count++
+                    }
+                    data = preview
+                    count
                 }
-            }
+            })
         }
 
+    /**
+     * The file is read twice, without ever holding all records: the first pass collects accounts,
+     * payees, categories and tags, the second one inserts the transactions in chunks of
+     * [STREAM_CHUNK_SIZE]. Transfers between two of the imported accounts are held back until the
+     * end, since both sides are needed to decide which one to keep.
+     *
+     * @param discardedRows positions of the records in the preview that the user deselected
+     * @param discardMatching if records after the preview that are identical to a deselected one
+     * are discarded as well
+     * @return the number of discarded records, together with the result for each account
+     */
     fun importData(
-        data: List<CSVRecord>,
+        discardedRows: Set<Int>,
+        discardMatching: Boolean,
         columnToFieldMap: IntArray,
         dateFormat: QifDateFormat,
         autoFill: Boolean,
         accountConfiguration: AccountConfiguration,
         uri: Uri
-    ): LiveData<Result<List<ImportResult>>> = liveData(context = coroutineContext()) {
+    ): LiveData<Result<Pair<Int, List<ImportResult>>>> = liveData(context = coroutineContext()) {
 
         emit(runCatching {
             val currencyUnit = currencyContext.get(accountConfiguration.currency)
-            val parser = CSVParser(
+            val withAccountColumn = columnToFieldMap.indexOf(R.string.account) > -1
+            val totals = LinkedHashMap<String, Int>()
+            if (!withAccountColumn) {
+                totals[""] = 0
+            }
+            fun newParser(records: Iterable<CSVRecord>) = CSVParser(
                 localizedContext,
-                data,
+                records,
                 columnToFieldMap,
                 dateFormat,
                 currencyUnit,
                 accountConfiguration.type
             )
-            parser.parse()
-            val accounts = parser.accounts
+            val parser = withRecords(uri, discardedRows, discardMatching) { records ->
+                newParser(records).also { parser ->
+                    parser.transactions().forEach { (account, _) ->
+                        totals.merge(account ?: "", 1, Int::plus)
+                    }
+                }
+            }.second
 
             contentResolver.call(
                 TransactionProvider.DUAL_URI,
@@ -80,10 +154,16 @@ class CsvImportViewModel(application: Application, val savedStateHandle: SavedSt
                 null
             )
 
-            if (columnToFieldMap.indexOf(R.string.account) > -1) {
-                insertAccounts(accounts, currencyUnit, uri)
+            if (withAccountColumn) {
+                insertAccounts(
+                    parser.accountLabels.map {
+                        ImportAccount(type = accountConfiguration.type, memo = it)
+                    },
+                    currencyUnit,
+                    uri
+                )
             } else {
-                accountTitleToAccount[accounts[0].memo] = if (accountConfiguration.id == 0L)
+                accountTitleToAccount[""] = if (accountConfiguration.id == 0L)
                     Account(
                         label = getString(R.string.pref_import_title, "CSV"),
                         currency = accountConfiguration.currency,
@@ -94,10 +174,12 @@ class CsvImportViewModel(application: Application, val savedStateHandle: SavedSt
             }
 
             insertPayees(parser.payees)
-            repository.extractTagIds(parser.tags, tagToId)
+            insertTags(parser.tags)
             insertCategories(parser.categories)
 
-            val count = insertTransactions(accounts, currencyUnit, autoFill)
+            val result = withRecords(uri, discardedRows, discardMatching) { records ->
+                insertStreaming(newParser(records), totals, currencyUnit, autoFill)
+            }
 
             contentResolver.call(
                 TransactionProvider.DUAL_URI,
@@ -105,7 +187,89 @@ class CsvImportViewModel(application: Application, val savedStateHandle: SavedSt
                 null,
                 null
             )
-            count.filterNotNull()
+            result
         })
     }
-}
\ No newline at end of file
+
+    private suspend fun insertStreaming(
+        parser: CSVParser,
+        totals: Map<String, Int>,
+        currencyUnit: CurrencyUnit,
+        autoFill: Boolean
+    ): List<ImportResult> {
+        val progress = totals.mapNotNull { (label, total) ->
+            accountTitleToAccount[label]?.let { label to ImportProgress(it.label, total) }
+        }.toMap()
+        val chunk = LinkedHashMap<String, MutableList<ImportTransaction>>()
+        var chunkSize = 0
+        val heldBack = LinkedHashMap<String, MutableList<ImportTransaction>>()
+
+        suspend fun insert(accounts: List<ImportAccount>) {
+            reduceTransfers(accounts).forEach { (_, memo, _, _, transactions) ->
+                val account = accountTitleToAccount[memo]
+                val accountProgress = progress[memo]
+                if (account != null && accountProgress != null && transactions.isNotEmpty()) {
+                    insertTransactions(account, currencyUnit, transactions, autoFill, accountProgress)
+                }
+            }
+        }
+
+        for ((label, builder) in parser.transactions()) {
+            val memo = label ?: ""
+            val transaction = builder.build()
+            val isTransferBetweenImportedAccounts =
+                (sequenceOf(transaction) + (transaction.splits?.asSequence() ?: emptySequence()))
+                    .mapNotNull { it.toAccount }
+                    .any { it != memo && it in totals }
+            if (isTransferBetweenImportedAccounts) {
+                heldBack.getOrPut(memo) { mutableListOf() }.add(transaction)
+            } else {
+                chunk.getOrPut(memo) { mutableListOf() }.add(transaction)
+            }
+            if (++chunkSize >= STREAM_CHUNK_SIZE) {
+                //none of these transactions has a counterpart in another account, hence they
+                //can be reduced in isolation
+                chunk.forEach { (accountLabel, transactions) ->
+                    insert(listOf(ImportAccount(memo = accountLabel, transactions = transactions)))
+                }
+                chunk.clear()
+                //transfers are held back only until their counterparts have been read
+                val (complete, pending) = completeTransferGroups(heldBack, totals.keys)
+                complete.forEach { insert(it) }
+                heldBack.clear()
+                pending.forEach { (accountLabel, transactions) ->
+                    heldBack[accountLabel] = transactions.toMutableList()
+                }
+                chunkSize = 0
+            }
+        }
+        chunk.forEach { (accountLabel, transactions) ->
+            insert(listOf(ImportAccount(memo = accountLabel, transactions = transactions)))
+        }
+        insert(heldBack.map { (accountLabel, transactions) ->
+            ImportAccount(memo = accountLabel, transactions = transactions)
+        })
+
+        return progress.map { (memo, accountProgress) ->
+            val account = accountTitleToAccount.getValue(memo)
+            publishProgress(
+                if (accountProgress.inserted == 0) getString(
+                    R.string.import_transactions_none,
+                    account.label
+                ) else getString(
+                    R.string.import_transactions_success,
+                    accountProgress.inserted,
+                    account.label
+                )
+            )
+            ImportResult(account.label, accountProgress.inserted)
+        }
+    }
+
+    companion object {
+        const val PREVIEW_SIZE = 100
+        private const val STREAM_CHUNK_SIZE = 1000
+        private const val KEY_DELIMITER = "delimiter"
+        private const val KEY_ENCODING = "encoding"
+    }
+}
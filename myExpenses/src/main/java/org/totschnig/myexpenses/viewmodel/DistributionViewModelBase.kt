@@ -34,7 +34,6 @@ import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.db2.updateCategoryColor
 import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.provider.DatabaseConstants
-import org.totschnig.myexpenses.provider.DatabaseConstants.DAY
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET_ROLLOVER_NEXT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET_ROLLOVER_PREVIOUS
@@ -47,13 +46,9 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
 import org.totschnig.myexpenses.provider.DatabaseConstants.TREE_CATEGORIES
 import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED
 import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_WITH_ACCOUNT
-import org.totschnig.myexpenses.provider.DatabaseConstants.YEAR
-import org.totschnig.myexpenses.provider.DatabaseConstants.getMonth
-import org.totschnig.myexpenses.provider.DatabaseConstants.getWeek
-import org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart
-import org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart
 import org.totschnig.myexpenses.provider.DbUtils
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.calendarBucketFilter
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.provider.getLongIfExistsOr0
 import org.totschnig.myexpenses.viewmodel.data.Budget
@@ -293,14 +288,7 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
     }
 
     open fun dateFilterClause(groupingInfo: GroupingInfo) = with(groupingInfo) {
-        val yearExpression = "$YEAR = $year"
-        when (grouping) {
-            Grouping.YEAR -> yearExpression
-            Grouping.DAY -> "$yearExpression AND $DAY = $second"
-            Grouping.WEEK -> "${getYearOfWeekStart()} = $year AND ${getWeek()} = $second"
-            Grouping.MONTH -> "${getYearOfMonthStart()} = $year AND ${getMonth()} = $second"
-            else -> null
-        }
+        calendarBucketFilter(grouping, year, second)
     }
 
     fun updateColor(id: Long, color: Int) {
@@ -3,25 +3,33 @@ package org.totschnig.myexpenses.viewmodel
 import android.app.Application
 import android.net.Uri
 import android.os.Bundle
+import androidx.annotation.VisibleForTesting
+import androidx.documentfile.provider.DocumentFile
 import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.db2.loadAccount
 import org.totschnig.myexpenses.db2.markAsExported
 import org.totschnig.myexpenses.export.CsvExporter
 import org.totschnig.myexpenses.export.JSONExporter
+import org.totschnig.myexpenses.export.NothingToExportException
 import org.totschnig.myexpenses.export.QifExporter
 import org.totschnig.myexpenses.export.createFileFailure
 import org.totschnig.myexpenses.model.ExportFormat
 import org.totschnig.myexpenses.model.Transaction
-import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.DataBaseAccount
 import org.totschnig.myexpenses.provider.DataBaseAccount.Companion.AGGREGATE_HOME_CURRENCY_CODE
@@ -43,6 +51,8 @@ import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.io.displayName
 import org.totschnig.myexpenses.viewmodel.data.FullAccount
 import java.io.IOException
+import java.io.OutputStreamWriter
+import java.io.Writer
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
@@ -65,8 +75,20 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
         const val EXPORT_HANDLE_DELETED_DO_NOTHING = -1
         const val EXPORT_HANDLE_DELETED_UPDATE_BALANCE = 0
         const val EXPORT_HANDLE_DELETED_CREATE_HELPER = 1
+
+        /**
+         * maximum number of accounts exported concurrently, when each account is written to its own
+         * file
+         */
+        const val EXPORT_WORKERS = 4
     }
 
+    /**
+     * lowered by benchmarks to compare [EXPORT_WORKERS] with a sequential export
+     */
+    @VisibleForTesting
+    internal var exportWorkers = EXPORT_WORKERS
+
     private val _publishProgress: MutableSharedFlow<String?> = MutableSharedFlow()
     private val _result: MutableStateFlow<Pair<ExportFormat, List<Uri>>?> = MutableStateFlow(null)
     val publishProgress: SharedFlow<String?> = _publishProgress
@@ -117,27 +139,57 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
                     AppDirHelper.getAppDir(application).onFailure {
                         publishProgress(localizedContext.getString(R.string.io_error_appdir_null))
                     }.onSuccess { appDir ->
-                        var account: Account?
-                        val oneFile = accountIds.size == 1 || mergeP
+                        val accounts = accountIds.mapNotNull { repository.loadAccount(it) }
+                        val oneFile = accounts.size == 1 || mergeP
                         val destDir = if (oneFile) {
                             appDir
                         } else {
                             AppDirHelper.newDirectory(appDir, fileName)
                         }
                         if (destDir != null) {
-                            val successfullyExported = ArrayList<Account>()
-                            val simpleDateFormat = SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
-                            val now = Date()
-                            for (i in accountIds.indices) {
-                                account = repository.loadAccount(accountIds[i])
-                                if (account == null) continue
+                            // formatted up front, since SimpleDateFormat must not be shared between workers
+                            val timeStamp = SimpleDateFormat("yyyMMdd-HHmmss", Locale.US).format(Date())
+                            val uris = arrayOfNulls<Uri>(accounts.size)
+                            // accounts without transactions to export do not end up in the merged
+                            // file, so whether a part is appended depends on the parts written before
+                            var mergedParts = 0
+                            var mergedFile: DocumentFile? = null
+                            var mergedWriter: Writer? = null
+                            // all parts of a merged file are written through one stream, which is
+                            // opened once the first account with transactions to export asks for it
+                            val mergedOutput = lazy {
+                                val file = AppDirHelper.buildFile(
+                                    destDir,
+                                    "$fileName.${format.extension}",
+                                    format.mimeType,
+                                    false
+                                ) ?: throw createFileFailure(localizedContext, destDir, fileName)
+                                mergedFile = file
+                                OutputStreamWriter(
+                                    contentResolver.openOutputStream(file.uri, "w")
+                                        ?: throw IOException("openOutputStream returned null"),
+                                    encoding
+                                ).also {
+                                    mergedWriter = it
+                                    if (format == ExportFormat.JSON) it.write("[")
+                                }
+                            }
+
+                            /**
+                             * @return success without file, if the account has no transactions to
+                             * export, failure if the file could not be written
+                             */
+                            suspend fun exportAccount(i: Int): Result<DocumentFile?> {
+                                val account = accounts[i]
+                                // files are written concurrently, so the account is named in each message
+                                val progressPrefix = if (oneFile) "..." else account.label + ": ..."
                                 publishProgress(account.label + " ...")
-                                try {
-                                    val append = mergeP && i > 0
+                                return try {
+                                    val append = mergeP && mergedParts > 0
                                     val fileNameForAccount =
                                         if (oneFile) fileName else String.format(
                                             "%s-%s", Utils.escapeForFileName(account.label),
-                                            simpleDateFormat.format(now)
+                                            timeStamp
                                         )
                                     val exporter = when (format) {
                                         ExportFormat.CSV -> CsvExporter(
@@ -172,16 +224,18 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
                                             dateFormat,
                                             decimalSeparator,
                                             encoding,
-                                            preamble = if (mergeP && i == 0) "[" else "",
-                                            appendix = if (mergeP) if (i < accountIds.size - 1) "," else "]" else ""
+                                            preamble = if (append) "," else ""
                                         )
                                     }
-                                    val result = exporter.export(localizedContext, lazy {
+                                    val result = if (mergeP) {
+                                        exporter.export(localizedContext, mergedOutput)
+                                            .map { mergedFile!! }
+                                    } else exporter.export(localizedContext, lazy {
                                         AppDirHelper.buildFile(
                                             destDir,
                                             "$fileNameForAccount.${format.extension}",
                                             format.mimeType,
-                                            append
+                                            false
                                         )?.let {
                                             Result.success(it)
                                         } ?: Result.failure(
@@ -191,50 +245,109 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
                                                 fileName
                                             )
                                         )
-                                    }, append)
+                                    }, false)
                                     result.onSuccess {
+                                        if (mergeP) {
+                                            mergedParts++
+                                        }
                                         if (!append && prefHandler.getBoolean(
                                                 PrefKey.PERFORM_SHARE,
                                                 false
                                             )
                                         ) {
-                                            add(it.uri)
+                                            uris[i] = it.uri
                                         }
-                                        successfullyExported.add(account)
                                         publishProgress(
-                                            "..." + localizedContext.getString(
+                                            progressPrefix + localizedContext.getString(
                                                 R.string.export_sdcard_success,
                                                 it.displayName
                                             )
                                         )
                                     }.onFailure {
-                                        publishProgress("... " + it.message)
+                                        publishProgress("$progressPrefix " + it.message)
                                     }
+                                    if (result.exceptionOrNull() is NothingToExportException)
+                                        Result.success(null) else result
                                 } catch (e: IOException) {
                                     publishProgress(
-                                        "... " + localizedContext.getString(
+                                        "$progressPrefix " + localizedContext.getString(
                                             R.string.export_sdcard_failure,
                                             appDir.name,
                                             e.message
                                         )
                                     )
+                                    Result.failure(e)
                                 }
                             }
-                            for (a in successfullyExported) {
+
+                            var closeFailure: IOException? = null
+                            val results = if (oneFile) {
+                                // parts of a merged file are appended in order, and once one of them
+                                // could not be written, the file is incomplete. The stream is closed
+                                // (and the JSON array with it) whatever happened to the parts.
                                 try {
-                                    if (deleteP) {
-                                        if (a.isSealed) {
-                                            publishProgress(getString(R.string.object_sealed))
+                                    buildList {
+                                        for (i in accounts.indices) {
+                                            val result = exportAccount(i)
+                                            add(result)
+                                            if (result.isFailure) break
+                                        }
+                                    }
+                                } finally {
+                                    mergedWriter?.let { writer ->
+                                        try {
+                                            writer.use {
+                                                if (format == ExportFormat.JSON) it.write("]")
+                                            }
+                                        } catch (e: IOException) {
+                                            closeFailure = e
+                                        }
+                                    }
+                                }
+                            } else coroutineScope {
+                                val permits = Semaphore(exportWorkers)
+                                accounts.indices.map {
+                                    async(Dispatchers.IO) { permits.withPermit { exportAccount(it) } }
+                                }.awaitAll()
+                            }
+                            closeFailure?.let {
+                                publishProgress(
+                                    "... " + localizedContext.getString(
+                                        R.string.export_sdcard_failure,
+                                        appDir.name,
+                                        it.message
+                                    )
+                                )
+                            }
+                            val allSucceeded = closeFailure == null &&
+                                    results.size == accounts.size && results.all { it.isSuccess }
+                            if (!allSucceeded) {
+                                // a part that failed midway leaves the merged file truncated
+                                mergedFile?.let { file ->
+                                    if (file.delete()) uris.fill(null)
+                                }
+                            }
+                            uris.filterNotNullTo(this)
+                            if (allSucceeded) {
+                                // accounts without transactions to export are left alone
+                                for (a in accounts.filterIndexed { i, _ -> results[i].getOrNull() != null }) {
+                                    try {
+                                        if (deleteP) {
+                                            if (a.isSealed) {
+                                                publishProgress(getString(R.string.object_sealed))
+                                            } else {
+                                                reset(a, filter, handleDelete, fileName)
+                                            }
                                         } else {
-                                            reset(a, filter, handleDelete, fileName)
+                                            repository.markAsExported(a.id, filter)
                                         }
-                                    } else {
-                                        repository.markAsExported(a.id, filter)
+                                    } catch (e: Exception) {
+                                        publishProgress("ERROR: " + e.message)
+                                        CrashHandler.report(e)
                                     }
-                                } catch (e: Exception) {
-                                    publishProgress("ERROR: " + e.message)
-                                    CrashHandler.report(e)
                                 }
+                            } else if (accounts.size > 1) {
+                                publishProgress(localizedContext.getString(R.string.export_not_marked))
                             }
                         } else {
                             publishProgress(
@@ -1,9 +1,12 @@
 package org.totschnig.myexpenses.viewmodel
 
 import android.app.Application
+import android.content.ContentProviderOperation
 import android.content.ContentUris
+import android.content.ContentValues
 import android.net.Uri
 import android.text.TextUtils
+import androidx.core.database.getLongOrNull
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import org.totschnig.myexpenses.MyApplication
@@ -12,11 +15,8 @@ import org.totschnig.myexpenses.db2.AutoFillInfo
 import org.totschnig.myexpenses.db2.CategoryHelper
 import org.totschnig.myexpenses.db2.countAccounts
 import org.totschnig.myexpenses.db2.createAccount
-import org.totschnig.myexpenses.db2.createParty
 import org.totschnig.myexpenses.db2.findAnyOpenByLabel
-import org.totschnig.myexpenses.db2.findParty
 import org.totschnig.myexpenses.db2.loadAccount
-import org.totschnig.myexpenses.db2.saveTagsForTransaction
 import org.totschnig.myexpenses.dialog.DialogUtils
 import org.totschnig.myexpenses.export.CategoryInfo
 import org.totschnig.myexpenses.export.qif.QifUtils.reduceTransfers
@@ -26,9 +26,17 @@ import org.totschnig.myexpenses.model.ContribFeature
 import org.totschnig.myexpenses.model.CurrencyUnit
 import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.model2.Account
-import org.totschnig.myexpenses.provider.DatabaseConstants
+import org.totschnig.myexpenses.model2.Party
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IBAN
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.util.io.FileUtils
-import org.totschnig.myexpenses.viewmodel.data.Tag
+import kotlin.math.roundToInt
 
 data class ImportResult(val label: String, val successCount: Int)
 
@@ -39,6 +47,8 @@ private val autoFillCache: MutableMap<Long, AutoFillInfo> = mutableMapOf()
 private val categoryToId: MutableMap<String, Long> = mutableMapOf()
 val tagToId: MutableMap<String, Long> = mutableMapOf()
 
+private const val IMPORT_CHUNK_SIZE = 500
+
 abstract class ImportDataViewModel(application: Application) :
     ContentResolvingAndroidViewModel(application) {
     abstract val format: String
@@ -121,54 +131,154 @@ abstract class ImportDataViewModel(application: Application) :
         }
     }
 
-    fun insertPayees(payees: Set<String>): Int {
-        var count = 0
-        for (payee in payees) {
-            payeeToId[payee] =
-                repository.findParty(payee) ?: repository.createParty(payee)
-                    .also { count++ }.id
+    /**
+     * Loads all entities of [uri] with one query and inserts the missing ones with one batch
+     * @return the number of inserted entities
+     */
+    private fun resolveByLabel(
+        uri: Uri,
+        labelColumn: String,
+        selection: String?,
+        labels: Collection<String>,
+        cache: MutableMap<String, Long>,
+        buildValues: (String) -> ContentValues
+    ): Int {
+        contentResolver.query(uri, arrayOf(KEY_ROWID, labelColumn), selection, null, null)
+            ?.use { cursor ->
+                while (cursor.moveToNext()) {
+                    cache[cursor.getString(1)] = cursor.getLong(0)
+                }
+            }
+        val missing = labels.map { it.trim() }
+            .filter { it.isNotEmpty() && !cache.containsKey(it) }
+            .distinct()
+        if (missing.isNotEmpty()) {
+            contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(missing.map {
+                ContentProviderOperation.newInsert(uri).withValues(buildValues(it)).build()
+            })).forEachIndexed { index, result ->
+                cache[missing[index]] = ContentUris.parseId(result.uri!!)
+            }
         }
-        return count
+        labels.forEach { label -> cache[label.trim()]?.let { cache[label] = it } }
+        return missing.size
     }
 
-    fun insertCategories(categories: Set<CategoryInfo>) = categories.sumOf {
-        CategoryHelper.insert(repository, it.name, categoryToId, true, it.type)
+    fun insertPayees(payees: Set<String>) = resolveByLabel(
+        TransactionProvider.PAYEES_URI,
+        KEY_PAYEE_NAME,
+        "$KEY_IBAN IS NULL",
+        payees,
+        payeeToId
+    ) { Party.create(name = it).asContentValues }
+
+    fun insertTags(tags: Set<String>) = resolveByLabel(
+        TransactionProvider.TAGS_URI,
+        KEY_LABEL,
+        null,
+        tags,
+        tagToId
+    ) { ContentValues(1).apply { put(KEY_LABEL, it) } }
+
+    /**
+     * existing categories are loaded into [categoryToId] with one query, so that only categories
+     * that need to be created cause a round trip
+     */
+    fun insertCategories(categories: Set<CategoryInfo>): Int {
+        val nodes = contentResolver.query(
+            TransactionProvider.CATEGORIES_URI,
+            arrayOf(KEY_ROWID, KEY_PARENTID, KEY_LABEL),
+            null, null, null
+        )?.use { cursor ->
+            buildMap {
+                while (cursor.moveToNext()) {
+                    put(cursor.getLong(0), cursor.getLongOrNull(1) to cursor.getString(2))
+                }
+            }
+        } ?: emptyMap()
+        fun path(id: Long): List<String>? = nodes[id]?.let { (parentId, label) ->
+            if (parentId == null) listOf(label) else path(parentId)?.let { it + label }
+        }
+        nodes.keys.forEach { id -> path(id)?.let { categoryToId[CategoryHelper.pathKey(it)] = id } }
+        return categories.sumOf {
+            CategoryHelper.insert(repository, it.name, categoryToId, true, it.type)
+        }
+    }
+
+    /**
+     * Counts the transactions written into an account, and reports them together with the rate
+     */
+    inner class ImportProgress(private val label: String, private val total: Int) {
+        private val startTime = System.nanoTime()
+        var inserted = 0
+            private set
+
+        suspend fun advance(count: Int) {
+            inserted += count
+            val seconds = (System.nanoTime() - startTime) / 1_000_000_000.0
+            publishProgress(
+                getString(
+                    R.string.import_transactions_progress,
+                    inserted,
+                    total,
+                    label,
+                    if (seconds > 0) (inserted / seconds).roundToInt() else inserted
+                )
+            )
+        }
     }
 
-    private fun insertTransactions(
+    /**
+     * Transactions are written with batches of [IMPORT_CHUNK_SIZE] operations. Each batch is
+     * committed in one database transaction, while notifications are held back by the bulk mode
+     * the callers set up around the whole import.
+     */
+    protected suspend fun insertTransactions(
         account: Account,
         currencyUnit: CurrencyUnit,
         transactions: List<ImportTransaction>,
-        autofill: Boolean
+        autofill: Boolean,
+        progress: ImportProgress = ImportProgress(account.label, transactions.size)
     ) {
+        val ops = ArrayList<ContentProviderOperation>()
+        var pending = 0
+        suspend fun flush() {
+            if (ops.isEmpty()) return
+            contentResolver.applyBatch(TransactionProvider.AUTHORITY, ops)
+            ops.clear()
+            progress.advance(pending)
+            pending = 0
+        }
         for (transaction in transactions) {
+            val offset = ops.size
             val t = transaction.toTransaction(account, currencyUnit)
             t.payeeId = payeeToId[transaction.payee]
             findToAccount(transaction, t)
-            if (transaction.splits != null) {
-                t.save(contentResolver)
-                for (split in transaction.splits) {
-                    val s = split.toTransaction(account, currencyUnit)
-                    s.parentId = t.id
-                    s.status = DatabaseConstants.STATUS_UNCOMMITTED
-                    findToAccount(split, s)
-                    findCategory(split, s, autofill)
-                    s.save(contentResolver)
-                }
-            } else {
+            if (transaction.splits == null) {
                 findCategory(transaction, t, autofill)
             }
-            t.save(contentResolver, true)?.let {
-                transaction.tags?.let { list ->
-                    repository.saveTagsForTransaction(
-                        list.mapNotNull { tag ->
-                            tagToId[tag]?.let { id -> Tag(id, tag) }
-                        },
-                        ContentUris.parseId(it)
-                    )
-                }
+            ops.addAll(t.buildSaveOperations(contentResolver, offset, -1, false, false))
+            transaction.splits?.forEach { split ->
+                val s = split.toTransaction(account, currencyUnit)
+                //parts share the date of their parent, otherwise they might be counted in the wrong group
+                s.setDate(t.date)
+                findToAccount(split, s)
+                findCategory(split, s, autofill)
+                ops.addAll(s.buildSaveOperations(contentResolver, ops.size, offset, false, false))
+            }
+            transaction.tags?.mapNotNull { tagToId[it] }?.distinct()?.forEach { tagId ->
+                ops.add(
+                    ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_TAGS_URI)
+                        .withValueBackReference(KEY_TRANSACTIONID, offset)
+                        .withValue(KEY_TAGID, tagId)
+                        .build()
+                )
+            }
+            pending++
+            if (ops.size >= IMPORT_CHUNK_SIZE) {
+                flush()
             }
         }
+        flush()
     }
 
     private fun findToAccount(transaction: ImportTransaction, t: Transaction) {
@@ -180,7 +290,9 @@ abstract class ImportDataViewModel(application: Application) :
     }
 
     private fun findCategory(transaction: ImportTransaction, t: Transaction, autofill: Boolean) {
-        t.catId = categoryToId[transaction.category] ?: if (autofill) {
+        t.catId = transaction.category?.let {
+            categoryToId[CategoryHelper.pathKey(it, stripQifCategoryClass = true)]
+        } ?: if (autofill) {
             t.payeeId?.let {
                 (autoFillCache[it] ?: repository.autoFill(it)
                     ?.apply { autoFillCache[it] = this })?.categoryId
@@ -192,6 +192,7 @@ open class MyExpensesViewModel(
 
     private val sums: Map<PageAccount, Flow<SumInfo>> = lazyMap { account ->
         contentResolver.observeQuery(
+            observedUri = account.accountScopeUri,
             uri = account.uriBuilderForTransactionList(extended = false)
                 .appendBooleanQueryParameter(QUERY_PARAMETER_MAPPED_OBJECTS)
                 .build()
@@ -205,6 +206,7 @@ open class MyExpensesViewModel(
         filterPersistence.getValue(account.id).whereFilterAsFlow.flatMapLatest { filter ->
             val groupingQuery = account.groupingQuery(filter)
             contentResolver.observeQuery(
+                observedUri = account.accountScopeUri,
                 uri = groupingQuery.first,
                 selection = groupingQuery.second,
                 selectionArgs = groupingQuery.third
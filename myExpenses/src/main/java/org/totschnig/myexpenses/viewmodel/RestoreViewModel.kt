@@ -9,7 +9,11 @@ import android.net.Uri
 import android.os.Bundle
 import android.provider.CalendarContract
 import android.text.TextUtils
+import androidx.documentfile.provider.DocumentFile
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharedFlow
@@ -21,6 +25,7 @@ import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.model.Template
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.BACKUP_DB_FILE_NAME
+import org.totschnig.myexpenses.provider.BACKUP_MANIFEST_FILE_NAME
 import org.totschnig.myexpenses.provider.BACKUP_PREF_FILE_NAME
 import org.totschnig.myexpenses.provider.CALENDAR_FULL_PATH_PROJECTION
 import org.totschnig.myexpenses.provider.DatabaseConstants
@@ -32,7 +37,6 @@ import org.totschnig.myexpenses.provider.PlannerUtils
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.checkSyncAccounts
-import org.totschnig.myexpenses.provider.getBackupDbFile
 import org.totschnig.myexpenses.provider.getBackupPrefFile
 import org.totschnig.myexpenses.provider.getCalendarPath
 import org.totschnig.myexpenses.provider.insertEventAndUpdatePlan
@@ -40,14 +44,18 @@ import org.totschnig.myexpenses.sync.GenericAccountService
 import org.totschnig.myexpenses.sync.SyncAdapter
 import org.totschnig.myexpenses.sync.SyncBackendProviderFactory
 import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.util.BackupAttachmentStore
+import org.totschnig.myexpenses.util.BackupManifest
 import org.totschnig.myexpenses.util.PictureDirHelper
 import org.totschnig.myexpenses.util.ZipUtils
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.crypt.EncryptionHelper
 import org.totschnig.myexpenses.util.io.FileCopyUtils
+import org.totschnig.myexpenses.util.io.ProgressInputStream
 import timber.log.Timber
 import java.io.File
 import java.io.IOException
+import java.io.InputStream
 import java.io.PushbackInputStream
 import java.security.GeneralSecurityException
 import javax.inject.Inject
@@ -58,6 +66,12 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
     private val _result: MutableStateFlow<Result<Unit>?> = MutableStateFlow(null)
     val publishProgress: SharedFlow<String?> = _publishProgress
     val result: StateFlow<Result<Unit>?> = _result
+    private val _restoreProgress: MutableStateFlow<Pair<Long, Long?>?> = MutableStateFlow(null)
+
+    /**
+     * bytes read from the backup so far, and its size, if known
+     */
+    val restoreProgress: StateFlow<Pair<Long, Long?>?> = _restoreProgress
 
     @Inject
     lateinit var versionPeekHelper: DatabaseVersionPeekHelper
@@ -110,6 +124,16 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                 failureResult(it)
                 return@launch
             }
+            //the database is extracted next to its final location, so that it can be moved there
+            val backupFile = application.getDatabasePath(RESTORE_DATABASE_FILE_NAME).apply {
+                parentFile?.mkdirs()
+            }
+            var backupSize: Long? = null
+            val trackProgress: (InputStream) -> InputStream = {
+                ProgressInputStream(it) { bytesRead ->
+                    _restoreProgress.update { bytesRead to backupSize }
+                }
+            }
             try {
                 val inputStream: PushbackInputStream? = if (syncAccountName != null) {
                     val account = GenericAccountService.getAccount(syncAccountName)
@@ -122,13 +146,15 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                         failureResult(error)
                         return@launch
                     }.mapCatching {
-                        EncryptionHelper.wrap(it.getInputStreamForBackup(backupFromSync!!))
+                        EncryptionHelper.wrap(trackProgress(it.getInputStreamForBackup(backupFromSync!!)))
                     }.onFailure {
                         failureResult(it)
                         return@launch
                     }.getOrNull()
                 } else {
-                    EncryptionHelper.wrap(contentResolver.openInputStream(fileUri!!))
+                    backupSize = DocumentFile.fromSingleUri(application, fileUri!!)?.length()
+                        ?.takeIf { it > 0 }
+                    EncryptionHelper.wrap(contentResolver.openInputStream(fileUri)?.let(trackProgress))
                 }
                 if (inputStream == null) {
                     failureResult("Unable to open backup file")
@@ -141,9 +167,24 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                         return@launch
                     }
                 }
+                //the database is verified while attachments are still being extracted
+                var verification: Deferred<Result<Unit>>? = null
                 inputStream.use {
                     try {
-                        ZipUtils.unzip(inputStream, workingDir, if (isEncrypted) password else null)
+                        ZipUtils.unzip(
+                            inputStream,
+                            workingDir,
+                            if (isEncrypted) password else null,
+                            destination = { name ->
+                                if (name == BACKUP_DB_FILE_NAME) backupFile else null
+                            }
+                        ) { name, file ->
+                            if (name == BACKUP_DB_FILE_NAME) {
+                                verification = async(Dispatchers.IO) {
+                                    versionPeekHelper.checkVersion(application, file.path)
+                                }
+                            }
+                        }
                     } catch (e: IOException) {
                         if (e.cause is GeneralSecurityException) {
                             failureResult(R.string.backup_wrong_password)
@@ -153,7 +194,6 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                         return@launch
                     }
                 }
-                val backupFile = getBackupDbFile(workingDir)
                 val backupPrefFile = getBackupPrefFile(workingDir)
                 if (!backupFile.exists()) {
                     failureResult(
@@ -170,8 +210,29 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                     return@launch
                 }
 
+                //incremental backups keep their attachments in the store next to the backups
+                val manifestFile = File(workingDir, BACKUP_MANIFEST_FILE_NAME)
+                if (manifestFile.exists()) {
+                    val attachmentStore = AppDirHelper.getAppDir(application).getOrNull()
+                        ?.let { BackupAttachmentStore.get(application, it, create = false) }
+                    val backupPictureDir = File(workingDir, ZipUtils.PICTURES)
+                    val missing = BackupManifest.fromJson(manifestFile.readText()).attachments
+                        .count { (fileName, hashes) ->
+                            val target = File(backupPictureDir, fileName)
+                            if (!target.canonicalPath.startsWith(backupPictureDir.canonicalPath)) {
+                                throw SecurityException("Path Traversal Vulnerability")
+                            }
+                            attachmentStore?.assemble(hashes, target) != true
+                        }
+                    if (missing > 0) {
+                        publishProgress(
+                            getQuantityString(R.plurals.restore_attachments_missing, missing, missing)
+                        )
+                    }
+                }
+
                 //peek into file to inspect version
-                versionPeekHelper.checkVersion(application, backupFile.path).onFailure {
+                (verification?.await() ?: versionPeekHelper.checkVersion(application, backupFile.path)).onFailure {
                     failureResult(it)
                     if (it is SQLiteException) {
                         CrashHandler.report(it)
@@ -446,6 +507,8 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                 return@launch
             } finally {
                 workingDir.deleteRecursively()
+                backupFile.delete()
+                _restoreProgress.update { null }
             }
         }
     }
@@ -669,5 +732,10 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
         const val KEY_PASSWORD = "passwordEncryption"
         const val KEY_FILE_PATH = "filePath"
         const val KEY_ENCRYPT = "encrypt"
+
+        /**
+         * name of the database extracted from a backup, in the databases directory
+         */
+        const val RESTORE_DATABASE_FILE_NAME = "restore"
     }
 }
\ No newline at end of file
@@ -99,6 +99,28 @@ class SettingsViewModel(application: Application) : ContentResolvingAndroidViewM
         TransactionProvider.METHOD_CHECK_CORRUPTED_DATA_987, null, null
     )?.getLongArray(TransactionProvider.KEY_RESULT)
 
+    private fun queryMetricsReport(): String? = contentResolver.call(
+        TransactionProvider.DUAL_URI,
+        TransactionProvider.METHOD_QUERY_METRICS, null, null
+    )?.getString(TransactionProvider.KEY_RESULT)
+
+    fun queryMetrics() = liveData(context = coroutineContext()) {
+        queryMetricsReport()?.let { emit(it) }
+    }
+
+    /**
+     * writes the query metrics next to the log files, which are offered for sharing with support
+     */
+    fun exportQueryMetrics() = liveData(context = coroutineContext()) {
+        emit(runCatching {
+            val logDir = File(getApplication<MyApplication>().getExternalFilesDir(null), "logs")
+            logDir.mkdirs()
+            File(logDir, "query_metrics.txt").apply {
+                writeText(queryMetricsReport() ?: "")
+            }.name
+        })
+    }
+
     fun dataCorrupted() = liveData(context = coroutineContext()) {
         corruptedIdList()?.let {
             emit(it.size)
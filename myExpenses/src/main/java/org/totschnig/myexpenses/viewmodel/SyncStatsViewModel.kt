@@ -0,0 +1,36 @@
+package org.totschnig.myexpenses.viewmodel
+
+import android.app.Application
+import androidx.lifecycle.liveData
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_STATS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.TransactionProvider.ACCOUNTS_BASE_URI
+import org.totschnig.myexpenses.provider.TransactionProvider.SYNC_STATS_URI
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.sync.json.SyncRunStats
+
+class SyncStatsViewModel(application: Application) : ContentResolvingAndroidViewModel(application) {
+
+    /**
+     * recorded sync runs of the backend, latest first, together with the labels of the local
+     * accounts they refer to
+     */
+    fun syncStats(syncAccountName: String) = liveData(context = coroutineContext()) {
+        val labels = contentResolver.query(
+            ACCOUNTS_BASE_URI, arrayOf(KEY_UUID, KEY_LABEL), null, null, null
+        )?.useAndMap { it.getString(0) to it.getString(1) }?.toMap() ?: emptyMap()
+        emit(
+            contentResolver.query(
+                SYNC_STATS_URI,
+                arrayOf(KEY_SYNC_STATS),
+                "$KEY_SYNC_ACCOUNT_NAME = ?",
+                arrayOf(syncAccountName),
+                "$KEY_ROWID DESC"
+            )?.useAndMap { SyncRunStats.fromJson(it.getString(0)) }
+                ?.map { it to (labels[it.accountUuid] ?: it.accountUuid) } ?: emptyList()
+        )
+    }
+}
@@ -4,6 +4,8 @@ import android.content.Context
 import android.database.Cursor
 import android.os.Parcelable
 import androidx.compose.runtime.Immutable
+import androidx.core.database.getLongOrNull
+import androidx.core.database.getStringOrNull
 import kotlinx.parcelize.Parcelize
 import org.totschnig.myexpenses.db2.FLAG_NEUTRAL
 import org.totschnig.myexpenses.model.AccountType
@@ -64,19 +66,12 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart
 import org.totschnig.myexpenses.provider.DbUtils.typeWithFallBack
 import org.totschnig.myexpenses.provider.TRANSFER_ACCOUNT_LABEL
 import org.totschnig.myexpenses.provider.effectiveTypeExpression
-import org.totschnig.myexpenses.provider.getInt
-import org.totschnig.myexpenses.provider.getIntIfExists
-import org.totschnig.myexpenses.provider.getLong
-import org.totschnig.myexpenses.provider.getLongIfExists
-import org.totschnig.myexpenses.provider.getLongOrNull
-import org.totschnig.myexpenses.provider.getString
-import org.totschnig.myexpenses.provider.getStringIfExists
-import org.totschnig.myexpenses.provider.getStringOrNull
-import org.totschnig.myexpenses.provider.splitStringList
+import org.totschnig.myexpenses.provider.requireString
 import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.enumValueOrNull
 import org.totschnig.myexpenses.util.epoch2ZonedDateTime
 import java.time.ZonedDateTime
+import java.util.concurrent.ConcurrentHashMap
 
 @Parcelize
 @Immutable
@@ -205,49 +200,108 @@ data class Transaction2(
         fun fromCursor(
             cursor: Cursor,
             accountCurrency: CurrencyUnit
-        ): Transaction2 {
-            val amountRaw = cursor.getLong(KEY_DISPLAY_AMOUNT)
-            val money = Money(accountCurrency, amountRaw)
-            val transferPeer = cursor.getLongOrNull(KEY_TRANSFER_PEER)
-
-            return Transaction2(
-                id = cursor.getLongOrNull(KEY_ROWID) ?: 0,
-                amount = money,
-                parentId = cursor.getLongOrNull(KEY_PARENTID),
-                _date = cursor.getLong(KEY_DATE),
-                _valueDate = cursor.getLong(KEY_VALUE_DATE),
-                comment = cursor.getStringOrNull(KEY_COMMENT),
-                catId = cursor.getLongOrNull(KEY_CATID),
-                payee = cursor.getStringOrNull(KEY_PAYEE_NAME),
-                methodLabel = cursor.getStringOrNull(KEY_METHOD_LABEL),
-                methodIcon = cursor.getStringOrNull(KEY_METHOD_ICON),
-                categoryPath = cursor.getStringOrNull(KEY_PATH),
-                transferPeer = transferPeer,
-                transferAccount = cursor.getLongOrNull(KEY_TRANSFER_ACCOUNT),
-                transferAccountLabel =  cursor.getStringOrNull(KEY_TRANSFER_ACCOUNT_LABEL),
-                accountId = cursor.getLong(KEY_ACCOUNTID),
-                methodId = cursor.getLongOrNull(KEY_METHODID),
-                crStatus = enumValueOrDefault(
-                    cursor.getString(KEY_CR_STATUS),
-                    CrStatus.UNRECONCILED
-                ),
-                referenceNumber = cursor.getStringOrNull(KEY_REFERENCE_NUMBER),
-                accountLabel = cursor.getStringIfExists(KEY_ACCOUNT_LABEL),
-                accountType = enumValueOrNull<AccountType>(
-                    cursor.getStringIfExists(KEY_ACCOUNT_TYPE),
-                ),
-                transferPeerParent = cursor.getLongIfExists(KEY_TRANSFER_PEER_PARENT),
-                tagList = cursor.splitStringList(KEY_TAGLIST),
-                color = cursor.getIntIfExists(KEY_COLOR),
-                status = cursor.getInt(KEY_STATUS),
-                year = cursor.getInt(KEY_YEAR),
-                month = cursor.getInt(KEY_MONTH),
-                week = cursor.getInt(KEY_WEEK),
-                day = cursor.getInt(KEY_DAY),
-                icon = cursor.getStringOrNull(KEY_ICON),
-                attachmentCount = cursor.getIntIfExists(KEY_ATTACHMENT_COUNT) ?: 0,
-                type = cursor.getInt(KEY_TYPE).toByte()
-            )
-        }
+        ) = CursorMapper(cursor, accountCurrency).map()
     }
 }
+
+/**
+ * Maps the rows of a cursor to [Transaction2], resolving column indices once per cursor. Strings
+ * that repeat across rows (category paths, payees, method and account labels, tags) are
+ * deduplicated via [stringPool], which can be shared between cursors.
+ */
+class CursorMapper(
+    private val cursor: Cursor,
+    private val accountCurrency: CurrencyUnit,
+    private val stringPool: StringPool? = null
+) {
+    private val displayAmount = cursor.getColumnIndexOrThrow(KEY_DISPLAY_AMOUNT)
+    private val transferPeer = cursor.getColumnIndexOrThrow(KEY_TRANSFER_PEER)
+    private val rowId = cursor.getColumnIndexOrThrow(KEY_ROWID)
+    private val parentId = cursor.getColumnIndexOrThrow(KEY_PARENTID)
+    private val date = cursor.getColumnIndexOrThrow(KEY_DATE)
+    private val valueDate = cursor.getColumnIndexOrThrow(KEY_VALUE_DATE)
+    private val comment = cursor.getColumnIndexOrThrow(KEY_COMMENT)
+    private val catId = cursor.getColumnIndexOrThrow(KEY_CATID)
+    private val payee = cursor.getColumnIndexOrThrow(KEY_PAYEE_NAME)
+    private val methodLabel = cursor.getColumnIndexOrThrow(KEY_METHOD_LABEL)
+    private val methodIcon = cursor.getColumnIndexOrThrow(KEY_METHOD_ICON)
+    private val path = cursor.getColumnIndexOrThrow(KEY_PATH)
+    private val transferAccount = cursor.getColumnIndexOrThrow(KEY_TRANSFER_ACCOUNT)
+    private val transferAccountLabel = cursor.getColumnIndexOrThrow(KEY_TRANSFER_ACCOUNT_LABEL)
+    private val accountId = cursor.getColumnIndexOrThrow(KEY_ACCOUNTID)
+    private val methodId = cursor.getColumnIndexOrThrow(KEY_METHODID)
+    private val crStatus = cursor.getColumnIndexOrThrow(KEY_CR_STATUS)
+    private val referenceNumber = cursor.getColumnIndexOrThrow(KEY_REFERENCE_NUMBER)
+    private val accountLabel = cursor.getColumnIndex(KEY_ACCOUNT_LABEL)
+    private val accountType = cursor.getColumnIndex(KEY_ACCOUNT_TYPE)
+    private val transferPeerParent = cursor.getColumnIndex(KEY_TRANSFER_PEER_PARENT)
+    private val tagList = cursor.getColumnIndexOrThrow(KEY_TAGLIST)
+    private val color = cursor.getColumnIndex(KEY_COLOR)
+    private val status = cursor.getColumnIndexOrThrow(KEY_STATUS)
+    private val year = cursor.getColumnIndexOrThrow(KEY_YEAR)
+    private val month = cursor.getColumnIndexOrThrow(KEY_MONTH)
+    private val week = cursor.getColumnIndexOrThrow(KEY_WEEK)
+    private val day = cursor.getColumnIndexOrThrow(KEY_DAY)
+    private val icon = cursor.getColumnIndexOrThrow(KEY_ICON)
+    private val attachmentCount = cursor.getColumnIndex(KEY_ATTACHMENT_COUNT)
+    private val type = cursor.getColumnIndexOrThrow(KEY_TYPE)
+
+    private fun String?.pooled() = if (this == null || stringPool == null) this else stringPool.intern(this)
+
+    private fun stringOrNull(columnIndex: Int) = cursor.getStringOrNull(columnIndex)?.takeIf { it.isNotEmpty() }
+
+    /**
+     * null if the column is not part of the projection (only aggregate lists carry the account
+     * label and type), callers must treat null and empty alike
+     */
+    private fun stringIfExists(columnIndex: Int) = columnIndex.takeIf { it != -1 }?.let { cursor.getString(it) }
+
+    /**
+     * maps the row the cursor is currently positioned on
+     */
+    fun map() = Transaction2(
+        id = cursor.getLongOrNull(rowId) ?: 0,
+        amount = Money(accountCurrency, cursor.getLong(displayAmount)),
+        parentId = cursor.getLongOrNull(parentId),
+        _date = cursor.getLong(date),
+        _valueDate = cursor.getLong(valueDate),
+        comment = stringOrNull(comment),
+        catId = cursor.getLongOrNull(catId),
+        payee = stringOrNull(payee).pooled(),
+        methodLabel = stringOrNull(methodLabel).pooled(),
+        methodIcon = stringOrNull(methodIcon).pooled(),
+        categoryPath = stringOrNull(path).pooled(),
+        transferPeer = cursor.getLongOrNull(transferPeer),
+        transferAccount = cursor.getLongOrNull(transferAccount),
+        transferAccountLabel = stringOrNull(transferAccountLabel).pooled(),
+        accountId = cursor.getLong(accountId),
+        methodId = cursor.getLongOrNull(methodId),
+        crStatus = enumValueOrDefault(cursor.requireString(crStatus), CrStatus.UNRECONCILED),
+        referenceNumber = stringOrNull(referenceNumber),
+        accountLabel = stringIfExists(accountLabel).pooled(),
+        accountType = enumValueOrNull<AccountType>(stringIfExists(accountType)),
+        transferPeerParent = transferPeerParent.takeIf { it != -1 }?.let { cursor.getLongOrNull(it) },
+        tagList = cursor.requireString(tagList).takeIf { it.isNotEmpty() }
+            ?.split('\u001F')?.map { it.pooled()!! }
+            ?: emptyList(),
+        color = color.takeIf { it != -1 }?.let { cursor.getInt(it) },
+        status = cursor.getInt(status),
+        year = cursor.getInt(year),
+        month = cursor.getInt(month),
+        week = cursor.getInt(week),
+        day = cursor.getInt(day),
+        icon = stringOrNull(icon).pooled(),
+        attachmentCount = attachmentCount.takeIf { it != -1 }?.let { cursor.getInt(it) } ?: 0,
+        type = cursor.getInt(type).toByte()
+    )
+}
+
+/**
+ * Canonical instances for strings that are repeated across many rows, so that each distinct
+ * value is held in memory only once
+ */
+class StringPool {
+    private val pool = ConcurrentHashMap<String, String>()
+
+    fun intern(value: String): String = pool.putIfAbsent(value, value) ?: value
+}
@@ -0,0 +1,140 @@
+package org.totschnig.myexpenses.adapter
+
+import android.content.ContentUris
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import androidx.paging.PagingSource
+import androidx.paging.PagingSource.LoadParams
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.model.SortDirection
+import org.totschnig.myexpenses.preference.PrefHandler
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.util.locale.HomeCurrencyProvider
+import org.totschnig.myexpenses.viewmodel.data.PageAccount
+import org.totschnig.myexpenses.viewmodel.data.Transaction2
+import org.totschnig.shared_test.Benchmark
+import java.util.Date
+
+/**
+ * Compares loading a page of [TransactionPagingSource] at increasing depths of a list of 20k
+ * transactions, once with OFFSET (refresh) and once by seeking from the previous page (append),
+ * the equality of both is verified by [TransactionPagingSourceTest]
+ */
+@RunWith(RobolectricTestRunner::class)
+class TransactionPagingBenchmark : BaseTestWithRepository() {
+    private val transactionCount = 20_000
+    private val pageSize = 50
+    private val depths = listOf(pageSize, 5_000, 10_000, transactionCount - pageSize)
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+    private val scope = CoroutineScope(Dispatchers.Unconfined)
+    private var accountId: Long = 0
+    private lateinit var pagingSource: TransactionPagingSource
+
+    private val db
+        get() = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+
+    @Before
+    fun setup() {
+        Benchmark.assumeEnabled()
+        accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Benchmark", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        val base = 1700000000000L
+        db.beginTransaction()
+        try {
+            repeat(transactionCount) {
+                db.insert(
+                    TABLE_TRANSACTIONS,
+                    SQLiteDatabase.CONFLICT_NONE,
+                    TransactionInfo(
+                        accountId = accountId,
+                        amount = -100L * (it % 50 + 1),
+                        //a few transactions per day, so that dates repeat across page borders
+                        date = Date(base + it / 4 * 86400_000L)
+                    ).contentValues
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        pagingSource = TransactionPagingSource(
+            context,
+            PageAccount(
+                id = accountId,
+                type = AccountType.CASH,
+                sortBy = KEY_DATE,
+                sortDirection = SortDirection.DESC,
+                grouping = Grouping.NONE,
+                currencyUnit = currencyContext.get("USD"),
+                sealed = false,
+                openingBalance = 0,
+                _color = 0
+            ),
+            MutableStateFlow(WhereFilter.empty()),
+            Mockito.mock(HomeCurrencyProvider::class.java).also {
+                Mockito.`when`(it.homeCurrencyString).thenReturn("USD")
+            },
+            currencyContext,
+            scope,
+            Mockito.mock(PrefHandler::class.java)
+        )
+    }
+
+    @After
+    fun tearDown() {
+        if (::pagingSource.isInitialized) pagingSource.clear()
+        scope.cancel()
+    }
+
+    private fun page(params: LoadParams<Int>) = runBlocking {
+        pagingSource.load(params) as PagingSource.LoadResult.Page<Int, Transaction2>
+    }
+
+    @Test
+    fun compareOffsetWithSeek() {
+        val results = depths.map { depth ->
+            val offsetMillis = Benchmark.measureMillis {
+                page(LoadParams.Refresh(depth, pageSize, false))
+            }
+            val fromOffset = page(LoadParams.Refresh(depth, pageSize, false)).data.map { it.id }
+            //loading the page before remembers the row the append seeks from
+            page(LoadParams.Refresh(depth - pageSize, pageSize, false))
+            val seekMillis = Benchmark.measureMillis {
+                page(LoadParams.Append(depth, pageSize, false))
+            }
+            val fromSeek = page(LoadParams.Append(depth, pageSize, false)).data.map { it.id }
+            assertThat(fromSeek).containsExactlyElementsIn(fromOffset).inOrder()
+            "page at $depth: offset %.1f ms, seek %.1f ms".format(offsetMillis, seekMillis)
+        }
+        Benchmark.report(
+            "TransactionPagingBenchmark",
+            listOf("$transactionCount transactions, $pageSize per page") + results
+        )
+    }
+}
@@ -0,0 +1,157 @@
+package org.totschnig.myexpenses.adapter
+
+import android.content.ContentUris
+import android.content.Context
+import androidx.paging.PagingSource
+import androidx.paging.PagingSource.LoadParams
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.model.SortDirection
+import org.totschnig.myexpenses.preference.PrefHandler
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.util.locale.HomeCurrencyProvider
+import org.totschnig.myexpenses.viewmodel.data.PageAccount
+import org.totschnig.myexpenses.viewmodel.data.Transaction2
+import java.util.Date
+
+private const val PAGE_SIZE = 6
+
+@RunWith(RobolectricTestRunner::class)
+class TransactionPagingSourceTest : BaseTestWithRepository() {
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+    private val scope = CoroutineScope(Dispatchers.Unconfined)
+    private val pagingSources = mutableListOf<TransactionPagingSource>()
+    private val homeCurrencyProvider = Mockito.mock(HomeCurrencyProvider::class.java).also {
+        Mockito.`when`(it.homeCurrencyString).thenReturn("USD")
+    }
+    private var accountId: Long = 0
+
+    @Before
+    fun setup() {
+        accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Test account", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        //only three distinct dates and two distinct absolute amounts, so that rows with equal sort values
+        //span every page boundary and the id has to break the tie
+        val now = System.currentTimeMillis()
+        val amounts = listOf(100L, -100L, 250L, -250L)
+        repeat(41) {
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(
+                    accountId = accountId,
+                    amount = amounts[it % amounts.size],
+                    date = Date(now - (it % 3) * 86400_000L)
+                ).contentValues
+            )
+        }
+    }
+
+    @After
+    fun tearDown() {
+        pagingSources.forEach { it.clear() }
+        scope.cancel()
+    }
+
+    private fun pagingSource(sortBy: String, sortDirection: SortDirection) =
+        TransactionPagingSource(
+            context,
+            PageAccount(
+                id = accountId,
+                type = AccountType.CASH,
+                sortBy = sortBy,
+                sortDirection = sortDirection,
+                grouping = Grouping.NONE,
+                currencyUnit = currencyContext.get("USD"),
+                sealed = false,
+                openingBalance = 0,
+                _color = 0
+            ),
+            MutableStateFlow(WhereFilter.empty()),
+            homeCurrencyProvider,
+            currencyContext,
+            scope,
+            Mockito.mock(PrefHandler::class.java)
+        ).also { pagingSources.add(it) }
+
+    private fun PagingSource<Int, Transaction2>.page(params: LoadParams<Int>) = runBlocking {
+        load(params) as PagingSource.LoadResult.Page<Int, Transaction2>
+    }
+
+    private fun refresh(key: Int, loadSize: Int = PAGE_SIZE) =
+        LoadParams.Refresh(key, loadSize, false)
+
+    /**
+     * pages loaded by seeking from the rows at the page borders, appending forward from the first
+     * page and prepending backward from a page in the middle, must yield the same rows in the same
+     * order as the list loaded with OFFSET
+     */
+    private fun assertSeekEqualsOffset(sortBy: String, sortDirection: SortDirection) {
+        val expected = pagingSource(sortBy, sortDirection).page(refresh(0, 1000)).data.map { it.id }
+        assertThat(expected).hasSize(41)
+
+        val appending = pagingSource(sortBy, sortDirection)
+        val appended = mutableListOf<Long>()
+        var page = appending.page(refresh(0))
+        appended.addAll(page.data.map { it.id })
+        while (page.nextKey != null) {
+            page = appending.page(LoadParams.Append(page.nextKey!!, PAGE_SIZE, false))
+            appended.addAll(page.data.map { it.id })
+        }
+        assertThat(appended).containsExactlyElementsIn(expected).inOrder()
+
+        //a refresh key that is not a multiple of the page size makes the first page a partial one
+        val start = 3 * PAGE_SIZE + 3
+        val prepending = pagingSource(sortBy, sortDirection)
+        page = prepending.page(refresh(start))
+        val prepended = page.data.map { it.id }.toMutableList()
+        while (page.prevKey != null) {
+            page = prepending.page(LoadParams.Prepend(page.prevKey!!, PAGE_SIZE, false))
+            prepended.addAll(0, page.data.map { it.id })
+        }
+        assertThat(prepended).containsExactlyElementsIn(expected.take(start + PAGE_SIZE)).inOrder()
+    }
+
+    @Test
+    fun seekByDateDescending() {
+        assertSeekEqualsOffset(KEY_DATE, SortDirection.DESC)
+    }
+
+    @Test
+    fun seekByDateAscending() {
+        assertSeekEqualsOffset(KEY_DATE, SortDirection.ASC)
+    }
+
+    @Test
+    fun seekByAmountDescending() {
+        assertSeekEqualsOffset(KEY_AMOUNT, SortDirection.DESC)
+    }
+
+    @Test
+    fun seekByAmountAscending() {
+        assertSeekEqualsOffset(KEY_AMOUNT, SortDirection.ASC)
+    }
+}
@@ -0,0 +1,105 @@
+package org.totschnig.myexpenses.export
+
+import android.content.ContentUris
+import android.content.ContentValues
+import android.content.Context
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.mockito.kotlin.any
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.loadAccount
+import org.totschnig.myexpenses.db2.writeTag
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import java.io.File
+import java.util.Date
+
+/**
+ * Exports an account with a few hundred transactions, some of them tagged or split, and checks
+ * that the details loaded once per account end up on the right rows
+ */
+@RunWith(RobolectricTestRunner::class)
+class ExportDetailsTest : BaseTestWithRepository() {
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+
+    private val transactionCount = 300
+
+    @Test
+    fun exportTagsAndSplitParts() {
+        Mockito.`when`(currencyContext.get(any())).thenReturn(CurrencyUnit.DebugInstance)
+        val account = repository.loadAccount(insertExportAccount("Export", transactionCount))!!
+        val outFile = File(context.cacheDir, "details.csv")
+        val exporter = CsvExporter(
+            account, currencyContext, null, false, "dd/MM/yyyy", '.', "UTF-8", true, ';', false
+        )
+        val result = exporter.export(
+            context, lazy { Result.success(DocumentFile.fromFile(outFile)) }, false
+        )
+        assertThat(result.isSuccess).isTrue()
+        val lines = outFile.readLines()
+        assertThat(lines.count { it.contains("Tag One") }).isEqualTo((transactionCount + 2) / 3)
+        assertThat(lines.filter { it.contains("\"Transaction 3\"") }.single()).contains("Tag Two")
+        assertThat(lines.filter { it.contains("\"Transaction 4\"") }.single()).doesNotContain("Tag")
+        assertThat(lines.size).isEqualTo(1 + transactionCount + transactionCount / 10 * 2)
+    }
+}
+
+/**
+ * Inserts an account with [transactionCount] transactions, every tenth of them split into two parts
+ * and every third tagged with "Tag One" and "Tag Two"
+ */
+internal fun BaseTestWithRepository.insertExportAccount(label: String, transactionCount: Int): Long {
+    fun insert(values: ContentValues) = ContentUris.parseId(
+        contentResolver.insert(TransactionProvider.TRANSACTIONS_URI, values)!!
+    )
+    val accountId = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.ACCOUNTS_URI,
+            AccountInfo(label, AccountType.CASH, 0, CurrencyUnit.DebugInstance.code).contentValues
+        )!!
+    )
+    val tags = listOf(repository.writeTag("Tag One"), repository.writeTag("Tag Two"))
+    val base = Date(1700000000000L)
+    repeat(transactionCount) { index ->
+        val date = Date(base.time + index * 60_000L)
+        val isSplit = index % 10 == 0
+        val id = insert(
+            TransactionInfo(
+                accountId = accountId,
+                amount = -100L * (index % 50 + 1),
+                date = date,
+                comment = "Transaction $index",
+                catId = if (isSplit) SPLIT_CATID else null
+            ).contentValues
+        )
+        if (isSplit) {
+            repeat(2) {
+                insert(TransactionInfo(accountId = accountId, amount = -50L, date = date).contentValues.apply {
+                    put(KEY_PARENTID, id)
+                })
+            }
+        }
+        if (index % 3 == 0) {
+            tags.forEach { tagId ->
+                contentResolver.insert(TransactionProvider.TRANSACTIONS_TAGS_URI, ContentValues(2).apply {
+                    put(KEY_TAGID, tagId)
+                    put(KEY_TRANSACTIONID, id)
+                })
+            }
+        }
+    }
+    return accountId
+}
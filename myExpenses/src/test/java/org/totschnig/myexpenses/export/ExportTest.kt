@@ -48,6 +48,7 @@ import java.io.FileInputStream
 import java.io.FileReader
 import java.io.IOException
 import java.io.InputStreamReader
+import java.io.StringWriter
 import java.text.SimpleDateFormat
 import java.util.*
 
@@ -584,6 +585,33 @@ class ExportTest: BaseTestWithRepository() {
         compare(linesQIF)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun testExportMultipleAccountsToOneStreamJSON() {
+        val (account1, account2) = insertData3()
+        val out = StringWriter()
+        out.write("[")
+        listOf(account1 to "", account2 to ",").forEach { (account, preamble) ->
+            expect.that(
+                JSONExporter(
+                    account,
+                    currencyContext,
+                    null,
+                    false,
+                    "dd/MM/yyyy",
+                    '.',
+                    "UTF-8",
+                    preamble
+                ).export(context, lazy { out }).isSuccess
+            ).isTrue()
+        }
+        out.write("]")
+        val parts = JsonParser.parseString(out.toString()).asJsonArray
+        expect.that(parts.size()).isEqualTo(2)
+        expect.that(parts[0].asJsonObject["uuid"].asString).isEqualTo(account1.uuid)
+        expect.that(parts[1].asJsonObject["uuid"].asString).isEqualTo(account2.uuid)
+    }
+
     @Test
     fun testCategoryExporter() {
         val cat1Id = writeCategory("Main")
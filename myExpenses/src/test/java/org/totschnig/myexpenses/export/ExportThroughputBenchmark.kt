@@ -0,0 +1,54 @@
+package org.totschnig.myexpenses.export
+
+import android.content.Context
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.mockito.kotlin.any
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.loadAccount
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.shared_test.Benchmark
+import java.io.File
+
+/**
+ * Exports an account with a few thousand transactions, some of them tagged or split, and reports
+ * the number of transactions written per second, the content of the export is verified by
+ * [ExportDetailsTest].
+ */
+@RunWith(RobolectricTestRunner::class)
+class ExportThroughputBenchmark : BaseTestWithRepository() {
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+
+    private val transactionCount = 3000
+
+    @Test
+    fun measureThroughput() {
+        Benchmark.assumeEnabled()
+        Mockito.`when`(currencyContext.get(any())).thenReturn(CurrencyUnit.DebugInstance)
+        val account = repository.loadAccount(insertExportAccount("Benchmark", transactionCount))!!
+        val outFile = File(context.cacheDir, "benchmark.csv")
+        val exporter = CsvExporter(
+            account, currencyContext, null, false, "dd/MM/yyyy", '.', "UTF-8", true, ';', false
+        )
+        val millis = Benchmark.measureMillis {
+            val result = exporter.export(
+                context, lazy { Result.success(DocumentFile.fromFile(outFile)) }, false
+            )
+            assertThat(result.isSuccess).isTrue()
+        }
+        val lines = outFile.readLines()
+        assertThat(lines.size).isEqualTo(1 + transactionCount + transactionCount / 10 * 2)
+        Benchmark.report(
+            "ExportThroughputBenchmark", listOf(
+                "$transactionCount transactions (${lines.size} lines) in %.1f ms, %.0f transactions/s"
+                    .format(millis, transactionCount * 1000 / millis)
+            )
+        )
+    }
+}
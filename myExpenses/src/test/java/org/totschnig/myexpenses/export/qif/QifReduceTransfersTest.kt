@@ -132,4 +132,61 @@ class QifReduceTransfersTest {
         assertThat(reduced[0].transactions[0].splits!![0].isTransfer).isTrue()
         assertThat(reduced[1].transactions.size).isEqualTo(0)
     }
-}
\ No newline at end of file
+
+    private fun transfer(toAccount: String, amount: Int, date: Date) =
+        ImportTransaction.Builder()
+            .toAccount(toAccount)
+            .date(date)
+            .amount(BigDecimal(amount))
+
+    @Test
+    fun completeTransferGroupsKeepsTransfersWithoutCounterpartPending() {
+        val now = Date(System.currentTimeMillis())
+        val matched = transfer(account2, -5, now).build()
+        val unmatched = transfer(account2, -7, now).build()
+        val counterpart = transfer(account1, 5, now).build()
+        val (complete, pending) = QifUtils.completeTransferGroups(
+            mapOf(account1 to listOf(matched, unmatched), account2 to listOf(counterpart)),
+            setOf(account1, account2)
+        )
+        assertThat(complete).containsExactly(
+            listOf(
+                ImportAccount(memo = account1, transactions = listOf(matched)),
+                ImportAccount(memo = account2, transactions = listOf(counterpart))
+            )
+        )
+        assertThat(pending).containsExactly(account1, listOf(unmatched))
+    }
+
+    @Test
+    fun completeTransferGroupsWaitsForAllLegsOfSplit() {
+        val now = Date(System.currentTimeMillis())
+        val account3 = "Konto 3"
+        val split = ImportTransaction.Builder()
+            .date(now)
+            .amount(BigDecimal(-8))
+            .addSplit(transfer(account2, -5, now))
+            .addSplit(transfer(account3, -3, now))
+            .build()
+        val counterpart2 = transfer(account1, 5, now).build()
+        val importedAccounts = setOf(account1, account2, account3)
+        val (complete, pending) = QifUtils.completeTransferGroups(
+            mapOf(account1 to listOf(split), account2 to listOf(counterpart2)),
+            importedAccounts
+        )
+        assertThat(complete).isEmpty()
+        assertThat(pending).containsExactly(
+            account1, listOf(split), account2, listOf(counterpart2)
+        )
+
+        val counterpart3 = transfer(account1, 3, now).build()
+        val (completeAfterwards, pendingAfterwards) = QifUtils.completeTransferGroups(
+            pending + (account3 to listOf(counterpart3)),
+            importedAccounts
+        )
+        assertThat(completeAfterwards).hasSize(1)
+        assertThat(completeAfterwards[0].flatMap { it.transactions })
+            .containsExactly(split, counterpart2, counterpart3)
+        assertThat(pendingAfterwards).isEmpty()
+    }
+}
@@ -11,6 +11,7 @@ import org.totschnig.myexpenses.model.CurrencyUnit
 import org.totschnig.myexpenses.util.DateTime
 import java.io.ByteArrayInputStream
 import java.io.InputStreamReader
+import java.io.Reader
 import java.nio.charset.StandardCharsets
 import java.util.Date
 
@@ -83,6 +84,66 @@ class CsvParserTest {
     }
 
 
+    @Test
+    fun shouldYieldTransactionsBeforeInputIsExhausted() {
+        //a file of this size would not fit into the heap of a small device if it were kept
+        val lineCount = 500_001
+        var linesRead = 0
+        val reader = object : Reader() {
+            private var buffer = ""
+            private var position = 0
+
+            override fun read(cbuf: CharArray, off: Int, len: Int): Int {
+                if (position == buffer.length) {
+                    if (linesRead == lineCount) return -1
+                    buffer = if (linesRead % 3 == 0)
+                        "\"*\",\"9/6/23\",\"Payee ${linesRead % 50}\",\"0\",\"100.00\",\"\",\"Note $linesRead\"\n"
+                    else
+                        "\"-\",\"9/6/23\",\"\",\"0\",\"50.00\",\"Food:Baker\",\"Note $linesRead\"\n"
+                    position = 0
+                    linesRead++
+                }
+                val count = minOf(len, buffer.length - position)
+                buffer.toCharArray(cbuf, off, position, position + count)
+                position += count
+                return count
+            }
+
+            override fun close() {}
+        }
+        var transactionCount = 0
+        var splitCount = 0
+        var maxLinesAhead = 0
+        CSVFormat.DEFAULT.parse(reader).use { records ->
+            val p = CSVParser(
+                mock(),
+                records,
+                intArrayOf(
+                    R.string.split_transaction,
+                    R.string.date,
+                    R.string.payer_or_payee,
+                    R.string.income,
+                    R.string.expense,
+                    R.string.category,
+                    R.string.comment
+                ),
+                QifDateFormat.US,
+                CurrencyUnit.DebugInstance,
+                AccountType.BANK
+            )
+            p.transactions().forEach { (_, transaction) ->
+                transactionCount++
+                splitCount += transaction.splits.size
+                //the input read so far is at most a buffer ahead of the transactions yielded
+                maxLinesAhead = maxOf(maxLinesAhead, linesRead - transactionCount * 3)
+            }
+            assertThat(p.payees).hasSize(50)
+        }
+        assertThat(transactionCount).isEqualTo(lineCount / 3)
+        assertThat(splitCount).isEqualTo(lineCount - transactionCount)
+        assertThat(maxLinesAhead).isLessThan(1000)
+    }
+
     private fun parseCSV(
         fileContent: String,
         dateFormat: QifDateFormat = QifDateFormat.US,
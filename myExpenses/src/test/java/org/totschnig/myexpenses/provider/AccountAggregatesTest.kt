@@ -0,0 +1,263 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.FLAG_EXPENSE
+import org.totschnig.myexpenses.db2.FLAG_INCOME
+import org.totschnig.myexpenses.db2.FLAG_NEUTRAL
+import org.totschnig.myexpenses.db2.FLAG_TRANSFER
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EQUIVALENT_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCHANGE_RATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HAS_CLEARED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HAS_FUTURE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_INCOME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_TRANSFERS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TOTAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_AGGREGATES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_WITH_ACCOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT
+import kotlin.random.Random
+
+private const val HOME_CURRENCY = "USD"
+
+private val aggregateColumns = listOf(
+    KEY_TOTAL,
+    "equivalent_total",
+    KEY_SUM_INCOME,
+    "equivalent_income",
+    KEY_SUM_EXPENSES,
+    "equivalent_expense",
+    KEY_SUM_TRANSFERS,
+    KEY_CURRENT,
+    "equivalent_current",
+    KEY_CLEARED_TOTAL,
+    KEY_RECONCILED_TOTAL,
+    KEY_HAS_CLEARED,
+    KEY_HAS_FUTURE
+)
+
+@RunWith(RobolectricTestRunner::class)
+class AccountAggregatesTest : BaseTestWithRepository() {
+
+    private lateinit var provider: TransactionProvider
+    private lateinit var db: SupportSQLiteDatabase
+    private val random = Random(987)
+    private val accounts = mutableListOf<Long>()
+    private val categories = mutableListOf<Long>()
+
+    @Before
+    fun setup() {
+        provider = contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider
+        db = provider.helper.writableDatabase
+        listOf("USD", "EUR").forEach { currency ->
+            accounts.add(
+                db.insert(
+                    TABLE_ACCOUNTS, SQLiteDatabase.CONFLICT_NONE,
+                    AccountInfo("Account $currency", AccountType.CASH, 0, currency).contentValues
+                )
+            )
+        }
+        listOf(FLAG_EXPENSE, FLAG_INCOME, FLAG_NEUTRAL).forEach { type ->
+            categories.add(
+                db.insert(TABLE_CATEGORIES, SQLiteDatabase.CONFLICT_NONE, ContentValues().apply {
+                    put(KEY_LABEL, "Category $type")
+                    put(KEY_TYPE, type)
+                })
+            )
+        }
+    }
+
+    private fun insertTransaction(
+        accountId: Long,
+        amount: Long,
+        catId: Long?,
+        parentId: Long? = null
+    ) = db.insert(TABLE_TRANSACTIONS, SQLiteDatabase.CONFLICT_NONE,
+        TransactionInfo(
+            accountId = accountId,
+            amount = amount,
+            catId = catId,
+            crStatus = CrStatus.entries.filter { it != CrStatus.VOID }.random(random)
+        ).contentValues.apply {
+            parentId?.let { put(KEY_PARENTID, it) }
+            if (parentId == null && random.nextBoolean()) {
+                put(KEY_EQUIVALENT_AMOUNT, amount * 2)
+            }
+            if (random.nextInt(5) == 0) {
+                val future = System.currentTimeMillis() / 1000 + 86400 * 10
+                put(KEY_DATE, future)
+                put(KEY_VALUE_DATE, future)
+            }
+        }
+    )
+
+    private fun randomAmount() = random.nextLong(-10000, 10000)
+
+    private fun insertSplit(accountId: Long): Long {
+        val parts = List(3) { randomAmount() }
+        val parentId = insertTransaction(accountId, parts.sum(), SPLIT_CATID)
+        parts.forEach { insertTransaction(accountId, it, categories.random(random), parentId) }
+        return parentId
+    }
+
+    private fun update(id: Long, values: ContentValues) {
+        db.update(TABLE_TRANSACTIONS, SQLiteDatabase.CONFLICT_NONE, values, "_id = ?", arrayOf(id))
+    }
+
+    /**
+     * the aggregation [accountQueryCTE] did on the fly before the buckets were maintained by
+     * triggers, serves as reference the bucket based query has to agree with
+     */
+    private fun referenceAccountQueryCTE(typeWithFallBack: String): String {
+        val isExpense =
+            "$KEY_TYPE = $FLAG_EXPENSE OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_AMOUNT < 0)"
+        val isIncome =
+            "$KEY_TYPE = $FLAG_INCOME OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_AMOUNT > 0)"
+        return """
+WITH now as (
+    SELECT
+        cast(strftime('%s', 'now') as integer) AS now
+), amounts AS (
+    SELECT
+        $KEY_AMOUNT,
+        $typeWithFallBack AS $KEY_TYPE,
+        $KEY_CR_STATUS,
+        $KEY_DATE,
+        coalesce(
+            CASE
+                WHEN $KEY_PARENTID
+                THEN (SELECT 1.0 * $KEY_EQUIVALENT_AMOUNT / $KEY_AMOUNT FROM $TABLE_TRANSACTIONS
+                    WHERE $KEY_ROWID = $VIEW_WITH_ACCOUNT.$KEY_PARENTID
+                  ) * $KEY_AMOUNT
+                ELSE $KEY_EQUIVALENT_AMOUNT
+            END,
+            coalesce($KEY_EXCHANGE_RATE, 1) * amount
+        ) AS $KEY_EQUIVALENT_AMOUNT,
+        $VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID
+    FROM ${exchangeRateJoin(VIEW_WITH_ACCOUNT, KEY_ACCOUNTID, HOME_CURRENCY)}
+    WHERE $WHERE_NOT_SPLIT AND $KEY_CR_STATUS != '${CrStatus.VOID.name}'
+), aggregates AS (
+    SELECT
+        $KEY_ACCOUNTID,
+        sum($KEY_AMOUNT) as $KEY_TOTAL,
+        sum($KEY_EQUIVALENT_AMOUNT) as equivalent_total,
+        sum(CASE WHEN $isIncome THEN $KEY_AMOUNT ELSE 0 END) as $KEY_SUM_INCOME,
+        sum(CASE WHEN $isIncome THEN $KEY_EQUIVALENT_AMOUNT ELSE 0 END) as equivalent_income,
+        sum(CASE WHEN $isExpense THEN $KEY_AMOUNT ELSE 0 END) as $KEY_SUM_EXPENSES,
+        sum(CASE WHEN $isExpense THEN $KEY_EQUIVALENT_AMOUNT ELSE 0 END) as equivalent_expense,
+        sum(CASE WHEN $KEY_TYPE = $FLAG_TRANSFER THEN $KEY_AMOUNT ELSE 0  END) as $KEY_SUM_TRANSFERS,
+        sum(CASE WHEN $KEY_DATE < (select now from now) THEN $KEY_AMOUNT ELSE 0 END) as $KEY_CURRENT,
+        sum(CASE WHEN $KEY_DATE < (select now from now) THEN $KEY_EQUIVALENT_AMOUNT ELSE 0 END) as equivalent_current,
+        sum(CASE WHEN $KEY_CR_STATUS IN ( 'RECONCILED', 'CLEARED' ) THEN $KEY_AMOUNT ELSE 0 END) as $KEY_CLEARED_TOTAL,
+        sum(CASE WHEN $KEY_CR_STATUS = 'RECONCILED' THEN $KEY_AMOUNT ELSE 0 END) as $KEY_RECONCILED_TOTAL,
+        max(CASE WHEN $KEY_CR_STATUS = 'CLEARED' THEN 1 ELSE 0 END) as $KEY_HAS_CLEARED,
+        max($KEY_DATE) >= (select now from now) as $KEY_HAS_FUTURE
+   from amounts group by $KEY_ACCOUNTID
+)
+"""
+    }
+
+    /**
+     * accounts whose transactions have all been moved or deleted may keep buckets summing up to 0,
+     * hence we compare per account with missing aggregates counting as 0
+     */
+    private fun aggregatesPerAccount(cte: String) = db.query(
+        "$cte SELECT ${
+            aggregateColumns.joinToString { "coalesce($it, 0)" }
+        } FROM $TABLE_ACCOUNTS LEFT JOIN aggregates ON $TABLE_ACCOUNTS.$KEY_ROWID = aggregates.$KEY_ACCOUNTID ORDER BY $TABLE_ACCOUNTS.$KEY_ROWID"
+    ).use { cursor ->
+        buildList {
+            while (cursor.moveToNext()) {
+                add(aggregateColumns.indices.map { cursor.getDouble(it) })
+            }
+        }
+    }
+
+    private fun assertConsistent() {
+        val typeWithFallBack = provider.typeWithFallBack
+        val expected = aggregatesPerAccount(referenceAccountQueryCTE(typeWithFallBack))
+        val actual = aggregatesPerAccount(
+            accountQueryCTE(HOME_CURRENCY, true, "sum", typeWithFallBack)
+        )
+        assertThat(actual).hasSize(accounts.size)
+        actual.zip(expected).forEach { (actualRow, expectedRow) ->
+            actualRow.zip(expectedRow).forEachIndexed { index, (actualValue, expectedValue) ->
+                assertWithMessage(aggregateColumns[index])
+                    .that(actualValue).isWithin(0.001).of(expectedValue)
+            }
+        }
+    }
+
+    @Test
+    fun aggregatesFollowInsertUpdateAndDelete() {
+        val transactions = List(30) {
+            val accountId = accounts.random(random)
+            if (random.nextInt(4) == 0) insertSplit(accountId)
+            else insertTransaction(accountId, randomAmount(), (categories + null).random(random))
+        }
+        assertConsistent()
+
+        transactions.shuffled(random).take(10).forEach { id ->
+            update(id, ContentValues().apply {
+                when (random.nextInt(4)) {
+                    0 -> put(KEY_AMOUNT, randomAmount())
+                    1 -> put(KEY_CR_STATUS, CrStatus.entries.random(random).name)
+                    2 -> put(KEY_ACCOUNTID, accounts.random(random))
+                    else -> put(KEY_EQUIVALENT_AMOUNT, randomAmount())
+                }
+            })
+        }
+        assertConsistent()
+
+        db.update(TABLE_CATEGORIES, SQLiteDatabase.CONFLICT_NONE, ContentValues().apply {
+            put(KEY_TYPE, FLAG_INCOME)
+        }, "_id = ?", arrayOf(categories.first()))
+        assertConsistent()
+
+        transactions.shuffled(random).take(10).forEach {
+            db.delete(TABLE_TRANSACTIONS, "_id = ?", arrayOf(it))
+        }
+        assertConsistent()
+    }
+
+    @Test
+    fun rebuildRestoresAggregates() {
+        repeat(10) { insertSplit(accounts.first()) }
+        db.execSQL("DELETE FROM $TABLE_ACCOUNT_AGGREGATES")
+        contentResolver.call(
+            TransactionProvider.DUAL_URI,
+            TransactionProvider.METHOD_REBUILD_ACCOUNT_AGGREGATES,
+            null,
+            null
+        )
+        assertConsistent()
+    }
+}
@@ -0,0 +1,193 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentUris
+import android.content.ContentValues
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.preference.PrefHandler
+import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LOCAL_DAY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH_BUCKET
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_START_DAY
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.Calendar
+import java.util.Locale
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class CalendarBucketsTest : BaseTestWithRepository() {
+
+    private lateinit var db: SupportSQLiteDatabase
+    private val random = Random(4711)
+    private val prefHandler: PrefHandler
+        get() = ApplicationProvider.getApplicationContext<MyApplication>().appComponent.prefHandler()
+    private var accountId: Long = 0
+    private val transactions = mutableListOf<Long>()
+
+    @Before
+    fun setup() {
+        db = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+        accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Test account", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+    }
+
+    @After
+    fun tearDown() {
+        prefHandler.remove(PrefKey.GROUP_WEEK_STARTS)
+        prefHandler.remove(PrefKey.GROUP_MONTH_STARTS)
+    }
+
+    private fun randomDate() = LocalDateTime.of(
+        random.nextInt(2020, 2031), random.nextInt(1, 13), random.nextInt(1, 29),
+        random.nextInt(24), random.nextInt(60)
+    ).atZone(ZoneId.systemDefault()).toEpochSecond()
+
+    private fun insertTransactions() {
+        repeat(100) {
+            transactions.add(
+                ContentUris.parseId(
+                    contentResolver.insert(
+                        TransactionProvider.TRANSACTIONS_URI,
+                        TransactionInfo(accountId = accountId, amount = 100).contentValues.apply {
+                            put(KEY_DATE, randomDate())
+                        }
+                    )!!
+                )
+            )
+        }
+    }
+
+    private fun refresh() = contentResolver.call(
+        TransactionProvider.DUAL_URI,
+        TransactionProvider.METHOD_REFRESH_CALENDAR_BUCKETS,
+        null,
+        null
+    )!!.getInt(KEY_RESULT)
+
+    /**
+     * buckets written by the provider match what the SQL expressions compute
+     */
+    private fun assertBucketsMatchExpressions() {
+        val parameters = CalendarBucketParameters.current(prefHandler)
+        db.query(
+            "SELECT count(*) FROM $TABLE_TRANSACTIONS WHERE $KEY_LOCAL_DAY IS NOT ${parameters.localDayExpression} OR " +
+                    "$KEY_WEEK_START_DAY IS NOT ${parameters.weekStartDayExpression} OR " +
+                    "$KEY_MONTH_BUCKET IS NOT ${parameters.monthBucketExpression}"
+        ).use {
+            it.moveToFirst()
+            assertThat(it.getInt(0)).isEqualTo(0)
+        }
+    }
+
+    @Test
+    fun providerComputesSameBucketsAsSql() {
+        for (weekStart in Calendar.SUNDAY..Calendar.SATURDAY) {
+            prefHandler.putString(PrefKey.GROUP_WEEK_STARTS, weekStart.toString())
+            prefHandler.putString(PrefKey.GROUP_MONTH_STARTS, (weekStart * 4).toString())
+            db.execSQL("DELETE FROM $TABLE_TRANSACTIONS")
+            insertTransactions()
+            assertBucketsMatchExpressions()
+        }
+    }
+
+    @Test
+    fun updateOfDateRecomputesBuckets() {
+        insertTransactions()
+        transactions.take(10).forEach {
+            contentResolver.update(
+                ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, it),
+                ContentValues(1).apply { put(KEY_DATE, randomDate()) },
+                null,
+                null
+            )
+        }
+        assertBucketsMatchExpressions()
+    }
+
+    @Test
+    fun refreshOnlyRunsWhenParametersChange() {
+        insertTransactions()
+        refresh()
+        assertThat(refresh()).isEqualTo(0)
+        prefHandler.putString(PrefKey.GROUP_MONTH_STARTS, "15")
+        assertThat(refresh()).isEqualTo(transactions.size)
+        assertBucketsMatchExpressions()
+        assertThat(refresh()).isEqualTo(0)
+        db.execSQL("UPDATE $TABLE_TRANSACTIONS SET $KEY_LOCAL_DAY = null WHERE $KEY_ROWID = ${transactions.first()}")
+        assertThat(refresh()).isEqualTo(1)
+        assertBucketsMatchExpressions()
+    }
+
+    @Test
+    fun queryRecomputesStaleBuckets() {
+        insertTransactions()
+        refresh()
+        prefHandler.putString(PrefKey.GROUP_WEEK_STARTS, Calendar.WEDNESDAY.toString())
+        prefHandler.putString(PrefKey.GROUP_MONTH_STARTS, "20")
+        //no refresh, as if the worker had not yet run after the change
+        contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf("count(*)"),
+            null,
+            null,
+            null
+        )!!.close()
+        assertBucketsMatchExpressions()
+        assertThat(refresh()).isEqualTo(0)
+    }
+
+    @Test
+    fun bucketFilterMatchesGroupExpressions() {
+        prefHandler.putString(PrefKey.GROUP_WEEK_STARTS, Calendar.MONDAY.toString())
+        prefHandler.putString(PrefKey.GROUP_MONTH_STARTS, "10")
+        DatabaseConstants.buildLocalized(
+            Locale.getDefault(),
+            ApplicationProvider.getApplicationContext<MyApplication>()
+        )
+        insertTransactions()
+        listOf(
+            Grouping.DAY to DatabaseConstants.DAY,
+            Grouping.WEEK to DatabaseConstants.getWeek(),
+            Grouping.MONTH to DatabaseConstants.getMonth(),
+            Grouping.YEAR to "0",
+        ).forEach { (grouping, secondExpression) ->
+            val yearExpression = when (grouping) {
+                Grouping.WEEK -> DatabaseConstants.getYearOfWeekStart()
+                Grouping.MONTH -> DatabaseConstants.getYearOfMonthStart()
+                else -> DatabaseConstants.YEAR
+            }
+            db.query("SELECT DISTINCT $yearExpression, $secondExpression FROM $TABLE_TRANSACTIONS")
+                .use { cursor ->
+                    while (cursor.moveToNext()) {
+                        val year = cursor.getInt(0)
+                        val second = cursor.getInt(1)
+                        fun ids(selection: String) = db.query(
+                            "SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $selection"
+                        ).use { buildList { while (it.moveToNext()) add(it.getLong(0)) } }
+                        assertThat(ids(calendarBucketFilter(grouping, year, second)!!))
+                            .containsExactlyElementsIn(ids("$yearExpression = $year AND $secondExpression = $second"))
+                    }
+                }
+        }
+    }
+}
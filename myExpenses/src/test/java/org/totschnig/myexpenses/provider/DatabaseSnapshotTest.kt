@@ -0,0 +1,173 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentProviderOperation
+import android.content.ContentUris
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.annotation.SQLiteMode
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [33])
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+class DatabaseSnapshotTest : BaseTestWithRepository() {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val provider
+        get() = contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider
+
+    private val liveDb
+        get() = File(provider.helper.readableDatabase.path!!)
+
+    /**
+     * inserts two transactions in one transaction, so that a consistent snapshot holds either both
+     * or none of them
+     * @return the ids of the two transactions
+     */
+    private fun insertPair(accountId: Long, pair: Int) =
+        contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(List(2) {
+            ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+                .withValues(
+                    TransactionInfo(
+                        accountId = accountId,
+                        amount = -100L * (pair * 2 + it + 1),
+                        comment = "Pair $pair part $it"
+                    ).contentValues
+                )
+                .build()
+        })).map { ContentUris.parseId(it.uri!!) }
+
+    private fun SQLiteDatabase.longForQuery(sql: String) = rawQuery(sql, null).use {
+        it.moveToFirst()
+        it.getLong(0)
+    }
+
+    private fun SQLiteDatabase.stringForQuery(sql: String) = rawQuery(sql, null).use {
+        it.moveToFirst()
+        it.getString(0)
+    }
+
+    private fun transactionsQuery(accountId: Long) =
+        "SELECT $KEY_ROWID, $KEY_AMOUNT, $KEY_COMMENT FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = $accountId"
+
+    private fun Cursor.toTransactions() = use { cursor ->
+        buildMap {
+            while (cursor.moveToNext()) {
+                put(cursor.getLong(0), cursor.getLong(1) to cursor.getString(2))
+            }
+        }
+    }
+
+    @Test
+    fun liveDatabaseIsInWalModeAndSnapshotIsNot() {
+        assertThat(
+            provider.helper.readableDatabase.query("PRAGMA journal_mode").use {
+                it.moveToFirst()
+                it.getString(0)
+            }
+        ).isEqualTo("wal")
+        val target = File(temporaryFolder.root, "snapshot")
+        snapshotDatabase(liveDb, target)
+        SQLiteDatabase.openDatabase(target.path, null, SQLiteDatabase.OPEN_READONLY).use { db ->
+            assertThat(db.stringForQuery("PRAGMA journal_mode")).isEqualTo("delete")
+        }
+    }
+
+    @Test
+    fun writersCommitWhileSnapshotIsTaken() {
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Snapshot", AccountType.CASH, 0).contentValues
+            )!!
+        )
+        // a database large enough that the snapshot takes a while
+        provider.helper.writableDatabase.apply {
+            beginTransaction()
+            try {
+                repeat(20_000) {
+                    insert(
+                        TABLE_TRANSACTIONS,
+                        SQLiteDatabase.CONFLICT_NONE,
+                        TransactionInfo(
+                            accountId = accountId,
+                            amount = -100L,
+                            comment = "Filler $it ".repeat(10)
+                        ).contentValues
+                    )
+                }
+                setTransactionSuccessful()
+            } finally {
+                endTransaction()
+            }
+            // leaves free pages, which the snapshot should not contain
+            execSQL(
+                "DELETE FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS ORDER BY $KEY_ROWID LIMIT 500)"
+            )
+        }
+        val before = provider.helper.readableDatabase.query(transactionsQuery(accountId))
+            .toTransactions()
+
+        val writing = AtomicBoolean(true)
+        val committed = Collections.synchronizedList(mutableListOf<Pair<Long, List<Long>>>())
+        val started = CountDownLatch(1)
+        var writerFailure: Throwable? = null
+        val writer = thread {
+            try {
+                var pair = 0
+                while (writing.get()) {
+                    val ids = insertPair(accountId, pair++)
+                    committed.add(System.nanoTime() to ids)
+                    started.countDown()
+                }
+            } catch (e: Throwable) {
+                writerFailure = e
+                started.countDown()
+            }
+        }
+        started.await()
+        val target = File(temporaryFolder.root, "snapshot")
+        val snapshotStart = System.nanoTime()
+        snapshotDatabase(liveDb, target)
+        val snapshotEnd = System.nanoTime()
+        writing.set(false)
+        writer.join()
+        assertThat(writerFailure).isNull()
+        assertThat(committed.count { it.first in snapshotStart..snapshotEnd }).isGreaterThan(0)
+
+        val live = provider.helper.readableDatabase.query(transactionsQuery(accountId))
+            .toTransactions()
+        SQLiteDatabase.openDatabase(target.path, null, SQLiteDatabase.OPEN_READONLY).use { db ->
+            assertThat(db.isDatabaseIntegrityOk).isTrue()
+            assertThat(db.longForQuery("PRAGMA freelist_count")).isEqualTo(0)
+            assertThat(db.version).isEqualTo(DATABASE_VERSION)
+            val snapshot = db.rawQuery(transactionsQuery(accountId), null).toTransactions()
+            // the snapshot holds the state after some number of pairs had been committed
+            val pairsInSnapshot = (snapshot.size - before.size) / 2
+            val expectedIds = before.keys + committed.take(pairsInSnapshot).flatMap { it.second }
+            assertThat(snapshot.keys).containsExactlyElementsIn(expectedIds)
+            assertThat(snapshot).containsExactlyEntriesIn(live.filterKeys { it in expectedIds })
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.preference.PrefHandler;
 import org.totschnig.myexpenses.preference.PrefKey;
 
 import java.text.SimpleDateFormat;
@@ -79,10 +80,12 @@ public class DateCalculationTest {
   }
 
   private void doTheTest(String timeZone, int configuredWeekStart) {
-    ((MyApplication) ApplicationProvider.getApplicationContext()).getAppComponent().prefHandler()
-            .putString(PrefKey.GROUP_WEEK_STARTS, String.valueOf(configuredWeekStart));
+    PrefHandler prefHandler = ((MyApplication) ApplicationProvider.getApplicationContext()).getAppComponent().prefHandler();
+    prefHandler.putString(PrefKey.GROUP_WEEK_STARTS, String.valueOf(configuredWeekStart));
     DatabaseConstants.buildLocalized(Locale.getDefault(), (MyApplication) RuntimeEnvironment.getApplication());
     assertEquals(configuredWeekStart, DatabaseConstants.weekStartsOn);
+    mDb.execSQL("UPDATE " + TABLE + " SET " + DatabaseConstants.KEY_WEEK_START_DAY + " = " +
+        CalendarBucketParameters.Companion.current(prefHandler).getWeekStartDayExpression());
     String[] projection = {
         DatabaseConstants.getYearOfWeekStart() + " AS year",
         DatabaseConstants.getWeek() + " AS week",
@@ -134,7 +137,7 @@ public class DateCalculationTest {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-      db.execSQL("CREATE TABLE " + TABLE + " (" + KEY_DATE + " DATETIME not null)");
+      db.execSQL("CREATE TABLE " + TABLE + " (" + KEY_DATE + " DATETIME not null, " + DatabaseConstants.KEY_WEEK_START_DAY + " integer)");
     }
 
     @Override
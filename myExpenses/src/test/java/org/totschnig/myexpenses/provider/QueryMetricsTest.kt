@@ -0,0 +1,132 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentProviderOperation
+import android.content.ContentUris
+import android.net.Uri
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class QueryMetricsTest : BaseTestWithRepository() {
+
+    private val provider
+        get() = contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider
+
+    private fun report() = contentResolver.call(
+        TransactionProvider.DUAL_URI,
+        TransactionProvider.METHOD_QUERY_METRICS,
+        null,
+        null
+    )!!.getString(KEY_RESULT)!!
+
+    @Test
+    fun bucketIndex() {
+        assertThat(QueryMetrics.bucketIndex(TimeUnit.MICROSECONDS.toNanos(500))).isEqualTo(0)
+        assertThat(QueryMetrics.bucketIndex(TimeUnit.MILLISECONDS.toNanos(1))).isEqualTo(1)
+        assertThat(QueryMetrics.bucketIndex(TimeUnit.MILLISECONDS.toNanos(3))).isEqualTo(2)
+        assertThat(QueryMetrics.bucketIndex(TimeUnit.MILLISECONDS.toNanos(4))).isEqualTo(3)
+        assertThat(QueryMetrics.bucketIndex(TimeUnit.MINUTES.toNanos(1)))
+            .isEqualTo(QueryMetrics.BUCKET_COUNT - 1)
+    }
+
+    @Test
+    fun uriPatternIgnoresIdsAndValues() {
+        assertThat(
+            QueryMetrics.uriPattern(
+                Uri.parse("content://authority/transactions/15?extended=1&accountId=3")
+            )
+        ).isEqualTo("transactions/#?accountId&extended")
+    }
+
+    @Test
+    fun keepsSlowestQueries() {
+        val metrics = QueryMetrics(slowQueryCapacity = 2)
+        val uri = Uri.parse("content://authority/transactions")
+        listOf(20L, 50L, 30L, 10L).forEach {
+            val nanos = TimeUnit.MILLISECONDS.toNanos(it)
+            if (metrics.record(uri, nanos, 1)) {
+                metrics.recordSlowQuery(uri, "SELECT $it", null, nanos, 1, listOf("SCAN transactions"))
+            }
+        }
+        val report = metrics.report()
+        assertThat(report).contains("SELECT 50")
+        assertThat(report).contains("SELECT 30")
+        assertThat(report).doesNotContain("SELECT 20")
+        assertThat(report).doesNotContain("SELECT 10")
+        assertThat(report).contains("transactions: n=4")
+    }
+
+    @Test
+    fun providerRecordsQueriesAndBatches() {
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Test account", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(List(3) {
+            ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+                .withValues(TransactionInfo(accountId = accountId, amount = 100).contentValues)
+                .build()
+        }))
+        contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI.buildUpon()
+                .appendQueryParameter(KEY_ACCOUNTID, accountId.toString()).build(),
+            arrayOf(KEY_ROWID), null, null, null
+        )!!.use {
+            assertThat(it.count).isEqualTo(3)
+        }
+        report().let {
+            assertThat(it).contains("transactions?accountId: n=1")
+            assertThat(it).contains("rows=3")
+            assertThat(it).contains("${QueryMetrics.KIND_APPLY_BATCH}: n=1")
+        }
+        contentResolver.call(
+            TransactionProvider.DUAL_URI,
+            TransactionProvider.METHOD_RESET_QUERY_METRICS,
+            null,
+            null
+        )
+        assertThat(report()).doesNotContain("transactions?accountId")
+    }
+
+    @Test
+    fun providerRecordsRowsReadWithoutSteppingThroughQuery() {
+        provider.shouldLog = false
+        provider.exactQueryMetrics = false
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Test account", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        repeat(3) {
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(accountId = accountId, amount = 100).contentValues
+            )
+        }
+        contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI.buildUpon()
+                .appendQueryParameter(KEY_ACCOUNTID, accountId.toString()).build(),
+            arrayOf(KEY_ROWID), null, null, null
+        )!!.use {
+            //only the rows the caller reads are recorded
+            assertThat(it.moveToNext()).isTrue()
+            assertThat(it.moveToNext()).isTrue()
+        }
+        report().let {
+            assertThat(it).contains("transactions?accountId: n=1")
+            assertThat(it).contains("rows=2")
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentUris
+import android.net.Uri
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteQueryBuilder
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.SQLiteMode
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.DEBT_PAYEE_JOIN
+import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.groupingUriBuilder
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SEALED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_INCOME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
+import org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TAGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_TAGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TREE_CATEGORIES
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_ALL
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED
+import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_SORT_DIRECTION
+
+/**
+ * Builds the statements with which the provider serves its queries, runs EXPLAIN QUERY PLAN for
+ * them on the provider's database, and fails if one of them falls back to scanning the whole
+ * transactions table and sorting the result in a temporary b-tree, or if it does not use the index
+ * added for it. Runs on native SQLite, since the legacy one of Robolectric does not support the
+ * indexes on expressions.
+ */
+@RunWith(RobolectricTestRunner::class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+class QueryPlanTest : BaseTestWithRepository() {
+
+    private lateinit var provider: TransactionProvider
+    private var accountId: Long = 0
+
+    private val db: SupportSQLiteDatabase
+        get() = provider.helper.readableDatabase
+
+    @Before
+    fun setup() {
+        provider = contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider
+        listOf("USD", "EUR").forEach { currency ->
+            val id = ContentUris.parseId(
+                contentResolver.insert(
+                    TransactionProvider.ACCOUNTS_URI,
+                    AccountInfo("Account $currency", AccountType.CASH, 0, currency).contentValues
+                )!!
+            )
+            if (currency == "USD") accountId = id
+            repeat(10) {
+                contentResolver.insert(
+                    TransactionProvider.TRANSACTIONS_URI,
+                    TransactionInfo(accountId = id, amount = (it - 5) * 100L).contentValues
+                )
+            }
+        }
+    }
+
+    private fun plan(sql: String, args: Array<String>? = null) =
+        db.query("EXPLAIN QUERY PLAN $sql", args ?: emptyArray()).use { cursor ->
+            val detail = cursor.getColumnIndexOrThrow("detail")
+            buildList {
+                while (cursor.moveToNext()) add(cursor.getString(detail))
+            }
+        }
+
+    private fun assertNoFullScanWithSort(description: String, plan: List<String>) {
+        assertWithMessage(description).that(plan).isNotEmpty()
+        val fullScan = Regex("^SCAN (TABLE )?transactions( AS \\w+)?$")
+        assertWithMessage("$description:\n${plan.joinToString("\n")}")
+            .that(plan.any { fullScan.matches(it) } && plan.any { it.contains("USE TEMP B-TREE") })
+            .isFalse()
+    }
+
+    private fun assertUsesIndex(description: String, plan: List<String>, index: String) {
+        assertWithMessage("$description:\n${plan.joinToString("\n")}")
+            .that(plan.any { it.contains(index) })
+            .isTrue()
+    }
+
+    /**
+     * the query parameters with which the views scope their queries to an account, to the
+     * aggregate of a currency, or to the aggregate of all accounts
+     */
+    private val scopes: Map<String, (Uri.Builder) -> Uri.Builder>
+        get() = mapOf(
+            "account" to { builder ->
+                builder.appendQueryParameter(KEY_ACCOUNTID, accountId.toString())
+            },
+            "aggregate" to { builder -> builder.appendQueryParameter(KEY_CURRENCY, "USD") },
+            "home" to { builder -> builder }
+        )
+
+    /**
+     * the statement the provider builds for [TransactionProvider.EXTENDED_URI]
+     */
+    private fun listQuery(uri: Uri, selection: String, sortOrder: String, limit: String? = null) =
+        SupportSQLiteQueryBuilder.builder(VIEW_EXTENDED)
+            .columns(DatabaseConstants.getProjectionExtended())
+            .selection("$selection AND ${uri.transactionQuerySelector}", null)
+            .orderBy(sortOrder)
+            .apply { if (limit != null) limit(limit) }
+            .create().sql
+
+    @Test
+    fun transactionIndexes() {
+        val indexes = db.query(
+            "SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = '$TABLE_TRANSACTIONS'"
+        ).useAndMap { it.getString(0) }
+        //added with schema 163
+        assertThat(indexes).containsAtLeast(
+            "transactions_account_parent_date_index",
+            "transactions_account_parent_amount_index",
+            "transactions_transfer_peer_index",
+            "transactions_debt_id_index"
+        )
+        //added with schema 160, superseded by the parent aware indexes in 163
+        assertThat(indexes).containsNoneOf(
+            "transactions_account_date_index",
+            "transactions_account_amount_index"
+        )
+    }
+
+    @Test
+    fun transactionList() {
+        scopes.forEach { (scope, scopeParameter) ->
+            val uri = scopeParameter(TransactionProvider.TRANSACTIONS_URI.buildUpon()).build()
+            listOf(KEY_DATE, "abs($KEY_AMOUNT)").forEach { sortBy ->
+                listOf("DESC", "ASC").forEach { direction ->
+                    val operator = if (direction == "DESC") "<" else ">"
+                    val orderBy = "$sortBy $direction, $KEY_ROWID $direction"
+                    assertNoFullScanWithSort(
+                        "$scope $orderBy",
+                        plan(listQuery(uri, "$KEY_PARENTID is null", orderBy, "0,100"))
+                    )
+                    assertNoFullScanWithSort(
+                        "$scope $orderBy with seek",
+                        plan(
+                            listQuery(
+                                uri,
+                                "$KEY_PARENTID is null AND ($sortBy $operator 0 OR ($sortBy = 0 AND $KEY_ROWID $operator 1))",
+                                orderBy,
+                                "100"
+                            )
+                        )
+                    )
+                }
+            }
+        }
+    }
+
+    @Test
+    fun transactionListUsesParentAwareIndexes() {
+        val uri = scopes.getValue("account")(TransactionProvider.TRANSACTIONS_URI.buildUpon()).build()
+        mapOf(
+            KEY_DATE to "transactions_account_parent_date_index",
+            "abs($KEY_AMOUNT)" to "transactions_account_parent_amount_index"
+        ).forEach { (sortBy, index) ->
+            assertUsesIndex(
+                "account $sortBy",
+                plan(
+                    listQuery(
+                        uri, "$KEY_PARENTID is null", "$sortBy DESC, $KEY_ROWID DESC", "0,100"
+                    )
+                ),
+                index
+            )
+        }
+    }
+
+    @Test
+    fun transferPeer() {
+        val description = "transfer peer"
+        val plan = plan(
+            "SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_TRANSFER_PEER = ?",
+            arrayOf("1")
+        )
+        assertNoFullScanWithSort(description, plan)
+        assertUsesIndex(description, plan, "transactions_transfer_peer_index")
+    }
+
+    @Test
+    fun transactionGroups() {
+        Grouping.entries.filter { it != Grouping.NONE }.forEach { grouping ->
+            scopes.forEach { (scope, scopeParameter) ->
+                val uri = scopeParameter(groupingUriBuilder(grouping))
+                    .appendQueryParameter(QUERY_PARAMETER_SORT_DIRECTION, "DESC")
+                    .build()
+                val (sql, args) = provider.transactionGroupsSql(uri, null, null)
+                assertNoFullScanWithSort("$scope $grouping", plan(sql, args))
+            }
+        }
+    }
+
+    @Test
+    fun singleTransaction() {
+        assertNoFullScanWithSort(
+            "transaction by id",
+            plan(
+                SupportSQLiteQueryBuilder.builder(VIEW_ALL)
+                    .columns(DatabaseConstants.getProjectionExtended())
+                    .selection("$KEY_ROWID=1", null)
+                    .create().sql
+            )
+        )
+    }
+
+    @Test
+    fun transactionSums() {
+        scopes.forEach { (scope, scopeParameter) ->
+            listOf(false, true).forEach { aggregateNeutral ->
+                val uri = scopeParameter(TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon())
+                    .appendQueryParameter(
+                        TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL,
+                        aggregateNeutral.toString()
+                    )
+                    .build()
+                //with aggregateNeutral, the provider expects a single sum per query
+                val projections = if (aggregateNeutral)
+                    listOf(arrayOf(KEY_SUM_EXPENSES), arrayOf(KEY_SUM_INCOME))
+                else listOf(arrayOf(KEY_SUM_EXPENSES, KEY_SUM_INCOME))
+                projections.forEach { projection ->
+                    val description = "$scope ${projection.joinToString()} neutral: $aggregateNeutral"
+                    val plan = plan(
+                        transactionSumQuery(
+                            uri,
+                            projection,
+                            null,
+                            provider.typeWithFallBack,
+                            provider.aggregateFunction,
+                            provider.homeCurrency
+                        )
+                    )
+                    assertNoFullScanWithSort(description, plan)
+                    if (scope == "account") {
+                        assertUsesIndex(description, plan, "transactions_account_")
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun export() {
+        val uri = scopes.getValue("account")(TransactionProvider.TRANSACTIONS_URI.buildUpon()).build()
+        val plan = plan(
+            listQuery(uri, "$KEY_PARENTID is null AND $KEY_STATUS = $STATUS_NONE", KEY_DATE)
+        )
+        assertNoFullScanWithSort("export", plan)
+        assertUsesIndex("export", plan, "transactions_account_")
+
+        //the details ExportDetails loads up front for all transactions of the account
+        val accountSelection =
+            "IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ?)"
+        val args = arrayOf(accountId.toString())
+        assertNoFullScanWithSort(
+            "export tags",
+            plan(
+                SupportSQLiteQueryBuilder.builder("$TABLE_TRANSACTIONS_TAGS LEFT JOIN $TABLE_TAGS ON ($KEY_TAGID = $KEY_ROWID)")
+                    .selection("$KEY_TRANSACTIONID $accountSelection", null)
+                    .orderBy("$KEY_TRANSACTIONID, $KEY_TAGID")
+                    .create().sql,
+                args
+            )
+        )
+        assertNoFullScanWithSort(
+            "export split parts",
+            plan(
+                SupportSQLiteQueryBuilder.builder(VIEW_COMMITTED)
+                    .columns(DatabaseConstants.getProjectionBase())
+                    .selection("$KEY_PARENTID $accountSelection", null)
+                    .orderBy("$KEY_PARENTID, $KEY_DATE DESC, $KEY_ROWID")
+                    .create().sql,
+                args
+            )
+        )
+    }
+
+    @Test
+    fun accounts() {
+        mapOf(
+            "account list" to provider.buildAccountQuery(false, "1", null, KEY_LABEL),
+            "accounts with sums" to provider.buildAccountQuery(false, null, null, KEY_LABEL),
+            "minimal with aggregates" to provider.buildAccountQuery(true, "1", null, KEY_LABEL),
+            "account by id" to provider.buildAccountQuery(
+                false, null, "$TABLE_ACCOUNTS.$KEY_ROWID = $accountId", null
+            )
+        ).forEach { (description, sql) ->
+            assertNoFullScanWithSort(description, plan(sql))
+        }
+    }
+
+    @Test
+    fun categories() {
+        assertNoFullScanWithSort("category tree", plan(categoryTreeSelect(sortOrder = KEY_LABEL)))
+        scopes.forEach { (scope, scopeParameter) ->
+            listOf(true, false).forEach { incomeType ->
+                val uri = scopeParameter(BaseTransactionProvider.CATEGORY_TREE_URI.buildUpon())
+                    .appendQueryParameter(KEY_TYPE, incomeType.toString())
+                    .appendQueryParameter(
+                        TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL,
+                        false.toString()
+                    )
+                    .build()
+                assertNoFullScanWithSort(
+                    "$scope category tree with sums income: $incomeType",
+                    plan(
+                        categoryTreeWithSum(
+                            provider.aggregateFunction,
+                            provider.homeCurrency,
+                            KEY_LABEL,
+                            null,
+                            arrayOf("$TREE_CATEGORIES.*", KEY_SUM),
+                            uri
+                        )
+                    )
+                )
+            }
+        }
+    }
+
+    @Test
+    fun debts() {
+        val description = "debts"
+        val plan = plan(
+            SupportSQLiteQueryBuilder.builder(DEBT_PAYEE_JOIN)
+                .columns(provider.debtProjection(null, true))
+                .selection("$KEY_SEALED = 0", null)
+                .create().sql
+        )
+        assertNoFullScanWithSort(description, plan)
+        assertUsesIndex(description, plan, "transactions_debt_id_index")
+    }
+}
@@ -0,0 +1,182 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentProviderOperation
+import android.content.ContentUris
+import android.content.ContentValues
+import android.database.ContentObserver
+import android.net.Uri
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.saveTagsForTransaction
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.accountScopeUri
+import org.totschnig.myexpenses.provider.DataBaseAccount.Companion.HOME_AGGREGATE_ID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.viewmodel.data.Tag
+
+@RunWith(RobolectricTestRunner::class)
+class ScopedNotificationTest : BaseTestWithRepository() {
+
+    private var usdAccount: Long = 0
+    private var eurAccount: Long = 0
+    private val observers = mutableListOf<CountingObserver>()
+
+    private class CountingObserver : ContentObserver(null) {
+        var count = 0
+        override fun onChange(selfChange: Boolean) {
+            count++
+        }
+    }
+
+    private fun insertAccount(currency: String) = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.ACCOUNTS_URI,
+            AccountInfo("Account $currency", AccountType.CASH, 0, currency).contentValues
+        )!!
+    )
+
+    private fun observe(uri: Uri) = CountingObserver().also {
+        contentResolver.registerContentObserver(uri, true, it)
+        observers.add(it)
+    }
+
+    @Before
+    fun setup() {
+        usdAccount = insertAccount("USD")
+        eurAccount = insertAccount("EUR")
+    }
+
+    @After
+    fun tearDown() {
+        observers.forEach { contentResolver.unregisterContentObserver(it) }
+    }
+
+    @Test
+    fun transactionChangeOnlyNotifiesOwnScope() {
+        val usd = observe(accountScopeUri(usdAccount, "USD"))
+        val eur = observe(accountScopeUri(eurAccount, "EUR"))
+        val home = observe(accountScopeUri(HOME_AGGREGATE_ID, "EUR"))
+
+        val transactionUri = contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = usdAccount, amount = 100).contentValues
+        )!!
+        assertThat(usd.count).isAtLeast(1)
+        assertThat(eur.count).isEqualTo(0)
+
+        val countAfterInsert = usd.count
+        contentResolver.update(transactionUri, ContentValues().apply {
+            put(KEY_AMOUNT, 200)
+        }, null, null)
+        assertThat(usd.count).isGreaterThan(countAfterInsert)
+
+        val countAfterUpdate = usd.count
+        contentResolver.delete(transactionUri, null, null)
+        assertThat(usd.count).isGreaterThan(countAfterUpdate)
+
+        assertThat(eur.count).isEqualTo(0)
+        assertThat(home.count).isAtLeast(3)
+    }
+
+    @Test
+    fun tagEditNotifiesScopeOfTaggedTransaction() {
+        val transactionId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(accountId = usdAccount, amount = 100).contentValues
+            )!!
+        )
+        val tag = Tag(
+            ContentUris.parseId(
+                contentResolver.insert(TransactionProvider.TAGS_URI, ContentValues().apply {
+                    put(KEY_LABEL, "Tag")
+                })!!
+            ), "Tag"
+        )
+        val usd = observe(accountScopeUri(usdAccount, "USD"))
+        val eur = observe(accountScopeUri(eurAccount, "EUR"))
+
+        repository.saveTagsForTransaction(listOf(tag), transactionId)
+        assertThat(usd.count).isAtLeast(1)
+
+        val countAfterTagging = usd.count
+        repository.saveTagsForTransaction(emptyList(), transactionId)
+        assertThat(usd.count).isGreaterThan(countAfterTagging)
+
+        assertThat(eur.count).isEqualTo(0)
+    }
+
+    @Test
+    fun updateRestrictedToAccountNotifiesOnlyItsScope() {
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = usdAccount, amount = 100).contentValues
+        )
+        val usd = observe(accountScopeUri(usdAccount, "USD"))
+        val eur = observe(accountScopeUri(eurAccount, "EUR"))
+
+        contentResolver.update(
+            TransactionProvider.TRANSACTIONS_URI,
+            ContentValues().apply { put(KEY_CR_STATUS, CrStatus.CLEARED.name) },
+            "$KEY_ACCOUNTID = ? AND $KEY_CR_STATUS = ?",
+            arrayOf(usdAccount.toString(), CrStatus.UNRECONCILED.name)
+        )
+        assertThat(usd.count).isAtLeast(1)
+        assertThat(eur.count).isEqualTo(0)
+    }
+
+    @Test
+    fun unsplitNotifiesScopeOfTransaction() {
+        val transactionId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(accountId = usdAccount, amount = 100).contentValues
+            )!!
+        )
+        val uuid = contentResolver.query(
+            ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, transactionId),
+            arrayOf(KEY_UUID), null, null, null
+        )!!.use {
+            it.moveToFirst()
+            it.getString(0)
+        }
+        val usd = observe(accountScopeUri(usdAccount, "USD"))
+        val eur = observe(accountScopeUri(eurAccount, "EUR"))
+
+        contentResolver.update(
+            TransactionProvider.TRANSACTIONS_URI.buildUpon()
+                .appendPath(TransactionProvider.URI_SEGMENT_UNSPLIT).build(),
+            ContentValues().apply { put(KEY_UUID, uuid) },
+            null,
+            null
+        )
+        assertThat(usd.count).isAtLeast(1)
+        assertThat(eur.count).isEqualTo(0)
+    }
+
+    /**
+     * writes in a batch do not look up their accounts, the root of all account scopes is notified
+     * once when the batch ends
+     */
+    @Test
+    fun batchNotifiesScopeRootOnceAtTheEnd() {
+        val scopes = observe(TransactionProvider.ACCOUNT_SCOPE_URI)
+
+        contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(List(5) {
+            ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+                .withValues(TransactionInfo(accountId = usdAccount, amount = 100).contentValues)
+                .build()
+        }))
+        assertThat(scopes.count).isEqualTo(1)
+    }
+}
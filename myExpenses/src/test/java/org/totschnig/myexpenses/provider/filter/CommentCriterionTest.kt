@@ -0,0 +1,229 @@
+package org.totschnig.myexpenses.provider.filter
+
+import android.content.ContentUris
+import android.content.ContentValues
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.writeTag
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model2.Party
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGLIST
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TAGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.ftsPrefixQuery
+
+@RunWith(RobolectricTestRunner::class)
+class CommentCriterionTest : BaseTestWithRepository() {
+
+    private val comments = listOf(
+        "Coffee with 50% discount",
+        "500 Euro rent",
+        "under_score",
+        "back\\slash",
+        "decoffeinated",
+        "Dinner OR lunch"
+    )
+    private lateinit var transactions: Map<String, Long>
+    private var accountId: Long = 0
+
+    private val db
+        get() = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+
+    @Before
+    fun setup() {
+        accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Test account", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        transactions = comments.associateWith {
+            ContentUris.parseId(
+                contentResolver.insert(
+                    TransactionProvider.TRANSACTIONS_URI,
+                    TransactionInfo(accountId = accountId, amount = 100, comment = it).contentValues
+                )!!
+            )
+        }
+    }
+
+    private fun search(searchString: String): List<String> {
+        val filter = WhereFilter.empty().put(CommentCriterion(searchString))
+        return contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(KEY_ROWID),
+            filter.getSelectionForParents(VIEW_COMMITTED),
+            filter.getSelectionArgs(false),
+            null
+        )!!.use { cursor ->
+            buildList {
+                while (cursor.moveToNext()) {
+                    val id = cursor.getLong(0)
+                    add(transactions.entries.first { it.value == id }.key)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun ftsPrefixQuery() {
+        assertThat(ftsPrefixQuery("Coff sh")).isEqualTo("\"coff* sh*\"")
+        assertThat(ftsPrefixQuery("a-b \"c\" OR NOT")).isEqualTo("\"a* b* c* or* not*\"")
+        assertThat(ftsPrefixQuery("%_\\*")).isNull()
+    }
+
+    @Test
+    fun matchesWordPrefix() {
+        assertThat(search("coff")).containsExactly("Coffee with 50% discount")
+        assertThat(search("decoff")).containsExactly("decoffeinated")
+        assertThat(search("50")).containsExactly("Coffee with 50% discount", "500 Euro rent")
+        assertThat(search("euro RENT")).containsExactly("500 Euro rent")
+        assertThat(search("RENT euro")).isEmpty()
+    }
+
+    @Test
+    fun doesNotMatchInsideWords() {
+        assertThat(search("offee")).isEmpty()
+        assertThat(search("einated")).isEmpty()
+    }
+
+    @Test
+    fun likeWildcardsAreLiteral() {
+        assertThat(search("50%")).containsExactly("Coffee with 50% discount")
+        assertThat(search("under_score")).containsExactly("under_score")
+        assertThat(search("under%score")).isEmpty()
+        assertThat(search("back\\slash")).containsExactly("back\\slash")
+    }
+
+    @Test
+    fun searchWithoutWords() {
+        assertThat(search("%")).containsExactly("Coffee with 50% discount")
+        assertThat(search("_")).containsExactly("under_score")
+        assertThat(search("\\")).containsExactly("back\\slash")
+    }
+
+    @Test
+    fun ftsOperatorsAreLiteral() {
+        assertThat(search("OR lunch")).containsExactly("Dinner OR lunch")
+        assertThat(search("\"dinner")).isEmpty()
+        assertThat(search("dinner*")).isEmpty()
+    }
+
+    private fun ftsMatches(column: String, search: String) = db.query(
+        "SELECT docid FROM $TABLE_TRANSACTIONS_FTS WHERE $column MATCH ?",
+        arrayOf(ftsPrefixQuery(search)!!)
+    ).use { cursor ->
+        buildList {
+            while (cursor.moveToNext()) add(cursor.getLong(0))
+        }
+    }
+
+    @Test
+    fun indexFollowsReferenceNumberPayeeAndTags() {
+        val payeeId = ContentUris.parseId(
+            contentResolver.insert(TransactionProvider.PAYEES_URI, Party.create("Bakery").asContentValues)!!
+        )
+        val tagId = repository.writeTag("Holiday")
+        val id = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(accountId = accountId, amount = 100, payeeId = payeeId).contentValues
+                    .apply { put(KEY_REFERENCE_NUMBER, "INV-4711") }
+            )!!
+        )
+        contentResolver.insert(TransactionProvider.TRANSACTIONS_TAGS_URI, ContentValues(2).apply {
+            put(KEY_TAGID, tagId)
+            put(KEY_TRANSACTIONID, id)
+        })
+        assertThat(ftsMatches(KEY_REFERENCE_NUMBER, "inv 4711")).containsExactly(id)
+        assertThat(ftsMatches(KEY_PAYEE_NAME, "bak")).containsExactly(id)
+        assertThat(ftsMatches(KEY_TAGLIST, "holi")).containsExactly(id)
+
+        db.execSQL("UPDATE $TABLE_PAYEES SET $KEY_PAYEE_NAME = 'Butcher' WHERE $KEY_ROWID = $payeeId")
+        db.execSQL("UPDATE $TABLE_TAGS SET $KEY_LABEL = 'Vacation' WHERE $KEY_ROWID = $tagId")
+        assertThat(ftsMatches(KEY_PAYEE_NAME, "bak")).isEmpty()
+        assertThat(ftsMatches(KEY_PAYEE_NAME, "butch")).containsExactly(id)
+        assertThat(ftsMatches(KEY_TAGLIST, "holi")).isEmpty()
+        assertThat(ftsMatches(KEY_TAGLIST, "vaca")).containsExactly(id)
+
+        contentResolver.delete(TransactionProvider.TRANSACTIONS_TAGS_URI, "$KEY_TRANSACTIONID = ?", arrayOf(id.toString()))
+        db.execSQL("UPDATE $TABLE_TRANSACTIONS SET $KEY_PAYEEID = NULL WHERE $KEY_ROWID = $id")
+        assertThat(ftsMatches(KEY_TAGLIST, "vaca")).isEmpty()
+        assertThat(ftsMatches(KEY_PAYEE_NAME, "butch")).isEmpty()
+
+        contentResolver.delete(ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, id), null, null)
+        assertThat(ftsMatches(KEY_REFERENCE_NUMBER, "inv")).isEmpty()
+    }
+
+    @Test
+    fun commentSearchUsesFtsIndex() {
+        val criterion = CommentCriterion("coffee")
+        val plan = db.query(
+            "EXPLAIN QUERY PLAN SELECT $KEY_ROWID FROM $VIEW_COMMITTED WHERE ${criterion.getSelection(false)}",
+            criterion.selectionArgs
+        ).use { cursor ->
+            buildList {
+                while (cursor.moveToNext()) add(cursor.getString(3))
+            }
+        }
+        assertThat(plan.joinToString()).contains("VIRTUAL TABLE")
+    }
+
+    @Test
+    fun payeeAutocomplete() {
+        listOf("Bakery Schmidt", "Schmidt & Söhne", "Mister Bake").forEach {
+            contentResolver.insert(TransactionProvider.PAYEES_URI, Party.create(it).asContentValues)
+        }
+        fun complete(search: String) = Party.selection(search).let { (selection, args) ->
+            contentResolver.query(
+                TransactionProvider.PAYEES_URI,
+                arrayOf(KEY_PAYEE_NAME),
+                selection,
+                args,
+                null
+            )!!.use { cursor ->
+                buildList {
+                    while (cursor.moveToNext()) add(cursor.getString(0))
+                }
+            }
+        }
+        assertThat(complete("bak")).containsExactly("Bakery Schmidt", "Mister Bake")
+        assertThat(complete("bakery schm")).containsExactly("Bakery Schmidt")
+        //like the LIKE/GLOB selection, words have to appear in the order searched for
+        assertThat(complete("schm bak")).isEmpty()
+        assertThat(complete("sohne")).containsExactly("Schmidt & Söhne")
+        assertThat(complete("&")).containsExactly("Schmidt & Söhne")
+    }
+
+    @Test
+    fun payeeAutocompleteUsesFtsIndex() {
+        val (selection, args) = Party.selection("bak")
+        val plan = db.query(
+            "EXPLAIN QUERY PLAN SELECT $KEY_ROWID FROM $TABLE_PAYEES WHERE $selection",
+            args
+        ).use { cursor ->
+            buildList {
+                while (cursor.moveToNext()) add(cursor.getString(3))
+            }
+        }
+        assertThat(plan.joinToString()).contains("VIRTUAL TABLE")
+    }
+}
@@ -0,0 +1,97 @@
+package org.totschnig.myexpenses.provider.filter
+
+import android.content.ContentUris
+import android.database.sqlite.SQLiteDatabase
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.util.Utils
+import org.totschnig.shared_test.Benchmark
+
+/**
+ * Compares comment search through [CommentCriterion], which looks up word prefixes in the FTS
+ * index, with the LIKE scan it used before on 200k transactions
+ */
+@RunWith(RobolectricTestRunner::class)
+class CommentSearchBenchmark : BaseTestWithRepository() {
+    private val transactionCount = 200_000
+    private val words = listOf("Groceries", "Coffee", "Rent", "Fuel", "Pharmacy", "Dinner", "Books")
+    private val searches = listOf("coff", "dinner books", "rent 99", "zzz")
+
+    private val db
+        get() = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+
+    @Before
+    fun setup() {
+        Benchmark.assumeEnabled()
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Benchmark", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        db.beginTransaction()
+        try {
+            repeat(transactionCount) {
+                db.insert(
+                    TABLE_TRANSACTIONS,
+                    SQLiteDatabase.CONFLICT_NONE,
+                    TransactionInfo(
+                        accountId = accountId,
+                        amount = -100L * (it % 50 + 1),
+                        comment = "${words[it % words.size]} ${words[it / 7 % words.size]} $it"
+                    ).contentValues
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private fun query(selection: String, args: Array<String>) = db.query(
+        "SELECT $KEY_ROWID FROM $VIEW_COMMITTED WHERE $selection",
+        args
+    ).use { cursor ->
+        buildSet {
+            while (cursor.moveToNext()) add(cursor.getLong(0))
+        }
+    }
+
+    private fun scan(search: String) = query(
+        "$KEY_COMMENT ${WhereFilter.Operation.LIKE.getOp(1)}",
+        arrayOf("%${Utils.escapeSqlLikeExpression(search)}%")
+    )
+
+    private fun fts(search: String) = CommentCriterion(search).let {
+        query(it.getSelection(false), it.selectionArgs)
+    }
+
+    @Test
+    fun compareScanWithFts() {
+        val results = searches.map { search ->
+            val fromScan = scan(search)
+            val fromFts = fts(search)
+            //the index only finds the search at word starts, the scan anywhere in the comment
+            assertThat(fromScan).containsAtLeastElementsIn(fromFts)
+            val scanMillis = Benchmark.measureMillis { scan(search) }
+            val ftsMillis = Benchmark.measureMillis { fts(search) }
+            "\"$search\": scan %.1f ms (%d rows), fts %.1f ms (%d rows)".format(
+                scanMillis, fromScan.size, ftsMillis, fromFts.size
+            )
+        }
+        Benchmark.report("CommentSearchBenchmark", listOf("$transactionCount transactions") + results)
+    }
+}
@@ -0,0 +1,84 @@
+package org.totschnig.myexpenses.provider.filter
+
+import android.database.sqlite.SQLiteDatabase
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model2.Party
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.util.Utils
+import org.totschnig.shared_test.Benchmark
+
+/**
+ * Compares payee autocomplete through [Party.selection], which looks up word prefixes in the FTS
+ * index, with the LIKE and GLOB scan of [Party.SELECTION] on 200k payees
+ */
+@RunWith(RobolectricTestRunner::class)
+class PayeeAutocompleteBenchmark : BaseTestWithRepository() {
+    private val payeeCount = 200_000
+    private val words = listOf("Bakery", "Coffee", "Market", "Station", "Pharmacy", "Garage", "Books")
+    private val searches = listOf("bak", "coffee st", "phar", "mark 99", "zzz")
+
+    private val db
+        get() = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+
+    @Before
+    fun setup() {
+        Benchmark.assumeEnabled()
+        db.beginTransaction()
+        try {
+            repeat(payeeCount) {
+                db.insert(
+                    TABLE_PAYEES,
+                    SQLiteDatabase.CONFLICT_NONE,
+                    Party.create("${words[it % words.size]} ${words[it / 7 % words.size]} $it")
+                        .asContentValues
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private fun query(selection: String, args: Array<String>) = db.query(
+        "SELECT $KEY_ROWID FROM $TABLE_PAYEES WHERE $KEY_PARENTID IS NULL AND $selection",
+        args
+    ).use { cursor ->
+        buildSet {
+            while (cursor.moveToNext()) add(cursor.getLong(0))
+        }
+    }
+
+    private fun scan(search: String) = query(
+        Party.SELECTION,
+        Party.selectionArgs(Utils.escapeSqlLikeExpression(Utils.normalize(search)))
+    )
+
+    private fun fts(search: String) = Party.selection(search).let { (selection, args) ->
+        query(selection, args)
+    }
+
+    @Test
+    fun compareScanWithFts() {
+        val results = searches.map { search ->
+            val fromScan = scan(search)
+            val fromFts = fts(search)
+            //FTS matches every word of the search at a word start, the scan only the whole search
+            assertThat(fromFts).containsAtLeastElementsIn(fromScan)
+            val scanMillis = Benchmark.measureMillis { scan(search) }
+            val ftsMillis = Benchmark.measureMillis { fts(search) }
+            "\"$search\": scan %.1f ms (%d rows), fts %.1f ms (%d rows)".format(
+                scanMillis, fromScan.size, ftsMillis, fromFts.size
+            )
+        }
+        Benchmark.report("PayeeAutocompleteBenchmark", listOf("$payeeCount payees") + results)
+    }
+}
@@ -0,0 +1,290 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.ContentUris
+import androidx.core.database.getStringOrNull
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.db2.loadAccount
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.sync.json.AccountMetaData
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class ChangeLogSnapshotTest : SyncAdapterBaseTest() {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private lateinit var backend: GatedBackend
+
+    private val account = Account(label = "Test", currency = "EUR", uuid = "account")
+
+    private fun writeChangeFile(folder: File, number: Int, change: String) {
+        File(folder, "_$number.json").writeText("[$change]")
+    }
+
+    private fun created(uuid: String, amount: Long) =
+        """{"type":"created","uuid":"$uuid","timeStamp":1,"amount":$amount}"""
+
+    private fun shard(number: Int) = File(temporaryFolder.root, "_$number").also { it.mkdir() }
+
+    @Before
+    fun setup() {
+        val root = temporaryFolder.root
+        writeChangeFile(root, 1, created("a", 1))
+        writeChangeFile(root, 2, created("b", 2))
+        writeChangeFile(shard(1), 1, """{"type":"updated","uuid":"a","timeStamp":2,"amount":10}""")
+        writeChangeFile(shard(1), 2, """{"type":"deleted","uuid":"b","timeStamp":3}""")
+        backend = GatedBackend(
+            ApplicationProvider.getApplicationContext(), root, 4
+        )
+    }
+
+    @Test
+    fun freshClientStartsFromSnapshot() {
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact))
+            .isEqualTo(SequenceNumber(1, 2))
+        assertThat(File(temporaryFolder.root, "snapshot_1_2.json").exists()).isTrue()
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact))
+            .isNull()
+
+        writeChangeFile(shard(2), 1, created("c", 3))
+        val changeSet = backend.getChangeSetSince(SequenceNumber(0, 0))!!
+        assertThat(changeSet.sequenceNumber).isEqualTo(SequenceNumber(2, 1))
+        assertThat(changeSet.changes.map { it.uuid() }).containsExactly("a", "c").inOrder()
+        changeSet.changes.first().let {
+            assertThat(it.type()).isEqualTo(TransactionChange.Type.created)
+            assertThat(it.amount()).isEqualTo(10L)
+        }
+    }
+
+    @Test
+    fun snapshotBuildsOnPreviousSnapshot() {
+        backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact)
+        writeChangeFile(shard(2), 1, created("c", 3))
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(2, 1), syncDelegate::compact))
+            .isEqualTo(SequenceNumber(2, 1))
+        backend.pruneChangeLog(account, SequenceNumber(2, 1))
+
+        assertThat(File(temporaryFolder.root, "_1").exists()).isFalse()
+        assertThat(File(temporaryFolder.root, "snapshot_1_2.json").exists()).isFalse()
+        val changeSet = backend.getChangeSetSince(SequenceNumber(0, 0))!!
+        assertThat(changeSet.sequenceNumber).isEqualTo(SequenceNumber(2, 1))
+        assertThat(changeSet.changes.map { it.uuid() }).containsExactly("a", "c").inOrder()
+    }
+
+    @Test
+    fun laggingClientIsPointedToSnapshotAfterPruning() {
+        writeChangeFile(shard(2), 1, created("c", 3))
+        backend.writeSnapshotIfDue(SequenceNumber(2, 1), syncDelegate::compact)
+        backend.pruneChangeLog(account, SequenceNumber(2, 1))
+        val exception = assertThrows(SyncBackendProvider.ChangeLogPrunedException::class.java) {
+            backend.getChangeSetSince(SequenceNumber(0, 2))
+        }
+        assertThat(exception.snapshot).isEqualTo(SequenceNumber(2, 1))
+        assertThat(backend.getChangeSetSince(SequenceNumber(2, 1))).isNull()
+    }
+
+    @Test
+    fun pruningRecordsMinimumAppVersion() {
+        writeChangeFile(shard(2), 1, created("c", 3))
+        backend.writeSnapshotIfDue(SequenceNumber(2, 1), syncDelegate::compact)
+        backend.pruneChangeLog(account, SequenceNumber(2, 1))
+        assertThat(backend.readAccountMetaData().getOrThrow().minAppVersion())
+            .isEqualTo(AccountMetaData.MIN_APP_VERSION_PRUNED_CHANGE_LOG)
+        //the format of the remaining files is unchanged
+        assertThat(backend.readAccountMetaData().getOrThrow().formatVersion()).isNull()
+    }
+
+    @Test
+    fun snapshotsAreNotListedForClientsWithinRetainedShards() {
+        backend.versioned = true
+        backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact)
+        backend.getChangeSetSince(SequenceNumber(1, 1))
+        writeChangeFile(shard(1), 3, created("c", 3))
+        val listings = backend.listings.get()
+        val changeSet = backend.getChangeSetSince(SequenceNumber(1, 1))!!
+        assertThat(changeSet.sequenceNumber).isEqualTo(SequenceNumber(1, 3))
+        assertThat(changeSet.changes.map { it.uuid() }).containsExactly("b", "c").inOrder()
+        //only the changed shard folder is listed again
+        assertThat(backend.listings.get() - listings).isEqualTo(1)
+    }
+
+    @Test
+    fun laggingClientConvergesToSnapshot() {
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Synced account", AccountType.CASH, 0).contentValues
+            )!!
+        )
+        syncDelegate.account = repository.loadAccount(accountId)!!
+        //the device has synced up to (0, 2) and has created "d" since then
+        val pending = buildCreated().setUuid("d").setAmount(4L).build()
+        contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!.use { provider ->
+            syncDelegate.writeRemoteChangesToDb(
+                provider,
+                listOf(
+                    buildCreated().setUuid("a").setAmount(1L).build(),
+                    buildCreated().setUuid("b").setAmount(2L).build(),
+                    pending
+                )
+            )
+            writeChangeFile(shard(2), 1, created("c", 3))
+            backend.writeSnapshotIfDue(SequenceNumber(2, 1), syncDelegate::compact)
+            backend.pruneChangeLog(account, SequenceNumber(2, 1))
+            assertThrows(SyncBackendProvider.ChangeLogPrunedException::class.java) {
+                backend.getChangeSetSince(SequenceNumber(0, 2))
+            }
+
+            val snapshot = backend.getChangeSetSince(SequenceNumber(0, 0))!!.changes
+            syncDelegate.writeRemoteChangesToDb(
+                provider,
+                syncDelegate.restoreFromSnapshot(provider, snapshot, listOf(pending))
+            )
+        }
+
+        val amounts = contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(KEY_UUID, KEY_AMOUNT),
+            "$KEY_ACCOUNTID = ?",
+            arrayOf(accountId.toString()),
+            null
+        )!!.useAndMap { it.getString(0) to it.getLong(1) }.toMap()
+        //the update of "a" and the deletion of "b" were only retained in the snapshot
+        assertThat(amounts).containsExactly("a", 10L, "c", 3L, "d", 4L)
+    }
+
+    @Test
+    fun snapshotIsNotDueBeforeInterval() {
+        backend.snapshotShardInterval = 2
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact))
+            .isNull()
+        writeChangeFile(shard(2), 1, created("c", 3))
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(2, 1), syncDelegate::compact))
+            .isEqualTo(SequenceNumber(2, 1))
+    }
+
+    @Test
+    fun snapshotWorkIsCappedPerRun() {
+        backend.maxChangeFilesPerSnapshot = 2
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact))
+            .isEqualTo(SequenceNumber(0, 2))
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact))
+            .isEqualTo(SequenceNumber(1, 2))
+        assertThat(backend.writeSnapshotIfDue(SequenceNumber(1, 2), syncDelegate::compact))
+            .isNull()
+        val changeSet = backend.getChangeSetSince(SequenceNumber(0, 0))!!
+        assertThat(changeSet.sequenceNumber).isEqualTo(SequenceNumber(1, 2))
+        assertThat(changeSet.changes.map { it.uuid() }).containsExactly("a")
+        assertThat(changeSet.changes.first().amount()).isEqualTo(10L)
+    }
+
+    /**
+     * a change log of one account, whose uuids are prefixed, so that it can be applied to several
+     * accounts in the same database. "u1" is held by a transaction in another account.
+     */
+    private fun changeLog(prefix: String): List<List<TransactionChange>> {
+        var timeStamp = 0L
+        fun TransactionChange.Builder.next() = setTimeStamp(++timeStamp).build()
+        val split = "${prefix}s"
+        return listOf(
+            listOf(
+                buildCreated().setUuid("${prefix}u2").setAmount(-500L).next(),
+                buildCreated().setUuid(split).setAmount(-300L).setSplitParts(
+                    listOf(
+                        buildCreated().setUuid("${prefix}p1").setParentUuid(split)
+                            .setAmount(-100L).next(),
+                        buildCreated().setUuid("${prefix}p2").setParentUuid(split)
+                            .setAmount(-200L).next()
+                    )
+                ).next()
+            ),
+            listOf(
+                buildUpdated().setUuid("${prefix}p1").setParentUuid(split)
+                    .setComment("first").next(),
+                buildCreated().setUuid("${prefix}x").setAmount(50L).next(),
+                buildDeleted().setUuid("${prefix}x").next()
+            ),
+            listOf(
+                TransactionChange.builder().setType(TransactionChange.Type.link)
+                    .setUuid("${prefix}u1").setReferenceNumber("${prefix}u2").next()
+            ),
+            listOf(
+                buildUpdated().setUuid("${prefix}u1").setAmount(-600L).next(),
+                TransactionChange.builder().setType(TransactionChange.Type.unsplit)
+                    .setUuid(split).next()
+            ),
+            listOf(
+                buildUpdated().setUuid("${prefix}p1").setCrStatus("CLEARED").next()
+            )
+        )
+    }
+
+    private fun applyChangeLog(
+        prefix: String,
+        apply: (List<List<TransactionChange>>) -> List<List<TransactionChange>>
+    ): Map<String, List<String?>> {
+        fun insertAccount(label: String) = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo(label, AccountType.CASH, 0).contentValues
+            )!!
+        )
+        val peerAccountId = insertAccount("Peer $prefix")
+        val accountId = insertAccount("Synced $prefix")
+        contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!.use { provider ->
+            syncDelegate.account = repository.loadAccount(peerAccountId)!!
+            syncDelegate.writeRemoteChangesToDb(
+                provider,
+                listOf(buildCreated().setUuid("${prefix}u1").setAmount(600L).build())
+            )
+            syncDelegate.account = repository.loadAccount(accountId)!!
+            apply(changeLog(prefix)).forEach {
+                syncDelegate.writeRemoteChangesToDb(provider, it)
+            }
+        }
+        return contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(
+                KEY_UUID, KEY_AMOUNT, KEY_COMMENT, KEY_CR_STATUS,
+                "$KEY_PARENTID IS NOT NULL", "$KEY_TRANSFER_PEER IS NOT NULL"
+            ),
+            "$KEY_ACCOUNTID = ?",
+            arrayOf(accountId.toString()),
+            null
+        )!!.useAndMap { cursor ->
+            cursor.getString(0).removePrefix(prefix) to
+                    (1 until cursor.columnCount).map { cursor.getStringOrNull(it) }
+        }.toMap()
+    }
+
+    @Test
+    fun compactedChangeLogReachesSameState() {
+        val replayed = applyChangeLog("r_") { it }
+        val compacted = applyChangeLog("c_") { listOf(syncDelegate.compact(it.flatten())) }
+        assertThat(compacted).containsExactlyEntriesIn(replayed)
+        assertThat(replayed.keys).containsExactly("u1", "p1", "p2")
+        assertThat(replayed["u1"]!![0]).isEqualTo("-600")
+        assertThat(replayed["p1"]!!.subList(1, 3)).containsExactly("first", "CLEARED").inOrder()
+    }
+}
@@ -0,0 +1,192 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.JsonSyntaxException
+import org.junit.Assert.assertThrows
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.sync.json.ChangeSet
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+/**
+ * Runs [AbstractSyncBackendProvider.getChangeSetSince] against [GatedBackend], a file system
+ * stand-in for a remote backend, whose downloads can be held back by the test
+ */
+@RunWith(RobolectricTestRunner::class)
+class ChangeSetFetchTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val fileCount = 14
+
+    private fun writeChangeFile(folder: File, number: Int) {
+        File(folder, "_$number.json").writeText(
+            """[{"type":"created","uuid":"${folder.name}_$number","timeStamp":1,"amount":$number}]"""
+        )
+    }
+
+    @Before
+    fun setup() {
+        val root = temporaryFolder.root
+        (1..fileCount - 2).forEach { writeChangeFile(root, it) }
+        val shard = File(root, "_1").also { it.mkdir() }
+        (1..2).forEach { writeChangeFile(shard, it) }
+    }
+
+    private fun backend(parallelism: Int) = GatedBackend(
+        ApplicationProvider.getApplicationContext(),
+        temporaryFolder.root,
+        parallelism
+    )
+
+    @Test
+    fun parallelFetchPreservesSequenceOrder() {
+        val sequential = backend(1).getChangeSetSince(SequenceNumber(0, 0))!!
+        val gate = CountDownLatch(1)
+        val parallelBackend = backend(4).apply { this.gate = gate }
+        var parallel: ChangeSet? = null
+        val fetch = thread {
+            parallel = parallelBackend.getChangeSetSince(SequenceNumber(0, 0))
+        }
+        //hold the downloads back until two of them have started, so that they pile up
+        assertThat(parallelBackend.started.tryAcquire(2, 10, TimeUnit.SECONDS)).isTrue()
+        gate.countDown()
+        fetch.join()
+
+        assertThat(sequential.changes.map { it.uuid() }).containsExactlyElementsIn(
+            (1..fileCount - 2).map { "${temporaryFolder.root.name}_$it" } + listOf("_1_1", "_1_2")
+        ).inOrder()
+        assertThat(parallel!!.changes).isEqualTo(sequential.changes)
+        assertThat(parallel!!.sequenceNumber).isEqualTo(SequenceNumber(1, 2))
+        assertThat(parallelBackend.maxActive.get()).isIn(2..4)
+    }
+
+    @Test
+    fun startsAfterSequenceNumber() {
+        val changeSet = backend(4).getChangeSetSince(SequenceNumber(0, 10))!!
+        assertThat(changeSet.changes.map { it.uuid() }).containsExactly(
+            "${temporaryFolder.root.name}_11",
+            "${temporaryFolder.root.name}_12",
+            "_1_1",
+            "_1_2"
+        ).inOrder()
+    }
+
+    private fun change(uuid: String) = TransactionChange.builder()
+        .setType(TransactionChange.Type.created).setUuid(uuid).setTimeStamp(1).setAmount(1).build()
+
+    @Test
+    fun unchangedShardIsNotListedAgain() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val backend = backend(4).apply { versioned = true }
+        backend.getChangeSetSince(SequenceNumber(0, 0))
+        //the write shows that the listing version of the shard follows its members
+        val written = backend.writeChangeSet(SequenceNumber(1, 2), listOf(change("new")), context)
+
+        val nextSync = backend(4).apply { versioned = true }
+        assertThat(nextSync.getChangeSetSince(written)).isNull()
+        assertThat(nextSync.listings.get()).isEqualTo(0)
+
+        //another client writes to the shard
+        writeChangeFile(File(temporaryFolder.root, "_1"), 4)
+        val afterWrite = backend(4).apply { versioned = true }
+        assertThat(afterWrite.getChangeSetSince(written)!!.changes.map { it.uuid() })
+            .containsExactly("_1_4")
+        assertThat(afterWrite.listings.get()).isGreaterThan(0)
+    }
+
+    @Test
+    fun versionsAreNotTrustedBeforeAWriteConfirmsThem() {
+        backend(4).apply { versioned = true }.getChangeSetSince(SequenceNumber(0, 0))
+
+        val nextSync = backend(4).apply { versioned = true }
+        assertThat(nextSync.getChangeSetSince(SequenceNumber(1, 2))).isNull()
+        assertThat(nextSync.listings.get()).isGreaterThan(0)
+    }
+
+    @Test
+    fun constantVersionsAreNotTrusted() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val backend = backend(1).apply { constantVersion = true }
+        backend.getChangeSetSince(SequenceNumber(0, 0))
+        val written = backend.writeChangeSet(SequenceNumber(1, 2), listOf(change("new")), context)
+
+        //another client writes to the shard, which leaves the version as is
+        writeChangeFile(File(temporaryFolder.root, "_1"), 4)
+        val nextSync = backend(1).apply { constantVersion = true }
+        assertThat(nextSync.getChangeSetSince(written)!!.changes.map { it.uuid() })
+            .containsExactly("_1_4")
+        assertThat(nextSync.listings.get()).isGreaterThan(0)
+    }
+
+    @Test
+    fun lastSequenceIsRememberedAfterWrite() {
+        val backend = backend(1).apply { versioned = true }
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        backend.getChangeSetSince(SequenceNumber(0, 0))
+        val listings = backend.listings.get()
+        val written = backend.writeChangeSet(
+            SequenceNumber(1, 2),
+            listOf(TransactionChange.builder().setType(TransactionChange.Type.created)
+                .setUuid("new").setTimeStamp(1).setAmount(1).build()),
+            context
+        )
+        assertThat(backend.listings.get()).isEqualTo(listings)
+
+        val nextSync = backend(1).apply { versioned = true }
+        assertThat(nextSync.getChangeSetSince(written)).isNull()
+        assertThat(nextSync.writeChangeSet(written, emptyList(), context)).isEqualTo(written.next())
+        assertThat(nextSync.listings.get()).isEqualTo(0)
+    }
+
+    @Test
+    fun foreignLockTokenForcesListing() {
+        val backend = backend(1).apply { versioned = true }
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        backend.getChangeSetSince(SequenceNumber(0, 0))
+        val written = backend.writeChangeSet(
+            SequenceNumber(1, 2),
+            listOf(TransactionChange.builder().setType(TransactionChange.Type.created)
+                .setUuid("new").setTimeStamp(1).setAmount(1).build()),
+            context
+        )
+
+        //another client holds the lock, and might write files that leave the listing version as is
+        val lockFile = File(temporaryFolder.root, AbstractSyncBackendProvider.LOCK_FILE)
+        lockFile.writeText("foreign")
+        assertThrows(IOException::class.java) { backend.lock() }
+        lockFile.delete()
+        backend.lock()
+
+        val listings = backend.listings.get()
+        assertThat(backend.getChangeSetSince(written)).isNull()
+        assertThat(backend.writeChangeSet(written, emptyList(), context)).isEqualTo(written.next())
+        assertThat(backend.listings.get()).isGreaterThan(listings)
+    }
+
+    @Test
+    fun withoutVersionsFoldersAreListedOnEverySync() {
+        backend(4).getChangeSetSince(SequenceNumber(0, 0))
+        val nextSync = backend(4)
+        assertThat(nextSync.getChangeSetSince(SequenceNumber(1, 2))).isNull()
+        assertThat(nextSync.listings.get()).isGreaterThan(0)
+    }
+
+    @Test(expected = JsonSyntaxException::class)
+    fun propagatesFetchErrors() {
+        File(temporaryFolder.root, "_5.json").writeText("not json")
+        backend(4).getChangeSetSince(SequenceNumber(0, 0))
+    }
+}
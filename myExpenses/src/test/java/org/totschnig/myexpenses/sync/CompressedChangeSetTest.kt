@@ -0,0 +1,209 @@
+package org.totschnig.myexpenses.sync
+
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BuildConfig
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.sync.SyncBackendProvider.UnsupportedDataFormatException
+import org.totschnig.myexpenses.sync.json.AccountMetaData
+import org.totschnig.myexpenses.sync.json.CategoryInfo
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import org.totschnig.shared_test.Benchmark
+import java.io.File
+import java.io.IOException
+
+/**
+ * Writes a change history to a file system stand-in for a remote backend, once plain and once
+ * compressed, and compares the bytes stored. [measureBytesAndWallTime] reports the bytes stored and
+ * the time needed to write and read the history back when run with -Pbenchmark.
+ */
+@RunWith(RobolectricTestRunner::class)
+class CompressedChangeSetTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val account = Account(label = "Test", currency = "EUR", uuid = "account")
+
+    private val fileCount = 200
+    private val changesPerFile = 10
+
+    private fun backend(root: File) = GatedBackend(
+        ApplicationProvider.getApplicationContext(), root, 4
+    )
+
+    private fun change(index: Int) = TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("uuid-$index")
+        .setTimeStamp(1700000000L + index)
+        .setDate(1700000000L + index)
+        .setAmount(-100L * (index % 50))
+        .setComment(if (index % 4 == 0) "Weekly groceries" else null)
+        .setPayeeName("Payee ${index % 20}")
+        .setMethodLabel("CREDITCARD")
+        .setCrStatus("UNRECONCILED")
+        .setTags(if (index % 3 == 0) listOf("Holiday") else null)
+        .setCategoryInfo(
+            listOf(
+                CategoryInfo("food", "Food", "utensils", -16777216, 1),
+                CategoryInfo("category-${index % 10}", "Subcategory ${index % 10}", null, null)
+            )
+        )
+        .build()
+
+    private val history = List(fileCount) { file ->
+        List(changesPerFile) { change(file * changesPerFile + it) }
+    }
+
+    private fun File.storedBytes() = walkTopDown()
+        .filter { it.isFile && it.name != "metadata.json" }
+        .sumOf { it.length() }
+
+    private fun AbstractSyncBackendProvider<*>.writeHistory() {
+        var sequence = SequenceNumber(0, 0)
+        history.forEach {
+            sequence = writeChangeSet(sequence, it, ApplicationProvider.getApplicationContext())
+        }
+    }
+
+    private fun storeHistory(label: String, compress: Boolean): Long {
+        val root = temporaryFolder.newFolder(label)
+        val backend = backend(root)
+        backend.writeAccount(account, false)
+        if (backend.negotiateDataFormat(compress, false)) {
+            backend.upgradeDataFormat(account)
+        }
+        backend.writeHistory()
+        val changeSet = backend(root).getChangeSetSince(SequenceNumber(0, 0))!!
+        assertThat(changeSet.changes).isEqualTo(history.flatten())
+        return root.storedBytes()
+    }
+
+    @Test
+    fun measureBytesAndWallTime() {
+        Benchmark.assumeEnabled()
+        val results = listOf(false, true).map { compress ->
+            val label = if (compress) "compressed" else "plain"
+            var root: File? = null
+            //each run writes the history to a new folder
+            val writeMillis = Benchmark.measureMillis {
+                root = temporaryFolder.newFolder().also {
+                    val backend = backend(it)
+                    backend.writeAccount(account, false)
+                    if (backend.negotiateDataFormat(compress, false)) {
+                        backend.upgradeDataFormat(account)
+                    }
+                    backend.writeHistory()
+                }
+            }
+            val written = root!!
+            val readMillis = Benchmark.measureMillis {
+                val changeSet = backend(written).getChangeSetSince(SequenceNumber(0, 0))!!
+                assertThat(changeSet.changes).hasSize(fileCount * changesPerFile)
+            }
+            "$label: ${written.storedBytes()} bytes for $fileCount files, write %.1f ms, read %.1f ms"
+                .format(writeMillis, readMillis)
+        }
+        Benchmark.report("CompressedChangeSetTest", results)
+    }
+
+    @Test
+    fun compressedHistoryIsSmaller() {
+        val plain = storeHistory("plain", false)
+        val compressed = storeHistory("compressed", true)
+        assertThat(compressed * 2).isLessThan(plain)
+    }
+
+    @Test
+    fun upgradeIsRecordedInMetadataAndReadersHandleBothFormats() {
+        val root = temporaryFolder.root
+        val backend = backend(root)
+        backend.writeAccount(account, false)
+        assertThat(backend.negotiateDataFormat(false, false)).isFalse()
+        backend.writeChangeSet(SequenceNumber(0, 0), history[0], ApplicationProvider.getApplicationContext())
+        assertThat(backend.negotiateDataFormat(true, false)).isTrue()
+        backend.upgradeDataFormat(account)
+        backend.readAccountMetaData().getOrThrow().let {
+            assertThat(it.formatVersion()).isEqualTo(AccountMetaData.FORMAT_VERSION_COMPRESSED)
+            assertThat(it.minAppVersion()).isEqualTo(AccountMetaData.MIN_APP_VERSION_COMPRESSED)
+        }
+        backend.writeChangeSet(SequenceNumber(0, 1), history[1], ApplicationProvider.getApplicationContext())
+
+        assertThat(File(root, "_1.json").readBytes().take(1)).containsExactly('['.code.toByte())
+        assertThat(File(root, "_2.json").readBytes().take(2))
+            .containsExactly(0x1f.toByte(), 0x8b.toByte()).inOrder()
+
+        //a client that has not opted in reads compressed files, and keeps the marker
+        val other = backend(root)
+        assertThat(other.negotiateDataFormat(false, false)).isFalse()
+        assertThat(other.getChangeSetSince(SequenceNumber(0, 0))!!.changes)
+            .isEqualTo(history[0] + history[1])
+        other.updateAccount(account)
+        assertThat(other.readAccountMetaData().getOrThrow().formatVersion())
+            .isEqualTo(AccountMetaData.FORMAT_VERSION_COMPRESSED)
+    }
+
+    @Test
+    fun compressionDoesNotRequireContentAddressedAttachments() {
+        val root = temporaryFolder.root
+        val backend = backend(root)
+        backend.writeAccount(account, false)
+        assertThat(backend.negotiateDataFormat(true, false)).isTrue()
+        backend.upgradeDataFormat(account)
+        //once upgraded for compression, only content addressing needs another upgrade
+        val other = backend(root)
+        assertThat(other.negotiateDataFormat(true, false)).isFalse()
+        assertThat(other.negotiateDataFormat(false, true)).isTrue()
+        other.upgradeDataFormat(account)
+        assertThat(other.readAccountMetaData().getOrThrow().formatVersion())
+            .isEqualTo(AccountMetaData.FORMAT_VERSION_CONTENT_ADDRESSED_ATTACHMENTS)
+    }
+
+    @Test(expected = UnsupportedDataFormatException::class)
+    fun refusesNewerFormat() {
+        val root = temporaryFolder.root
+        val backend = backend(root)
+        backend.writeAccount(account, false)
+        backend.negotiateDataFormat(true, true)
+        backend.upgradeDataFormat(account)
+        File(root, "metadata.json").let {
+            it.writeText(it.readText().replace(
+                "\"formatVersion\":${AccountMetaData.FORMAT_VERSION_SUPPORTED}",
+                "\"formatVersion\":${AccountMetaData.FORMAT_VERSION_SUPPORTED + 1}"
+            ))
+        }
+        backend(root).negotiateDataFormat(false, false)
+    }
+
+    @Test(expected = UnsupportedDataFormatException::class)
+    fun refusesAccountUpgradedByNewerApp() {
+        val root = temporaryFolder.root
+        val backend = backend(root)
+        backend.writeAccount(account, false)
+        backend.negotiateDataFormat(true, true)
+        backend.upgradeDataFormat(account)
+        File(root, "metadata.json").let {
+            it.writeText(it.readText().replace(
+                "\"minAppVersion\":${AccountMetaData.MIN_APP_VERSION_CONTENT_ADDRESSED_ATTACHMENTS}",
+                "\"minAppVersion\":${BuildConfig.VERSION_CODE + 1}"
+            ))
+        }
+        backend(root).negotiateDataFormat(false, false)
+    }
+
+    @Test(expected = IOException::class)
+    fun refusesAccountWithUnreadableMetadata() {
+        val root = temporaryFolder.root
+        val backend = backend(root)
+        backend.writeAccount(account, false)
+        backend.negotiateDataFormat(true, false)
+        backend.upgradeDataFormat(account)
+        File(root, "metadata.json").writeText("{")
+        backend(root).negotiateDataFormat(false, false)
+    }
+}
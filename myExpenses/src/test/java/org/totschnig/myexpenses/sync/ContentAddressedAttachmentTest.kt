@@ -0,0 +1,166 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.ContentUris
+import android.content.ContentValues
+import android.content.Context
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTENT_HASH
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.sync.AbstractSyncBackendProvider.Companion.ATTACHMENT_FOLDER_NAME
+import org.totschnig.myexpenses.sync.json.AttachmentManifestEntry
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import org.totschnig.myexpenses.util.io.sha256
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class ContentAddressedAttachmentTest : BaseTestWithRepository() {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+
+    private val receipt = "receipt ".repeat(1000)
+    private val otherReceipt = "other receipt ".repeat(1000)
+
+    private val remote by lazy { temporaryFolder.newFolder("remote") }
+
+    private val backend by lazy {
+        GatedBackend(context, remote, 1)
+    }
+
+    private fun localFile(name: String, content: String): Uri =
+        Uri.fromFile(temporaryFolder.newFile(name).apply { writeText(content) })
+
+    private fun insertAttachment(uuid: String, uri: Uri) {
+        contentResolver.insert(
+            TransactionProvider.ATTACHMENTS_URI,
+            ContentValues(2).apply {
+                put(KEY_URI, uri.toString())
+                put(KEY_UUID, uuid)
+            }
+        )
+    }
+
+    private fun change(index: Int, attachments: List<String>) = TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("uuid-$index")
+        .setTimeStamp(1700000000L + index)
+        .setAmount(-100L)
+        .setAttachments(attachments)
+        .build()
+
+    private fun upgradedBackend(account: Account) = backend.apply {
+        writeAccount(account, false)
+        negotiateDataFormat(compress = false, contentAddressAttachments = true)
+        upgradeDataFormat(account)
+    }
+
+    private fun blobs() = File(remote, ATTACHMENT_FOLDER_NAME).list()!!.toList()
+
+    private fun manifest(): Map<String, AttachmentManifestEntry> = Gson().fromJson(
+        File(remote, "attachments.json").readText(),
+        object : TypeToken<Map<String, AttachmentManifestEntry>>() {}.type
+    )
+
+    private fun cachedHash(uuid: String) = contentResolver.query(
+        TransactionProvider.ATTACHMENTS_URI,
+        arrayOf(KEY_CONTENT_HASH),
+        "$KEY_UUID = ?",
+        arrayOf(uuid),
+        null
+    )!!.use {
+        it.moveToFirst()
+        it.getString(0)
+    }
+
+    @Test
+    fun identicalContentIsUploadedOnce() {
+        insertAttachment("first", localFile("first.jpg", receipt))
+        insertAttachment("copy", localFile("copy.jpg", receipt))
+        insertAttachment("other", localFile("other.jpg", otherReceipt))
+        val backend = upgradedBackend(Account(label = "Test", currency = "EUR", uuid = "account"))
+
+        val sequence = backend.writeChangeSet(
+            SequenceNumber(0, 0),
+            listOf(change(1, listOf("first")), change(2, listOf("copy", "other"))),
+            context
+        )
+        assertThat(backend.uploads.get()).isEqualTo(2)
+        assertThat(blobs()).containsExactly(sha256(receipt), sha256(otherReceipt))
+        assertThat(cachedHash("copy")).isEqualTo(sha256(receipt))
+
+        //re-attaching the same receipt only adds an entry to the manifest
+        insertAttachment("reattached", localFile("reattached.jpg", receipt))
+        backend.writeChangeSet(sequence, listOf(change(3, listOf("reattached", "first"))), context)
+        assertThat(backend.uploads.get()).isEqualTo(2)
+        assertThat(manifest()).containsExactly(
+            "first", AttachmentManifestEntry(sha256(receipt), "first.jpg"),
+            "copy", AttachmentManifestEntry(sha256(receipt), "copy.jpg"),
+            "other", AttachmentManifestEntry(sha256(otherReceipt), "other.jpg"),
+            "reattached", AttachmentManifestEntry(sha256(receipt), "reattached.jpg")
+        )
+    }
+
+    @Test
+    fun upgradeMigratesAttachmentsStoredUnderUuid() {
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Synced account", AccountType.CASH, 0).contentValues
+            )!!
+        )
+        val transactionId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(accountId = accountId, amount = -100).contentValues
+            )!!
+        )
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_ATTACHMENTS_URI,
+            ContentValues(2).apply {
+                put(KEY_TRANSACTIONID, transactionId)
+                put(KEY_URI, localFile("local.jpg", receipt).toString())
+            }
+        )
+        val uuid = contentResolver.query(
+            TransactionProvider.ATTACHMENTS_URI,
+            arrayOf(KEY_UUID),
+            null,
+            null,
+            null
+        )!!.use {
+            it.moveToFirst()
+            it.getString(0)
+        }
+        val legacyFile = File(remote, ATTACHMENT_FOLDER_NAME).let {
+            it.mkdirs()
+            File(it, "${uuid}_receipt.jpg").apply { writeText(receipt) }
+        }
+
+        upgradedBackend(Account(id = accountId, label = "Synced account", currency = "EUR", uuid = "account"))
+
+        assertThat(manifest()).containsExactly(
+            uuid, AttachmentManifestEntry(sha256(receipt), "receipt.jpg")
+        )
+        assertThat(blobs()).containsExactly(legacyFile.name, sha256(receipt))
+        assertThat(cachedHash(uuid)).isEqualTo(sha256(receipt))
+    }
+}
@@ -0,0 +1,132 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.Context
+import android.net.Uri
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.sync.json.AccountMetaData
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * File system stand-in for a remote backend rooted at [root], which counts listings and uploads,
+ * and whose downloads can be held back by the test
+ */
+class GatedBackend(
+    context: Context,
+    private val root: File,
+    override val changeSetFetchParallelism: Int
+) : AbstractSyncBackendProvider<File>(context) {
+    private val active = AtomicInteger()
+    val maxActive = AtomicInteger()
+    val uploads = AtomicInteger()
+    val listings = AtomicInteger()
+
+    /**
+     * if set, downloads block until it is counted down
+     */
+    var gate: CountDownLatch? = null
+
+    /**
+     * released once for every download that has started
+     */
+    val started = Semaphore(0)
+
+    /**
+     * if true, folders report the names of their members as listing version
+     */
+    var versioned = false
+
+    /**
+     * if true, folders report the same listing version whatever their members, like WebDAV
+     * servers whose collection ETags do not change
+     */
+    var constantVersion = false
+
+    override var snapshotShardInterval = 1
+    override var maxChangeFilesPerSnapshot = Int.MAX_VALUE
+
+    override val accountRes = root
+    override val sharedPreferencesName = "test"
+    override val isEmpty = false
+
+    override fun getResInAccountDir(resourceName: String) =
+        File(root, resourceName).takeIf { it.exists() }
+
+    override fun getInputStream(resource: File) = try {
+        maxActive.accumulateAndGet(active.incrementAndGet()) { a, b -> maxOf(a, b) }
+        started.release()
+        gate?.let { check(it.await(10, TimeUnit.SECONDS)) }
+        FileInputStream(resource)
+    } finally {
+        active.decrementAndGet()
+    }
+
+    override fun childrenForCollection(folder: File?): List<File> {
+        listings.incrementAndGet()
+        return (folder ?: root).listFiles()!!.toList()
+    }
+
+    override fun listingVersion(folder: File?) = when {
+        constantVersion -> "etag"
+        versioned -> (folder ?: root).list()!!.sorted().joinToString()
+        else -> null
+    }
+    override fun nameForResource(resource: File): String = resource.name
+    override fun isCollection(resource: File) = resource.isDirectory
+    override fun getCollection(collectionName: String, require: Boolean) =
+        File(root, collectionName).also { if (require) it.mkdirs() }.takeIf { it.exists() }
+
+    override fun saveUriToCollection(
+        fileName: String,
+        uri: Uri,
+        collection: File,
+        maybeEncrypt: Boolean
+    ) {
+        uploads.incrementAndGet()
+        context.contentResolver.openInputStream(uri)!!.use { input ->
+            File(collection, fileName).outputStream().use { input.copyTo(it) }
+        }
+    }
+
+    override fun saveFileContents(
+        toAccountDir: Boolean,
+        folder: String?,
+        fileName: String,
+        fileContents: String,
+        mimeType: String,
+        maybeEncrypt: Boolean,
+        compress: Boolean
+    ) {
+        check(toAccountDir)
+        val dir = folder?.let { File(root, it).also { it.mkdirs() } } ?: root
+        meterUpload(File(dir, fileName).outputStream()).use { out ->
+            maybeCompress(out, compress).bufferedWriter().use { it.write(fileContents) }
+        }
+    }
+
+    override fun deleteResource(resource: File) = resource.deleteRecursively()
+
+    override fun readFileContents(
+        fromAccountDir: Boolean,
+        fileName: String,
+        maybeDecrypt: Boolean
+    ): String? = File(root, fileName).takeIf { it.exists() }?.readText()
+
+    override fun writeAccount(account: Account, update: Boolean) {
+        saveFileContents(true, null, accountMetadataFilename, buildMetadata(account), mimeTypeForData, true)
+    }
+
+    override fun withAccount(account: Account) = throw IOException("read only")
+    override fun resetAccountData(uuid: String) = throw IOException("read only")
+    override fun readAccountMetaData(): Result<AccountMetaData> =
+        File(root, accountMetadataFilename).takeIf { it.exists() }
+            ?.let { getAccountMetaDataFromInputStream(FileInputStream(it)) }
+            ?: Result.failure(IOException("not supported"))
+
+    override val remoteAccountList: List<Result<AccountMetaData>> = emptyList()
+}
@@ -0,0 +1,64 @@
+package org.totschnig.myexpenses.sync
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.sync.json.TransactionChange
+
+@RunWith(RobolectricTestRunner::class)
+class SyncAdapterCompactTest : SyncAdapterBaseTest() {
+
+    @Test
+    fun shouldDropDeletedTransactions() {
+        val compacted = syncDelegate.compact(
+            listOf(
+                buildCreated().setUuid("one").build(),
+                buildCreated().setUuid("two").build(),
+                buildUpdated().setUuid("one").setComment("later").build(),
+                buildDeleted().setUuid("one").build()
+            )
+        )
+        assertThat(compacted.map { it.uuid() }).containsExactly("two")
+    }
+
+    @Test
+    fun shouldMergeUpdatesIntoCreate() {
+        val compacted = syncDelegate.compact(
+            listOf(
+                buildCreated().setUuid("one").setAmount(100L).build(),
+                buildUpdated().setUuid("one").setComment("comment").build()
+            )
+        )
+        assertThat(compacted).hasSize(1)
+        compacted.first().let {
+            assertThat(it.type()).isEqualTo(TransactionChange.Type.created)
+            assertThat(it.amount()).isEqualTo(100L)
+            assertThat(it.comment()).isEqualTo("comment")
+        }
+    }
+
+    @Test
+    fun shouldRegroupSplitParts() {
+        val compacted = syncDelegate.compact(
+            listOf(
+                buildCreated().setUuid("parent").setAmount(100L).setSplitParts(
+                    listOf(
+                        buildCreated().setUuid("part1").setParentUuid("parent").setAmount(60L).build(),
+                        buildCreated().setUuid("part2").setParentUuid("parent").setAmount(40L).build()
+                    )
+                ).build(),
+                buildUpdated().setUuid("parent").setSplitParts(
+                    listOf(
+                        buildUpdated().setUuid("part1").setParentUuid("parent").setAmount(50L).build(),
+                        buildCreated().setUuid("part3").setParentUuid("parent").setAmount(10L).build()
+                    )
+                ).build()
+            )
+        )
+        assertThat(compacted.map { it.uuid() }).containsExactly("parent")
+        assertThat(compacted.first().type()).isEqualTo(TransactionChange.Type.created)
+        assertThat(compacted.first().splitParts()!!.associate { it.uuid() to it.amount() })
+            .containsExactly("part1", 50L, "part2", 40L, "part3", 10L)
+    }
+}
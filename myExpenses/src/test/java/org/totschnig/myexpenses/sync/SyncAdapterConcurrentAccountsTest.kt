@@ -0,0 +1,214 @@
+package org.totschnig.myexpenses.sync
+
+import android.accounts.Account
+import android.app.Notification
+import android.app.NotificationManager
+import android.content.ContentUris
+import android.content.Context
+import android.content.SyncResult
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.totschnig.myexpenses.db2.loadAccount
+import org.totschnig.myexpenses.feature.FeatureManager
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.useAndMap
+import java.io.IOException
+import java.util.Collections
+import javax.inject.Provider
+
+@RunWith(RobolectricTestRunner::class)
+class SyncAdapterConcurrentAccountsTest : SyncAdapterBaseTest() {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+
+    private val account = Account("Test", GenericAccountService.ACCOUNT_TYPE)
+
+    private lateinit var accountIds: List<Long>
+
+    private lateinit var syncAdapter: SyncAdapter
+
+    private val syncResult = SyncResult()
+
+    private val synced: MutableList<Triple<Long, SyncBackendProvider, SyncDelegate>> =
+        Collections.synchronizedList(mutableListOf())
+
+    private val dbWriteLock = Any()
+
+    private fun backend() = GatedBackend(context, temporaryFolder.root, 1)
+
+    @Before
+    fun setup() {
+        accountIds = List(8) {
+            ContentUris.parseId(
+                contentResolver.insert(
+                    TransactionProvider.ACCOUNTS_URI,
+                    AccountInfo("Account $it", AccountType.CASH, 0).contentValues
+                )!!
+            )
+        }
+        syncAdapter = SyncAdapter(context, true).also {
+            //like the Dagger provider, every worker but the first gets a delegate of its own
+            it.syncDelegateProvider = Provider {
+                SyncDelegate(
+                    currencyContext,
+                    Mockito.mock(FeatureManager::class.java),
+                    repository,
+                    CurrencyUnit.DebugInstance
+                )
+            }
+        }
+    }
+
+    /**
+     * stands in for [SyncAdapter.syncAccount], which, like [ingest], points the backend and the
+     * delegate of the worker to the account, reports IOExceptions to [syncResult] and appends to
+     * the notification
+     */
+    private fun syncConcurrently(
+        workers: Int = 3,
+        syncAccount: (Long) -> Boolean
+    ) = runBlocking {
+        syncAdapter.syncAccountsConcurrently(
+            account,
+            accountIds,
+            workers,
+            backend(),
+            syncDelegate,
+            syncAccount = { accountId, backend, delegate ->
+                synced.add(Triple(accountId, backend, delegate))
+                ingest(accountId, backend, delegate)
+                syncAccount(accountId)
+            },
+            createBackend = { Result.success(backend()) }
+        )
+    }
+
+    /**
+     * writes a remote change for the account through the worker's delegate, which only lands in the
+     * account if no other worker has changed the delegate's account in the meantime
+     */
+    private fun ingest(accountId: Long, backend: SyncBackendProvider, delegate: SyncDelegate) {
+        val instance = repository.loadAccount(accountId)!!
+        (backend as AbstractSyncBackendProvider<*>).setAccountUuid(instance)
+        delegate.account = instance
+        Thread.yield()
+        synchronized(dbWriteLock) {
+            contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!.use {
+                delegate.writeRemoteChangesToDb(
+                    it,
+                    listOf(buildCreated().setUuid("transaction-$accountId").setAmount(accountId).build())
+                )
+            }
+        }
+    }
+
+    private fun transactionUuids(accountId: Long) = contentResolver.query(
+        TransactionProvider.TRANSACTIONS_URI,
+        arrayOf(KEY_UUID),
+        "$KEY_ACCOUNTID = ?",
+        arrayOf(accountId.toString()),
+        null
+    )!!.useAndMap { it.getString(0) }
+
+    private fun failWithIoException(accountId: Long, delaySeconds: Long, concurrent: Boolean = true) {
+        try {
+            throw IOException("Account $accountId is offline")
+        } catch (e: IOException) {
+            with(syncAdapter) {
+                syncResult.reportIoException(delaySeconds, SyncStats(account.name, 0), concurrent)
+            }
+            syncAdapter.appendToNotification(e.message!!, account, true)
+        }
+    }
+
+    private val notificationText: String
+        get() = shadowOf(context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager)
+            .getNotification("SYNC", account.hashCode())
+            .extras.getCharSequence(Notification.EXTRA_BIG_TEXT).toString()
+
+    @Test
+    fun failureOfOneAccountDoesNotStopTheOthers() {
+        syncConcurrently { accountId ->
+            if (accountId == accountIds[2]) {
+                failWithIoException(accountId, 30)
+            }
+            true
+        }
+        assertThat(synced.map { it.first }).containsExactlyElementsIn(accountIds)
+        assertThat(synced.map { it.second }.distinct().size).isAtMost(3)
+        accountIds.forEach {
+            assertThat(transactionUuids(it)).containsExactly("transaction-$it")
+        }
+        assertThat(syncResult.stats.numIoExceptions).isEqualTo(1)
+        assertThat(syncResult.delayUntil).isEqualTo(30)
+    }
+
+    @Test
+    fun longestDelayIsKept() {
+        syncConcurrently { accountId ->
+            //accounts in the middle of the queue request the longest delay
+            failWithIoException(accountId, if (accountId == accountIds[3]) 600 else accountId * 10)
+            true
+        }
+        assertThat(syncResult.stats.numIoExceptions).isEqualTo(accountIds.size)
+        assertThat(syncResult.delayUntil).isEqualTo(600)
+    }
+
+    @Test
+    fun lastDelayIsKeptWhenSyncingSequentially() {
+        syncConcurrently(workers = 1) { accountId ->
+            failWithIoException(accountId, if (accountId == accountIds[3]) 600 else accountId * 10, false)
+            true
+        }
+        assertThat(syncResult.delayUntil).isEqualTo(accountIds.last() * 10)
+    }
+
+    @Test
+    fun notificationLinesOfAllAccountsAreKept() {
+        syncConcurrently { accountId ->
+            val line = syncAdapter.appendToNotification("Account $accountId:", account, true)
+            Thread.yield()
+            syncAdapter.appendToNotification("done", account, false, line)
+            true
+        }
+        assertThat(notificationText.lines()).containsExactlyElementsIn(
+            accountIds.map { "Account $it: done" }
+        )
+    }
+
+    @Test
+    fun accountsAfterAbortAreNotSynced() {
+        syncConcurrently(workers = 1) { accountId -> accountId < accountIds[2] }
+        assertThat(synced.map { it.first }).containsExactlyElementsIn(accountIds.take(3)).inOrder()
+    }
+
+    @Test
+    fun everyWorkerHasItsOwnBackendAndDelegate() {
+        syncConcurrently { true }
+        val pairs = synced.map { it.second to it.third }.distinct()
+        assertThat(pairs.map { it.first }).containsNoDuplicates()
+        assertThat(pairs.map { it.second }).containsNoDuplicates()
+        //the first worker reuses the instances set up for the sync
+        assertThat(pairs.map { it.second }).contains(syncDelegate)
+        accountIds.forEach {
+            assertThat(transactionUuids(it)).containsExactly("transaction-$it")
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.ContentProviderOperation
+import android.content.ContentUris
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.db2.saveCategory
+import org.totschnig.myexpenses.db2.writeTag
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import org.totschnig.myexpenses.viewmodel.data.Category
+
+@RunWith(RobolectricTestRunner::class)
+class SyncAdapterLocalChangesTest : SyncAdapterBaseTest() {
+
+    private val transactionCount = 1200
+
+    private fun report() = contentResolver.call(
+        TransactionProvider.DUAL_URI,
+        TransactionProvider.METHOD_QUERY_METRICS,
+        null,
+        null
+    )!!.getString(KEY_RESULT)!!
+
+    @Test
+    fun collectsTagsAttachmentsAndCategoriesForLargeBatch() {
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Synced account", AccountType.CASH, 0).contentValues.apply {
+                    put(KEY_SYNC_ACCOUNT_NAME, "Drive - test")
+                    put(KEY_SYNC_SEQUENCE_LOCAL, 1)
+                }
+            )!!
+        )
+        val parentId = repository.saveCategory(Category(label = "Food"))!!
+        val catId = repository.saveCategory(Category(label = "Bakery", parentId = parentId))!!
+        val tagId = repository.writeTag("Holiday")
+
+        val transactionIds = contentResolver.applyBatch(
+            TransactionProvider.AUTHORITY,
+            ArrayList(List(transactionCount) {
+                ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+                    .withValues(
+                        TransactionInfo(accountId = accountId, amount = -100, catId = catId).contentValues
+                    )
+                    .build()
+            })
+        ).map { ContentUris.parseId(it.uri!!) }
+        contentResolver.applyBatch(
+            TransactionProvider.AUTHORITY,
+            ArrayList(transactionIds.flatMapIndexed { index, id ->
+                listOfNotNull(
+                    ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_TAGS_URI)
+                        .withValue(KEY_TRANSACTIONID, id)
+                        .withValue(KEY_TAGID, tagId)
+                        .build(),
+                    if (index % 3 == 0)
+                        ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_ATTACHMENTS_URI)
+                            .withValue(KEY_TRANSACTIONID, id)
+                            .withValue(KEY_URI, "file:///attachment_$index.jpg")
+                            .build()
+                    else null
+                )
+            })
+        )
+
+        contentResolver.call(
+            TransactionProvider.DUAL_URI,
+            TransactionProvider.METHOD_RESET_QUERY_METRICS,
+            null,
+            null
+        )
+        val changes = contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .use { provider ->
+                syncDelegate.collectLocalChanges(
+                    provider,
+                    TransactionProvider.CHANGES_URI.buildUpon()
+                        .appendQueryParameter(KEY_ACCOUNTID, accountId.toString())
+                        .appendQueryParameter(KEY_SYNC_SEQUENCE_LOCAL, "1")
+                        .build()
+                )
+            }
+
+        val created = changes.filter { it.type() == TransactionChange.Type.created }
+        assertThat(created).hasSize(transactionCount)
+        created.forEach {
+            assertThat(it.tags()).containsExactly("Holiday")
+            assertThat(it.categoryInfo()!!.map { info -> info.label }).containsExactly("Food", "Bakery").inOrder()
+        }
+        assertThat(created.count { it.attachments()?.size == 1 }).isEqualTo(transactionCount / 3)
+
+        report().let {
+            assertThat(it).contains("transactions/tags: n=3")
+            assertThat(it).contains("transactions/attachments: n=3")
+            assertThat(it).contains("categories/#?hierarchical: n=1")
+        }
+    }
+}
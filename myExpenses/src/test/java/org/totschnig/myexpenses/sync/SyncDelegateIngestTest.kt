@@ -0,0 +1,214 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.ContentProviderOperation
+import android.content.ContentUris
+import androidx.core.database.getStringOrNull
+import com.google.common.truth.Truth.assertThat
+import org.apache.commons.collections4.ListUtils
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.findByAccountAndUuid
+import org.totschnig.myexpenses.db2.loadAccount
+import org.totschnig.myexpenses.feature.FeatureManager
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE_DATE
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.sync.json.CategoryInfo
+import org.totschnig.myexpenses.sync.json.TransactionChange
+import org.totschnig.shared_test.Benchmark
+
+/**
+ * Ingests a synthetic remote history spanning several batches, once through
+ * [SyncDelegate.writeRemoteChangesToDb], which resolves references per batch, and once change by
+ * change with point lookups, as it was done before. Both must produce the same transaction rows.
+ * [measureIngest] compares the time both need for a large history when run with -Pbenchmark.
+ */
+@RunWith(RobolectricTestRunner::class)
+class SyncDelegateIngestTest : BaseTestWithRepository() {
+    private val changeCount = 5 * SyncAdapter.BATCH_SIZE
+    private val benchmarkChangeCount = 100 * SyncAdapter.BATCH_SIZE
+
+    private var resolverCalls = 0
+
+    private val syncDelegate = SyncDelegate(
+        currencyContext,
+        Mockito.mock(FeatureManager::class.java),
+        repository,
+        CurrencyUnit.DebugInstance
+    ) { accountId, uuid ->
+        resolverCalls++
+        contentResolver.findByAccountAndUuid(accountId, uuid)
+    }
+
+    private fun insertAccount(label: String, uuid: String) = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.ACCOUNTS_URI,
+            AccountInfo(label, AccountType.CASH, 0).contentValues.apply {
+                put(KEY_UUID, uuid)
+            }
+        )!!
+    )
+
+    private fun created(index: Int, peer: String) = TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("uuid-$index")
+        .setTimeStamp(1700000000L + index)
+        .setDate(1700000000L + index)
+        .setAmount(-100L * (index % 50))
+        .setPayeeName("Payee ${index % 100}")
+        .setMethodLabel(if (index % 2 == 0) "CHEQUE" else "Method ${index % 5}")
+        .apply {
+            if (index % 10 == 0) {
+                setTransferAccount(peer)
+            } else {
+                setCategoryInfo(
+                    listOf(
+                        CategoryInfo("parent-${index % 10}", "Parent ${index % 10}", null, null, 1),
+                        CategoryInfo("child-${index % 50}", "Child ${index % 50}", null, null)
+                    )
+                )
+            }
+        }
+        .build()
+
+    private fun updated(index: Int) = TransactionChange.builder()
+        .setType(TransactionChange.Type.updated)
+        .setUuid("uuid-$index")
+        .setTimeStamp(1800000000L + index)
+        .setAmount(-200L)
+        .setPayeeName("Other payee ${index % 100}")
+        .build()
+
+    private fun deleted(index: Int) = TransactionChange.builder()
+        .setType(TransactionChange.Type.deleted)
+        .setUuid("uuid-$index")
+        .setTimeStamp(1800000000L + index)
+        .build()
+
+    private fun creates(peer: String, count: Int = changeCount) = List(count) { created(it, peer) }
+    private fun updatesAndDeletes(count: Int = changeCount) = List(count / 2) {
+        if (it % 5 == 0) deleted(it * 2) else updated(it * 2)
+    }
+
+    /**
+     * the way remote changes were written before they were resolved per batch
+     */
+    private fun writeWithPointLookups(changes: List<TransactionChange>) {
+        ListUtils.partition(changes, SyncAdapter.BATCH_SIZE).forEach { part ->
+            val ops = ArrayList<ContentProviderOperation>()
+            ops.add(TransactionProvider.pauseChangeTrigger())
+            part.forEach { syncDelegate.collectOperations(it, ops, -1) }
+            ops.add(TransactionProvider.resumeChangeTrigger())
+            contentResolver.applyBatch(TransactionProvider.AUTHORITY, ops)
+        }
+    }
+
+    private fun writeWithPreResolution(changes: List<TransactionChange>) {
+        contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!.use {
+            syncDelegate.writeRemoteChangesToDb(it, changes)
+        }
+    }
+
+    /**
+     * creates a new account to sync into, whose transfers point to a peer account of its own
+     */
+    private fun prepareAccount(label: String) =
+        insertAccount("Synced account $label", "synced-$label").also {
+            insertAccount("Peer account $label", "peer-$label")
+            syncDelegate.account = repository.loadAccount(it)!!
+        }
+
+    /**
+     * ingests the history into a new account
+     * @return the rows of the account keyed by uuid. Payees, methods and categories are shared by
+     * all accounts, so their ids can be compared across accounts.
+     */
+    private fun ingest(
+        label: String,
+        write: (List<TransactionChange>) -> Unit
+    ): Map<String, List<Any?>> {
+        val accountId = prepareAccount(label)
+        write(creates("peer-$label"))
+        write(updatesAndDeletes())
+
+        assertThat(contentResolver.findByAccountAndUuid(accountId, "uuid-2")).isNotEqualTo(-1L)
+        assertThat(contentResolver.findByAccountAndUuid(accountId, "uuid-0")).isEqualTo(-1L)
+        return contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(
+                KEY_UUID, KEY_AMOUNT, KEY_DATE, KEY_VALUE_DATE, KEY_PAYEEID, KEY_METHODID,
+                KEY_CATID, KEY_CR_STATUS, "$KEY_TRANSFER_PEER IS NOT NULL"
+            ),
+            "$KEY_ACCOUNTID = ?",
+            arrayOf(accountId.toString()),
+            null
+        )!!.useAndMap { cursor ->
+            cursor.getString(0) to (1 until cursor.columnCount).map { cursor.getStringOrNull(it) }
+        }.toMap().also {
+            assertThat(it).hasSize(changeCount - changeCount / 10)
+        }
+    }
+
+    @Test
+    fun ingestWithPreResolution() {
+        ingest("pre-resolved", ::writeWithPreResolution)
+        assertThat(resolverCalls).isEqualTo(0)
+    }
+
+    @Test
+    fun ingestWithPointLookups() {
+        ingest("point-lookups", ::writeWithPointLookups)
+        assertThat(resolverCalls).isAtLeast(changeCount + updatesAndDeletes().size)
+    }
+
+    @Test
+    fun bothPathsIngestTheSameRows() {
+        val pointLookups = ingest("point-lookups", ::writeWithPointLookups)
+        val preResolved = ingest("pre-resolved", ::writeWithPreResolution)
+        assertThat(preResolved).containsExactlyEntriesIn(pointLookups)
+    }
+
+    @Test
+    fun measureIngest() {
+        Benchmark.assumeEnabled()
+        val warmup = 1
+        val iterations = 3
+        val updatesAndDeletes = updatesAndDeletes(benchmarkChangeCount)
+        val results = listOf(
+            "pre-resolved" to ::writeWithPreResolution,
+            "point lookups" to ::writeWithPointLookups
+        ).map { (label, write) ->
+            //each run ingests into a new account, whose history is built before the clock starts
+            val runs = List(warmup + iterations) { run ->
+                "$label-$run".let { it to creates("peer-$it", benchmarkChangeCount) }
+            }.iterator()
+            resolverCalls = 0
+            val millis = Benchmark.measureMillis(warmup, iterations) {
+                val (run, creates) = runs.next()
+                prepareAccount(run)
+                write(creates)
+                write(updatesAndDeletes)
+            }
+            "$label: %.1f ms, %d point lookups per run".format(millis, resolverCalls / (warmup + iterations))
+        }
+        Benchmark.report(
+            "SyncDelegateIngestTest",
+            listOf("$benchmarkChangeCount created, ${updatesAndDeletes.size} updated or deleted") + results
+        )
+    }
+}
@@ -0,0 +1,89 @@
+package org.totschnig.myexpenses.sync
+
+import android.content.ContentValues
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_STATS
+import org.totschnig.myexpenses.provider.SYNC_STATS_HISTORY_SIZE
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.sync.SyncStats.Phase
+import org.totschnig.myexpenses.sync.json.TransactionChange
+
+@RunWith(RobolectricTestRunner::class)
+class SyncStatsTest : BaseTestWithRepository() {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private fun change(index: Int) = TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("uuid-$index")
+        .setTimeStamp(1700000000L + index)
+        .setAmount(-100L)
+        .build()
+
+    @Test
+    fun nestedPhasesAreTimedExclusively() {
+        val stats = SyncStats("backend", 0).apply { accountUuid = "account" }
+        stats.time(Phase.MERGE) {
+            Thread.sleep(50)
+            stats.time(Phase.APPLY_BATCH) { Thread.sleep(200) }
+        }
+        val phases = stats.finish()!!.phaseMillis
+        assertThat(phases["apply_batch"]).isAtLeast(200)
+        assertThat(phases["merge"]).isAtLeast(50)
+        assertThat(phases["merge"]).isLessThan(200)
+    }
+
+    @Test
+    fun transferredBytesAndChangeFilesAreCounted() {
+        val root = temporaryFolder.root
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val account = Account(label = "Test", currency = "EUR", uuid = "account")
+        val writer = GatedBackend(context, root, 1)
+        writer.writeAccount(account, false)
+        val writeStats = SyncStats("backend", 0).apply { accountUuid = "account" }
+        writer.syncStats = writeStats
+        writer.writeChangeSet(SequenceNumber(0, 0), List(10) { change(it) }, context)
+        val written = writeStats.finish()!!
+        assertThat(written.changeFilesWritten).isEqualTo(1)
+        assertThat(written.bytesWritten).isGreaterThan(0)
+
+        val reader = GatedBackend(context, root, 1)
+        val readStats = SyncStats("backend", 0).apply { accountUuid = "account" }
+        reader.syncStats = readStats
+        assertThat(reader.getChangeSetSince(SequenceNumber(0, 0))!!.changes).hasSize(10)
+        val read = readStats.finish()!!
+        assertThat(read.changeFilesRead).isEqualTo(1)
+        assertThat(read.bytesRead).isEqualTo(written.bytesWritten)
+    }
+
+    @Test
+    fun historyIsBounded() {
+        repeat(SYNC_STATS_HISTORY_SIZE + 10) {
+            contentResolver.insert(TransactionProvider.SYNC_STATS_URI, ContentValues(3).apply {
+                put(KEY_SYNC_ACCOUNT_NAME, "backend")
+                put(KEY_DATE, it)
+                put(KEY_SYNC_STATS, "{}")
+            })
+        }
+        contentResolver.query(
+            TransactionProvider.SYNC_STATS_URI, arrayOf(KEY_DATE), null, null, "$KEY_ROWID"
+        )!!.use {
+            assertThat(it.count).isEqualTo(SYNC_STATS_HISTORY_SIZE)
+            it.moveToFirst()
+            assertThat(it.getInt(0)).isEqualTo(10)
+        }
+    }
+}
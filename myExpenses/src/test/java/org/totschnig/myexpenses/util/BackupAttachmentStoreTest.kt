@@ -0,0 +1,78 @@
+package org.totschnig.myexpenses.util
+
+import android.content.Context
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class BackupAttachmentStoreTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+
+    private val appDir by lazy { DocumentFile.fromFile(temporaryFolder.newFolder("appDir")) }
+
+    private val storeDir
+        get() = File(temporaryFolder.root, "appDir/${BackupAttachmentStore.DIRECTORY}")
+
+    private fun store() = BackupAttachmentStore.get(context, appDir, create = true)!!
+
+    private fun chunkFiles() = storeDir.listFiles()!!.filter { it.isFile }
+
+    private val random = Random(42)
+
+    private val photo = random.nextBytes(BackupAttachmentStore.CHUNK_SIZE * 2 + 1000)
+
+    @Test
+    fun chunksAreStoredOnceAndReassembled() {
+        val first = store().put(photo.inputStream())
+        assertThat(first).hasSize(3)
+        assertThat(chunkFiles()).hasSize(3)
+
+        // a later backup reuses all chunks, and a changed tail only adds one
+        val store = store()
+        assertThat(store.put(photo.inputStream())).isEqualTo(first)
+        val changed = photo.copyOf().also { it[it.size - 1] = (it.last() + 1).toByte() }
+        val second = store.put(changed.inputStream())
+        assertThat(second.take(2)).isEqualTo(first.take(2))
+        assertThat(chunkFiles()).hasSize(4)
+
+        val target = File(temporaryFolder.root, "restored")
+        assertThat(store().assemble(second, target)).isTrue()
+        assertThat(target.readBytes()).isEqualTo(changed)
+    }
+
+    @Test
+    fun damagedChunkIsDetected() {
+        val hashes = store().put(photo.inputStream())
+        File(storeDir, hashes[1]).writeBytes(ByteArray(10))
+        val target = File(temporaryFolder.root, "restored")
+        assertThat(store().assemble(hashes, target)).isFalse()
+        assertThat(target.exists()).isFalse()
+    }
+
+    @Test
+    fun purgeKeepsChunksOfRemainingBackups() {
+        val store = store()
+        val kept = store.put(photo.inputStream())
+        val other = random.nextBytes(1000)
+        val purged = store.put(other.inputStream())
+        store.writeManifest("backup-1.zip", BackupManifest(mapOf("1_photo.jpg" to kept)))
+        store.writeManifest("backup-2.zip", BackupManifest(mapOf("2_other.jpg" to purged)))
+
+        assertThat(store().purge(setOf("backup-1.zip"))).isEqualTo(1)
+        assertThat(chunkFiles().map { it.name }).containsExactlyElementsIn(kept)
+        assertThat(File(storeDir, BackupAttachmentStore.MANIFESTS).list()!!.toList())
+            .containsExactly("backup-1.zip.json")
+    }
+}
@@ -0,0 +1,204 @@
+package org.totschnig.myexpenses.util
+
+import android.content.Context
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.provider.BACKUP_DB_FILE_NAME
+import org.totschnig.myexpenses.provider.BACKUP_PREF_FILE_NAME
+import org.totschnig.myexpenses.util.crypt.EncryptionHelper
+import org.totschnig.myexpenses.util.io.ProgressInputStream
+import org.totschnig.shared_test.Benchmark
+import java.io.File
+import java.io.FileOutputStream
+import java.io.InputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+
+/**
+ * Checks that restores are streamed to their destinations. [measureRestore] compares the
+ * throughput of [ZipUtils.unzip] on a large archive with the former extraction through a 1 KB
+ * buffer when run with -Pbenchmark.
+ */
+@RunWith(RobolectricTestRunner::class)
+class ZipUtilsTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val random = Random(7)
+
+    private val entries = linkedMapOf(
+        BACKUP_DB_FILE_NAME to random.nextBytes(16 * 1024 * 1024),
+        BACKUP_PREF_FILE_NAME to "<map/>".toByteArray(),
+        "${ZipUtils.PICTURES}/1_receipt.jpg" to random.nextBytes(4 * 1024 * 1024)
+    )
+
+    private fun writeArchive(password: String?) = temporaryFolder.newFile().also { file ->
+        file.outputStream().let {
+            if (password == null) it else EncryptionHelper.encrypt(it, password)
+        }.let { ZipOutputStream(it) }.use { zip ->
+            entries.forEach { (name, content) ->
+                zip.putNextEntry(ZipEntry(name))
+                zip.write(content)
+            }
+        }
+    }
+
+    private fun restore(password: String?) {
+        val archive = writeArchive(password)
+        val dirOut = temporaryFolder.newFolder()
+        val database = File(temporaryFolder.newFolder(), "restore")
+        val progress = mutableListOf<Long>()
+        val extracted = mutableListOf<String>()
+        ProgressInputStream(archive.inputStream()) { progress.add(it) }.use {
+            ZipUtils.unzip(
+                EncryptionHelper.wrap(it),
+                dirOut,
+                password,
+                destination = { name -> if (name == BACKUP_DB_FILE_NAME) database else null }
+            ) { name, _ -> extracted.add(name) }
+        }
+
+        assertThat(extracted).containsExactlyElementsIn(entries.keys).inOrder()
+        assertThat(database.readBytes()).isEqualTo(entries[BACKUP_DB_FILE_NAME])
+        assertThat(File(dirOut, BACKUP_DB_FILE_NAME).exists()).isFalse()
+        assertThat(File(dirOut, "${ZipUtils.PICTURES}/1_receipt.jpg").readBytes())
+            .isEqualTo(entries["${ZipUtils.PICTURES}/1_receipt.jpg"])
+        assertThat(progress).isInOrder()
+        // the zip stream stops reading after the central directory, which may still be buffered
+        assertThat(progress.last()).isAtMost(archive.length())
+        assertThat(progress.last()).isAtLeast(archive.length() - ZipUtils.BUFFER_SIZE)
+    }
+
+    @Test
+    fun plainArchiveIsStreamedToDestinations() {
+        restore(null)
+    }
+
+    @Test
+    fun encryptedArchiveIsStreamedToDestinations() {
+        restore("secret")
+    }
+
+    @Test
+    fun compressedAttachmentIsStoredWithoutDeflating() {
+        val name = "${ZipUtils.PICTURES}/1_receipt.jpg"
+        val source = temporaryFolder.newFile("receipt.jpg").apply { writeBytes(entries[name]!!) }
+        val archive = temporaryFolder.newFile()
+        ZipOutputStream(archive.outputStream()).use {
+            ZipUtils.addUriToZipStored(
+                name,
+                Uri.fromFile(source),
+                ApplicationProvider.getApplicationContext<Context>().contentResolver,
+                it
+            )
+        }
+        ZipFile(archive).use { zip ->
+            val entry = zip.getEntry(name)
+            assertThat(entry.method).isEqualTo(ZipEntry.STORED)
+            assertThat(zip.getInputStream(entry).readBytes()).isEqualTo(entries[name])
+        }
+    }
+
+    private val benchmarkDatabaseSize = 64 * 1024 * 1024
+    private val benchmarkAttachmentCount = 16
+    private val megabyte = 1024 * 1024
+
+    /**
+     * a database made of text rows, so that it deflates like a real one, and attachments of random
+     * bytes, which do not
+     */
+    private fun writeLargeArchive(password: String?) = temporaryFolder.newFile().also { file ->
+        file.outputStream().buffered(ZipUtils.BUFFER_SIZE).let {
+            if (password == null) it else EncryptionHelper.encrypt(it, password)
+        }.let { ZipOutputStream(it) }.use { zip ->
+            zip.putNextEntry(ZipEntry(BACKUP_DB_FILE_NAME))
+            var written = 0
+            var row = 0
+            while (written < benchmarkDatabaseSize) {
+                val chunk = buildString {
+                    repeat(1000) {
+                        append("$row|Payee ${row % 100}|${random.nextInt(100_000)}|Groceries\n")
+                        row++
+                    }
+                }.toByteArray()
+                zip.write(chunk)
+                written += chunk.size
+            }
+            zip.putNextEntry(ZipEntry(BACKUP_PREF_FILE_NAME))
+            zip.write("<map/>".toByteArray())
+            repeat(benchmarkAttachmentCount) {
+                zip.putNextEntry(ZipEntry("${ZipUtils.PICTURES}/${it}_receipt.jpg"))
+                zip.write(random.nextBytes(megabyte))
+            }
+        }
+    }
+
+    /**
+     * extraction as it was done before restores were streamed with large buffers: the decrypting
+     * stream is read without buffering, and entries are copied through a 1 KB buffer
+     */
+    private fun unzipWithSmallBuffer(fileIn: InputStream, dirOut: File, password: String?) {
+        ZipInputStream(
+            if (password == null) fileIn else EncryptionHelper.decrypt(fileIn, password)
+        ).use { zin ->
+            val buffer = ByteArray(1024)
+            while (true) {
+                val ze = zin.nextEntry ?: break
+                val newFile = File(dirOut, ze.name)
+                newFile.parentFile!!.mkdirs()
+                FileOutputStream(newFile).use { out ->
+                    while (true) {
+                        val count = zin.read(buffer)
+                        if (count == -1) break
+                        out.write(buffer, 0, count)
+                    }
+                }
+                zin.closeEntry()
+            }
+        }
+    }
+
+    @Test
+    fun measureRestore() {
+        Benchmark.assumeEnabled()
+        val results = listOf(null, "secret").flatMap { password ->
+            val label = if (password == null) "plain" else "encrypted"
+            val archive = writeLargeArchive(password)
+            val megabytes = archive.length().toDouble() / megabyte
+            listOf(
+                "1 KB buffer" to { dirOut: File ->
+                    archive.inputStream().use { unzipWithSmallBuffer(it, dirOut, password) }
+                },
+                "${ZipUtils.BUFFER_SIZE / 1024} KB buffers" to { dirOut: File ->
+                    archive.inputStream().use { ZipUtils.unzip(it, dirOut, password) }
+                }
+            ).map { (path, extract) ->
+                val folders = mutableListOf<File>()
+                val millis = Benchmark.measureMillis {
+                    extract(temporaryFolder.newFolder().also { folders.add(it) })
+                }
+                assertThat(File(folders.last(), BACKUP_DB_FILE_NAME).length())
+                    .isAtLeast(benchmarkDatabaseSize.toLong())
+                folders.forEach { it.deleteRecursively() }
+                "$label, $path: %.1f ms, %.1f MB/s".format(millis, megabytes * 1000 / millis)
+            }.also { archive.delete() }
+        }
+        Benchmark.report(
+            "ZipUtilsTest",
+            listOf(
+                "database of ${benchmarkDatabaseSize / megabyte} MB, " +
+                        "$benchmarkAttachmentCount attachments of 1 MB, MB/s of archive read"
+            ) + results
+        )
+    }
+}
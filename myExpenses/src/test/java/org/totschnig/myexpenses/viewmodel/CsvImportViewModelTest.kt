@@ -0,0 +1,98 @@
+package org.totschnig.myexpenses.viewmodel
+
+import android.net.Uri
+import androidx.lifecycle.SavedStateHandle
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.R
+import org.totschnig.myexpenses.export.qif.QifDateFormat
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.useAndMap
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+@RunWith(AndroidJUnit4::class)
+class CsvImportViewModelTest : BaseViewModelTest() {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private lateinit var viewModel: CsvImportViewModel
+
+    @Before
+    fun setupViewModel() {
+        viewModel = CsvImportViewModel(ApplicationProvider.getApplicationContext(), SavedStateHandle())
+        ApplicationProvider.getApplicationContext<MyApplication>().appComponent.inject(viewModel)
+    }
+
+    @Test
+    fun discardedRowsAreNotImported() {
+        val file = temporaryFolder.newFile("import.csv").apply {
+            writeText((0 until 5).joinToString("\n") { "\"9/6/23\",\"Payee\",\"1.00\",\"Row $it\"" })
+        }
+        val (discarded, result) = importData(file, setOf(1, 3))
+
+        assertThat(discarded).isEqualTo(2)
+        assertThat(result).hasSize(1)
+        assertThat(result[0].successCount).isEqualTo(3)
+        assertThat(importedComments()).containsExactly("Row 0", "Row 2", "Row 4")
+    }
+
+    @Test
+    fun recordsAfterThePreviewMatchingADiscardedOneAreDiscarded() {
+        val header = "\"Date\",\"Payee\",\"Expense\",\"Comment\""
+        val file = temporaryFolder.newFile("import.csv").apply {
+            writeText((0 until 250).joinToString("\n") {
+                //the header is repeated after the preview, like in concatenated exports
+                if (it % 200 == 0) header else "\"9/6/23\",\"Payee\",\"1.00\",\"Row $it\""
+            })
+        }
+        assertThat(
+            viewModel.parseFile(Uri.fromFile(file), ',', "UTF-8")
+                .getOrAwaitValue(time = 10, timeUnit = TimeUnit.SECONDS).getOrThrow()
+        ).isEqualTo(250)
+
+        val (discarded, result) = importData(file, setOf(0), discardMatching = true)
+
+        assertThat(discarded).isEqualTo(2)
+        assertThat(result[0].successCount).isEqualTo(248)
+        assertThat(importedComments()).doesNotContain("Comment")
+    }
+
+    private fun importData(file: File, discardedRows: Set<Int>, discardMatching: Boolean = false) =
+        viewModel.importData(
+            discardedRows = discardedRows,
+            discardMatching = discardMatching,
+            columnToFieldMap = intArrayOf(
+                R.string.date,
+                R.string.payer_or_payee,
+                R.string.expense,
+                R.string.comment
+            ),
+            dateFormat = QifDateFormat.US,
+            autoFill = false,
+            accountConfiguration = AccountConfiguration(
+                0, CurrencyUnit.DebugInstance.code, AccountType.CASH
+            ),
+            uri = Uri.fromFile(file)
+        ).getOrAwaitValue(time = 10, timeUnit = TimeUnit.SECONDS).getOrThrow()
+
+    private fun importedComments() = contentResolver.query(
+        TransactionProvider.TRANSACTIONS_URI,
+        arrayOf(KEY_COMMENT),
+        "$KEY_ACCOUNTID = ?",
+        arrayOf(accountTitleToAccount.getValue("").id.toString()),
+        null
+    )!!.useAndMap { it.getString(0) }
+}
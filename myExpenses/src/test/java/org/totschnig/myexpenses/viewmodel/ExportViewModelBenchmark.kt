@@ -0,0 +1,132 @@
+package org.totschnig.myexpenses.viewmodel
+
+import android.content.ContentUris
+import android.database.sqlite.SQLiteDatabase
+import android.os.Bundle
+import android.os.Looper
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Shadows.shadowOf
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.ExportFormat
+import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.filter.KEY_FILTER
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.EXPORT_WORKERS
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_DATE_FORMAT
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_DECIMAL_SEPARATOR
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_DELIMITER
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_ENCODING
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_FILE_NAME
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_FORMAT
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_MERGE_P
+import org.totschnig.shared_test.Benchmark
+import java.util.Date
+
+/**
+ * Compares exporting 20 accounts each to its own file with [EXPORT_WORKERS] workers, as
+ * [ExportViewModel] does, with exporting them with a single worker, the content of the files is
+ * verified by [ExportViewModelTest]
+ */
+@RunWith(AndroidJUnit4::class)
+class ExportViewModelBenchmark : BaseViewModelTest() {
+
+    private lateinit var viewModel: ExportViewModel
+
+    private val accountCount = 20
+    private val transactionsPerAccount = 2_000
+
+    /**
+     * every export gets a new file name, since files from earlier runs are not overwritten
+     */
+    private var run = 0
+
+    private val db
+        get() = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+
+    @Before
+    fun setup() {
+        Benchmark.assumeEnabled()
+        viewModel = ExportViewModel(ApplicationProvider.getApplicationContext())
+        ApplicationProvider.getApplicationContext<MyApplication>().appComponent.inject(viewModel)
+        // without it, the view model does not hand out the uris of the exported files
+        viewModel.prefHandler.putBoolean(PrefKey.PERFORM_SHARE, true)
+        val base = Date(1700000000000L)
+        val accountIds = List(accountCount) { account ->
+            ContentUris.parseId(
+                contentResolver.insert(
+                    TransactionProvider.ACCOUNTS_URI,
+                    AccountInfo("Account $account", AccountType.CASH, 0).contentValues
+                )!!
+            )
+        }
+        db.beginTransaction()
+        try {
+            accountIds.forEachIndexed { account, accountId ->
+                repeat(transactionsPerAccount) {
+                    db.insert(
+                        TABLE_TRANSACTIONS,
+                        SQLiteDatabase.CONFLICT_NONE,
+                        TransactionInfo(
+                            accountId = accountId,
+                            amount = -100L * (it % 50 + 1),
+                            date = Date(base.time + it * 60_000L),
+                            comment = "Account $account transaction $it"
+                        ).contentValues
+                    )
+                }
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private fun export(workers: Int) {
+        viewModel.exportWorkers = workers
+        viewModel.startExport(Bundle().apply {
+            putSerializable(KEY_FORMAT, ExportFormat.CSV)
+            putString(KEY_DATE_FORMAT, "dd/MM/yyyy")
+            putChar(KEY_DECIMAL_SEPARATOR, '.')
+            putString(KEY_ENCODING, "UTF-8")
+            putString(KEY_FILE_NAME, "export-${run++}")
+            putChar(KEY_DELIMITER, ',')
+            putBoolean(KEY_MERGE_P, false)
+            putLong(KEY_ROWID, 0L)
+            putParcelableArrayList(KEY_FILTER, ArrayList())
+        })
+        // workers resume the view model on the main looper once they are done
+        val deadline = System.currentTimeMillis() + 300_000
+        while (viewModel.result.value == null) {
+            check(System.currentTimeMillis() < deadline) { "Export did not finish" }
+            shadowOf(Looper.getMainLooper()).idle()
+            Thread.sleep(1)
+        }
+        val files = viewModel.result.value!!.second
+        assertThat(files).hasSize(accountCount)
+        viewModel.resultProcessed()
+    }
+
+    @Test
+    fun compareWorkersWithSingleWorker() {
+        val workersMillis = Benchmark.measureMillis { export(EXPORT_WORKERS) }
+        val singleMillis = Benchmark.measureMillis { export(1) }
+        Benchmark.report(
+            "ExportViewModelBenchmark", listOf(
+                "$accountCount accounts with $transactionsPerAccount transactions each",
+                "$EXPORT_WORKERS workers: %.1f ms".format(workersMillis),
+                "1 worker: %.1f ms".format(singleMillis)
+            )
+        )
+    }
+}
@@ -0,0 +1,222 @@
+package org.totschnig.myexpenses.viewmodel
+
+import android.content.ContentUris
+import android.os.Bundle
+import android.os.Looper
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.JsonParser
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Shadows.shadowOf
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.R
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.ExportFormat
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_EXPORTED
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.filter.KEY_FILTER
+import org.totschnig.myexpenses.util.AppDirHelper
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_DATE_FORMAT
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_DECIMAL_SEPARATOR
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_DELIMITER
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_ENCODING
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_FILE_NAME
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_FORMAT
+import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.KEY_MERGE_P
+import java.util.Collections
+import java.util.Date
+
+/**
+ * Exports 20 accounts, each to its own file and merged into one, accounts without transactions are
+ * skipped
+ */
+@RunWith(AndroidJUnit4::class)
+class ExportViewModelTest : BaseViewModelTest() {
+
+    private lateinit var viewModel: ExportViewModel
+
+    private val accountCount = 20
+    private val transactionsPerAccount = 10
+    private lateinit var accountIds: List<Long>
+
+    @Before
+    fun setup() {
+        viewModel = ExportViewModel(ApplicationProvider.getApplicationContext())
+        ApplicationProvider.getApplicationContext<MyApplication>().appComponent.inject(viewModel)
+        val base = Date(1700000000000L)
+        accountIds = List(accountCount) { account ->
+            val accountId = ContentUris.parseId(
+                contentResolver.insert(
+                    TransactionProvider.ACCOUNTS_URI,
+                    AccountInfo("Account $account", AccountType.CASH, 0).contentValues
+                )!!
+            )
+            repeat(transactionsPerAccount) {
+                contentResolver.insert(
+                    TransactionProvider.TRANSACTIONS_URI,
+                    TransactionInfo(
+                        accountId = accountId,
+                        amount = -100L * (it + 1),
+                        date = Date(base.time + it * 60_000L),
+                        comment = "Account $account transaction $it"
+                    ).contentValues
+                )
+            }
+            accountId
+        }
+    }
+
+    private val progress: MutableList<String?> = Collections.synchronizedList(mutableListOf())
+
+    private fun export(mergeP: Boolean, format: ExportFormat = ExportFormat.CSV) {
+        val collector = CoroutineScope(Dispatchers.Unconfined).launch {
+            viewModel.publishProgress.collect { progress.add(it) }
+        }
+        viewModel.startExport(Bundle().apply {
+            putSerializable(KEY_FORMAT, format)
+            putString(KEY_DATE_FORMAT, "dd/MM/yyyy")
+            putChar(KEY_DECIMAL_SEPARATOR, '.')
+            putString(KEY_ENCODING, "UTF-8")
+            putString(KEY_FILE_NAME, "export")
+            putChar(KEY_DELIMITER, ',')
+            putBoolean(KEY_MERGE_P, mergeP)
+            putLong(KEY_ROWID, 0L)
+            putParcelableArrayList(KEY_FILTER, ArrayList())
+        })
+        // with several files, workers resume the view model on the main looper once they are done
+        val deadline = System.currentTimeMillis() + 60_000
+        while (viewModel.result.value == null) {
+            check(System.currentTimeMillis() < deadline) { "Export did not finish" }
+            shadowOf(Looper.getMainLooper()).idle()
+            Thread.sleep(5)
+        }
+        collector.cancel()
+    }
+
+    private val appDir
+        get() = AppDirHelper.getAppDir(ApplicationProvider.getApplicationContext()).getOrThrow()
+
+    private fun readFile(file: DocumentFile) =
+        ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+            .openInputStream(file.uri)!!.bufferedReader().use { it.readLines() }
+
+    private fun removeTransactions(accountId: Long) {
+        contentResolver.delete(
+            TransactionProvider.TRANSACTIONS_URI,
+            "$KEY_ACCOUNTID = ?",
+            arrayOf(accountId.toString())
+        )
+    }
+
+    private fun getString(resId: Int) =
+        ApplicationProvider.getApplicationContext<MyApplication>().getString(resId)
+
+    private fun countNotExported() = contentResolver.query(
+        TransactionProvider.TRANSACTIONS_URI,
+        arrayOf("count(*)"),
+        "$KEY_STATUS != $STATUS_EXPORTED",
+        null,
+        null
+    )!!.use {
+        it.moveToFirst()
+        it.getInt(0)
+    }
+
+    @Test
+    fun accountsAreExportedToSeparateFilesConcurrently() {
+        export(mergeP = false)
+        val files = appDir.findFile("export")!!.listFiles()
+        assertThat(files).hasLength(accountCount)
+        files.forEach { file ->
+            assertThat(readFile(file)).hasSize(1 + transactionsPerAccount)
+        }
+        assertThat(countNotExported()).isEqualTo(0)
+    }
+
+    @Test
+    fun mergedExportKeepsAccountsTogether() {
+        export(mergeP = true)
+        val lines = readFile(appDir.findFile("export.csv")!!)
+        assertThat(lines).hasSize(1 + accountCount * transactionsPerAccount)
+        val accountOfLine = lines.drop(1).map {
+            Regex("Account (\\d+) transaction").find(it)!!.groupValues[1]
+        }
+        // each account is one block
+        assertThat(accountOfLine.zipWithNext().count { (a, b) -> a != b }).isEqualTo(accountCount - 1)
+        assertThat(countNotExported()).isEqualTo(0)
+    }
+
+    @Test
+    fun failureOfOneAccountPreventsMarkingAsExported() {
+        //the file name of an account with an overlong label cannot be created
+        val accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("X".repeat(300), AccountType.CASH, 0).contentValues
+            )!!
+        )
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = accountId, amount = -100L).contentValues
+        )
+        export(mergeP = false)
+        assertThat(appDir.findFile("export")!!.listFiles()).hasLength(accountCount)
+        assertThat(countNotExported()).isEqualTo(accountCount * transactionsPerAccount + 1)
+        assertThat(progress).contains(getString(R.string.export_not_marked))
+    }
+
+    @Test
+    fun emptyAccountDoesNotPreventMarkingAsExported() {
+        contentResolver.insert(
+            TransactionProvider.ACCOUNTS_URI,
+            AccountInfo("Empty account", AccountType.CASH, 0).contentValues
+        )
+        export(mergeP = false)
+        assertThat(appDir.findFile("export")!!.listFiles()).hasLength(accountCount)
+        assertThat(countNotExported()).isEqualTo(0)
+        assertThat(progress.filterNotNull().filter {
+            it.contains(getString(R.string.no_exportable_expenses))
+        }).hasSize(1)
+        assertThat(progress).doesNotContain(getString(R.string.export_not_marked))
+    }
+
+    @Test
+    fun mergedExportSkipsEmptyAccounts() {
+        removeTransactions(accountIds.first())
+        removeTransactions(accountIds.last())
+        export(mergeP = true)
+        val lines = readFile(appDir.findFile("export.csv")!!)
+        //the header is written with the first account that has transactions
+        assertThat(lines).hasSize(1 + (accountCount - 2) * transactionsPerAccount)
+        assertThat(lines.drop(1).all { Regex("Account \\d+ transaction").containsMatchIn(it) }).isTrue()
+        assertThat(lines.count { it.contains("Account 1 transaction") }).isEqualTo(transactionsPerAccount)
+        assertThat(lines.count { it.contains("Account ${accountCount - 2} transaction") })
+            .isEqualTo(transactionsPerAccount)
+        assertThat(countNotExported()).isEqualTo(0)
+    }
+
+    @Test
+    fun mergedJsonExportSkipsEmptyAccounts() {
+        removeTransactions(accountIds.first())
+        removeTransactions(accountIds.last())
+        export(mergeP = true, format = ExportFormat.JSON)
+        val accounts = JsonParser.parseString(
+            readFile(appDir.findFile("export.json")!!).joinToString("\n")
+        ).asJsonArray
+        assertThat(accounts.map { it.asJsonObject["label"].asString })
+            .containsExactlyElementsIn((1 until accountCount - 1).map { "Account $it" }).inOrder()
+        assertThat(countNotExported()).isEqualTo(0)
+    }
+}
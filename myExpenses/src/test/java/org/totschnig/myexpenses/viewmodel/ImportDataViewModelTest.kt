@@ -0,0 +1,136 @@
+package org.totschnig.myexpenses.viewmodel
+
+import android.app.Application
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.export.CategoryInfo
+import org.totschnig.myexpenses.io.ImportAccount
+import org.totschnig.myexpenses.io.ImportTransaction
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import java.math.BigDecimal
+
+@RunWith(AndroidJUnit4::class)
+class ImportDataViewModelTest : BaseViewModelTest() {
+
+    class TestImportViewModel(application: Application) : ImportDataViewModel(application) {
+        override val format = "TEST"
+    }
+
+    private lateinit var viewModel: TestImportViewModel
+
+    private val currencyUnit = CurrencyUnit.DebugInstance
+
+    @Before
+    fun setupViewModel() {
+        viewModel = TestImportViewModel(ApplicationProvider.getApplicationContext())
+        ApplicationProvider.getApplicationContext<MyApplication>().appComponent.inject(viewModel)
+    }
+
+    private fun count(selection: String, vararg args: Any) = contentResolver.query(
+        TransactionProvider.TRANSACTIONS_URI,
+        arrayOf("count(*)"),
+        selection,
+        args.map { it.toString() }.toTypedArray(),
+        null
+    )!!.use {
+        it.moveToFirst()
+        it.getInt(0)
+    }
+
+    @Test
+    fun entitiesAreOnlyCreatedOnce() {
+        val payees = setOf("Bakery", "Landlord")
+        val tags = setOf("Holiday", "Work")
+        val categories = setOf(
+            CategoryInfo("Food:Bakery"),
+            CategoryInfo("Food:Restaurant"),
+            CategoryInfo("Rent")
+        )
+        assertThat(viewModel.insertPayees(payees)).isEqualTo(2)
+        assertThat(viewModel.insertTags(tags)).isEqualTo(2)
+        assertThat(viewModel.insertCategories(categories)).isEqualTo(4)
+        assertThat(viewModel.insertPayees(payees + "Bakery ")).isEqualTo(0)
+        assertThat(viewModel.insertTags(tags)).isEqualTo(0)
+        assertThat(viewModel.insertCategories(categories)).isEqualTo(0)
+    }
+
+    @Test
+    fun categoriesWithEscapedLabelsAreFoundInDatabase() {
+        // a label containing the separator has to be escaped in import files
+        assertThat(viewModel.insertCategories(setOf(CategoryInfo("Travel\\u003aFlights")))).isEqualTo(1)
+        assertThat(viewModel.insertCategories(setOf(CategoryInfo("Travel\\u003aFlights")))).isEqualTo(0)
+        // and is not mistaken for a parent with a child
+        assertThat(viewModel.insertCategories(setOf(CategoryInfo("Travel:Flights")))).isEqualTo(2)
+        assertThat(viewModel.insertCategories(setOf(CategoryInfo("Caf\\u00e9")))).isEqualTo(1)
+        assertThat(viewModel.insertCategories(setOf(CategoryInfo("Café")))).isEqualTo(0)
+    }
+
+    @Test
+    fun bulkImportWithTransfersSplitsAndTags() {
+        val plainCount = 1200
+        val accountA = ImportAccount.Builder().memo("A").apply {
+            repeat(plainCount) {
+                addTransaction(
+                    ImportTransaction.Builder()
+                        .amount(BigDecimal(-(it + 1)))
+                        .payee("Payee ${it % 10}")
+                        .category("Food:Bakery")
+                        .addTags(if (it % 2 == 0) listOf("Holiday") else emptyList())
+                )
+            }
+            addTransaction(
+                ImportTransaction.Builder().amount(BigDecimal(-50)).toAccount("B")
+            )
+            addTransaction(
+                ImportTransaction.Builder().amount(BigDecimal(-100))
+                    .addSplit(ImportTransaction.Builder().amount(BigDecimal(-60)).category("Rent"))
+                    .addSplit(ImportTransaction.Builder().amount(BigDecimal(-40)).toAccount("B"))
+            )
+        }.build()
+        val accountB = ImportAccount.Builder().memo("B").build()
+        val accounts = listOf(accountA, accountB)
+
+        viewModel.insertAccounts(accounts, currencyUnit, Uri.EMPTY)
+        viewModel.insertPayees((0 until 10).map { "Payee $it" }.toSet())
+        viewModel.insertTags(setOf("Holiday"))
+        viewModel.insertCategories(setOf(CategoryInfo("Food:Bakery"), CategoryInfo("Rent")))
+        runBlocking {
+            viewModel.insertTransactions(accounts, currencyUnit, false)
+        }
+
+        val idA = accountTitleToAccount.getValue("A").id
+        val idB = accountTitleToAccount.getValue("B").id
+        assertThat(count("$KEY_ACCOUNTID = ? AND $KEY_PARENTID IS NULL", idA))
+            .isEqualTo(plainCount + 2)
+        assertThat(count("$KEY_ACCOUNTID = ? AND $KEY_TRANSFER_PEER IS NOT NULL", idB))
+            .isEqualTo(2)
+        assertThat(count("$KEY_ACCOUNTID = ? AND $KEY_TRANSFER_PEER IS NOT NULL", idA))
+            .isEqualTo(2)
+        assertThat(count("$KEY_PARENTID IS NOT NULL")).isEqualTo(2)
+        contentResolver.query(
+            TransactionProvider.TRANSACTIONS_TAGS_URI, null, null, null, null
+        )!!.use {
+            assertThat(it.count).isEqualTo(plainCount / 2)
+        }
+        assertThat(
+            contentResolver.call(
+                TransactionProvider.DUAL_URI,
+                TransactionProvider.METHOD_VERIFY_ACCOUNT_AGGREGATES,
+                null,
+                null
+            )!!.getLongArray(KEY_RESULT)
+        ).isEmpty()
+    }
+}
@@ -1,6 +1,7 @@
 package org.totschnig.myexpenses.viewmodel
 
 import android.content.ContentUris
+import android.database.ContentObserver
 import androidx.lifecycle.SavedStateHandle
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
@@ -19,9 +20,12 @@ import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.filter.CategoryCriterion
 import org.totschnig.myexpenses.provider.filter.CrStatusCriterion
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.provider.useAndMap
 import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.EXPORT_HANDLE_DELETED_CREATE_HELPER
 import org.totschnig.myexpenses.viewmodel.ExportViewModel.Companion.EXPORT_HANDLE_DELETED_UPDATE_BALANCE
 import org.totschnig.myexpenses.viewmodel.data.Category
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 @RunWith(AndroidJUnit4::class)
 class MyExpensesViewModelTest: BaseViewModelTest() {
@@ -157,6 +161,34 @@ class MyExpensesViewModelTest: BaseViewModelTest() {
         assertThat(getReconciledAccountBalance(account1.id)).isEqualTo(initialCleared)
     }
 
+    @Test
+    fun bulkDeleteNotifiesAccountScope() {
+        insertData()
+        val ids = viewModel.contentResolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(KEY_ROWID),
+            "$KEY_ACCOUNTID = ? AND $KEY_TRANSFER_PEER IS NULL",
+            arrayOf(account1.id.toString()),
+            null
+        )!!.useAndMap { it.getLong(0) }
+        // deleting in bulk suppresses the notifications of the provider, the list of the account
+        // only learns about the change from the view model
+        val notified = CountDownLatch(1)
+        val observer = object : ContentObserver(null) {
+            override fun onChange(selfChange: Boolean) {
+                notified.countDown()
+            }
+        }
+        contentResolver.registerContentObserver(account1.accountScopeUri, true, observer)
+        try {
+            viewModel.deleteTransactions(ids.toLongArray())
+            assertThat(notified.await(2, TimeUnit.SECONDS)).isTrue()
+        } finally {
+            contentResolver.unregisterContentObserver(observer)
+        }
+        assertThat(count(condition = "$KEY_TRANSFER_PEER IS NULL")).isEqualTo(0)
+    }
+
     private fun count(id: Long = account1.id, condition: String? = null): Int {
         val selection = "$KEY_ACCOUNTID = ? ${condition?.let { " AND $it" } ?: ""}"
         return viewModel.contentResolver.query(
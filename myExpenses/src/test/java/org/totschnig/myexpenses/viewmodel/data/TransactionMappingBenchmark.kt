@@ -0,0 +1,138 @@
+package org.totschnig.myexpenses.viewmodel.data
+
+import android.content.ContentUris
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.model.SortDirection
+import org.totschnig.myexpenses.model2.Party
+import org.totschnig.myexpenses.preference.PrefHandler
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.shared_test.Benchmark
+import java.lang.management.ManagementFactory
+import java.util.Date
+
+/**
+ * Compares mapping a cursor of transactions with [Transaction2.fromCursor], which resolves the
+ * column indices for every row, with a single [CursorMapper] per cursor that shares a [StringPool],
+ * reporting time and allocated bytes per row
+ */
+@RunWith(RobolectricTestRunner::class)
+class TransactionMappingBenchmark : BaseTestWithRepository() {
+    private val transactionCount = 5_000
+    private val payeeCount = 20
+    private val warmup = 2
+    private val iterations = 5
+
+    private val currencyUnit: CurrencyUnit = currencyContext.get("USD")
+    private var accountId: Long = 0
+
+    private val db
+        get() = (contentResolver.acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+            .localContentProvider as TransactionProvider).helper.writableDatabase
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private fun allocatedBytes() = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().id)
+
+    @Before
+    fun setup() {
+        Benchmark.assumeEnabled()
+        accountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Benchmark", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        db.beginTransaction()
+        try {
+            val payees = List(payeeCount) {
+                db.insert(
+                    TABLE_PAYEES,
+                    SQLiteDatabase.CONFLICT_NONE,
+                    Party.create("Payee $it").asContentValues
+                )
+            }
+            repeat(transactionCount) {
+                db.insert(
+                    TABLE_TRANSACTIONS,
+                    SQLiteDatabase.CONFLICT_NONE,
+                    TransactionInfo(
+                        accountId = accountId,
+                        amount = -100L * (it % 50 + 1),
+                        date = Date(1700000000000L + it * 3600_000L),
+                        comment = "Transaction $it",
+                        payeeId = payees[it % payeeCount]
+                    ).contentValues
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private fun <T> Cursor.mapAll(map: () -> T) = buildList {
+        moveToPosition(-1)
+        while (moveToNext()) add(map())
+    }
+
+    private fun measure(label: String, block: () -> Unit): String {
+        val allocatedBefore = allocatedBytes()
+        val millis = Benchmark.measureMillis(warmup, iterations, block)
+        val bytesPerRow = (allocatedBytes() - allocatedBefore) / (warmup + iterations) / transactionCount
+        return "$label: %.1f ms, %d bytes allocated/row".format(millis, bytesPerRow)
+    }
+
+    @Test
+    fun compareMappers() {
+        val (uri, projection) = PageAccount(
+            id = accountId,
+            type = AccountType.CASH,
+            sortBy = KEY_DATE,
+            sortDirection = SortDirection.DESC,
+            grouping = Grouping.NONE,
+            currencyUnit = currencyUnit,
+            sealed = false,
+            openingBalance = 0,
+            _color = 0
+        ).loadingInfo("USD", Mockito.mock(PrefHandler::class.java))
+        val results = contentResolver.query(uri, projection, "$KEY_PARENTID is null", null, null)!!
+            .use { cursor ->
+                assertThat(cursor.count).isEqualTo(transactionCount)
+                val perRow = cursor.mapAll { Transaction2.fromCursor(cursor, currencyUnit) }
+                val perCursor = CursorMapper(cursor, currencyUnit, StringPool()).let { mapper ->
+                    cursor.mapAll { mapper.map() }
+                }
+                assertThat(perCursor).isEqualTo(perRow)
+                listOf(
+                    measure("column indices per row") {
+                        cursor.mapAll { Transaction2.fromCursor(cursor, currencyUnit) }
+                    },
+                    measure("mapper per cursor with shared string pool") {
+                        val mapper = CursorMapper(cursor, currencyUnit, StringPool())
+                        cursor.mapAll { mapper.map() }
+                    }
+                )
+            }
+        Benchmark.report(
+            "TransactionMappingBenchmark",
+            listOf("$transactionCount transactions, $payeeCount payees") + results
+        )
+    }
+}
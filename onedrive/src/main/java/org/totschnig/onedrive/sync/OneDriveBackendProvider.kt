@@ -132,6 +132,9 @@ class OneDriveBackendProvider internal constructor(context: Context, folderName:
     override val accountRes: DriveItem
         get() = itemWithPath(accountPath).buildRequest().get()!!
     override val sharedPreferencesName = "oneDrive"
+
+    override val changeSetFetchParallelism = 4
+
     override val isEmpty: Boolean
         get() = baseFolder.children().buildRequest().get()?.currentPage?.isEmpty() == true
 
@@ -162,7 +165,8 @@ class OneDriveBackendProvider internal constructor(context: Context, folderName:
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean
     ) {
         val base = if (toAccountDir) accountPath else basePath
         val driveFolder = if (folder == null) base else {
@@ -171,7 +175,7 @@ class OneDriveBackendProvider internal constructor(context: Context, folderName:
         }
         saveInputStream(
             itemWithPath(driveFolder.appendPath(fileName)),
-            toInputStream(fileContents, maybeEncrypt)
+            toInputStream(fileContents, maybeEncrypt, compress)
         )
     }
 
@@ -281,6 +285,12 @@ class OneDriveBackendProvider internal constructor(context: Context, folderName:
         } ?: emptyList()
     }
 
+    /**
+     * the eTag of a folder changes whenever its children change
+     */
+    override fun listingVersion(folder: DriveItem?): String? =
+        itemWithId((folder ?: accountRes).id!!).buildRequest().select("eTag").get()?.eTag
+
     override fun getInputStream(resource: DriveItem) =
         itemWithId(resource.id!!).content().saveGet() ?: throw IOException()
 
@@ -304,6 +314,11 @@ class OneDriveBackendProvider internal constructor(context: Context, folderName:
         itemWithPath(getResourcePath(LOCK_FILE)).buildRequest().delete()
     }
 
+    override fun deleteResource(resource: DriveItem): Boolean {
+        itemWithId(resource.id!!).buildRequest().delete()
+        return true
+    }
+
     companion object {
         const val KEY_MICROSOFT_ACCOUNT = "microsoftAccount"
     }
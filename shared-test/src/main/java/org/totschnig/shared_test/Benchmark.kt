@@ -0,0 +1,33 @@
+package org.totschnig.shared_test
+
+import org.junit.Assume
+import java.io.File
+
+/**
+ * Benchmarks live with the unit tests, but only run when the build is started with -Pbenchmark.
+ * Their results are written to build/reports/benchmarks/<name>.txt of the module under test.
+ */
+object Benchmark {
+    private const val PROPERTY = "benchmark"
+
+    fun assumeEnabled() {
+        Assume.assumeTrue("Benchmark, run with -P$PROPERTY", System.getProperty(PROPERTY) != null)
+    }
+
+    /**
+     * runs [block] [warmup] times, then returns the average duration of [iterations] further runs
+     * in milliseconds
+     */
+    fun measureMillis(warmup: Int = 1, iterations: Int = 3, block: () -> Unit): Double {
+        repeat(warmup) { block() }
+        val start = System.nanoTime()
+        repeat(iterations) { block() }
+        return (System.nanoTime() - start) / iterations / 1_000_000.0
+    }
+
+    fun report(name: String, results: List<String>) {
+        File("build/reports/benchmarks").apply { mkdirs() }
+            .resolve("$name.txt")
+            .writeText(results.joinToString("\n", postfix = "\n"))
+    }
+}
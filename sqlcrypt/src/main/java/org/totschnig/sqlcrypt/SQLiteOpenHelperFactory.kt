@@ -17,30 +17,46 @@ class SQLiteOpenHelperFactory : SqlCryptProvider {
 
     /**
      * https://commonsware.com/Room/pages/chap-sqlciphermgmt-001.html
+     *
+     * The export runs in a single read transaction on a connection of its own, so that it sees one
+     * snapshot of the database, while the live database, which is in WAL mode, stays writable.
      */
     override fun decrypt(context: Context, encrypted: File, backupDb: File) {
-        val originalDb = SQLiteDatabase.openDatabase(
-            encrypted.absolutePath,
-            passPhrase(context),
-            null,
-            SQLiteDatabase.OPEN_READWRITE,
-            null,
-            null
-        )
-
+        if (backupDb.exists()) {
+            if (!backupDb.delete())
+                throw IOException("File $backupDb exists and cannot be deleted.")
+        }
         SQLiteDatabase.openOrCreateDatabase(
             backupDb.absolutePath,
             "",
             null
         ).close() // create an empty database
 
-        //language=text
-        val version = originalDb.compileStatement("ATTACH DATABASE ? AS plaintext KEY ''").use {
-            it.bindString(1, backupDb.absolutePath)
-            it.execute()
-            originalDb.rawExecSQL("SELECT sqlcipher_export('plaintext')")
-            originalDb.rawExecSQL("DETACH DATABASE plaintext")
-
+        val version = SQLiteDatabase.openDatabase(
+            encrypted.absolutePath,
+            passPhrase(context),
+            null,
+            SQLiteDatabase.OPEN_READWRITE,
+            null,
+            null
+        ).use { originalDb ->
+            //language=text
+            originalDb.compileStatement("ATTACH DATABASE ? AS plaintext KEY ''").use {
+                it.bindString(1, backupDb.absolutePath)
+                it.execute()
+            }
+            try {
+                originalDb.rawExecSQL("BEGIN")
+                try {
+                    originalDb.rawExecSQL("SELECT sqlcipher_export('plaintext')")
+                    originalDb.rawExecSQL("COMMIT")
+                } catch (e: Exception) {
+                    originalDb.rawExecSQL("ROLLBACK")
+                    throw e
+                }
+            } finally {
+                originalDb.rawExecSQL("DETACH DATABASE plaintext")
+            }
             originalDb.version
         }
 
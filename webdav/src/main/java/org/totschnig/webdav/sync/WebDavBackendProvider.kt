@@ -138,6 +138,13 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
         }
     }
 
+    override fun deleteResource(resource: DavResource) = try {
+        resource.delete(null)
+        true
+    } catch (e: HttpException) {
+        throw IOException(e)
+    }
+
     @Throws(IOException::class)
     override fun unlock() {
         if (fallbackToClass1) {
@@ -176,12 +183,20 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
             accountUuid
         )
 
+    /**
+     * the ETag of the collection, if the server reports one
+     */
+    override fun listingVersion(folder: DavResource?): String? =
+        webDavClient.getETag(folder ?: accountRes)
+
     override fun nameForResource(resource: DavResource): String? = resource.fileName()
 
     override fun isCollection(resource: DavResource) = LockableDavResource.isCollection(resource)
 
     override val sharedPreferencesName = "webdav"
 
+    override val changeSetFetchParallelism = 4
+
     @get:Throws(IOException::class)
     override val isEmpty: Boolean
         get() = webDavClient.getFolderMembers().isEmpty()
@@ -227,7 +242,8 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
         fileName: String,
         fileContents: String,
         mimeType: String,
-        maybeEncrypt: Boolean
+        maybeEncrypt: Boolean,
+        compress: Boolean
     ) {
         val base = if (toAccountDir) accountRes else webDavClient.base
         val parent = if (folder != null) {
@@ -238,7 +254,7 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
                 }
             }
         } else base
-        saveFileContents(fileName, fileContents, mimeType, maybeEncrypt, parent)
+        saveFileContents(fileName, fileContents, mimeType, maybeEncrypt, parent, compress)
     }
 
     private fun transform(e: HttpException): IOException? {
@@ -248,18 +264,18 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
     @Throws(IOException::class)
     private fun saveFileContents(
         fileName: String, fileContents: String, mimeType: String,
-        maybeEncrypt: Boolean, parent: DavResource
+        maybeEncrypt: Boolean, parent: DavResource, compress: Boolean = false
     ) {
         val encrypt = isEncrypted && maybeEncrypt
         val mediaType: MediaType? = "$mimeType; charset=utf-8".toMediaTypeOrNull()
-        val requestBody: RequestBody = if (encrypt) object : RequestBody() {
+        val requestBody: RequestBody = if (encrypt || compress) object : RequestBody() {
             override fun contentType(): MediaType? {
                 return mediaType
             }
 
             @Throws(IOException::class)
             override fun writeTo(sink: BufferedSink) {
-                val source = toInputStream(fileContents, true).source()
+                val source = toInputStream(fileContents, maybeEncrypt, compress).source()
                 try {
                     sink.writeAll(source)
                 } finally {
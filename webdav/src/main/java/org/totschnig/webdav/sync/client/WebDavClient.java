@@ -15,6 +15,8 @@
  */
 package org.totschnig.webdav.sync.client;
 
+import android.text.TextUtils;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -47,6 +49,7 @@ import at.bitfire.dav4android.XmlUtils;
 import at.bitfire.dav4android.exception.DavException;
 import at.bitfire.dav4android.exception.HttpException;
 import at.bitfire.dav4android.property.DisplayName;
+import at.bitfire.dav4android.property.GetETag;
 import at.bitfire.dav4android.property.ResourceType;
 import dagger.internal.Preconditions;
 import okhttp3.HttpUrl;
@@ -168,6 +171,23 @@ public class WebDavClient {
     return folder.members;
   }
 
+  /**
+   * @return the ETag of the collection, which changes whenever its members change, null if the
+   * server does not report it
+   */
+  @Nullable
+  public String getETag(DavResource folder) throws IOException {
+    //a fresh instance, since propfind replaces the members of the one we are given
+    DavResource resource = new DavResource(httpClient, folder.location);
+    try {
+      resource.propfind(0, GetETag.NAME);
+    } catch (DavException | HttpException e) {
+      throw new IOException(e);
+    }
+    GetETag eTag = (GetETag) resource.properties.get(GetETag.NAME);
+    return eTag == null || TextUtils.isEmpty(eTag.eTag) ? null : eTag.eTag;
+  }
+
   public LockableDavResource getBase() {
     return new LockableDavResource(httpClient, mBaseUri);
   }